@@ -4,8 +4,8 @@ package org.geowebcache.arcgis.config;
  * Represents a {@code CacheStorageInfo} element in an ArcGIS tile cache config file.
  * <p>
  * This element exists from ArcGIS 10.0 onwards, and defines whether the cache is in "exploded" or
- * "compact" format. As the "compact" format is not documented by ESRI, we only support the
- * "exploded" format.
+ * "compact" format, in which case {@code PacketSize} is the number of rows and columns of tiles in
+ * each bundle file.
  * </p>
  * <p>
  * XML representation:
@@ -28,6 +28,15 @@ public class CacheStorageInfo {
 
     public static final String EXPLODED_FORMAT_CODE = "esriMapCacheStorageModeExploded";
 
+    public static final String COMPACT_FORMAT_CODE = "esriMapCacheStorageModeCompact";
+
+    public static final String COMPACT_V2_FORMAT_CODE = "esriMapCacheStorageModeCompactV2";
+
+    /**
+     * Bundle size used by ArcGIS when the config file does not give one
+     */
+    public static final int DEFAULT_PACKET_SIZE = 128;
+
     private String storageFormat;
 
     private int packetSize;
@@ -53,4 +62,12 @@ public class CacheStorageInfo {
         return packetSize;
     }
 
+    /**
+     * @return whether tiles are stored in bundle files, either version of the compact format
+     */
+    public boolean isCompact() {
+        return COMPACT_FORMAT_CODE.equals(storageFormat)
+                || COMPACT_V2_FORMAT_CODE.equals(storageFormat);
+    }
+
 }
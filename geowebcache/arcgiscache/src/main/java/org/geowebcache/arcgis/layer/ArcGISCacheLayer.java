@@ -17,6 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.arcgis.config.CacheInfo;
 import org.geowebcache.arcgis.config.CacheInfoPersister;
+import org.geowebcache.arcgis.config.CacheStorageInfo;
 import org.geowebcache.arcgis.config.LODInfo;
 import org.geowebcache.arcgis.config.TileCacheInfo;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
@@ -45,6 +46,11 @@ public class ArcGISCacheLayer extends TileLayer {
 
     private static final Log log = LogFactory.getLog(ArcGISCacheLayer.class);
 
+    /**
+     * Bundles of a compact cache kept open at most, each holding a file handle and a mapped index
+     */
+    private static final int MAX_OPEN_BUNDLES = 64;
+
     /*
      * configuration properties
      */
@@ -55,6 +61,11 @@ public class ArcGISCacheLayer extends TileLayer {
 
     private transient BoundingBox layerBounds;
 
+    /**
+     * Reads the tiles if the cache is in compact format, {@code null} if it is exploded
+     */
+    private transient ArcGISCompactCache compactCache;
+
     public File getTilingScheme() {
         return tilingScheme;
     }
@@ -94,6 +105,18 @@ public class ArcGISCacheLayer extends TileLayer {
         log.info("Configuring layer " + getName() + " out of the ArcGIS tiling scheme "
                 + tilingScheme.getAbsolutePath());
 
+        final CacheStorageInfo storageInfo = cacheInfo.getCacheStorageInfo();
+        if (storageInfo.isCompact()) {
+            int packetSize = storageInfo.getPacketSize();
+            if (packetSize <= 0) {
+                packetSize = CacheStorageInfo.DEFAULT_PACKET_SIZE;
+            }
+            log.info("Layer " + getName() + " is a compact cache of " + packetSize + "x"
+                    + packetSize + " tile bundles");
+            compactCache = new ArcGISCompactCache(new File(getLayerPath().toString()),
+                    packetSize, MAX_OPEN_BUNDLES);
+        }
+
         super.subSets = createGridSubsets(gridSetBroker);
         super.formats = loadMimeTypes();
         return true;
@@ -147,11 +170,16 @@ public class ArcGISCacheLayer extends TileLayer {
     public ConveyorTile getTile(final ConveyorTile tile) throws GeoWebCacheException, IOException,
             OutsideCoverageException {
 
-        String path = getTilePath(tile);
-        File tileFile = new File(path);
+        byte[] tileContent;
+        if (compactCache == null) {
+            File tileFile = new File(getTilePath(tile));
+            tileContent = tileFile.exists() ? readFile(tileFile) : null;
+        } else {
+            final long[] tileIndex = tile.getTileIndex();
+            tileContent = compactCache.getTile((int) tileIndex[2], getRow(tile), tileIndex[0]);
+        }
 
-        if (tileFile.exists()) {
-            byte[] tileContent = readFile(tileFile);
+        if (tileContent != null) {
             tile.setCacheResult(CacheResult.HIT);
             tile.setContent(tileContent);
         } else {
@@ -187,12 +215,12 @@ public class ArcGISCacheLayer extends TileLayer {
         return blank != null;
     }
 
-    private String getTilePath(final ConveyorTile tile) {
-
-        final MimeType mimeType = tile.getMimeType();
+    /**
+     * @return the ArcGIS row of the tile, counted from the top
+     */
+    private long getRow(final ConveyorTile tile) {
         final long[] tileIndex = tile.getTileIndex();
-        final String gridSetId = tile.getGridSetId();
-        final GridSubset gridSubset = this.getGridSubset(gridSetId);
+        final GridSubset gridSubset = this.getGridSubset(tile.getGridSetId());
 
         GridSet gridSet = gridSubset.getGridSet();
         final int z = (int) tileIndex[2];
@@ -203,10 +231,19 @@ public class ArcGISCacheLayer extends TileLayer {
         // long coverageMinY = coverage[1];
         long coverageMaxY = grid.getExtent()[1] - 1;
 
-        final long x = tileIndex[0];
         // invert the order of the requested Y ordinate, since ArcGIS caches are top-left to
         // bottom-right, and GWC computes tiles in bottom-left to top-right order
-        final long y = (coverageMaxY - tileIndex[1]);
+        return coverageMaxY - tileIndex[1];
+    }
+
+    private String getTilePath(final ConveyorTile tile) {
+
+        final MimeType mimeType = tile.getMimeType();
+        final long[] tileIndex = tile.getTileIndex();
+        final int z = (int) tileIndex[2];
+
+        final long x = tileIndex[0];
+        final long y = getRow(tile);
 
         String level = Integer.toHexString(z);
         level = zeroPadder(level, 2);
@@ -252,7 +289,7 @@ public class ArcGISCacheLayer extends TileLayer {
         return String.valueOf(data);
     }
 
-    private byte[] readFile(File fh) throws StorageException {
+    static byte[] readFile(File fh) throws StorageException {
         byte[] blob = null;
 
         FileInputStream fis;
@@ -384,7 +421,9 @@ public class ArcGISCacheLayer extends TileLayer {
      */
     @Override
     public void destroy() {
-        // TODO Auto-generated method stub
+        if (compactCache != null) {
+            compactCache.close();
+        }
     }
 
     /**
@@ -0,0 +1,322 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads tiles out of an ArcGIS compact cache, where each level directory ({@code Lnn}) holds
+ * bundles of {@code packetSize x packetSize} tiles named after the row and column of their top
+ * left tile, as in {@code R0080C0100.bundle}.
+ * <p>
+ * Two versions of the format are understood, told apart by whether the bundle has a
+ * {@code .bundlx} index next to it:
+ * <ul>
+ * <li>Version 1 (ArcGIS 10.0 to 10.2): the {@code .bundlx} file has a 16 bytes header followed by
+ * a 5 bytes little endian offset into the bundle per tile, column by column. At that offset the
+ * bundle has the tile's size as a 4 bytes little endian integer followed by its bytes.
+ * <li>Version 2 (ArcGIS 10.3 onwards): the bundle has a 64 bytes header followed by an 8 bytes
+ * little endian entry per tile, row by row, the lower 5 bytes being the offset of the tile's bytes
+ * and the upper 3 its size.
+ * </ul>
+ * In both a tile of size zero is not there.
+ * </p>
+ * <p>
+ * Indexes are memory mapped when a bundle is first read. Up to {@code maxOpenBundles} bundles are
+ * kept open, least recently used first out; a bundle being read while it is evicted is closed
+ * once the read finishes. Tiles are read with positional reads, so any number of threads can read
+ * from the same bundle at once.
+ * </p>
+ */
+final class ArcGISCompactCache {
+
+    private static final Log log = LogFactory.getLog(ArcGISCompactCache.class);
+
+    static final int BUNDLX_HEADER_SIZE = 16;
+
+    static final int BUNDLX_ENTRY_SIZE = 5;
+
+    static final int V2_HEADER_SIZE = 64;
+
+    static final int V2_ENTRY_SIZE = 8;
+
+    private static final long V2_OFFSET_MASK = (1L << 40) - 1;
+
+    /**
+     * Stands for a bundle that does not exist, so blank areas don't look for it on every request
+     */
+    private static final Bundle MISSING = new Bundle(null, null, null, false);
+
+    /**
+     * Holds the size of a version 1 tile, one per thread
+     */
+    private static final ThreadLocal<ByteBuffer> sizeBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private final File layersDir;
+
+    private final int packetSize;
+
+    private final Map<File, Bundle> openBundles;
+
+    /**
+     * @param layersDir
+     *            the {@code _alllayers} directory
+     * @param packetSize
+     *            the number of rows and columns of tiles in a bundle
+     * @param maxOpenBundles
+     *            how many bundles to keep open at most
+     */
+    ArcGISCompactCache(final File layersDir, final int packetSize, final int maxOpenBundles) {
+        if (packetSize <= 0) {
+            throw new IllegalArgumentException("packetSize shall be > 0: " + packetSize);
+        }
+        this.layersDir = layersDir;
+        this.packetSize = packetSize;
+        this.openBundles = new LinkedHashMap<File, Bundle>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, Bundle> eldest) {
+                if (size() <= maxOpenBundles) {
+                    return false;
+                }
+                eldest.getValue().evict();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param level
+     *            the ArcGIS level id
+     * @param row
+     *            the tile row, counted from the top
+     * @param col
+     *            the tile column
+     * @return the tile's bytes, or {@code null} if the cache does not have it
+     */
+    byte[] getTile(final int level, final long row, final long col) throws IOException {
+        final long bundleRow = row - (row % packetSize);
+        final long bundleCol = col - (col % packetSize);
+
+        final Bundle bundle = acquire(getBundleFile(level, bundleRow, bundleCol));
+        try {
+            if (bundle == MISSING) {
+                return null;
+            }
+            final int tileRow = (int) (row - bundleRow);
+            final int tileCol = (int) (col - bundleCol);
+            return bundle.v2 ? readV2(bundle, tileRow, tileCol) : readV1(bundle, tileRow,
+                    tileCol);
+        } finally {
+            release(bundle);
+        }
+    }
+
+    private byte[] readV1(final Bundle bundle, final int tileRow, final int tileCol)
+            throws IOException {
+        final int entry = BUNDLX_HEADER_SIZE + BUNDLX_ENTRY_SIZE
+                * (packetSize * tileCol + tileRow);
+        long offset = 0;
+        for (int i = BUNDLX_ENTRY_SIZE - 1; i >= 0; i--) {
+            offset = (offset << 8) | (bundle.index.get(entry + i) & 0xFF);
+        }
+
+        final ByteBuffer size = sizeBuffer.get();
+        size.clear();
+        if (!readFully(bundle.channel, size, offset)) {
+            return null;
+        }
+        return read(bundle, offset + 4, size.getInt(0));
+    }
+
+    private byte[] readV2(final Bundle bundle, final int tileRow, final int tileCol)
+            throws IOException {
+        final int entry = V2_ENTRY_SIZE * (packetSize * tileRow + tileCol);
+        final long offsetAndSize = bundle.index.getLong(entry);
+        return read(bundle, offsetAndSize & V2_OFFSET_MASK, (int) (offsetAndSize >>> 40));
+    }
+
+    private byte[] read(final Bundle bundle, final long offset, final int size)
+            throws IOException {
+        if (size <= 0) {
+            return null;
+        }
+        final byte[] tile = new byte[size];
+        if (!readFully(bundle.channel, ByteBuffer.wrap(tile), offset)) {
+            throw new IOException("Tile at " + offset + " of " + size
+                    + " bytes goes past the end of " + bundle.file.getAbsolutePath());
+        }
+        return tile;
+    }
+
+    /**
+     * @return whether the buffer was filled, {@code false} if the file ended before
+     */
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    File getBundleFile(final int level, final long bundleRow, final long bundleCol) {
+        StringBuilder name = new StringBuilder(24);
+        name.append('R');
+        appendHex(name, bundleRow);
+        name.append('C');
+        appendHex(name, bundleCol);
+        name.append(".bundle");
+
+        String levelDir = level < 10 ? "L0" + level : "L" + level;
+        return new File(new File(layersDir, levelDir), name.toString());
+    }
+
+    private static void appendHex(final StringBuilder name, final long value) {
+        String hex = Long.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            name.append('0');
+        }
+        name.append(hex);
+    }
+
+    private Bundle acquire(final File file) throws IOException {
+        synchronized (openBundles) {
+            Bundle bundle = openBundles.get(file);
+            if (bundle == null) {
+                bundle = open(file);
+                openBundles.put(file, bundle);
+            }
+            if (bundle != MISSING) {
+                bundle.refs++;
+            }
+            return bundle;
+        }
+    }
+
+    private void release(final Bundle bundle) {
+        if (bundle == MISSING) {
+            return;
+        }
+        synchronized (openBundles) {
+            bundle.refs--;
+            if (bundle.evicted && bundle.refs == 0) {
+                bundle.close();
+            }
+        }
+    }
+
+    private Bundle open(final File file) throws IOException {
+        if (!file.exists()) {
+            return MISSING;
+        }
+        final String path = file.getPath();
+        final File bundlx = new File(path.substring(0, path.length() - ".bundle".length())
+                + ".bundlx");
+        final int indexSize = packetSize * packetSize;
+
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            MappedByteBuffer index;
+            final boolean v2 = !bundlx.exists();
+            if (v2) {
+                index = channel.map(FileChannel.MapMode.READ_ONLY, V2_HEADER_SIZE,
+                        (long) V2_ENTRY_SIZE * indexSize);
+            } else {
+                FileChannel indexChannel = new RandomAccessFile(bundlx, "r").getChannel();
+                try {
+                    // the mapping stays valid once the channel is closed
+                    index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, BUNDLX_HEADER_SIZE
+                            + (long) BUNDLX_ENTRY_SIZE * indexSize);
+                } finally {
+                    indexChannel.close();
+                }
+            }
+            index.order(ByteOrder.LITTLE_ENDIAN);
+            if (log.isDebugEnabled()) {
+                log.debug("Opened " + (v2 ? "version 2" : "version 1") + " bundle " + path);
+            }
+            return new Bundle(file, channel, index, v2);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all the bundles not being read, those being read are closed when the reads finish
+     */
+    void close() {
+        synchronized (openBundles) {
+            for (Bundle bundle : openBundles.values()) {
+                bundle.evict();
+            }
+            openBundles.clear();
+        }
+    }
+
+    private static final class Bundle {
+
+        final File file;
+
+        final FileChannel channel;
+
+        /**
+         * Only read through absolute gets, which are safe to use from several threads at once
+         */
+        final MappedByteBuffer index;
+
+        final boolean v2;
+
+        /**
+         * Reads in progress, guarded by the open bundles map
+         */
+        int refs;
+
+        boolean evicted;
+
+        Bundle(File file, FileChannel channel, MappedByteBuffer index, boolean v2) {
+            this.file = file;
+            this.channel = channel;
+            this.index = index;
+            this.v2 = v2;
+        }
+
+        void evict() {
+            evicted = true;
+            if (refs == 0) {
+                close();
+            }
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing bundle " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+}
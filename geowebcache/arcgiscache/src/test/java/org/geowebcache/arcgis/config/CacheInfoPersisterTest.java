@@ -135,6 +135,12 @@ public class CacheInfoPersisterTest extends TestCase {
         assertNotNull(csi);
         assertEquals(CacheStorageInfo.EXPLODED_FORMAT_CODE, csi.getStorageFormat());
         assertEquals(10, csi.getPacketSize());
+        assertFalse(csi.isCompact());
+
+        cacheStorageInfo = cacheStorageInfo.replace(CacheStorageInfo.EXPLODED_FORMAT_CODE,
+                CacheStorageInfo.COMPACT_V2_FORMAT_CODE);
+        csi = (CacheStorageInfo) xs.fromXML(new StringReader(cacheStorageInfo));
+        assertTrue(csi.isCompact());
     }
 
     public void testLoadEnvelopeN() {
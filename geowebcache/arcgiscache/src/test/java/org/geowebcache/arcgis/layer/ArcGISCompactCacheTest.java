@@ -0,0 +1,173 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads synthetic bundles of both versions of the compact format
+ */
+public class ArcGISCompactCacheTest extends TestCase {
+
+    private File layersDir;
+
+    private Random random;
+
+    @Override
+    protected void setUp() throws Exception {
+        layersDir = File.createTempFile("gwc", "_alllayers");
+        layersDir.delete();
+        layersDir.mkdirs();
+        random = new Random(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(layersDir);
+    }
+
+    public void testBundleFile() {
+        ArcGISCompactCache cache = new ArcGISCompactCache(layersDir, 128, 4);
+        assertEquals(new File(layersDir, "L03/R0080C0100.bundle"), cache.getBundleFile(3, 128,
+                256));
+        assertEquals(new File(layersDir, "L12/R0000C1a380.bundle"), cache.getBundleFile(12, 0,
+                0x1a380));
+    }
+
+    public void testReadV1() throws Exception {
+        final int packetSize = 128;
+        byte[][] tiles = randomTiles(packetSize);
+        CompactCacheTestUtils.writeV1(new File(layersDir, "L05/R0080C0100.bundle"), packetSize,
+                tiles);
+
+        ArcGISCompactCache cache = new ArcGISCompactCache(layersDir, packetSize, 4);
+        try {
+            assertTiles(cache, 5, 128, 256, packetSize, tiles);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testReadV2() throws Exception {
+        final int packetSize = 128;
+        byte[][] tiles = randomTiles(packetSize);
+        CompactCacheTestUtils.writeV2(new File(layersDir, "L05/R0080C0100.bundle"), packetSize,
+                tiles);
+
+        ArcGISCompactCache cache = new ArcGISCompactCache(layersDir, packetSize, 4);
+        try {
+            assertTiles(cache, 5, 128, 256, packetSize, tiles);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testMissingBundle() throws Exception {
+        ArcGISCompactCache cache = new ArcGISCompactCache(layersDir, 16, 4);
+        assertNull(cache.getTile(2, 5, 7));
+
+        // missing bundles are remembered until evicted
+        CompactCacheTestUtils.writeV2(new File(layersDir, "L02/R0000C0000.bundle"), 16,
+                randomTiles(16));
+        assertNull(cache.getTile(2, 5, 7));
+        cache.close();
+        assertNotNull(cache.getTile(2, 5, 7));
+        cache.close();
+    }
+
+    /**
+     * Reads from more bundles than are kept open, from several threads at once
+     */
+    public void testEviction() throws Exception {
+        final int packetSize = 16;
+        final int numBundles = 6;
+        final byte[][][] tiles = new byte[numBundles][][];
+        for (int b = 0; b < numBundles; b++) {
+            tiles[b] = randomTiles(packetSize);
+            File bundle = new File(layersDir, String.format("L07/R0000C%04x.bundle", b
+                    * packetSize));
+            if (b % 2 == 0) {
+                CompactCacheTestUtils.writeV1(bundle, packetSize, tiles[b]);
+            } else {
+                CompactCacheTestUtils.writeV2(bundle, packetSize, tiles[b]);
+            }
+        }
+
+        final ArcGISCompactCache cache = new ArcGISCompactCache(layersDir, packetSize, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> reads = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 4; t++) {
+                final long seed = t;
+                reads.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            int b = random.nextInt(numBundles);
+                            int row = random.nextInt(packetSize);
+                            int col = random.nextInt(packetSize);
+                            byte[] expected = tiles[b][row * packetSize + col];
+                            byte[] actual = cache.getTile(7, row, b * packetSize + col);
+                            assertTrue(b + ": " + row + "," + col, Arrays.equals(expected,
+                                    actual));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> read : reads) {
+                read.get();
+            }
+        } finally {
+            executor.shutdown();
+            cache.close();
+        }
+    }
+
+    private void assertTiles(ArcGISCompactCache cache, int level, long bundleRow,
+            long bundleCol, int packetSize, byte[][] tiles) throws IOException {
+        for (int row = 0; row < packetSize; row++) {
+            for (int col = 0; col < packetSize; col++) {
+                byte[] expected = tiles[row * packetSize + col];
+                byte[] actual = cache.getTile(level, bundleRow + row, bundleCol + col);
+                assertTrue(row + "," + col, Arrays.equals(expected, actual));
+            }
+        }
+        // the neighbouring bundles are not there
+        assertNull(cache.getTile(level, bundleRow - 1, bundleCol));
+        assertNull(cache.getTile(level, bundleRow, bundleCol + packetSize));
+    }
+
+    /**
+     * @return tiles of random sizes and contents, row by row, a third of them missing
+     */
+    private byte[][] randomTiles(int packetSize) {
+        byte[][] tiles = new byte[packetSize * packetSize][];
+        for (int i = 0; i < tiles.length; i++) {
+            if (random.nextInt(3) > 0) {
+                tiles[i] = new byte[1 + random.nextInt(64)];
+                random.nextBytes(tiles[i]);
+            }
+        }
+        return tiles;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
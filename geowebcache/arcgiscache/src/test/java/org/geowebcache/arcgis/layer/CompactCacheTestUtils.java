@@ -0,0 +1,111 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes synthetic ArcGIS compact cache bundles, in the layout {@link ArcGISCompactCache} reads
+ */
+public class CompactCacheTestUtils {
+
+    private static final int V1_BUNDLE_HEADER_SIZE = 60;
+
+    private static final int BUNDLX_FOOTER_SIZE = 16;
+
+    /**
+     * Writes a version 1 bundle and its {@code .bundlx} index
+     *
+     * @param tiles
+     *            the tiles of the bundle, row by row, {@code null} for the missing ones
+     */
+    public static void writeV1(final File bundle, final int packetSize, final byte[][] tiles)
+            throws IOException {
+        final int numTiles = packetSize * packetSize;
+        ByteBuffer index = ByteBuffer.allocate(ArcGISCompactCache.BUNDLX_HEADER_SIZE
+                + ArcGISCompactCache.BUNDLX_ENTRY_SIZE * numTiles + BUNDLX_FOOTER_SIZE);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+
+        bundle.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(bundle);
+        try {
+            out.write(new byte[V1_BUNDLE_HEADER_SIZE]);
+            long offset = V1_BUNDLE_HEADER_SIZE;
+            // the index goes column by column, missing tiles point to a zero size
+            for (int col = 0; col < packetSize; col++) {
+                for (int row = 0; row < packetSize; row++) {
+                    byte[] tile = tiles[row * packetSize + col];
+                    int entry = ArcGISCompactCache.BUNDLX_HEADER_SIZE
+                            + ArcGISCompactCache.BUNDLX_ENTRY_SIZE * (col * packetSize + row);
+                    for (int i = 0; i < ArcGISCompactCache.BUNDLX_ENTRY_SIZE; i++) {
+                        index.put(entry + i, (byte) (offset >>> (8 * i)));
+                    }
+                    int size = tile == null ? 0 : tile.length;
+                    out.write(littleEndian(size));
+                    if (tile != null) {
+                        out.write(tile);
+                    }
+                    offset += 4 + size;
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        String path = bundle.getPath();
+        File bundlx = new File(path.substring(0, path.length() - "bundle".length()) + "bundlx");
+        out = new FileOutputStream(bundlx);
+        try {
+            out.write(index.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a version 2 bundle, with the index in its header
+     *
+     * @param tiles
+     *            the tiles of the bundle, row by row, {@code null} for the missing ones
+     */
+    public static void writeV2(final File bundle, final int packetSize, final byte[][] tiles)
+            throws IOException {
+        final int numTiles = packetSize * packetSize;
+        ByteBuffer header = ByteBuffer.allocate(ArcGISCompactCache.V2_HEADER_SIZE
+                + ArcGISCompactCache.V2_ENTRY_SIZE * numTiles);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        long offset = header.capacity();
+        for (int i = 0; i < numTiles; i++) {
+            if (tiles[i] != null) {
+                // the size is written before the tile too, the index points past it
+                offset += 4;
+                header.putLong(ArcGISCompactCache.V2_HEADER_SIZE
+                        + ArcGISCompactCache.V2_ENTRY_SIZE * i, offset
+                        | ((long) tiles[i].length << 40));
+                offset += tiles[i].length;
+            }
+        }
+
+        bundle.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(bundle);
+        try {
+            out.write(header.array());
+            for (int i = 0; i < numTiles; i++) {
+                if (tiles[i] != null) {
+                    out.write(littleEndian(tiles[i].length));
+                    out.write(tiles[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] littleEndian(final int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
@@ -0,0 +1,31 @@
+#!/bin/sh
+#
+# Builds and runs the JMH benchmarks, then compares the results with the
+# committed baseline. Once the dependencies are in the local Maven repository
+# this runs offline.
+#
+#   ./run.sh [-gc] [regexp...]
+#
+# -gc adds the allocation profiler (-prof gc), regexps select benchmarks.
+# THRESHOLD sets how many percent worse than the baseline counts as a
+# regression, 10 by default. The comparison fails while the baseline has none
+# of the benchmarks that ran, so record one on the reference machine first.
+# To accept the new numbers as the baseline:
+#
+#   cp target/benchmark-results.json baseline/baseline.json
+#
+set -e
+
+cd `dirname $0`
+
+THRESHOLD=${THRESHOLD:-10}
+
+if [ ! -f target/benchmarks.jar ]; then
+  (cd .. && mvn -o -Pbenchmarks -DskipTests -pl benchmarks -am install)
+fi
+
+java -cp target/benchmarks.jar org.geowebcache.benchmarks.BenchmarkRunner \
+  -o target/benchmark-results.json "$@"
+
+java -cp target/benchmarks.jar org.geowebcache.benchmarks.BaselineComparator \
+  baseline/baseline.json target/benchmark-results.json $THRESHOLD
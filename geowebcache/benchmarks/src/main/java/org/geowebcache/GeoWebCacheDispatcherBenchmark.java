@@ -0,0 +1,41 @@
+package org.geowebcache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits the request URI into type and service, the first thing done for every request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoWebCacheDispatcherBenchmark {
+
+    @Param( { "/geowebcache/service/wms", "/geowebcache/service/tms/1.0.0/topp:states@EPSG:4326@png/3/4/2.png" })
+    public String requestURI;
+
+    @Benchmark
+    public String[] parseRequest() throws GeoWebCacheException {
+        return GeoWebCacheDispatcher.parseRequest(GeoWebCacheDispatcher.normalizeURI(requestURI,
+                "/geowebcache", null));
+    }
+
+    @Benchmark
+    public String[] parseRequestWithPrefix() throws GeoWebCacheException {
+        return GeoWebCacheDispatcher.parseRequest(GeoWebCacheDispatcher.normalizeURI(requestURI,
+                "", "/geowebcache"));
+    }
+}
@@ -0,0 +1,132 @@
+package org.geowebcache.arcgis.layer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads random tiles out of the same 128x128 tiles block stored as an exploded cache, a version 1
+ * compact cache and a version 2 compact cache. The exploded read builds the tile's path and reads
+ * the file the way {@link ArcGISCacheLayer} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArcGISCacheBenchmark {
+
+    private static final int PACKET_SIZE = 128;
+
+    private static final int NUM_TILES = PACKET_SIZE * PACKET_SIZE;
+
+    private static final int LEVEL = 5;
+
+    private File root;
+
+    private File explodedDir;
+
+    private ArcGISCompactCache compactV1;
+
+    private ArcGISCompactCache compactV2;
+
+    @State(Scope.Thread)
+    public static class Tiles {
+        private final Random random = new Random(1);
+
+        int next() {
+            return random.nextInt(NUM_TILES);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        root = File.createTempFile("gwc", "arcgiscache");
+        root.delete();
+
+        Random random = new Random(1);
+        byte[][] tiles = new byte[NUM_TILES][];
+        for (int t = 0; t < NUM_TILES; t++) {
+            // small tiles, so the three copies of the block stay under 200MB
+            tiles[t] = new byte[1024 + random.nextInt(4096)];
+            random.nextBytes(tiles[t]);
+        }
+
+        explodedDir = new File(root, "exploded");
+        for (int t = 0; t < NUM_TILES; t++) {
+            File tile = explodedTile(t / PACKET_SIZE, t % PACKET_SIZE);
+            tile.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(tile);
+            try {
+                out.write(tiles[t]);
+            } finally {
+                out.close();
+            }
+        }
+
+        File v1Dir = new File(root, "v1");
+        CompactCacheTestUtils.writeV1(new File(v1Dir, "L05/R0000C0000.bundle"), PACKET_SIZE,
+                tiles);
+        compactV1 = new ArcGISCompactCache(v1Dir, PACKET_SIZE, 64);
+
+        File v2Dir = new File(root, "v2");
+        CompactCacheTestUtils.writeV2(new File(v2Dir, "L05/R0000C0000.bundle"), PACKET_SIZE,
+                tiles);
+        compactV2 = new ArcGISCompactCache(v2Dir, PACKET_SIZE, 64);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compactV1.close();
+        compactV2.close();
+        delete(root);
+    }
+
+    private File explodedTile(long row, long col) {
+        return new File(explodedDir, String.format("L%02x/R%08x/C%08x.jpg", LEVEL, row, col));
+    }
+
+    @Benchmark
+    public byte[] exploded(Tiles tiles) throws Exception {
+        int t = tiles.next();
+        File tile = explodedTile(t / PACKET_SIZE, t % PACKET_SIZE);
+        return tile.exists() ? ArcGISCacheLayer.readFile(tile) : null;
+    }
+
+    @Benchmark
+    public byte[] compactV1(Tiles tiles) throws IOException {
+        int t = tiles.next();
+        return compactV1.getTile(LEVEL, t / PACKET_SIZE, t % PACKET_SIZE);
+    }
+
+    @Benchmark
+    public byte[] compactV2(Tiles tiles) throws IOException {
+        int t = tiles.next();
+        return compactV2.getTile(LEVEL, t / PACKET_SIZE, t % PACKET_SIZE);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
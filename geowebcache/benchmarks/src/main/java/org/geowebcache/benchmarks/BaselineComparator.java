@@ -0,0 +1,238 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Compares JMH JSON results against a baseline and flags regressions.
+ * <p>
+ * Usage: {@code BaselineComparator baseline.json results.json [thresholdPercent]}
+ * </p>
+ * <p>
+ * A benchmark, identified by its name and parameters, regresses when its score is worse than the
+ * baseline by more than the threshold, 10% by default. Whether higher or lower is better follows
+ * from the unit: throughput ({@code ops/s}) should not drop, time per operation should not rise.
+ * When the results were produced with the allocation profiler, bytes allocated per operation are
+ * held to the same threshold. Benchmarks that are only in the baseline or only in the results are
+ * reported, but do not fail the comparison on their own.
+ * </p>
+ * <p>
+ * Exits with 1 if anything regressed, or if nothing could be compared because the baseline is
+ * missing, empty or has none of the benchmarks that ran, so it can fail a build.
+ * </p>
+ */
+public class BaselineComparator {
+
+    static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    /**
+     * One measured value
+     */
+    static class Score {
+        final double value;
+
+        final String unit;
+
+        Score(double value, String unit) {
+            this.value = value;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+
+    private final double threshold;
+
+    private final List<String> regressions = new ArrayList<String>();
+
+    private final List<String> report = new ArrayList<String>();
+
+    private int compared;
+
+    /**
+     * @param thresholdPercent how much worse than the baseline a score may be
+     */
+    public BaselineComparator(double thresholdPercent) {
+        this.threshold = thresholdPercent / 100.0;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator baseline.json results.json [thresholdPercent]");
+            System.exit(2);
+        }
+
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        File baselineFile = new File(args[0]);
+        if (!baselineFile.isFile()) {
+            System.out.println("No baseline at " + baselineFile
+                    + ", record one by copying the results of a BenchmarkRunner run");
+            System.exit(1);
+        }
+
+        BaselineComparator comparator = new BaselineComparator(threshold);
+        comparator.compare(read(baselineFile), read(new File(args[1])));
+
+        for (String line : comparator.getReport()) {
+            System.out.println(line);
+        }
+
+        if (comparator.getCompared() == 0) {
+            System.out.println("Nothing was compared, the baseline in " + baselineFile
+                    + " has none of these benchmarks");
+            System.exit(1);
+        }
+        if (!comparator.getRegressions().isEmpty()) {
+            System.out.println(comparator.getRegressions().size() + " regression(s) over "
+                    + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compares the two sets of results, see {@link #getRegressions()} and {@link #getReport()}
+     */
+    public void compare(Map<String, Score> baseline, Map<String, Score> results) {
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            String key = entry.getKey();
+            Score result = entry.getValue();
+            Score base = baseline.get(key);
+
+            if (base == null) {
+                report.add(String.format("NEW        %s: %.3f %s", key, result.value, result.unit));
+                continue;
+            }
+            if (!base.unit.equals(result.unit)) {
+                report.add(String.format("SKIPPED    %s: unit changed from %s to %s", key,
+                        base.unit, result.unit));
+                continue;
+            }
+
+            double change = base.value == 0 ? 0 : (result.value - base.value) / base.value;
+            double loss = result.higherIsBetter() ? -change : change;
+            boolean worse = loss > threshold;
+
+            String line = String.format("%-10s %s: %.3f -> %.3f %s (%+.1f%%)", worse ? "REGRESSED"
+                    : loss < -threshold ? "IMPROVED" : "OK", key, base.value, result.value,
+                    result.unit, change * 100);
+            report.add(line);
+            compared++;
+            if (worse) {
+                regressions.add(line);
+            }
+        }
+
+        for (Map.Entry<String, Score> entry : baseline.entrySet()) {
+            if (!results.containsKey(entry.getKey())) {
+                Score base = entry.getValue();
+                report.add(String.format("MISSING    %s: %.3f %s", entry.getKey(), base.value,
+                        base.unit));
+            }
+        }
+    }
+
+    /**
+     * @return how many scores were held against the baseline, if none were the comparison says
+     *         nothing about regressions
+     */
+    public int getCompared() {
+        return compared;
+    }
+
+    public List<String> getRegressions() {
+        return regressions;
+    }
+
+    public List<String> getReport() {
+        return report;
+    }
+
+    /**
+     * Reads a JMH JSON result file
+     * 
+     * @return the scores, keyed by benchmark name and parameters, allocation scores have
+     *         {@link #ALLOCATION_METRIC} appended to the key
+     */
+    static Map<String, Score> read(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        StringBuilder json = new StringBuilder();
+        try {
+            char[] buf = new char[8192];
+            int read;
+            while ((read = reader.read(buf)) != -1) {
+                json.append(buf, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return parse(json.toString());
+    }
+
+    static Map<String, Score> parse(String json) {
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        if (json.trim().length() == 0) {
+            return scores;
+        }
+
+        JSONArray runs = JSONArray.fromObject(json);
+        for (int i = 0; i < runs.size(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            String key = key(run);
+
+            JSONObject primary = run.getJSONObject("primaryMetric");
+            scores.put(key, new Score(primary.getDouble("score"), primary.getString("scoreUnit")));
+
+            if (run.has("secondaryMetrics")) {
+                JSONObject secondary = run.getJSONObject("secondaryMetrics");
+                for (Iterator<?> names = secondary.keys(); names.hasNext();) {
+                    String name = (String) names.next();
+                    // Older JMH versions prefix profiler metrics with a middle dot
+                    if (name.replace("\u00b7", "").equals(ALLOCATION_METRIC)) {
+                        JSONObject metric = secondary.getJSONObject(name);
+                        scores.put(key + " " + ALLOCATION_METRIC, new Score(metric
+                                .getDouble("score"), metric.getString("scoreUnit")));
+                    }
+                }
+            }
+        }
+        return scores;
+    }
+
+    private static String key(JSONObject run) {
+        StringBuilder key = new StringBuilder(run.getString("benchmark"));
+        if (run.has("params")) {
+            JSONObject params = run.getJSONObject("params");
+            key.append(params.toString());
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, in the format {@link BaselineComparator}
+ * reads.
+ * <p>
+ * Usage: {@code BenchmarkRunner [-gc] [-o results.json] [regexp...]}
+ * <ul>
+ * <li>{@code -gc} adds the allocation profiler, same as {@code -prof gc} on the JMH command
+ * line. Every benchmark then also reports the bytes it allocates per operation, which the
+ * comparator checks as well.</li>
+ * <li>{@code -o} is where to write the results, {@code target/benchmark-results.json} by
+ * default.</li>
+ * <li>The remaining arguments select benchmarks by regular expression, all of them by default.</li>
+ * </ul>
+ * </p>
+ */
+public class BenchmarkRunner {
+
+    public static final String DEFAULT_RESULTS = "target/benchmark-results.json";
+
+    public static void main(String[] args) throws RunnerException {
+        boolean gc = false;
+        String results = DEFAULT_RESULTS;
+        List<String> includes = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-gc")) {
+                gc = true;
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                results = args[++i];
+            } else if (args[i].startsWith("-")) {
+                System.err.println("Usage: BenchmarkRunner [-gc] [-o results.json] [regexp...]");
+                System.exit(2);
+            } else {
+                includes.add(args[i]);
+            }
+        }
+
+        if (includes.isEmpty()) {
+            includes.add("org\\.geowebcache\\..*Benchmark");
+        }
+
+        File resultsFile = new File(results);
+        if (resultsFile.getParentFile() != null) {
+            resultsFile.getParentFile().mkdirs();
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().resultFormat(ResultFormatType.JSON)
+                .result(resultsFile.getPath()).shouldFailOnError(true);
+        for (String include : includes) {
+            options.include(include);
+        }
+        if (gc) {
+            options.addProfiler(GCProfiler.class);
+        }
+
+        new Runner(options.build()).run();
+
+        System.out.println("Results written to " + resultsFile.getAbsolutePath());
+    }
+}
@@ -0,0 +1,176 @@
+package org.geowebcache.diskquota.paging;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.diskquota.ConfigLoader;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.util.ApplicationContextProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads and saves the state of 1M pages, with {@link FilePageStore} and with the stream of records
+ * it used to rewrite on every save, read and written the way it used to. The saves have 1% of the
+ * pages or all of them changed since the previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FilePageStoreBenchmark {
+
+    private static final int NUM_PAGES = 1000000;
+
+    private static final String LAYER = "bench";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private File root;
+
+    private File legacyFile;
+
+    private FilePageStore store;
+
+    private List<TilePage> pages;
+
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = File.createTempFile("gwc", "pagestore");
+        root.delete();
+        root.mkdirs();
+        legacyFile = new File(root, "legacy.pages");
+
+        store = new FilePageStore(new ConfigLoader(null, new ApplicationContextProvider(), null) {
+            @Override
+            public File getRootCacheDir() throws StorageException {
+                return root;
+            }
+        });
+
+        random = new Random(1);
+        pages = new ArrayList<TilePage>(NUM_PAGES);
+        for (int i = 0; i < NUM_PAGES; i++) {
+            pages.add(new TilePage(LAYER, GRIDSET, i % 1000, i / 1000 % 1000, i / 1000000,
+                    random.nextInt(100000), random.nextInt(4096), random.nextInt()));
+        }
+        store.savePages(LAYER, GRIDSET, pages);
+        legacySave();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = new File(root, "diskquota_pagestore").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(root, "diskquota_pagestore").delete();
+        legacyFile.delete();
+        root.delete();
+    }
+
+    @State(Scope.Benchmark)
+    public static class FewChanges {
+        @Setup(Level.Invocation)
+        public void change(FilePageStoreBenchmark benchmark) {
+            for (int i = 0; i < NUM_PAGES / 100; i++) {
+                benchmark.pages.get(benchmark.random.nextInt(NUM_PAGES)).markHit();
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class AllChanged {
+        @Setup(Level.Invocation)
+        public void change(FilePageStoreBenchmark benchmark) {
+            for (TilePage page : benchmark.pages) {
+                page.markHit();
+            }
+        }
+    }
+
+    @Benchmark
+    public List<TilePage> load() throws IOException {
+        return store.getPages(LAYER, GRIDSET);
+    }
+
+    @Benchmark
+    public List<TilePage> legacyLoad() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(legacyFile));
+        try {
+            List<TilePage> loaded = new ArrayList<TilePage>();
+            while (true) {
+                try {
+                    in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int x = in.readInt();
+                int y = in.readInt();
+                int z = in.readInt();
+                int accessTimeMinutes = in.readInt();
+                long numHits = in.readLong();
+                long numTilesInPage = in.readLong();
+                loaded.add(new TilePage(LAYER, GRIDSET, x, y, z, numHits, numTilesInPage,
+                        accessTimeMinutes));
+            }
+            return loaded;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public void saveFewChanges(FewChanges changes) throws IOException {
+        store.savePages(LAYER, GRIDSET, pages);
+    }
+
+    @Benchmark
+    public void saveAllChanged(AllChanged changes) throws IOException {
+        store.savePages(LAYER, GRIDSET, pages);
+    }
+
+    @Benchmark
+    public void legacySave() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(legacyFile));
+        try {
+            for (TilePage page : pages) {
+                out.writeByte(FilePageStore.tilePageSerialVersionId);
+                out.writeInt(page.getX());
+                out.writeInt(page.getY());
+                out.writeInt(page.getZ());
+                out.writeInt(page.getLastAccessTimeMinutes());
+                out.writeLong(page.getNumHits());
+                out.writeLong(page.getNumTilesInPage());
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.geowebcache.diskquota.paging;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finds the page of a tile and records a hit on it, as the disk quota module does for every tile
+ * served
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PagePyramidBenchmark {
+
+    private static final int NUM_TILES = 4096;
+
+    private PagePyramid pyramid;
+
+    private long[][] tiles;
+
+    private TilePage page;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+    }
+
+    @Setup
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        long[][] coverages = gridSubset.getCoverages();
+        pyramid = new PagePyramid("bench", gridSubset.getName(), coverages);
+
+        Random random = new Random(1);
+        tiles = new long[NUM_TILES][];
+        for (int t = 0; t < NUM_TILES; t++) {
+            int z = random.nextInt(coverages.length);
+            long[] cov = coverages[z];
+            tiles[t] = new long[] { cov[0] + (long) (random.nextDouble() * (cov[2] - cov[0] + 1)),
+                    cov[1] + (long) (random.nextDouble() * (cov[3] - cov[1] + 1)), z };
+            // Create the pages up front, steady state is that they exist
+            pyramid.pageFor(tiles[t][0], tiles[t][1], z);
+        }
+
+        page = pyramid.pageFor(0, 0, 0);
+    }
+
+    @Benchmark
+    public TilePage pageFor(Cursor cursor) {
+        long[] tile = tiles[cursor.i++ & (NUM_TILES - 1)];
+        return pyramid.pageFor(tile[0], tile[1], (int) tile[2]);
+    }
+
+    @Benchmark
+    public void markHit() {
+        page.markHit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void markHitContended() {
+        page.markHit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public TilePage pageForAndMarkHit(Cursor cursor) {
+        long[] tile = tiles[cursor.i++ & (NUM_TILES - 1)];
+        TilePage tilePage = pyramid.pageFor(tile[0], tile[1], (int) tile[2]);
+        tilePage.markHit();
+        return tilePage;
+    }
+}
@@ -0,0 +1,134 @@
+package org.geowebcache.filter.request;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks tiles up in a preloaded raster filter, as done for every tile request on a layer with
+ * one. All tiles pass the filter, so this measures the lookup and not exception handling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterFilterBenchmark {
+
+    private static final int NUM_TILES = 1024;
+
+    private static final int ZOOM_START = 4;
+
+    private static final int ZOOM_STOP = 10;
+
+    private RasterFilter filter;
+
+    private ConveyorTile[] tiles;
+
+    /**
+     * Tiles below zoomStart, each checked against a block of zoomStart tiles
+     */
+    private ConveyorTile[] subsampledTiles;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+    }
+
+    @Setup
+    public void setUp() throws GeoWebCacheException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+
+        WMSLayer layer = new WMSLayer("bench", new String[] { "http://localhost/wms" }, null,
+                "bench", Collections.singletonList("image/png"), grids, null, new int[] { 3, 3 },
+                null, false);
+        layer.initialize(gridSetBroker);
+
+        filter = new WMSRasterFilter() {
+            protected BufferedImage loadMatrix(TileLayer layer, String gridSetId, int z)
+                    throws IOException, GeoWebCacheException {
+                // All black, so everything is inside
+                int[] widthHeight = calculateWidthHeight(layer.getGridSubset(gridSetId), z);
+                return new BufferedImage(widthHeight[0], widthHeight[1],
+                        BufferedImage.TYPE_BYTE_BINARY);
+            }
+        };
+        filter.zoomStart = ZOOM_START;
+        filter.zoomStop = ZOOM_STOP;
+        filter.resample = true;
+        for (int z = 0; z <= ZOOM_STOP; z++) {
+            try {
+                filter.setMatrix(layer, gridSubset.getName(), z, false);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Random random = new Random(1);
+        tiles = new ConveyorTile[NUM_TILES];
+        subsampledTiles = new ConveyorTile[NUM_TILES];
+        for (int t = 0; t < NUM_TILES; t++) {
+            // Within the filter's range, so the lookup is done one level down
+            int z = ZOOM_START + random.nextInt(ZOOM_STOP - ZOOM_START);
+            tiles[t] = createTile(layer, gridSubset, random, z);
+            subsampledTiles[t] = createTile(layer, gridSubset, random, random.nextInt(ZOOM_START));
+        }
+    }
+
+    private static ConveyorTile createTile(WMSLayer layer, GridSubset gridSubset, Random random,
+            int z) {
+        long[] cov = gridSubset.getCoverage(z);
+        long[] idx = { cov[0] + (long) (random.nextDouble() * (cov[2] - cov[0] + 1)),
+                cov[1] + (long) (random.nextDouble() * (cov[3] - cov[1] + 1)), z };
+        ConveyorTile tile = new ConveyorTile(null, layer.getName(), gridSubset.getName(), idx,
+                ImageMime.png, null, null, null, null);
+        tile.setTileLayer(layer);
+        return tile;
+    }
+
+    @Benchmark
+    public void lookup(Cursor cursor) throws RequestFilterException {
+        filter.apply(tiles[cursor.i++ & (NUM_TILES - 1)]);
+    }
+
+    @Benchmark
+    public void lookupSubsampled(Cursor cursor) throws RequestFilterException {
+        filter.apply(subsampledTiles[cursor.i++ & (NUM_TILES - 1)]);
+    }
+
+    /**
+     * Many requests for the same filtered layer at once
+     */
+    @Benchmark
+    @Threads(32)
+    public void lookupContended(Cursor cursor) throws RequestFilterException {
+        filter.apply(tiles[cursor.i++ & (NUM_TILES - 1)]);
+    }
+}
@@ -0,0 +1,110 @@
+package org.geowebcache.grid;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches bounding boxes to the grid, as done for every WMS request, and checks coverage and
+ * computes tile bounds, as done for every tile request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridSetBenchmark {
+
+    private static final int NUM_TILES = 1024;
+
+    private GridSet gridSet;
+
+    private GridSubset gridSubset;
+
+    private long[][] subsetTiles;
+
+    private long[][] tiles;
+
+    private final double[] bounds = new double[4];
+
+    private BoundingBox[] tileBounds;
+
+    private BoundingBox[] rectangleBounds;
+
+    private int i;
+
+    @Setup
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSet = gridSetBroker.WORLD_EPSG4326;
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSet, new BoundingBox(-130, 20,
+                -60, 55), 0, 18);
+
+        Random random = new Random(1);
+        subsetTiles = new long[NUM_TILES][];
+        tiles = new long[NUM_TILES][];
+        tileBounds = new BoundingBox[NUM_TILES];
+        rectangleBounds = new BoundingBox[NUM_TILES];
+        for (int t = 0; t < NUM_TILES; t++) {
+            int z = random.nextInt(19);
+            long[] tile = { random.nextInt(2 << z), random.nextInt(1 << z), z };
+            tiles[t] = tile;
+            tileBounds[t] = gridSet.boundsFromIndex(tile);
+
+            // Mostly inside the subset, which is the common case for requests
+            long[] cov = gridSubset.getCoverage(z);
+            subsetTiles[t] = new long[] {
+                    cov[0] - 1 + (long) (random.nextDouble() * (cov[2] - cov[0] + 3)),
+                    cov[1] - 1 + (long) (random.nextDouble() * (cov[3] - cov[1] + 3)), z };
+
+            // A 3x3 metatile sized area
+            BoundingBox bounds = new BoundingBox(tileBounds[t]);
+            bounds.setMaxX(bounds.getMinX() + 3 * bounds.getWidth());
+            bounds.setMaxY(bounds.getMinY() + 3 * bounds.getHeight());
+            rectangleBounds[t] = bounds;
+        }
+    }
+
+    @Benchmark
+    public long[] closestIndex() throws GridMismatchException {
+        return gridSet.closestIndex(tileBounds[i++ & (NUM_TILES - 1)]);
+    }
+
+    @Benchmark
+    public long[] closestRectangle() {
+        return gridSet.closestRectangle(rectangleBounds[i++ & (NUM_TILES - 1)]);
+    }
+
+    @Benchmark
+    public boolean covers() {
+        return gridSubset.covers(subsetTiles[i++ & (NUM_TILES - 1)]);
+    }
+
+    @Benchmark
+    public boolean coversUnchecked() {
+        long[] tile = subsetTiles[i++ & (NUM_TILES - 1)];
+        return gridSubset.coversUnchecked(tile[0], tile[1], (int) tile[2]);
+    }
+
+    @Benchmark
+    public BoundingBox boundsFromIndex() {
+        return gridSubset.boundsFromIndex(tiles[i++ & (NUM_TILES - 1)]);
+    }
+
+    @Benchmark
+    public double[] boundsFromIndexIntoArray() {
+        gridSubset.boundsFromIndex(tiles[i++ & (NUM_TILES - 1)], bounds);
+        return bounds;
+    }
+}
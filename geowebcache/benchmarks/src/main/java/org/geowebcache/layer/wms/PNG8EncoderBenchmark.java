@@ -0,0 +1,156 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.util.OctreeQuantizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Slices a 4x4 png8 metatile and encodes its tiles, with ImageIO or with the direct PNG writer,
+ * out of the response of a WMS that does png8 and of one that sends full colour. Each iteration
+ * prints the bytes written per metatile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PNG8EncoderBenchmark {
+
+    private static final int META = 4;
+
+    private static final int TILE_SIZE = 256;
+
+    @Param( { "imageio", "direct" })
+    public String encoder;
+
+    @Param( { "indexed", "truecolour" })
+    public String response;
+
+    @Param( { "4" })
+    public int compressionLevel;
+
+    private WMSLayer layer;
+
+    private GridSubset gridSubset;
+
+    private byte[] responseBytes;
+
+    private ByteArrayOutputStream out;
+
+    private long metaTiles;
+
+    private long bytesWritten;
+
+    @Setup
+    public void setUp() throws GeoWebCacheException, IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+
+        layer = new WMSLayer("bench", new String[] { "http://localhost/wms" }, null, "bench",
+                Collections.singletonList(ImageMime.png8.getFormat()), grids, null, new int[] {
+                        META, META }, null, false);
+        layer.initialize(gridSetBroker);
+        layer.setUniformTiles(Boolean.FALSE);
+        PNG8EncoderConfig config = new PNG8EncoderConfig();
+        config.setEnabled(Boolean.valueOf("direct".equals(encoder)));
+        config.setCompressionLevel(compressionLevel);
+        layer.setPng8Encoder(config);
+
+        BufferedImage img = createMap(META * TILE_SIZE);
+        if ("indexed".equals(response)) {
+            img = OctreeQuantizer.quantize(img);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", bytes);
+        responseBytes = bytes.toByteArray();
+        out = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounts() {
+        metaTiles = 0;
+        bytesWritten = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printCounts() {
+        if (metaTiles > 0) {
+            System.out.println(encoder + " from " + response + ": " + bytesWritten / metaTiles
+                    + " bytes per metatile");
+        }
+    }
+
+    /**
+     * Roads and parks, antialiased and partly translucent
+     */
+    private static BufferedImage createMap(int size) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    128 + random.nextInt(128)));
+            g.setStroke(new BasicStroke(1 + random.nextInt(4)));
+            g.drawLine(random.nextInt(size), random.nextInt(size), random.nextInt(size), random
+                    .nextInt(size));
+            if (i % 3 == 0) {
+                g.fillOval(random.nextInt(size), random.nextInt(size), 10 + random.nextInt(80),
+                        10 + random.nextInt(80));
+            }
+        }
+        g.dispose();
+        return img;
+    }
+
+    @Benchmark
+    public long encodeMetaTile() throws GeoWebCacheException, IOException {
+        WMSMetaTile metaTile = new WMSMetaTile(layer, gridSubset, ImageMime.png8, null,
+                new long[] { 4, 4, 3 }, META, META, null);
+        metaTile.setImageBytes(responseBytes);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+
+        long written = 0;
+        for (int i = 0; i < META * META; i++) {
+            out.reset();
+            metaTile.writeTileToStream(i, out);
+            written += out.size();
+        }
+        metaTiles++;
+        bytesWritten += written;
+        return written;
+    }
+}
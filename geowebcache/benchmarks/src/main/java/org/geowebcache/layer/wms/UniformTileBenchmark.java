@@ -0,0 +1,151 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.UniformTile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Seeds a mostly empty layer: slices 4x4 metatiles that have something drawn on one tile out of
+ * sixteen, and produces the bytes stored for each tile, with and without uniform tile detection.
+ * Each iteration prints the bytes that would have been written to the blob store per metatile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UniformTileBenchmark {
+
+    private static final int META = 4;
+
+    private static final int TILE_SIZE = 256;
+
+    @Param( { "image/png", "image/jpeg" })
+    public String format;
+
+    @Param( { "true", "false" })
+    public boolean uniformTiles;
+
+    private WMSLayer layer;
+
+    private GridSubset gridSubset;
+
+    private MimeType mimeType;
+
+    private byte[] response;
+
+    private ByteArrayOutputStream out;
+
+    private long metaTiles;
+
+    private long bytesStored;
+
+    @Setup
+    public void setUp() throws GeoWebCacheException, IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+
+        layer = new WMSLayer("bench", new String[] { "http://localhost/wms" }, null, "bench",
+                Collections.singletonList(format), grids, null, new int[] { META, META }, null,
+                false);
+        layer.initialize(gridSetBroker);
+        layer.setUniformTiles(Boolean.valueOf(uniformTiles));
+
+        mimeType = MimeType.createFromFormat(format);
+        response = createImage(mimeType);
+        out = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounts() {
+        metaTiles = 0;
+        bytesStored = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printCounts() {
+        if (metaTiles > 0) {
+            System.out.println(format + (uniformTiles ? " with" : " without")
+                    + " uniform tiles: " + bytesStored / metaTiles + " bytes stored per metatile");
+        }
+    }
+
+    /**
+     * The sea, with an island in one of the tiles
+     */
+    private byte[] createImage(MimeType mimeType) throws IOException {
+        int size = META * TILE_SIZE;
+        boolean alpha = ((ImageMime) mimeType).supportsAlphaChannel();
+        BufferedImage img = new BufferedImage(size, size, alpha ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setBackground(alpha ? new Color(0, 0, 0, 0) : new Color(170, 210, 240));
+        g.clearRect(0, 0, size, size);
+        Random random = new Random(1);
+        for (int s = 0; s < 100; s++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillOval(random.nextInt(TILE_SIZE - 40), random.nextInt(TILE_SIZE - 40),
+                    5 + random.nextInt(35), 5 + random.nextInt(35));
+        }
+        g.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, mimeType.getInternalName(), bytes);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public long seedMetaTile() throws GeoWebCacheException, IOException {
+        WMSMetaTile metaTile = new WMSMetaTile(layer, gridSubset, mimeType, null, new long[] {
+                4, 4, 3 }, META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+
+        long stored = 0;
+        for (int i = 0; i < META * META; i++) {
+            UniformTile uniform = metaTile.getUniformTile(i);
+            if (uniform != null) {
+                stored += uniform.toMarker().length;
+            } else {
+                out.reset();
+                metaTile.writeTileToStream(i, out);
+                stored += out.size();
+            }
+        }
+        metaTiles++;
+        bytesStored += stored;
+        return stored;
+    }
+}
@@ -0,0 +1,140 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Slices a synthetic 4x4 metatile and encodes the resulting tiles, which is what happens to every
+ * response of the backend WMS. {@link #encodeMetaTile()} goes all the way from the response bytes
+ * to the encoded tiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WMSMetaTileBenchmark {
+
+    private static final int META = 4;
+
+    private static final int TILE_SIZE = 256;
+
+    @Param( { "image/png", "image/jpeg" })
+    public String format;
+
+    private WMSLayer layer;
+
+    private GridSubset gridSubset;
+
+    private MimeType mimeType;
+
+    private byte[] response;
+
+    private WMSMetaTile metaTile;
+
+    private ByteArrayOutputStream out;
+
+    private int i;
+
+    @Setup
+    public void setUp() throws GeoWebCacheException, IOException {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+
+        layer = new WMSLayer("bench", new String[] { "http://localhost/wms" }, null,
+                "bench", Collections.singletonList(format), grids, null, new int[] { META,
+                        META }, null, false);
+        layer.initialize(gridSetBroker);
+
+        mimeType = MimeType.createFromFormat(format);
+        response = createImage(mimeType);
+        metaTile = new WMSMetaTile(layer, gridSubset, mimeType, null, new long[] { 4, 4, 3 },
+                META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+
+        out = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    /**
+     * Something with both smooth areas and edges, so that encoding is not trivial
+     */
+    private byte[] createImage(MimeType mimeType) throws IOException {
+        int size = META * TILE_SIZE;
+        boolean alpha = ((ImageMime) mimeType).supportsAlphaChannel();
+        BufferedImage img = new BufferedImage(size, size, alpha ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(200, 220, 255), size, size, new Color(
+                240, 240, 220)));
+        g.fillRect(0, 0, size, size);
+
+        Random random = new Random(1);
+        for (int s = 0; s < 400; s++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    alpha ? 128 + random.nextInt(128) : 255));
+            g.fillOval(random.nextInt(size), random.nextInt(size), 5 + random.nextInt(60),
+                    5 + random.nextInt(60));
+        }
+        g.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, mimeType.getInternalName(), bytes);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public void createTiles() {
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+    }
+
+    @Benchmark
+    public int writeTileToStream() throws IOException {
+        out.reset();
+        metaTile.writeTileToStream(i++ & (META * META - 1), out);
+        return out.size();
+    }
+
+    @Benchmark
+    public WMSMetaTile encodeMetaTile() throws GeoWebCacheException, IOException {
+        WMSMetaTile encoded = new WMSMetaTile(layer, gridSubset, mimeType, null, new long[] { 4,
+                4, 3 }, META, META, null);
+        encoded.setImageBytes(response);
+        encoded.createTiles(TILE_SIZE, TILE_SIZE, false);
+        encoded.encodeTiles();
+        return encoded;
+    }
+}
@@ -0,0 +1,130 @@
+package org.geowebcache.service.kml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.GzipUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serves a KML tile stored as it is or gzipped, to a client accepting gzip or not, and packs it
+ * into a KMZ. A tile stored as it is gets gzipped on every request, as a compression filter would;
+ * a gzipped one is sent as it is or inflated. Each iteration prints the bytes sent per request,
+ * the time per operation is the CPU spent on it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GzipTileBenchmark {
+
+    @Param( { "uncompressed", "gzipped" })
+    public String storage;
+
+    @Param( { "gzip", "identity" })
+    public String client;
+
+    @Param( { "500" })
+    public int placemarks;
+
+    private byte[] kml;
+
+    private byte[] stored;
+
+    private ByteArrayOutputStream out;
+
+    private long requests;
+
+    private long bytesSent;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder doc = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n");
+        for (int i = 0; i < placemarks; i++) {
+            doc.append("<Placemark id=\"p" + i + "\"><name>Placemark " + i + "</name>"
+                    + "<Point><coordinates>" + (i * 0.37 % 180) + "," + (i * 0.11 % 90)
+                    + ",0</coordinates></Point></Placemark>\n");
+        }
+        doc.append("</Document></kml>\n");
+        kml = doc.toString().getBytes("UTF-8");
+        if ("gzipped".equals(storage)) {
+            stored = GzipUtils.compress(kml, StorageBroker.DEFAULT_TEXT_COMPRESSION_LEVEL);
+        } else {
+            stored = kml;
+        }
+        out = new ByteArrayOutputStream(kml.length + 1024);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounts() {
+        requests = 0;
+        bytesSent = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printCounts() {
+        if (requests > 0) {
+            System.out.println(storage + " to " + client + ": " + bytesSent / requests
+                    + " bytes per request, " + kml.length + " bytes of KML");
+        }
+    }
+
+    @Benchmark
+    public int serveTile() throws IOException {
+        out.reset();
+        boolean gzipClient = "gzip".equals(client);
+        if (stored != kml) {
+            if (gzipClient) {
+                out.write(stored);
+            } else {
+                GzipUtils.decompress(stored, out);
+            }
+        } else if (gzipClient) {
+            GZIPOutputStream gzos = new GZIPOutputStream(out);
+            gzos.write(kml);
+            gzos.finish();
+        } else {
+            out.write(kml);
+        }
+        return count(out.size());
+    }
+
+    @Benchmark
+    public int serveKMZ() throws IOException {
+        out.reset();
+        KMZWriter kmz = new KMZWriter(out, Deflater.DEFAULT_COMPRESSION);
+        kmz.startOverlay("x0y0z1").write("<kml><Document/></kml>");
+        if (stored != kml) {
+            kmz.writeGzippedData("x0y0z1", "kml", stored);
+        } else {
+            kmz.writeData("x0y0z1", "kml", kml, false);
+        }
+        kmz.finish();
+        return count(out.size());
+    }
+
+    private int count(int size) {
+        requests++;
+        bytesSent += size;
+        return size;
+    }
+}
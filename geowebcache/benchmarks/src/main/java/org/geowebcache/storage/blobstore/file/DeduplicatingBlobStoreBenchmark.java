@@ -0,0 +1,131 @@
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.TileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stores 8KB tiles, half of them one of a few blank ones and the others all different, with
+ * {@link FileBlobStore} and with {@link DeduplicatingBlobStore} making hard links or reference
+ * records. Each iteration prints the bytes taken on disk, counting the files linked together once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeduplicatingBlobStoreBenchmark {
+
+    private static final String LAYER = "bench";
+
+    private static final int TILE_SIZE = 8192;
+
+    private static final int BLANK_TILES = 8;
+
+    @Param({ "file", "links", "records" })
+    public String store;
+
+    private File root;
+
+    private BlobStore blobStore;
+
+    private byte[][] blanks;
+
+    private Random random;
+
+    private long x;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        root = File.createTempFile("gwc", "dedup");
+        root.delete();
+        root.mkdirs();
+        FileBlobStore fileBlobStore = new FileBlobStore(root.getAbsolutePath());
+        if ("file".equals(store)) {
+            blobStore = fileBlobStore;
+        } else {
+            DeduplicatingBlobStore dedup = new DeduplicatingBlobStore(fileBlobStore);
+            dedup.setHardLinks("links".equals(store));
+            blobStore = dedup;
+        }
+
+        random = new Random(1);
+        blanks = new byte[BLANK_TILES][];
+        for (int i = 0; i < blanks.length; i++) {
+            blanks[i] = new byte[TILE_SIZE];
+            random.nextBytes(blanks[i]);
+        }
+        x = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        blobStore.destroy();
+        final Set<Object> inodes = new HashSet<Object>();
+        final long[] bytes = new long[2];
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                bytes[0] += attrs.size();
+                Object inode = attrs.fileKey();
+                if (inode == null || inodes.add(inode)) {
+                    bytes[1] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        System.out.println(store + ": " + x + " tiles, " + bytes[0] + " bytes in files, "
+                + bytes[1] + " bytes on disk");
+        delete(root);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        byte[] blob;
+        if (random.nextBoolean()) {
+            blob = blanks[random.nextInt(BLANK_TILES)];
+        } else {
+            blob = new byte[TILE_SIZE];
+            random.nextBytes(blob);
+        }
+        long tile = x++;
+        blobStore.put(TileObject.createCompleteTileObject(LAYER, new long[] { tile % 1024,
+                tile / 1024, 12 }, "EPSG:4326", "image/png", null, blob));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,93 @@
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore.Durability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stores 8KB tiles from several threads with {@link FileBlobStore} in each durability mode: left
+ * to the operating system, forced to disk and renamed into place in batches, and forced to disk
+ * with their directory one at a time. Each iteration prints how many batches there were.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class FileBlobStoreDurabilityBenchmark {
+
+    private static final String LAYER = "bench";
+
+    private static final int TILE_SIZE = 8192;
+
+    @Param({ "NONE", "BATCHED", "SYNC" })
+    public Durability durability;
+
+    private File root;
+
+    private FileBlobStore blobStore;
+
+    private byte[] blob;
+
+    private final AtomicLong x = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        root = File.createTempFile("gwc", "durability");
+        root.delete();
+        root.mkdirs();
+        blobStore = new FileBlobStore(root.getAbsolutePath());
+        blobStore.setDurability(durability);
+
+        blob = new byte[TILE_SIZE];
+        new Random(1).nextBytes(blob);
+        x.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        GroupCommitFlusher flusher = blobStore.getFlusher();
+        System.out.println(durability + ": " + x.get() + " tiles"
+                + (flusher == null ? "" : " in " + flusher.getBatches() + " batches"));
+        blobStore.destroy();
+        delete(root);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        long tile = x.getAndIncrement();
+        blobStore.put(TileObject.createCompleteTileObject(LAYER, new long[] { tile % 1024,
+                tile / 1024, 12 }, "EPSG:4326", "image/png", null, blob));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,84 @@
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the directory and file name of a tile, which happens for every tile read from or written
+ * to the {@link FileBlobStore}.
+ * <p>
+ * Run with {@code -gc} to see allocations, {@link #appendTilePath()} should show close to zero
+ * bytes per operation.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilePathGeneratorBenchmark {
+
+    private static final int NUM_TILES = 1024;
+
+    private long[][] tiles;
+
+    private int i;
+
+    private final StringBuilder buffer = new StringBuilder(256);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        tiles = new long[NUM_TILES][];
+        for (int t = 0; t < NUM_TILES; t++) {
+            int z = random.nextInt(20);
+            tiles[t] = new long[] { random.nextInt(2 << z), random.nextInt(1 << z), z };
+        }
+    }
+
+    @Benchmark
+    public String[] tilePath() {
+        return FilePathGenerator.tilePath("/var/cache/gwc", "topp:states", tiles[i++
+                & (NUM_TILES - 1)], "EPSG:4326", ImageMime.png, -1L);
+    }
+
+    @Benchmark
+    public String[] tilePathWithParameters() {
+        return FilePathGenerator.tilePath("/var/cache/gwc", "topp:states", tiles[i++
+                & (NUM_TILES - 1)], "EPSG:4326", ImageMime.png, 0x7f3a9c21L);
+    }
+
+    @Benchmark
+    public File tileFile() {
+        return FilePathGenerator.tileFile("/var/cache/gwc", "topp:states", tiles[i++
+                & (NUM_TILES - 1)], "EPSG:4326", ImageMime.png, -1L);
+    }
+
+    @Benchmark
+    public Path tileNioPath() {
+        return (Path) FilePathGenerator.tileNioPath("/var/cache/gwc", "topp:states", tiles[i++
+                & (NUM_TILES - 1)], "EPSG:4326", ImageMime.png, -1L);
+    }
+
+    @Benchmark
+    public int appendTilePath() {
+        buffer.setLength(0);
+        return FilePathGenerator.appendTilePath(buffer, "/var/cache/gwc", "topp:states", tiles[i++
+                & (NUM_TILES - 1)], "EPSG:4326", ImageMime.png, -1L);
+    }
+}
@@ -0,0 +1,152 @@
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stores 8KB tiles from several threads with {@link ShardedFileBlobStore} over 1, 2 and 4 shards,
+ * each thread the 16 tiles of a 4x4 metatile after the other as seeding does. The shards are all
+ * on the temp directory, so each is made to behave like a disk of its own that writes one tile at
+ * a time in {@link #WRITE_LATENCY} ms. Each iteration prints how the tiles were spread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class ShardedFileBlobStoreBenchmark {
+
+    private static final String LAYER = "bench";
+
+    private static final int TILE_SIZE = 8192;
+
+    /**
+     * How long a simulated disk takes to write a tile
+     */
+    static final long WRITE_LATENCY = 2;
+
+    @Param({ "1", "2", "4" })
+    public int shards;
+
+    private File root;
+
+    private ShardedFileBlobStore blobStore;
+
+    private byte[] blob;
+
+    private final AtomicLong metaTiles = new AtomicLong();
+
+    private final AtomicLong tiles = new AtomicLong();
+
+    /**
+     * The metatile a thread is storing the tiles of
+     */
+    @State(Scope.Thread)
+    public static class MetaTile {
+        long index;
+
+        int tile = 16;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        root = File.createTempFile("gwc", "sharded");
+        root.delete();
+        root.mkdirs();
+        String[] roots = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            File disk = new File(root, "disk" + i);
+            disk.mkdirs();
+            roots[i] = disk.getAbsolutePath();
+        }
+        blobStore = new ShardedFileBlobStore(roots) {
+            @Override
+            protected FileBlobStore createStore(String root) throws StorageException {
+                return new SimulatedDisk(root);
+            }
+        };
+
+        blob = new byte[TILE_SIZE];
+        new Random(1).nextBytes(blob);
+        metaTiles.set(0);
+        tiles.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        blobStore.destroy();
+        StringBuilder spread = new StringBuilder();
+        for (ShardedFileBlobStore.Shard shard : blobStore.getShards()) {
+            spread.append(' ').append(shard.getUsedBytes() / TILE_SIZE);
+        }
+        System.out.println(shards + " shards: " + tiles.get() + " tiles, per shard" + spread);
+        delete(root);
+    }
+
+    @Benchmark
+    public void put(MetaTile metaTile) throws IOException {
+        if (metaTile.tile == 16) {
+            metaTile.index = metaTiles.getAndIncrement();
+            metaTile.tile = 0;
+        }
+        long x = metaTile.index % 256 * 4 + metaTile.tile % 4;
+        long y = metaTile.index / 256 * 4 + metaTile.tile / 4;
+        metaTile.tile++;
+        blobStore.put(TileObject.createCompleteTileObject(LAYER, new long[] { x, y, 12 },
+                "EPSG:4326", "image/png", null, blob));
+        tiles.incrementAndGet();
+    }
+
+    /**
+     * Writes one tile at a time, taking {@link ShardedFileBlobStoreBenchmark#WRITE_LATENCY} ms
+     * more than the file system does
+     */
+    private static class SimulatedDisk extends FileBlobStore {
+
+        SimulatedDisk(String root) throws StorageException {
+            super(root);
+        }
+
+        @Override
+        public synchronized void put(TileObject stObj) throws StorageException {
+            try {
+                Thread.sleep(WRITE_LATENCY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.put(stObj);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,84 @@
+package org.geowebcache.storage.metastore.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads and writes tile metadata in an in-memory H2 database. Goes through
+ * {@link JDBCMetaBackend}, which resolves the layer, format and gridset ids the wrapper needs,
+ * the same way the storage broker does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JDBCMBWrapperBenchmark {
+
+    private static final int NUM_TILES = 4096;
+
+    private static final String LAYER = "bench";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = "image/png";
+
+    private static int databases;
+
+    private final byte[] blob = new byte[4096];
+
+    private JDBCMetaBackend backend;
+
+    private int i;
+
+    @Setup
+    public void setUp() throws StorageException {
+        // A database per trial, so that puts do not carry over
+        backend = new JDBCMetaBackend("org.h2.Driver", "jdbc:h2:mem:gwcbench" + (databases++)
+                + ";DB_CLOSE_DELAY=-1", "sa", "");
+
+        for (int t = 0; t < NUM_TILES; t++) {
+            put(t);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        backend.destroy();
+    }
+
+    private void put(int t) throws StorageException {
+        TileObject to = TileObject.createCompleteTileObject(LAYER, new long[] { t, t, 12 },
+                GRIDSET, FORMAT, null, blob);
+        backend.put(to);
+        backend.unlock(to);
+    }
+
+    @Benchmark
+    public boolean get() throws StorageException {
+        int t = i++ & (NUM_TILES - 1);
+        TileObject to = TileObject.createQueryTileObject(LAYER, new long[] { t, t, 12 }, GRIDSET,
+                FORMAT, null);
+        return backend.get(to);
+    }
+
+    @Benchmark
+    public void put() throws StorageException {
+        // Overwrites, like reseeding
+        put(i++ & (NUM_TILES - 1));
+    }
+}
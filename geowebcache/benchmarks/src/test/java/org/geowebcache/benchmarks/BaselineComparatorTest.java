@@ -0,0 +1,106 @@
+package org.geowebcache.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.benchmarks.BaselineComparator.Score;
+
+public class BaselineComparatorTest extends TestCase {
+
+    private static final String THROUGHPUT = "FilePathGeneratorBenchmark.tilePath";
+
+    private static final String LATENCY = "MetaTileBenchmark.createTiles{\"format\":\"png\"}";
+
+    private Map<String, Score> baseline;
+
+    protected void setUp() throws Exception {
+        baseline = new LinkedHashMap<String, Score>();
+        baseline.put(THROUGHPUT, new Score(1000, "ops/s"));
+        baseline.put(LATENCY, new Score(200, "us/op"));
+    }
+
+    public void testWithinThreshold() throws Exception {
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results(910, 219));
+
+        assertEquals(2, comparator.getCompared());
+        assertTrue(comparator.getRegressions().isEmpty());
+        assertTrue(comparator.getReport().get(0).startsWith("OK "));
+        assertTrue(comparator.getReport().get(1).startsWith("OK "));
+    }
+
+    public void testThroughputRegression() throws Exception {
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results(890, 200));
+
+        assertEquals(1, comparator.getRegressions().size());
+        assertTrue(comparator.getRegressions().get(0).startsWith("REGRESSED  " + THROUGHPUT));
+    }
+
+    public void testLatencyRegression() throws Exception {
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results(1000, 221));
+
+        assertEquals(1, comparator.getRegressions().size());
+        assertTrue(comparator.getRegressions().get(0).startsWith("REGRESSED  " + LATENCY));
+
+        // A tighter threshold catches smaller changes
+        comparator = new BaselineComparator(5);
+        comparator.compare(baseline, results(940, 200));
+        assertEquals(1, comparator.getRegressions().size());
+    }
+
+    public void testImprovement() throws Exception {
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results(1500, 100));
+
+        assertEquals(2, comparator.getCompared());
+        assertTrue(comparator.getRegressions().isEmpty());
+        assertTrue(comparator.getReport().get(0).startsWith("IMPROVED   " + THROUGHPUT));
+        assertTrue(comparator.getReport().get(1).startsWith("IMPROVED   " + LATENCY));
+    }
+
+    public void testMissingEntries() throws Exception {
+        Map<String, Score> results = new LinkedHashMap<String, Score>();
+        results.put(THROUGHPUT, new Score(1000, "ops/s"));
+        results.put("TileLockBenchmark.lock", new Score(5, "us/op"));
+
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results);
+
+        assertEquals(1, comparator.getCompared());
+        assertTrue(comparator.getRegressions().isEmpty());
+        assertEquals(3, comparator.getReport().size());
+        assertTrue(comparator.getReport().get(1).startsWith("NEW        TileLockBenchmark.lock"));
+        assertTrue(comparator.getReport().get(2).startsWith("MISSING    " + LATENCY));
+    }
+
+    public void testEmptyBaselineComparesNothing() throws Exception {
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(BaselineComparator.parse(" \n"), results(1, 100000));
+
+        assertEquals(0, comparator.getCompared());
+        assertEquals(2, comparator.getReport().size());
+        assertTrue(comparator.getReport().get(0).startsWith("NEW "));
+    }
+
+    public void testChangedUnitIsSkipped() throws Exception {
+        Map<String, Score> results = new LinkedHashMap<String, Score>();
+        results.put(LATENCY, new Score(0.2, "ms/op"));
+
+        BaselineComparator comparator = new BaselineComparator(10);
+        comparator.compare(baseline, results);
+
+        assertEquals(0, comparator.getCompared());
+        assertTrue(comparator.getReport().get(0).startsWith("SKIPPED "));
+    }
+
+    private Map<String, Score> results(double throughput, double latency) {
+        Map<String, Score> results = new LinkedHashMap<String, Score>();
+        results.put(THROUGHPUT, new Score(throughput, "ops/s"));
+        results.put(LATENCY, new Score(latency, "us/op"));
+        return results;
+    }
+}
@@ -26,7 +26,13 @@ import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -41,14 +47,17 @@ import org.geowebcache.filter.request.RequestFilterException;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.layer.BadTileException;
+import org.geowebcache.layer.TileCallback;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LeaseLockProvider;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.DefaultStorageFinder;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.GzipUtils;
 import org.geowebcache.util.ServletUtils;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.servlet.ModelAndView;
@@ -66,6 +75,18 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
     public static final String TYPE_HOME = "home";
     
+    public static final int DEFAULT_MAX_OUTSTANDING_MISSES = 1000;
+    
+    /**
+     * Seconds, for layers that do not say how long their backend may take
+     */
+    private static final int DEFAULT_BACKEND_TIMEOUT = 120;
+    
+    /**
+     * Whether the servlet API has asynchronous requests, they came with 3.0
+     */
+    private static final boolean ASYNC_API = hasAsyncApi();
+    
     private TileLayerDispatcher tileLayerDispatcher = null;
     
     private DefaultStorageFinder defaultStorageFinder = null;
@@ -83,7 +104,15 @@ public class GeoWebCacheDispatcher extends AbstractController {
     private byte[] blankTile = null; 
     
     private String servletPrefix = null;
-
+    
+    private int maxOutstandingMisses = DEFAULT_MAX_OUTSTANDING_MISSES;
+    
+    private long lockWait = LeaseLockProvider.DEFAULT_LEASE;
+    
+    /**
+     * Tile requests of each layer waiting for the backend without a thread, by layer name
+     */
+    private final ConcurrentHashMap<String, AtomicInteger> outstandingMisses = new ConcurrentHashMap<String, AtomicInteger>();
     
 
     /** 
@@ -134,6 +163,30 @@ public class GeoWebCacheDispatcher extends AbstractController {
         log.info("Invoked setServletPrefix("+servletPrefix+")");
     }
 
+    /**
+     * Where the container supports asynchronous requests, a tile request that misses the cache
+     * gives its thread back while the tile is fetched, see {@link TileLayer#fetchTile}. This is
+     * how many such requests a layer may have waiting, further misses get a 503 until some
+     * complete. 0 handles every request synchronously.
+     * 
+     * @param maxOutstandingMisses
+     */
+    public void setMaxOutstandingMisses(int maxOutstandingMisses) {
+        this.maxOutstandingMisses = maxOutstandingMisses;
+    }
+
+    /**
+     * A request waiting without a thread for a tile gets a 503 once it has waited as long as the
+     * backend of the layer may take, plus this many milliseconds for the metatile to be unlocked
+     * by another GeoWebCache. That wait lasts at most the lease of the locks, which is the
+     * default.
+     * 
+     * @param lockWait
+     */
+    public void setLockWait(long lockWait) {
+        this.lockWait = lockWait;
+    }
+
     /**
      * Services convert HTTP requests into the internal grid representation and
      * specify what layer the response should come from.
@@ -232,12 +285,8 @@ public class GeoWebCacheDispatcher extends AbstractController {
         // Break the request into components, {type, service name}
         String[] requestComps = null;
         try {
-            String normalizedURI = request.getRequestURI().replaceFirst(request.getContextPath(), "");
-            
-            if(servletPrefix != null) {
-                normalizedURI =  normalizedURI.replaceFirst(servletPrefix, ""); //getRequestURI().replaceFirst(request.getContextPath()+, "");
-            }
-             requestComps = parseRequest(normalizedURI);
+            String normalizedURI = normalizeURI(request.getRequestURI(), request.getContextPath(), servletPrefix);
+            requestComps = parseRequest(normalizedURI);
             //requestComps = parseRequest(request.getRequestURI());
         } catch (GeoWebCacheException gwce) {
             writeError(response, 400, gwce.getMessage());
@@ -256,31 +305,38 @@ public class GeoWebCacheDispatcher extends AbstractController {
                 writeError(response, 404, "Unknown path: " + requestComps[0]);
             }
         } catch (Exception e) {
-            // e.printStackTrace();
-            if(e instanceof RequestFilterException) {
-                
-                RequestFilterException reqE = (RequestFilterException) e;
-                reqE.setHttpInfoHeader(response);
-                
-                writeFixedResponse(response, reqE.getResponseCode(), reqE.getContentType(), reqE.getResponse(), CacheResult.OTHER);
-            } else if(e instanceof OWSException) {
-                OWSException owsE = (OWSException) e;
-                writeFixedResponse(response, owsE.getResponseCode(), owsE.getContentType(), owsE.getResponse(), CacheResult.OTHER);
-            } else {
-                if(! (e instanceof BadTileException) || log.isDebugEnabled()) {
-                    log.error(e.getMessage()+ " " + request.getRequestURL().toString());
-                }
-                
-                writeError(response, 400, e.getMessage());
-                
-                if(! (e instanceof GeoWebCacheException) || log.isDebugEnabled()) {
-                    e.printStackTrace();
-                }
-            }
+            writeException(request, response, e);
         }
         return null;
     }
 
+    /**
+     * Writes the error response for an exception thrown handling a request
+     */
+    private void writeException(HttpServletRequest request, HttpServletResponse response,
+            Exception e) {
+        if(e instanceof RequestFilterException) {
+            
+            RequestFilterException reqE = (RequestFilterException) e;
+            reqE.setHttpInfoHeader(response);
+            
+            writeFixedResponse(response, reqE.getResponseCode(), reqE.getContentType(), reqE.getResponse(), CacheResult.OTHER);
+        } else if(e instanceof OWSException) {
+            OWSException owsE = (OWSException) e;
+            writeFixedResponse(response, owsE.getResponseCode(), owsE.getContentType(), owsE.getResponse(), CacheResult.OTHER);
+        } else {
+            if(! (e instanceof BadTileException) || log.isDebugEnabled()) {
+                log.error(e.getMessage()+ " " + request.getRequestURL().toString());
+            }
+            
+            writeError(response, 400, e.getMessage());
+            
+            if(! (e instanceof GeoWebCacheException) || log.isDebugEnabled()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Destroy function, has to be referenced in bean declaration:
      * <bean ... destroy="destroy">...</bean>
@@ -289,13 +345,30 @@ public class GeoWebCacheDispatcher extends AbstractController {
         log.info("GeoWebCacheDispatcher.destroy() was invoked, shutting down.");
     }
     
+    /**
+     * Strips the context path and servlet prefix from the request URI
+     * 
+     * @param requestURI
+     * @param contextPath
+     * @param servletPrefix may be null
+     * @return
+     */
+    static String normalizeURI(String requestURI, String contextPath, String servletPrefix) {
+        String normalizedURI = requestURI.replaceFirst(contextPath, "");
+        
+        if(servletPrefix != null) {
+            normalizedURI =  normalizedURI.replaceFirst(servletPrefix, ""); //getRequestURI().replaceFirst(request.getContextPath()+, "");
+        }
+        return normalizedURI;
+    }
+    
     /**
      * Essentially this slices away the prefix, leaving type and request
      * 
      * @param servletPath
      * @return {type, service}ervletPrefix
      */
-    private String[] parseRequest(String servletPath)
+    static String[] parseRequest(String servletPath)
             throws GeoWebCacheException {
         String[] retStrs = new String[2];
         String[] splitStr = servletPath.split("/");
@@ -352,11 +425,16 @@ public class GeoWebCacheDispatcher extends AbstractController {
             // tile.requestURI = request.getRequestURI();
 
             try {
-                // A5) Ask the layer to provide the content for the tile
-                layer.getTile(convTile);
-                
-                // A6) Write response
-                writeData(convTile);
+                if (maxOutstandingMisses > 0 && isAsyncSupported(request)) {
+                    // A5) Serve it right away if cached, otherwise let the thread go
+                    handleTileRequestAsync(layer, convTile);
+                } else {
+                    // A5) Ask the layer to provide the content for the tile
+                    layer.getTile(convTile);
+
+                    // A6) Write response
+                    writeData(convTile);
+                }
                 
                 // Alternatively: 
             } catch (OutsideCoverageException e) {
@@ -366,6 +444,75 @@ public class GeoWebCacheDispatcher extends AbstractController {
     }
        
     
+    /**
+     * Writes a cached tile right away. A tile that has to be fetched is written when it is ready,
+     * the request being detached from its thread meanwhile.
+     */
+    private void handleTileRequestAsync(TileLayer layer, ConveyorTile convTile) throws Exception {
+        ConveyorTile tile = layer.getCachedTile(convTile);
+        if (tile != null) {
+            writeData(tile);
+            return;
+        }
+
+        AtomicInteger outstanding = outstandingMisses.get(layer.getName());
+        if (outstanding == null) {
+            outstandingMisses.putIfAbsent(layer.getName(), new AtomicInteger());
+            outstanding = outstandingMisses.get(layer.getName());
+        }
+        if (outstanding.incrementAndGet() > maxOutstandingMisses) {
+            outstanding.decrementAndGet();
+            convTile.servletResp.setHeader("Retry-After", "1");
+            writeError(convTile.servletResp, 503, "Too many tiles of " + layer.getName()
+                    + " are being fetched, try again later");
+            return;
+        }
+
+        AsyncTileResponse asyncResponse = new AsyncTileResponse(convTile, outstanding);
+        try {
+            layer.fetchTile(convTile, asyncResponse);
+        } catch (RuntimeException e) {
+            asyncResponse.tileFailed(convTile, e);
+        }
+        asyncResponse.detach(getMissTimeout(layer));
+    }
+
+    /**
+     * @return how many milliseconds a request may wait for a tile of the layer without a thread
+     */
+    private long getMissTimeout(TileLayer layer) {
+        Integer backendTimeout = layer.getBackendTimeout();
+        if (backendTimeout == null) {
+            backendTimeout = DEFAULT_BACKEND_TIMEOUT;
+        }
+        return backendTimeout * 1000L + lockWait;
+    }
+
+    private static boolean hasAsyncApi() {
+        try {
+            ServletRequest.class.getMethod("startAsync");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the request can be detached from its thread, which takes a Servlet 3.0
+     *         container and the servlet and its filters declared async-supported
+     */
+    private static boolean isAsyncSupported(HttpServletRequest request) {
+        if (!ASYNC_API) {
+            return false;
+        }
+        try {
+            return request.isAsyncSupported();
+        } catch (IncompatibleClassChangeError e) {
+            // A request implementation older than the API
+            return false;
+        }
+    }
+    
     private void handleDemoRequest(String action, HttpServletRequest request, 
             HttpServletResponse response) throws GeoWebCacheException {
         Demo.makeMap(tileLayerDispatcher, gridSetBroker, action, request, response);        
@@ -483,6 +630,11 @@ public class GeoWebCacheDispatcher extends AbstractController {
         if(tile.getLayer().useETags()) {
             String ifNoneMatch = tile.servletReq.getHeader("If-None-Match");
             String hexTag = Long.toHexString(tile.getTSCreated());
+            if(GzipUtils.GZIP.equals(tile.getContentEncoding()) 
+                    && GzipUtils.acceptsGzip(tile.servletReq)) {
+                // Strong ETags differ per encoding, the inflated tile keeps the plain one
+                hexTag = hexTag + "-gzip";
+            }
             
             if(ifNoneMatch != null) {    
                 if(ifNoneMatch.equals(hexTag)) {
@@ -495,9 +647,31 @@ public class GeoWebCacheDispatcher extends AbstractController {
             tile.servletResp.setHeader("ETag", hexTag);
         } 
         
+        if(GzipUtils.GZIP.equals(tile.getContentEncoding())) {
+            writeGzippedResponse(tile);
+            return;
+        }
+        
         writeFixedResponse(tile.servletResp, 200, tile.getMimeType().getMimeType(), tile.getContent(), tile.getCacheResult());
     }
     
+    /**
+     * Sends a tile stored gzipped as it is to clients that accept gzip, inflating it on the way
+     * out for the others
+     */
+    private void writeGzippedResponse(ConveyorTile tile) {
+        HttpServletResponse response = tile.servletResp;
+        response.setStatus(200);
+        response.setContentType(tile.getMimeType().getMimeType());
+        
+        try {
+            int written = GzipUtils.writeResponse(tile.servletReq, response, tile.getEncodedContent());
+            runtimeStats.log(written, tile.getCacheResult());
+        } catch (IOException ioe) {
+            log.debug("Caught IOException: " + ioe.getMessage() + "\n\n" + ioe.toString());
+        }
+    }
+    
     /**
      * Writes a transparent, 8 bit PNG to avoid having clients like OpenLayers
      * showing lots of pink tiles
@@ -540,4 +714,112 @@ public class GeoWebCacheDispatcher extends AbstractController {
             }
         }
     }
+    
+    /**
+     * Completes a tile request detached from its thread. The tile may be ready before the request
+     * is detached, in which case it is written by the thread that was handling the request. A
+     * request still waiting when it times out gets a 503, the tile is dropped if it comes later.
+     */
+    private class AsyncTileResponse implements TileCallback, AsyncListener {
+
+        private final ConveyorTile convTile;
+
+        private final AtomicInteger outstanding;
+
+        private AsyncContext asyncContext;
+
+        private boolean done;
+
+        private ConveyorTile tile;
+
+        private Exception failure;
+
+        AsyncTileResponse(ConveyorTile convTile, AtomicInteger outstanding) {
+            this.convTile = convTile;
+            this.outstanding = outstanding;
+        }
+
+        synchronized void detach(long timeout) {
+            if (done) {
+                write();
+                return;
+            }
+            asyncContext = convTile.servletReq.startAsync();
+            asyncContext.setTimeout(timeout);
+            asyncContext.addListener(this);
+        }
+
+        public synchronized void tileReady(ConveyorTile tile) {
+            complete(tile, null);
+        }
+
+        public synchronized void tileFailed(ConveyorTile tile, Exception e) {
+            complete(null, e);
+        }
+
+        /**
+         * Only the first outcome counts, the layer may still throw after calling back
+         */
+        private void complete(ConveyorTile tile, Exception failure) {
+            if (done) {
+                return;
+            }
+            this.tile = tile;
+            this.failure = failure;
+            done = true;
+            outstanding.decrementAndGet();
+            if (asyncContext != null) {
+                try {
+                    write();
+                } finally {
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        public synchronized void onTimeout(AsyncEvent event) {
+            if (done) {
+                return;
+            }
+            done = true;
+            outstanding.decrementAndGet();
+            try {
+                convTile.servletResp.setHeader("Retry-After", "1");
+                writeError(convTile.servletResp, 503, "Timed out waiting for a tile of "
+                        + convTile.getLayerId() + ", try again later");
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        /**
+         * The client went away, or the container failed the request
+         */
+        public synchronized void onError(AsyncEvent event) {
+            if (done) {
+                return;
+            }
+            done = true;
+            outstanding.decrementAndGet();
+            asyncContext.complete();
+        }
+
+        public void onComplete(AsyncEvent event) {
+        }
+
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private void write() {
+            if (failure != null) {
+                writeException(convTile.servletReq, convTile.servletResp, failure);
+                return;
+            }
+            try {
+                writeData(tile);
+            } catch (IOException ioe) {
+                log.debug("Caught IOException: " + ioe.getMessage() + "\n\n" + ioe.toString());
+            }
+        }
+    }
 }
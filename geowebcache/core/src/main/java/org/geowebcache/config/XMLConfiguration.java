@@ -69,7 +69,11 @@ import org.geowebcache.layer.meta.ContactInformation;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.updatesource.GeoRSSFeedDefinition;
 import org.geowebcache.layer.wms.WMSHttpHelper;
+import org.geowebcache.layer.wms.CircuitBreakerConfig;
+import org.geowebcache.layer.wms.HedgingConfig;
+import org.geowebcache.layer.wms.PNG8EncoderConfig;
 import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.locks.MetatileLockProvider;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.storage.DefaultStorageFinder;
@@ -114,6 +118,8 @@ public class XMLConfiguration implements Configuration {
 
     private GeoWebCacheConfiguration gwcConfig = null;
     
+    private MetatileLockProvider metatileLockProvider = null;
+    
     
     /**
      * Constructor that will accept an absolute
@@ -356,6 +362,10 @@ public class XMLConfiguration implements Configuration {
             }
             
             wl.setSourceHelper(sourceHelper);
+            
+            if (metatileLockProvider != null) {
+                wl.setMetatileLockProvider(metatileLockProvider);
+            }
         }
     }
     
@@ -391,6 +401,9 @@ public class XMLConfiguration implements Configuration {
         xs.alias("keyword", String.class);
         xs.alias("layers", List.class);
         xs.alias("wmsLayer", WMSLayer.class);
+        xs.alias("circuitBreaker", CircuitBreakerConfig.class);
+        xs.alias("hedging", HedgingConfig.class);
+        xs.alias("png8Encoder", PNG8EncoderConfig.class);
         
         // These two are for 1.1.x compatibility
         xs.alias("grids", new ArrayList<XMLOldGrid>().getClass());
@@ -762,6 +775,30 @@ public class XMLConfiguration implements Configuration {
                 +"Please pass it as the 4th argument to the constructor.");
     }
     
+    /**
+     * Sets the locks the WMS layers take on metatiles before rendering them. The default only
+     * locks within this JVM, GeoWebCaches sharing a cache need a provider they all go through.
+     */
+    public void setMetatileLockProvider(MetatileLockProvider metatileLockProvider) {
+        this.metatileLockProvider = metatileLockProvider;
+        
+        if (gwcConfig != null && gwcConfig.layers != null) {
+            for (TileLayer layer : gwcConfig.layers) {
+                if (layer instanceof WMSLayer) {
+                    ((WMSLayer) layer).setMetatileLockProvider(metatileLockProvider);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets how many threads fetch the metatiles of WMS layers for requests waiting without a
+     * thread of their own, see {@link WMSLayer#setMissThreads(int)}
+     */
+    public void setMissThreads(int missThreads) {
+        WMSLayer.setMissThreads(missThreads);
+    }
+    
     public void debugPrint(Node node) {
         if(node == null) {
             System.out.println("1: No node");
@@ -17,6 +17,8 @@
  */
 package org.geowebcache.conveyor;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -30,6 +32,7 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.util.GzipUtils;
 
 public class ConveyorTile extends Conveyor implements TileResponseReceiver {
     private static Log log = LogFactory.getLog(org.geowebcache.conveyor.ConveyorTile.class);
@@ -49,6 +52,9 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
     
     String fullParameters;
     
+    // The content of a gzipped blob, once it has been needed
+    private byte[] decodedContent = null;
+    
     public ConveyorTile(StorageBroker sb, String layerId, HttpServletRequest servletReq, HttpServletResponse servletResp) {
         super(sb, servletReq, servletResp);
         this.layerId = layerId;
@@ -145,23 +151,63 @@ public class ConveyorTile extends Conveyor implements TileResponseReceiver {
         this.gridSetId = gridSetId;
     }
     
+    /**
+     * @return the content, inflated if it is stored gzipped
+     */
     public byte[] getContent() {
+        byte[] blob = stObj.getBlob();
+        if(blob == null || ! GzipUtils.GZIP.equals(stObj.getBlobEncoding())) {
+            return blob;
+        }
+        if(decodedContent == null) {
+            try {
+                decodedContent = GzipUtils.decompress(blob);
+            } catch (IOException ioe) {
+                log.error("Unable to decompress " + this + ": " + ioe.getMessage());
+            }
+        }
+        return decodedContent;
+    }
+    
+    /**
+     * @return the content as it is stored, see {@link #getContentEncoding()}
+     */
+    public byte[] getEncodedContent() {
         return stObj.getBlob();
     }
     
+    /**
+     * @return how the content is encoded, {@link GzipUtils#GZIP} or null
+     */
+    public String getContentEncoding() {
+        return stObj.getBlobEncoding();
+    }
+    
     public void setContent(byte[] payload) {
-        stObj.setBlob(payload);
+        setContent(payload, null);
+    }
+    
+    public void setContent(byte[] payload, String encoding) {
+        stObj.setBlob(payload, encoding);
+        decodedContent = null;
     }
     
     public boolean persist() throws GeoWebCacheException {
+        byte[] content = stObj.getBlob();
         try {
-            return storageBroker.put((TileObject) stObj);
+            boolean stored = storageBroker.put((TileObject) stObj);
+            if(stObj.getBlob() != content) {
+                // Compressed as it was stored, keep what we had for clients not accepting gzip
+                decodedContent = content;
+            }
+            return stored;
         } catch (StorageException e) {
             throw new GeoWebCacheException(e);
         }
     }
 
     public boolean retrieve(long maxAge) throws GeoWebCacheException {
+        decodedContent = null;
         try {
             boolean ret = storageBroker.get((TileObject) stObj);
             
@@ -19,8 +19,8 @@ package org.geowebcache.filter.request;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +30,7 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.storage.TileBitmap;
 
 /**
  * A raster filter allows to optimize data loading by avoiding the generation of requests and the
@@ -39,6 +40,7 @@ import org.geowebcache.layer.wms.WMSLayer;
  * To conserve memory, the layer bounds are used.
  * 
  * The raster must match the dimensions of the zoomlevel and use 0x000000 for tiles that are valid.
+ * Once loaded, each raster is kept as a {@link TileBitmap}.
  */
 public abstract class RasterFilter extends RequestFilter {
     private static Log log = LogFactory.getLog(RasterFilter.class);
@@ -53,7 +55,11 @@ public abstract class RasterFilter extends RequestFilter {
     
     public Boolean debug;
     
-    public transient Hashtable<String,BufferedImage[]> matrices;
+    /**
+     * The loaded matrices by gridset and zoom level. The arrays are replaced rather than changed,
+     * so lookups need no locking.
+     */
+    public transient volatile ConcurrentHashMap<String, TileBitmap[]> matrices;
     
     public RasterFilter() {
         
@@ -100,11 +106,10 @@ public abstract class RasterFilter extends RequestFilter {
             idx[2] = zoomStop;
         }
         
-        if(matrices == null 
-                || matrices.get(gridSetId) == null 
-                || matrices.get(gridSetId)[(int) idx[2]] == null) {
+        TileBitmap mat = getMatrix(gridSetId, (int) idx[2]);
+        if (mat == null) {
             try {
-                setMatrix((WMSLayer) convTile.getLayer(), gridSetId, (int) idx[2], false);
+                setMatrix(convTile.getLayer(), gridSetId, (int) idx[2], false);
             } catch(Exception e) {
                 log.error("Failed to load matrix for " 
                         + this.name + ", " + gridSetId + ", " + idx[2] + " : "
@@ -112,35 +117,44 @@ public abstract class RasterFilter extends RequestFilter {
                 throw new RequestFilterException(this,500,"Failed while trying to load filter for " 
                         + idx[2] + ", please check the logs");
             }
+            mat = getMatrix(gridSetId, (int) idx[2]);
+            if (mat == null) {
+                log.error("No matrix available for " + this.name + ", " + gridSetId + ", "
+                        + idx[2]);
+                throw new RequestFilterException(this,500,"Failed while trying to load filter for " 
+                        + idx[2] + ", please check the logs");
+            }
         }
 
-        
+        boolean hasData;
         if(zoomDiff == 0) {
-            if(! lookup(convTile.getGridSubset(), idx)) {
-                if(debug != null && debug) {
-                    throw new GreenTileException(this);
-                } else {
-                    throw new BlankTileException(this);
-                }
-            }
+            hasData = lookup(mat, idx);
         } else if(zoomDiff > 0) {
-            if(! lookupQuad(convTile.getGridSubset(), idx)) {
-                if(debug != null && debug) {
-                    throw new GreenTileException(this);
-                } else {
-                    throw new BlankTileException(this);
-                }
-            }
-        } else if(zoomDiff < 0) {
-            if(! lookupSubsample(convTile.getGridSubset(), idx, zoomDiff)) {
-                if(debug != null && debug) {
-                    throw new GreenTileException(this);
-                } else {
-                    throw new BlankTileException(this);
-                }
+            hasData = lookupQuad(mat, idx);
+        } else {
+            hasData = lookupSubsample(mat, idx, zoomDiff);
+        }
+
+        if (!hasData) {
+            if(debug != null && debug) {
+                throw new GreenTileException(this);
+            } else {
+                throw new BlankTileException(this);
             }
         }
     }
+
+    private TileBitmap getMatrix(String gridSetId, int z) {
+        ConcurrentHashMap<String, TileBitmap[]> matrices = this.matrices;
+        if (matrices == null) {
+            return null;
+        }
+        TileBitmap[] matArray = matrices.get(gridSetId);
+        if (matArray == null || z >= matArray.length) {
+            return null;
+        }
+        return matArray[z];
+    }
     
     /**
      * Loops over all the zoom levels and initializes the lookup images.
@@ -173,131 +187,34 @@ public abstract class RasterFilter extends RequestFilter {
     /**
      * Performs a lookup against an internal raster.
      * 
-     * @param grid
+     * @param mat
      * @param idx
      * @return
      */
-     private boolean lookup(GridSubset grid, long[] idx) {
-         BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-         
-         long[] gridCoverage = grid.getCoverage((int) idx[2]);
-         
-         // Changing index to top left hand origin
-         long x = idx[0] - gridCoverage[0];
-         long y = gridCoverage[3] - idx[1];
+    private boolean lookup(TileBitmap mat, long[] idx) {
+        return mat.get(idx[0], idx[1]);
+    }
 
-         return (mat.getRaster().getSample((int) x, (int) y, 0) == 0);
-     }
-    
    /**
     * Performs a lookup against an internal raster. The sampling is
-    * actually done against 4 pixels, idx should already have been
-    * modified to use one level higher than strictly necessary.
+    * actually done against 4 tiles, starting at the bottom left one.
     * 
-    * @param grid
+    * @param mat
     * @param idx
     * @return
     */
-    private boolean lookupQuad(GridSubset grid, long[] idx) {
-        BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-        
-        long[] gridCoverage = grid.getCoverage((int) idx[2]);
-        
-        // Changing index to top left hand origin
-        int baseX = (int) (idx[0] - gridCoverage[0]);
-        int baseY = (int) (gridCoverage[3] - idx[1]);
-
-        int width = mat.getWidth();
-        int height = mat.getHeight();
-
-        int x = baseX; 
-        int y = baseY;
-        
-        // We're checking 4 samples. The base is bottom left hand corner
-        boolean hasData = false;
-
-        // BL, BR, TL, TR
-        int[] xOffsets = {0,1,0,1};
-        int[] yOffsets = {0,0,1,1};
-        
-        // Lock, in case someone wants to replace the matrix
-        synchronized (mat) {
-            try {
-                for (int i = 0; i < 4 && ! hasData; i++) {
-                    x = baseX + xOffsets[i];
-                    y = baseY - yOffsets[i];
-
-                    if (x > -1 && x < width && y > -1 && y < height) {
-                        if (mat.getRaster().getSample(x, y, 0) == 0) {
-                            hasData = true;
-                        }
-                    }
-                }
-            } catch (ArrayIndexOutOfBoundsException aioob) {
-                log.error("x:" + x + "  y:" + y + " (" + mat.getWidth() + " " + mat.getHeight() + ")");
-            }
-        }
-        
-        return hasData;
+    private boolean lookupQuad(TileBitmap mat, long[] idx) {
+        return mat.anySet(idx[0], idx[1], idx[0] + 1, idx[1] + 1);
     }
-    
-    private boolean lookupSubsample(GridSubset grid, long[] idx, int zoomDiff) {
-        BufferedImage mat = matrices.get(grid.getName())[(int) idx[2]];
-        
-        int sampleChange = 1 << (-1* zoomDiff);
-        
-        long[] gridCoverage = grid.getCoverage((int) idx[2]);
-        
-        // Changing index to top left hand origin
-        int baseX = (int) (idx[0] - gridCoverage[0]);
-        int baseY = (int) (gridCoverage[3] - idx[1]);
-        
-        int width = mat.getWidth();
-        int height = mat.getHeight();
 
-        int startX = Math.max(0, baseX);
-        int stopX = Math.min(width, baseX + sampleChange);
-        int startY = Math.min(baseY, height - 1);
-        int stopY = Math.max(0,  baseY - sampleChange);
-        
-        int x = -1;
-        int y = -1; 
-        
-        // Lock, in case someone wants to replace the matrix
-        synchronized (mat) {            
-            try {
-                // Try center and edges first 
-                x = (stopX + startX)/2;
-                y = (startY + stopY)/2;
-                if (mat.getRaster().getSample(x,y,0) == 0
-                        || mat.getRaster().getSample(stopX -1, stopY + 1, 0) == 0
-                        || mat.getRaster().getSample(stopX -1, startY   , 0) == 0
-                        || mat.getRaster().getSample(startX  , stopY + 1, 0) == 0) {
-                    return true;
-                }
-                
-                // Do the hard work, loop over all pixels
-                x = startX;
-                y = startY;
-                
-                // Left to right
-                while(x < stopX) {
-                    // Bottom to top
-                    while(y > stopY) {
-                        if (mat.getRaster().getSample(x, y, 0) == 0) {
-                            return true;
-                        }
-                        y--;
-                    }
-                    x++;
-                    y = startY;
-                }
-            } catch (ArrayIndexOutOfBoundsException aioob) {
-                log.error("x:" + x + "  y:" + y + " (" + mat.getWidth() + " " + mat.getHeight() + ")");
-            }
-        }
-        
-        return false;
+    /**
+     * Checks all the tiles of zoomStart covered by a tile of a lower zoom level, idx should
+     * already have been converted to the bottom left one of them.
+     */
+    private boolean lookupSubsample(TileBitmap mat, long[] idx, int zoomDiff) {
+        long sampleChange = 1L << (-1 * zoomDiff);
+
+        return mat.anySet(idx[0], idx[1], idx[0] + sampleChange - 1, idx[1] + sampleChange - 1);
     }
     
     /** 
@@ -312,28 +229,30 @@ public abstract class RasterFilter extends RequestFilter {
     throws IOException, GeoWebCacheException {
 
         if (matrices == null) {
-            matrices = new Hashtable<String, BufferedImage[]>();
+            matrices = new ConcurrentHashMap<String, TileBitmap[]>();
         }
 
-        if (matrices.get(gridSetId) == null) {
-            matrices.put(gridSetId, new BufferedImage[zoomStop + 1]);
+        TileBitmap[] matArray = matrices.get(gridSetId);
+        if (matArray != null && matArray[z] != null && !replace) {
+            return;
         }
 
-        if (matrices.get(gridSetId)[z] == null) {
-            matrices.get(gridSetId)[z] = loadMatrix(layer, gridSetId, z);
-
-        } else if (replace) {
-            BufferedImage oldImg = matrices.get(gridSetId)[z];
-            BufferedImage[] matArray = matrices.get(gridSetId);
-
-            // Get the replacement
-            BufferedImage newImg = loadMatrix(layer, gridSetId, z);
+        BufferedImage img = loadMatrix(layer, gridSetId, z);
+        TileBitmap bitmap = null;
+        if (img != null) {
+            // Valid tiles are black
+            long[] gridCoverage = layer.getGridSubset(gridSetId).getCoverage(z);
+            bitmap = TileBitmap.fromRaster(img.getRaster(), gridCoverage[0], gridCoverage[3], 0,
+                    true);
+        }
 
-            // We need to lock it
-            synchronized (oldImg) {
-                matArray[z] = newImg;
-            }
+        // Readers do not lock, so publish a new array rather than changing the old one
+        TileBitmap[] newArray = new TileBitmap[zoomStop + 1];
+        if (matArray != null) {
+            System.arraycopy(matArray, 0, newArray, 0, Math.min(matArray.length, newArray.length));
         }
+        newArray[z] = bitmap;
+        matrices.put(gridSetId, newArray);
     }
     
     /**
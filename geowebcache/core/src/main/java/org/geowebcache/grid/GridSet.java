@@ -56,41 +56,92 @@ public class GridSet {
     
     protected int tileHeight;
     
+    /*
+     * Per level tables, computed once the levels are set up, see initLevels(). The spans are the
+     * width and height of a tile in map units.
+     */
+    private double[] resolutions;
+    
+    private double[] tileSpanX;
+    
+    private double[] tileSpanY;
+    
+    private long[] tilesHigh;
+    
+    /**
+     * Whether every level has a smaller resolution than the one before, so that the closest level
+     * can be found with a binary search
+     */
+    private boolean resolutionsDecreasing;
+    
     protected GridSet() {
         // Blank
     }
     
+    /**
+     * Precomputes the per level values used to map between tile indexes and coordinates, must be
+     * called whenever {@link #gridLevels} is set up
+     */
+    void initLevels() {
+        int levels = gridLevels.length;
+        resolutions = new double[levels];
+        tileSpanX = new double[levels];
+        tileSpanY = new double[levels];
+        tilesHigh = new long[levels];
+        
+        resolutionsDecreasing = true;
+        for(int i=0; i<levels; i++) {
+            Grid grid = gridLevels[i];
+            resolutions[i] = grid.resolution;
+            tileSpanX[i] = grid.resolution * tileWidth;
+            tileSpanY[i] = grid.resolution * tileHeight;
+            tilesHigh[i] = grid.extent[1];
+            
+            if(i > 0 && !(resolutions[i] < resolutions[i - 1])) {
+                resolutionsDecreasing = false;
+            }
+        }
+    }
+    
     protected BoundingBox boundsFromIndex(long[] tileIndex) {
-        Grid grid = gridLevels[(int) tileIndex[2]];
+        double[] bounds = new double[4];
+        boundsFromIndex(tileIndex, bounds);
+        return new BoundingBox(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+    
+    /**
+     * Same as {@link #boundsFromIndex(long[])}, but writes {minx,miny,maxx,maxy} to the given
+     * array instead of allocating a {@link BoundingBox}
+     */
+    protected void boundsFromIndex(long[] tileIndex, double[] bounds) {
+        int level = (int) tileIndex[2];
         
-        double width = grid.resolution * tileWidth;
-        double height = grid.resolution * tileHeight;
+        double width = tileSpanX[level];
+        double height = tileSpanY[level];
        
         long y = tileIndex[1];
         if(yBaseToggle) {
-            y = y - grid.extent[1];
+            y = y - tilesHigh[level];
         }
         
-        BoundingBox tileBounds = new BoundingBox(
-                baseCoords[0] + width*tileIndex[0],
-                baseCoords[1] + height*(y),
-                baseCoords[0] + width*(tileIndex[0] + 1),
-                baseCoords[1] + height*(y + 1));
-        return tileBounds;
+        bounds[0] = baseCoords[0] + width*tileIndex[0];
+        bounds[1] = baseCoords[1] + height*(y);
+        bounds[2] = baseCoords[0] + width*(tileIndex[0] + 1);
+        bounds[3] = baseCoords[1] + height*(y + 1);
     }
     
     protected BoundingBox boundsFromRectangle(long[] rectangleExtent) {
-        Grid grid = gridLevels[(int) rectangleExtent[4]];
+        int level = (int) rectangleExtent[4];
         
-        double width = grid.resolution * tileWidth;
-        double height = grid.resolution * tileHeight;
+        double width = tileSpanX[level];
+        double height = tileSpanY[level];
         
         long bottomY = rectangleExtent[1];
         long topY = rectangleExtent[3];
         
         if(yBaseToggle) {
-            bottomY = bottomY - grid.extent[1];
-            topY = topY - grid.extent[1];
+            bottomY = bottomY - tilesHigh[level];
+            topY = topY - tilesHigh[level];
         }
         
         BoundingBox rectangleBounds = new BoundingBox(
@@ -105,37 +156,68 @@ public class GridSet {
     protected long[] closestIndex(BoundingBox tileBounds) throws GridMismatchException {       
         double wRes = tileBounds.getWidth() / tileWidth;
         
+        int bestLevel = closestLevel(wRes);
+        double bestResolution = bestLevel < 0 ? -1.0 : resolutions[bestLevel];
+        
+        if(Math.abs(wRes - bestResolution) > (0.1*wRes)) {
+            throw new ResolutionMismatchException(wRes, bestResolution);
+        }
+
+        return closestIndex(bestLevel, tileBounds);
+    }
+    
+    /**
+     * Finds the level whose resolution is closest to the given one, the first one on a tie
+     */
+    private int closestLevel(double resolution) {
+        final int levels = resolutions.length;
+        
+        if(resolutionsDecreasing && levels > 0 && !Double.isNaN(resolution)
+                && !Double.isInfinite(resolution)) {
+            // First level with a resolution at or below the requested one
+            int lo = 0;
+            int hi = levels;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(resolutions[mid] <= resolution) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            
+            if(lo == 0) {
+                return 0;
+            } else if(lo == levels) {
+                return levels - 1;
+            }
+            
+            double above = Math.abs(resolution - resolutions[lo - 1]);
+            double below = Math.abs(resolution - resolutions[lo]);
+            return below < above ? lo : lo - 1;
+        }
+        
+        // Walk down the levels until the error stops decreasing
         double bestError = Double.MAX_VALUE;
         int bestLevel = -1;
-        double bestResolution = -1.0;
         
-        for(int i=0; i< gridLevels.length; i++) {
-            Grid grid = gridLevels[i];
-            
-            double error = Math.abs(wRes - grid.resolution);
+        for(int i=0; i< levels; i++) {
+            double error = Math.abs(resolution - resolutions[i]);
             
             if(error < bestError) {
                 bestError = error;
-                bestResolution = grid.resolution;
                 bestLevel = i;
             } else {
                 break;
             }
         }
-        
-        if(Math.abs(wRes - bestResolution) > (0.1*wRes)) {
-            throw new ResolutionMismatchException(wRes, bestResolution);
-        }
-
-        return closestIndex(bestLevel, tileBounds);
+        return bestLevel;
     }
     
     protected long[] closestIndex(int level, BoundingBox tileBounds) 
     throws GridAlignmentMismatchException {
-        Grid grid = gridLevels[level];
-        
-        double width = grid.resolution * tileWidth;
-        double height = grid.resolution * tileHeight;
+        double width = tileSpanX[level];
+        double height = tileSpanY[level];
         
         double x = (tileBounds.getMinX() - baseCoords[0]) / width;
         
@@ -150,7 +232,7 @@ public class GridSet {
         }
         
         if(yBaseToggle) {
-            posY = posY + grid.extent[1];
+            posY = posY + tilesHigh[level];
         }
         
         long[] ret = { posX, posY, level };
@@ -166,11 +248,9 @@ public class GridSet {
         int bestLevel = -1;
         
         // Now we loop over the resolutions until
-        for(int i=0; i< gridLevels.length; i++) {
-            Grid grid = gridLevels[i];
-
-            double countX = rectWidth / (grid.resolution * tileWidth);
-            double countY = rectHeight / (grid.resolution * tileHeight);
+        for(int i=0; i< tileSpanX.length; i++) {
+            double countX = rectWidth / tileSpanX[i];
+            double countY = rectHeight / tileSpanY[i];
             
             double error = 
                 Math.abs(countX - Math.round(countX)) + 
@@ -188,10 +268,8 @@ public class GridSet {
     }
     
     protected long[] closestRectangle(int level, BoundingBox rectangeBounds) {
-        Grid grid = gridLevels[level];
-        
-        double width = grid.resolution * tileWidth;
-        double height = grid.resolution * tileHeight;
+        double width = tileSpanX[level];
+        double height = tileSpanY[level];
         
         
         long minX = (long) Math.floor((rectangeBounds.getMinX() - baseCoords[0]) / width);
@@ -200,8 +278,8 @@ public class GridSet {
         long maxY = (long) Math.ceil(((rectangeBounds.getMaxY() - baseCoords[1]) / height));
         
         if(yBaseToggle) {
-            minY = minY + grid.extent[1];
-            maxY = maxY + grid.extent[1];
+            minY = minY + tilesHigh[level];
+            maxY = maxY + tilesHigh[level];
         }
         
         // We substract one, since that's the tile at that position
@@ -133,6 +133,8 @@ public class GridSetFactory {
             gridSet.gridLevels[i] = curGrid;
         }
         
+        gridSet.initLevels();
+        
         return gridSet; 
     }
     
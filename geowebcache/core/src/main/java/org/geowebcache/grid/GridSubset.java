@@ -28,10 +28,17 @@ public class GridSubset {
     
     protected GridSet gridSet;
     
-    // {level}{minx,miny,maxx,maxy,z}
+    /**
+     * Number of values kept per level in {@link #coverages}
+     */
+    static final int COVERAGE_STRIDE = 5;
+    
+    // {minx,miny,maxx,maxy,z} for each level, level i starts at i * COVERAGE_STRIDE
     // firstLevel + level = z
-    // max zoom =  gridCoverageLevels.legth + firstLevel
-    protected GridCoverage[] gridCoverageLevels; 
+    // max zoom =  numLevels + firstLevel
+    protected long[] coverages;
+    
+    protected int numLevels;
     
     protected boolean fullGridSetCoverage = false;
     
@@ -45,6 +52,14 @@ public class GridSubset {
         return gridSet.boundsFromIndex(tileIndex);
     }
     
+    /**
+     * Same as {@link #boundsFromIndex(long[])}, but writes {minx,miny,maxx,maxy} to the given
+     * array rather than allocating a {@link BoundingBox}
+     */
+    public void boundsFromIndex(long[] tileIndex, double[] bounds) {
+        gridSet.boundsFromIndex(tileIndex, bounds);
+    }
+    
     public BoundingBox boundsFromRectangle(long[] rectangleExtent) {
         return gridSet.boundsFromRectangle(rectangleExtent);
     }
@@ -63,30 +78,31 @@ public class GridSubset {
      * @return {@code true} if {@code index} is inside this grid subset's coverage, {@code false} otherwise
      */
     public boolean covers(long[] index) {
-        if (index[2] >= firstLevel && index[2] < gridCoverageLevels.length) {
-            long[] coverage = gridCoverageLevels[(int) index[2]].coverage;
-
-            if (index[0] >= coverage[0] && index[0] <= coverage[2]) {
-
-                if (index[1] >= coverage[1] && index[1] <= coverage[3]) {
-                    // Everything is good
-                    return true;
-                }
-            }
+        if (index[2] >= firstLevel && index[2] < numLevels) {
+            return coversUnchecked(index[0], index[1], (int) index[2]);
         }
         return false;
     }
 
+    /**
+     * Same as {@link #covers(long[])}, but does not check whether {@code z} is a level of this
+     * grid subset, which is up to the caller
+     */
+    public boolean coversUnchecked(long x, long y, int z) {
+        final int offset = z * COVERAGE_STRIDE;
+        return x >= coverages[offset] && x <= coverages[offset + 2]
+                && y >= coverages[offset + 1] && y <= coverages[offset + 3];
+    }
+
     public void checkCoverage(long[] index) throws OutsideCoverageException {
         if (covers(index)) {
             return;
         }
 
-        if (index[2] < firstLevel || index[2] >= gridCoverageLevels.length) {
-            throw new OutsideCoverageException(index, firstLevel, gridCoverageLevels.length - 1);
+        if (index[2] < firstLevel || index[2] >= numLevels) {
+            throw new OutsideCoverageException(index, firstLevel, numLevels - 1);
         }
-        long[] coverage = gridCoverageLevels[(int) index[2]].coverage;
-        throw new OutsideCoverageException(index, coverage);
+        throw new OutsideCoverageException(index, coverage((int) index[2]));
     }
     
     public void checkTileDimensions(int width, int height) throws TileDimensionsMismatchException {
@@ -122,15 +138,16 @@ public class GridSubset {
     }
 
     public long[] getCoverage(int level) {
-        return gridCoverageLevels[firstLevel + level].coverage;
+        return coverage(firstLevel + level);
     }
     
     public long[][] getCoverages() {
-        long[][] ret = new long[gridCoverageLevels.length][5];
+        long[][] ret = new long[numLevels][5];
         
         for(int i=0; i < ret.length; i++) {
-            long[] cov = this.gridCoverageLevels[i].coverage;
-            long[] cur = { cov[0], cov[1], cov[2], cov[3], firstLevel + i};
+            int offset = i * COVERAGE_STRIDE;
+            long[] cur = { coverages[offset], coverages[offset + 1], coverages[offset + 2],
+                    coverages[offset + 3], firstLevel + i};
             ret[i] = cur;
         }
         
@@ -147,26 +164,24 @@ public class GridSubset {
     }
     
     public BoundingBox getCoverageBounds(int level) {
-        long[] coverage = gridCoverageLevels[firstLevel + level].coverage;
-        return gridSet.boundsFromRectangle(coverage);
+        return gridSet.boundsFromRectangle(coverage(firstLevel + level));
     }
     
     // Returns the tightest rectangle that covers the data
     public long[] getCoverageBestFit() {
         int i;
-        long[] cov = null;
         
-        for(i = gridCoverageLevels.length - 1; i > 0; i--) {
-            cov = gridCoverageLevels[i].coverage;
+        for(i = numLevels - 1; i > 0; i--) {
+            int offset = i * COVERAGE_STRIDE;
             
-            if(cov[0] == cov[2] && cov[1] == cov[3]) {
+            if(coverages[offset] == coverages[offset + 2]
+                    && coverages[offset + 1] == coverages[offset + 3]) {
                 break;
             }
         }
         
-        cov = gridCoverageLevels[i].coverage;
-        
-        long[] ret = {cov[0],cov[1],cov[2],cov[3], i + firstLevel};
+        long[] ret = coverage(i);
+        ret[4] = i + firstLevel;
         
         return ret;
     }
@@ -176,26 +191,25 @@ public class GridSubset {
     }
     
     public long[] getCoverageIntersection(long[] reqRectangle) {
-        GridCoverage gridCov = gridCoverageLevels[firstLevel + (int) reqRectangle[4]];        
-        return gridCov.getIntersection(reqRectangle);
+        return intersection(firstLevel + (int) reqRectangle[4], reqRectangle);
     }
     
     public long[][] getCoverageIntersections(BoundingBox reqBounds) {
-        long[][] ret = new long[gridCoverageLevels.length][5];
-        for(int i = 0; i < gridCoverageLevels.length; i++) {
+        long[][] ret = new long[numLevels][5];
+        for(int i = 0; i < numLevels; i++) {
              long[] reqRectangle = gridSet.closestRectangle(i + firstLevel, reqBounds);
-             ret[i] = gridCoverageLevels[i].getIntersection(reqRectangle);
+             ret[i] = intersection(i, reqRectangle);
         }
         return ret;
     }
     
     public long[] getCoverageIntersection(int level, BoundingBox reqBounds) {
         long[] reqRectangle = gridSet.closestRectangle(level, reqBounds);
-        return gridCoverageLevels[level].getIntersection(reqRectangle);
+        return intersection(level, reqRectangle);
     }
     
     public long getGridIndex(String gridId) {
-        for(int i = 0; i < gridCoverageLevels.length; i++) {
+        for(int i = 0; i < numLevels; i++) {
             if(gridSet.gridLevels[firstLevel + i].name.equals(gridId)) {
                 return i;
             }
@@ -205,8 +219,8 @@ public class GridSubset {
     }
     
     public String[] getGridNames() {
-        String[] ret = new String[gridCoverageLevels.length];
-        for(int i=0; i<gridCoverageLevels.length; i++) {
+        String[] ret = new String[numLevels];
+        for(int i=0; i<numLevels; i++) {
             ret[i] = gridSet.gridLevels[i + firstLevel].name;
         }
         
@@ -237,7 +251,7 @@ public class GridSubset {
     }
     
     public double[] getResolutions() {
-        double[] ret = new double[firstLevel + gridCoverageLevels.length];
+        double[] ret = new double[firstLevel + numLevels];
         
         for(int i = 0; i < ret.length; i++) {
             ret[i] = gridSet.gridLevels[i].resolution;
@@ -251,14 +265,14 @@ public class GridSubset {
        
        long[][] ret = {{-1,-1,-1},{-1,-1,-1},{-1,-1,-1},{-1,-1,-1}};
 
-       if((idx - firstLevel + 1) < gridCoverageLevels.length) {
+       if((idx - firstLevel + 1) < numLevels) {
            // Check whether this grid is doubling
            double resolutionCheck = gridSet.gridLevels[idx].resolution / 2 - gridSet.gridLevels[idx + 1].resolution;
            
            if (Math.abs(resolutionCheck) > gridSet.gridLevels[idx + 1].resolution * 0.025) {
                throw new GeoWebCacheException("The resolution is not decreasing by a factor of two for " + this.getName());
            } else {
-               GridCoverage cov = gridCoverageLevels[idx + 1];
+               long[] cov = coverage(idx + 1);
                
                long baseX = gridLoc[0] * 2;
                long baseY = gridLoc[1] * 2;
@@ -269,10 +283,10 @@ public class GridSubset {
 
                
                for(int i=0; i<4; i++) {
-                   if(     baseX + xOffset[i] >= cov.coverage[0] &&
-                           baseX + xOffset[i] <= cov.coverage[2] &&
-                           baseY + yOffset[i] >= cov.coverage[1] && 
-                           baseY + yOffset[i] <= cov.coverage[3] ) {
+                   if(     baseX + xOffset[i] >= cov[0] &&
+                           baseX + xOffset[i] <= cov[2] &&
+                           baseY + yOffset[i] >= cov[1] && 
+                           baseY + yOffset[i] <= cov[3] ) {
                        
                        ret[i][0] = baseX + xOffset[i]; ret[i][1] = baseY + yOffset[i]; ret[i][2] = baseZ;
                    }
@@ -310,17 +324,17 @@ public class GridSubset {
      * @return
      */
     public long[][] getWMTSCoverages() {
-        long[][] ret = new long[gridCoverageLevels.length][4];
+        long[][] ret = new long[numLevels][4];
         
-        for(int i=0; i<gridCoverageLevels.length; i++) {
+        for(int i=0; i<numLevels; i++) {
             Grid grid = gridSet.gridLevels[i + firstLevel];
-            GridCoverage gridCov = gridCoverageLevels[i];
+            int offset = i * COVERAGE_STRIDE;
             
             long[] cur = {
-                    gridCov.coverage[0],
-                    grid.extent[1] - gridCov.coverage[3],
-                    gridCov.coverage[2],
-                    grid.extent[1] - gridCov.coverage[1]
+                    coverages[offset],
+                    grid.extent[1] - coverages[offset + 3],
+                    coverages[offset + 2],
+                    grid.extent[1] - coverages[offset + 1]
             };
             
             ret[i] = cur;
@@ -334,7 +348,7 @@ public class GridSubset {
     }
     
     public int getZoomStop() {
-        return firstLevel + gridCoverageLevels.length - 1;
+        return firstLevel + numLevels - 1;
     }
     
     /**
@@ -344,6 +358,51 @@ public class GridSubset {
     public boolean fullGridSetCoverage() {
         return fullGridSetCoverage;
     }
+    
+    /**
+     * Sets up room for the coverages of the given number of levels
+     */
+    void initCoverages(int levels) {
+        numLevels = levels;
+        coverages = new long[levels * COVERAGE_STRIDE];
+    }
+    
+    /**
+     * Sets the {minx,miny,maxx,maxy,z} coverage of the level at the given position
+     */
+    void setCoverage(int position, long[] coverage) {
+        System.arraycopy(coverage, 0, coverages, position * COVERAGE_STRIDE, COVERAGE_STRIDE);
+    }
+    
+    /**
+     * @return a copy of the {minx,miny,maxx,maxy,z} coverage of the level at the given position
+     */
+    private long[] coverage(int position) {
+        long[] coverage = new long[COVERAGE_STRIDE];
+        System.arraycopy(coverages, offset(position), coverage, 0, COVERAGE_STRIDE);
+        return coverage;
+    }
+    
+    /**
+     * Clips the rectangle to the coverage of the level at the given position
+     */
+    private long[] intersection(int position, long[] rectangle) {
+        final int o = offset(position);
+        long[] ret = {
+                Math.min(Math.max(coverages[o], rectangle[0]), coverages[o + 2]),
+                Math.min(Math.max(coverages[o + 1], rectangle[1]), coverages[o + 3]),
+                Math.min(Math.max(coverages[o], rectangle[2]), coverages[o + 2]),
+                Math.min(Math.max(coverages[o + 1], rectangle[3]), coverages[o + 3]),
+                rectangle[4]
+        };
 
-
+        return ret;
+    }
+    
+    private int offset(int position) {
+        if(position < 0 || position >= numLevels) {
+            throw new ArrayIndexOutOfBoundsException(position);
+        }
+        return position * COVERAGE_STRIDE;
+    }
 }
\ No newline at end of file
@@ -29,12 +29,11 @@ public class GridSubsetFactory {
         
         ret.firstLevel = 0;
         
-        ret.gridCoverageLevels = new GridCoverage[gridSet.gridLevels.length];
+        ret.initCoverages(gridSet.gridLevels.length);
         
-        for(int i=0; i<ret.gridCoverageLevels.length; i++) {
+        for(int i=0; i<ret.numLevels; i++) {
             long[] tmp = {0,0,gridSet.gridLevels[i].extent[0] - 1,gridSet.gridLevels[i].extent[1] - 1, i};
-            GridCoverage gridCov = new GridCoverage(tmp);
-            ret.gridCoverageLevels[i] = gridCov;
+            ret.setCoverage(i, tmp);
         }
        
         ret.fullGridSetCoverage = true;
@@ -56,9 +55,9 @@ public class GridSubsetFactory {
         }
         
         if(zoomStop != null) {
-            ret.gridCoverageLevels = new GridCoverage[zoomStop - ret.firstLevel + 1];
+            ret.initCoverages(zoomStop - ret.firstLevel + 1);
         } else {
-            ret.gridCoverageLevels = new GridCoverage[gridSet.gridLevels.length - ret.firstLevel];
+            ret.initCoverages(gridSet.gridLevels.length - ret.firstLevel);
         }
         
         // Save the original extent provided by the user
@@ -71,18 +70,14 @@ public class GridSubsetFactory {
             ret.fullGridSetCoverage = true;
         }
         
-        for(int i=0; i<ret.gridCoverageLevels.length; i++) {
-            GridCoverage gridCov;
-            
+        for(int i=0; i<ret.numLevels; i++) {
             if(extent != null) {
-                gridCov = new GridCoverage(gridSet.closestRectangle(i + ret.firstLevel, extent) );
+                ret.setCoverage(i, gridSet.closestRectangle(i + ret.firstLevel, extent));
             } else {
                 long[] gridExtent = gridSet.gridLevels[i + ret.firstLevel].extent;
                 long[] fullCoverage = {0,0,gridExtent[0] - 1,gridExtent[1] -1, i + ret.firstLevel}; 
-                gridCov = new GridCoverage(fullCoverage);
+                ret.setCoverage(i, fullCoverage);
             }
-
-            ret.gridCoverageLevels[i] = gridCov;
         }
        
         return ret;
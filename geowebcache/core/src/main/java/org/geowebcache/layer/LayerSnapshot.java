@@ -0,0 +1,163 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of layers, as published by the {@link TileLayerDispatcher}.
+ * <p>
+ * The layers are kept in an array sorted by name, with an open addressing hash table of positions
+ * in that array on the side, so lookups neither lock nor allocate. Changes are made by creating a
+ * new snapshot, see {@link #with(TileLayer)} and {@link #without(String)}.
+ * </p>
+ * <p>
+ * Layers whose initialization failed are not part of the snapshot, only the reason is kept so that
+ * requests for them can be answered with something more useful than "unknown layer".
+ * </p>
+ */
+final class LayerSnapshot {
+
+    static final LayerSnapshot EMPTY = new LayerSnapshot(new LinkedHashMap<String, TileLayer>(),
+            new LinkedHashMap<String, String>());
+
+    private static final Comparator<TileLayer> BY_NAME = new Comparator<TileLayer>() {
+        public int compare(TileLayer o1, TileLayer o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private final TileLayer[] sorted;
+
+    /**
+     * Positions in {@link #sorted} plus one, zero marks an empty slot
+     */
+    private final int[] index;
+
+    private final int mask;
+
+    /**
+     * The layers in configuration order, which is what capabilities documents list them in
+     */
+    private final Map<String, TileLayer> layers;
+
+    private final Map<String, String> unavailable;
+
+    /**
+     * @param layers the layers, in the order they should be listed, not copied
+     * @param unavailable reasons for layers that could not be initialized, not copied
+     */
+    LayerSnapshot(LinkedHashMap<String, TileLayer> layers, Map<String, String> unavailable) {
+        this.layers = Collections.unmodifiableMap(layers);
+        this.unavailable = Collections.unmodifiableMap(unavailable);
+
+        sorted = layers.values().toArray(new TileLayer[layers.size()]);
+        Arrays.sort(sorted, BY_NAME);
+
+        // At most half full, so probe sequences stay short
+        int capacity = 2;
+        while (capacity < sorted.length * 2) {
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        index = new int[capacity];
+
+        for (int i = 0; i < sorted.length; i++) {
+            int slot = hash(sorted[i].getName()) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = i + 1;
+        }
+    }
+
+    /**
+     * @return the layer with the given name, or {@code null}
+     */
+    TileLayer get(String layerName) {
+        int slot = hash(layerName) & mask;
+        int pos;
+        while ((pos = index[slot]) != 0) {
+            TileLayer layer = sorted[pos - 1];
+            if (layer.getName().equals(layerName)) {
+                return layer;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return why the given layer is not available, or {@code null} if it is not known to have
+     *         failed
+     */
+    String getUnavailableReason(String layerName) {
+        return unavailable.get(layerName);
+    }
+
+    /**
+     * @return an unmodifiable view of the layers, in configuration order
+     */
+    Map<String, TileLayer> getLayers() {
+        return layers;
+    }
+
+    int size() {
+        return sorted.length;
+    }
+
+    /**
+     * @return a snapshot in which the given layer replaces the one with the same name, or is
+     *         appended if there is none
+     */
+    LayerSnapshot with(TileLayer layer) {
+        LinkedHashMap<String, TileLayer> newLayers = new LinkedHashMap<String, TileLayer>(layers);
+        newLayers.put(layer.getName(), layer);
+
+        Map<String, String> newUnavailable = unavailable;
+        if (unavailable.containsKey(layer.getName())) {
+            newUnavailable = new LinkedHashMap<String, String>(unavailable);
+            newUnavailable.remove(layer.getName());
+        }
+        return new LayerSnapshot(newLayers, newUnavailable);
+    }
+
+    /**
+     * @return a snapshot without the given layer
+     */
+    LayerSnapshot without(String layerName) {
+        LinkedHashMap<String, TileLayer> newLayers = new LinkedHashMap<String, TileLayer>(layers);
+        newLayers.remove(layerName);
+
+        Map<String, String> newUnavailable = unavailable;
+        if (unavailable.containsKey(layerName)) {
+            newUnavailable = new LinkedHashMap<String, String>(unavailable);
+            newUnavailable.remove(layerName);
+        }
+        return new LayerSnapshot(newLayers, newUnavailable);
+    }
+
+    private static int hash(String name) {
+        // Spread the bits, String.hashCode() is weak in the lower ones for similar names
+        int h = name.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
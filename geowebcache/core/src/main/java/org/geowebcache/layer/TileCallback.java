@@ -0,0 +1,40 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer;
+
+import org.geowebcache.conveyor.ConveyorTile;
+
+/**
+ * Completes a request for a tile fetched through
+ * {@link TileLayer#fetchTile(ConveyorTile, TileCallback)}. Exactly one of the methods is called,
+ * once, possibly from another thread than the one that asked for the tile.
+ */
+public interface TileCallback {
+
+    /**
+     * @param tile
+     *            the tile, with its content
+     */
+    public void tileReady(ConveyorTile tile);
+
+    /**
+     * @param tile
+     *            the tile that was asked for
+     * @param e
+     *            why it could not be had
+     */
+    public void tileFailed(ConveyorTile tile, Exception e);
+}
@@ -260,6 +260,45 @@ public abstract class TileLayer {
     public abstract ConveyorTile getTile(ConveyorTile tile) throws GeoWebCacheException,
             IOException, OutsideCoverageException;
 
+    /**
+     * Returns the tile if it can be had without waiting on the backend, otherwise returns null
+     * and the tile is to be had through {@link #fetchTile(ConveyorTile, TileCallback)}.
+     * <p>
+     * This default serves every tile through {@link #getTile(ConveyorTile)}, layers that go to a
+     * backend override both methods.
+     * </p>
+     *
+     * @param tile
+     * @return the tile, or null if it has to be fetched
+     * @throws GeoWebCacheException
+     * @throws IOException
+     * @throws OutsideCoverageException
+     */
+    public ConveyorTile getCachedTile(ConveyorTile tile) throws GeoWebCacheException,
+            IOException, OutsideCoverageException {
+        return getTile(tile);
+    }
+
+    /**
+     * Fetches a tile {@link #getCachedTile(ConveyorTile)} did not have, without holding the
+     * calling thread while the backend or another request for the same metatile is waited on.
+     * The callback may be called before this method returns.
+     *
+     * @param tile
+     * @param callback
+     *            completes the request
+     */
+    public void fetchTile(ConveyorTile tile, TileCallback callback) {
+        ConveyorTile returnTile;
+        try {
+            returnTile = getTile(tile);
+        } catch (Exception e) {
+            callback.tileFailed(tile, e);
+            return;
+        }
+        callback.tileReady(returnTile);
+    }
+
     /**
      * Makes a non-metatiled request to backend, bypassing the cache before and after
      * 
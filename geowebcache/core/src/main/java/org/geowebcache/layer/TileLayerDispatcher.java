@@ -16,17 +16,21 @@
  */
 package org.geowebcache.layer;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,25 +44,46 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 /**
  * Note that the constructor starts the thread to load configurations, making this class unsuitable
  * for subclassing
+ * <p>
+ * The layers are published as an immutable {@link LayerSnapshot}. Every change builds a new
+ * snapshot and swaps it in, so lookups never lock and never see a partially loaded set of layers.
+ * </p>
  */
 public class TileLayerDispatcher implements DisposableBean {
     private static Log log = LogFactory.getLog(org.geowebcache.layer.TileLayerDispatcher.class);
 
     /**
-     * Configured layers. Not to be accessed directly. Call {@link #checkConfigurationLoaded()} to
-     * get them
+     * Default number of seconds a single layer may take to initialize
      */
-    private Map<String, TileLayer> configuredLayers = null;
+    public static final int DEFAULT_INIT_TIMEOUT = 120;
+
+    /**
+     * Configured layers, {@code null} until the first load completes. Not to be accessed directly.
+     * Call {@link #checkConfigurationLoaded()} to get them
+     */
+    private final AtomicReference<LayerSnapshot> configuredLayers = new AtomicReference<LayerSnapshot>();
 
     private List<Configuration> configs = null;
 
     private GridSetBroker gridSetBroker = null;
 
-    private ServiceInformation serviceInformation = null;
+    private volatile ServiceInformation serviceInformation = null;
 
     private ExecutorService configLoadService;
 
-    private Future<Map<String, TileLayer>> configurationLoadTask;
+    private Future<LayerSnapshot> configurationLoadTask;
+
+    /**
+     * Serializes reloads, so that an older one can not overwrite a newer one
+     */
+    private final Object reloadLock = new Object();
+
+    private final int initThreads;
+
+    private final int initTimeout;
+
+    private final List<TileLayerDispatcherListener> listeners =
+        new CopyOnWriteArrayList<TileLayerDispatcherListener>();
 
     public TileLayerDispatcher(GridSetBroker gridSetBroker, List<Configuration> configs) {
         this(gridSetBroker, configs, 2);
@@ -66,10 +91,31 @@ public class TileLayerDispatcher implements DisposableBean {
 
     public TileLayerDispatcher(GridSetBroker gridSetBroker, List<Configuration> configs,
             int loadDelay) {
+        this(gridSetBroker, configs, loadDelay,
+                2 * Runtime.getRuntime().availableProcessors(), DEFAULT_INIT_TIMEOUT);
+    }
+
+    /**
+     * @param gridSetBroker
+     * @param configs
+     * @param loadDelay seconds to wait before loading the configuration in the background, -1 to
+     *        load it right away in the calling thread
+     * @param initThreads the maximum number of layers to initialize concurrently. Initializing a
+     *        layer often means waiting for files or remote servers, so more than one per core is
+     *        reasonable.
+     * @param initTimeout seconds a single layer may take to initialize, layers that take longer
+     *        are left out and reported as unavailable
+     */
+    public TileLayerDispatcher(GridSetBroker gridSetBroker, List<Configuration> configs,
+            int loadDelay, int initThreads, int initTimeout) {
         this.gridSetBroker = gridSetBroker;
 
         this.configs = configs;
 
+        this.initThreads = Math.max(1, initThreads);
+
+        this.initTimeout = initTimeout;
+
         if (loadDelay > -1) {
             ThreadFactory tfac = new CustomizableThreadFactory("GWC Configuration loader thread-");
             ((CustomizableThreadFactory) tfac).setDaemon(true);
@@ -78,7 +124,7 @@ public class TileLayerDispatcher implements DisposableBean {
             configurationLoadTask = configLoadService.submit(loader);
         } else {
             try {
-                configuredLayers = new ConfigurationLoader(this, loadDelay).call();
+                configuredLayers.set(new ConfigurationLoader(this, loadDelay).call());
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -87,11 +133,16 @@ public class TileLayerDispatcher implements DisposableBean {
 
     public TileLayer getTileLayer(String layerIdent) throws GeoWebCacheException {
 
-        final Map<String, TileLayer> layers = checkConfigurationLoaded();
+        final LayerSnapshot layers = checkConfigurationLoaded();
 
         TileLayer layer = layers.get(layerIdent);
 
         if (layer == null) {
+            String reason = layers.getUnavailableReason(layerIdent);
+            if (reason != null) {
+                throw new GeoWebCacheException("Layer " + layerIdent + " is not available, "
+                        + reason);
+            }
             throw new GeoWebCacheException("Thread " + Thread.currentThread().getId()
                     + " Unknown layer " + layerIdent + ". Check the logfiles,"
                     + " it may not have loaded properly.");
@@ -101,17 +152,17 @@ public class TileLayerDispatcher implements DisposableBean {
     }
 
     /**
-     * Returns the configured layers, potentially waiting for the layer load task to finish
+     * Returns the configured layers, potentially waiting for the initial layer load task to finish
      * 
      * @return
      * @throws GeoWebCacheException
      */
-    private Map<String, TileLayer> checkConfigurationLoaded() throws GeoWebCacheException {
-        Map<String, TileLayer> layers = this.configuredLayers;
+    private LayerSnapshot checkConfigurationLoaded() throws GeoWebCacheException {
+        LayerSnapshot layers = configuredLayers.get();
         if (layers == null) {
             try {
-                layers = configurationLoadTask.get();
-                this.configuredLayers = layers;
+                configurationLoadTask.get();
+                layers = configuredLayers.get();
             } catch (InterruptedException e) {
                 throw new GeoWebCacheException(e);
             } catch (ExecutionException e) {
@@ -122,43 +173,71 @@ public class TileLayerDispatcher implements DisposableBean {
     }
 
     /***
-     * Reinitialization is tricky, because we can't really just lock all the layers, because this
-     * would cause people to queue on something that we may not want to exist post reinit.
+     * Reloads all configurations.
      * 
-     * So we'll just set the current layer set free, ready for garbage collection, and generate a
-     * new one.
+     * The new set of layers is built on the side while requests keep being served from the
+     * current one, and only replaces it once it is complete. Returns once the new layers are in
+     * place. Changes made through {@link #add(TileLayer)}, {@link #update(TileLayer)} or
+     * {@link #remove(String)} while the reload runs are replaced by what the configurations say.
      * 
      * @throws GeoWebCacheException
      */
     public void reInit() throws GeoWebCacheException {
         // this should wait for the current running config load task to finish if it still didn't
         checkConfigurationLoaded();
-        // now mark config not loaded by setting layers to null
-        this.configuredLayers = null;
-        // and let a new task to perform the config load
-        configurationLoadTask = configLoadService.submit(new ConfigurationLoader(this, 0));
+
+        synchronized (reloadLock) {
+            LayerSnapshot newLayers;
+            try {
+                newLayers = initialize(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted while reloading the layers");
+            }
+
+            synchronized (this) {
+                configuredLayers.set(newLayers);
+            }
+        }
+
+        for (TileLayerDispatcherListener listener : listeners) {
+            listener.layersReloaded();
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of layers being added, modified, removed and reloaded
+     * 
+     * @param listener
+     */
+    public void addListener(TileLayerDispatcherListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(TileLayerDispatcherListener listener) {
+        return listeners.remove(listener);
     }
 
     /**
      * Returns a list of all the layers. The consumer may still have to initialize each layer!
      * 
-     * @return
+     * @return an unmodifiable map of the layers, by name
      */
     public Map<String, TileLayer> getLayers() {
-        final Map<String, TileLayer> layers;
+        final LayerSnapshot layers;
         try {
             layers = checkConfigurationLoaded();
         } catch (GeoWebCacheException e) {
             throw new IllegalStateException(e);
         }
 
-        return layers;
+        return layers.getLayers();
     }
 
-    private LinkedHashMap<String, TileLayer> initialize(boolean reload) {
+    private LayerSnapshot initialize(boolean reload) throws InterruptedException {
         log.debug("Thread initLayers(), initializing");
 
-        LinkedHashMap<String, TileLayer> newLayers = new LinkedHashMap<String, TileLayer>();
+        List<TileLayer> loadedLayers = new ArrayList<TileLayer>();
 
         Iterator<Configuration> configIter = configs.iterator();
 
@@ -196,9 +275,7 @@ public class TileLayerDispatcher implements DisposableBean {
                         }
                         log.info("Adding: " + layer.getName());
 
-                        layer.initialize(gridSetBroker);
-
-                        add(layer, newLayers);
+                        loadedLayers.add(layer);
                     }
                 } else {
                     log.error("Configuration " + configIdent + " contained no layers.");
@@ -217,7 +294,114 @@ public class TileLayerDispatcher implements DisposableBean {
             }
         }
 
-        return newLayers;
+        String[] failures = initializeLayers(loadedLayers);
+
+        LinkedHashMap<String, TileLayer> newLayers = new LinkedHashMap<String, TileLayer>();
+        Map<String, String> unavailable = new LinkedHashMap<String, String>();
+
+        for (int i = 0; i < failures.length; i++) {
+            TileLayer layer = loadedLayers.get(i);
+            if (failures[i] != null) {
+                log.error("Layer " + layer.getName() + " is not available, " + failures[i]);
+                if (!newLayers.containsKey(layer.getName())) {
+                    unavailable.put(layer.getName(), failures[i]);
+                }
+            } else {
+                add(layer, newLayers);
+                unavailable.remove(layer.getName());
+            }
+        }
+
+        return new LayerSnapshot(newLayers, unavailable);
+    }
+
+    /**
+     * Initializes the given layers concurrently, without letting one that fails or hangs hold up
+     * the others
+     * 
+     * @return for each layer, {@code null} if it was initialized or why it was not
+     */
+    private String[] initializeLayers(List<TileLayer> layers) throws InterruptedException {
+        String[] failures = new String[layers.size()];
+        if (layers.isEmpty()) {
+            return failures;
+        }
+
+        CustomizableThreadFactory tfac = new CustomizableThreadFactory("GWC Layer initializer-");
+        tfac.setDaemon(true);
+        ExecutorService initService = Executors.newFixedThreadPool(
+                Math.min(initThreads, layers.size()), tfac);
+
+        try {
+            List<InitTask> tasks = new ArrayList<InitTask>(layers.size());
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(layers.size());
+            for (TileLayer layer : layers) {
+                InitTask task = new InitTask(layer);
+                tasks.add(task);
+                results.add(initService.submit(task));
+            }
+
+            final long timeoutMillis = initTimeout * 1000L;
+
+            for (int i = 0; i < results.size(); i++) {
+                Future<Boolean> result = results.get(i);
+                InitTask task = tasks.get(i);
+
+                while (true) {
+                    // Only count the time the layer has actually spent initializing, not
+                    // the time it waited for a thread
+                    long started = task.started;
+                    long wait = timeoutMillis;
+                    if (started != 0) {
+                        wait = started + timeoutMillis - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            result.cancel(true);
+                            failures[i] = "initialization took longer than " + initTimeout
+                                    + " seconds";
+                            break;
+                        }
+                    }
+
+                    try {
+                        if (!result.get(wait, TimeUnit.MILLISECONDS).booleanValue()) {
+                            // Kept all the same, as layers always were
+                            log.warn("Initializing " + layers.get(i).getName()
+                                    + " reported a failure, the layer may not work");
+                        }
+                        break;
+                    } catch (TimeoutException te) {
+                        continue;
+                    } catch (ExecutionException ee) {
+                        Throwable cause = ee.getCause();
+                        log.debug("Initializing " + layers.get(i).getName() + " failed", cause);
+                        failures[i] = "initialization failed: " + cause.getMessage();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            initService.shutdownNow();
+        }
+
+        return failures;
+    }
+
+    /**
+     * Initializes a single layer, remembering when it started doing so
+     */
+    private class InitTask implements Callable<Boolean> {
+        private final TileLayer layer;
+
+        private volatile long started;
+
+        private InitTask(TileLayer layer) {
+            this.layer = layer;
+        }
+
+        public Boolean call() throws Exception {
+            started = System.currentTimeMillis();
+            return Boolean.valueOf(layer.initialize(gridSetBroker));
+        }
     }
 
     public ServiceInformation getServiceInformation() {
@@ -226,7 +410,7 @@ public class TileLayerDispatcher implements DisposableBean {
 
     public synchronized void update(TileLayer layer) {
 
-        final Map<String, TileLayer> layers;
+        final LayerSnapshot layers;
         try {
             layers = checkConfigurationLoaded();
         } catch (GeoWebCacheException e) {
@@ -238,15 +422,24 @@ public class TileLayerDispatcher implements DisposableBean {
         // so we can't assume this layer actually existed
         if (oldLayer != null) {
             oldLayer.acquireLayerLock();
-            layers.remove(layer.getName());
+            configuredLayers.set(layers.with(layer));
             oldLayer.releaseLayerLock();
+        } else {
+            configuredLayers.set(layers.with(layer));
+        }
+
+        for (TileLayerDispatcherListener listener : listeners) {
+            if (oldLayer != null) {
+                listener.layerModified(layer);
+            } else {
+                listener.layerAdded(layer);
+            }
         }
-        layers.put(layer.getName(), layer);
     }
 
     public synchronized void remove(String layerName) {
 
-        final Map<String, TileLayer> layers;
+        final LayerSnapshot layers;
         try {
             layers = checkConfigurationLoaded();
         } catch (GeoWebCacheException e) {
@@ -255,19 +448,40 @@ public class TileLayerDispatcher implements DisposableBean {
         TileLayer layer = layers.get(layerName);
         if (layer != null) {
             layer.acquireLayerLock();
-            layers.remove(layerName);
+            configuredLayers.set(layers.without(layerName));
             layer.releaseLayerLock();
+
+            for (TileLayerDispatcherListener listener : listeners) {
+                listener.layerRemoved(layerName);
+            }
         }
     }
 
-    public void add(TileLayer layer) {
-        final Map<String, TileLayer> layers;
+    public synchronized void add(TileLayer layer) {
+        final LayerSnapshot layers;
         try {
             layers = checkConfigurationLoaded();
         } catch (GeoWebCacheException e) {
             throw new IllegalStateException(e);
         }
-        add(layer, layers);
+        TileLayer existing = layers.get(layer.getName());
+        if (existing != null) {
+            try {
+                existing.mergeWith(layer);
+            } catch (GeoWebCacheException gwce) {
+                log.error(gwce.getMessage());
+            }
+        } else {
+            configuredLayers.set(layers.with(layer));
+        }
+
+        for (TileLayerDispatcherListener listener : listeners) {
+            if (existing != null) {
+                listener.layerModified(existing);
+            } else {
+                listener.layerAdded(layer);
+            }
+        }
     }
 
     private void add(TileLayer layer, Map<String, TileLayer> layerMap) {
@@ -282,7 +496,7 @@ public class TileLayerDispatcher implements DisposableBean {
         }
     }
 
-    private class ConfigurationLoader implements Callable<Map<String, TileLayer>> {
+    private class ConfigurationLoader implements Callable<LayerSnapshot> {
 
         TileLayerDispatcher parent;
 
@@ -293,7 +507,7 @@ public class TileLayerDispatcher implements DisposableBean {
             this.loadDelay = loadDelay;
         }
 
-        public Map<String, TileLayer> call() throws Exception {
+        public LayerSnapshot call() throws Exception {
             if (loadDelay > 0) {
                 log.info("ConfigurationLoader acquired lock, sleeping " + loadDelay + " seconds");
                 try {
@@ -305,7 +519,9 @@ public class TileLayerDispatcher implements DisposableBean {
                 }
             }
 
-            LinkedHashMap<String, TileLayer> newLayers = parent.initialize(false);
+            LayerSnapshot newLayers = parent.initialize(false);
+            // Publish right away, not only once someone asks for the layers
+            parent.configuredLayers.compareAndSet(null, newLayers);
             log.info("ConfigurationLoader completed");
             return newLayers;
         }
@@ -0,0 +1,31 @@
+package org.geowebcache.layer;
+
+import java.util.EventListener;
+
+/**
+ * Notified by the {@link TileLayerDispatcher} whenever the set of layers, or one of them, changes.
+ * Listeners are called on the thread making the change and should return quickly.
+ */
+public interface TileLayerDispatcherListener extends EventListener {
+
+    /**
+     * A layer that did not exist before was added
+     */
+    void layerAdded(TileLayer layer);
+
+    /**
+     * An existing layer was replaced, or merged with another definition
+     */
+    void layerModified(TileLayer layer);
+
+    /**
+     * A layer was removed
+     */
+    void layerRemoved(String layerName);
+
+    /**
+     * All layers are being reloaded from the configurations
+     */
+    void layersReloaded();
+
+}
@@ -0,0 +1,103 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.Arrays;
+
+/**
+ * The latency of the latest requests to a backend and how many are outstanding, used to pick a
+ * backend and to decide when a request to it is late enough to be hedged
+ */
+class BackendStats {
+
+    /**
+     * How many of the latest latencies the percentiles are computed from
+     */
+    static final int WINDOW_SIZE = 100;
+
+    /**
+     * How many latencies have to be known before there is a percentile
+     */
+    static final int MIN_SAMPLES = 10;
+
+    /**
+     * The weight of the latest latency in the moving average
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+
+    private int next;
+
+    private int recorded;
+
+    private double averageLatency;
+
+    private int outstanding;
+
+    synchronized void requestStarted() {
+        outstanding++;
+    }
+
+    /**
+     * A request aborted before it was over, how long it ran says nothing about the backend
+     */
+    synchronized void requestAbandoned() {
+        outstanding--;
+    }
+
+    /**
+     * @param latencyMillis
+     *            how long the request took
+     */
+    synchronized void requestFinished(final long latencyMillis) {
+        outstanding--;
+        latencies[next] = latencyMillis;
+        next = (next + 1) % latencies.length;
+        if (recorded == 0) {
+            averageLatency = latencyMillis;
+        } else {
+            averageLatency += EWMA_WEIGHT * (latencyMillis - averageLatency);
+        }
+        if (recorded < latencies.length) {
+            recorded++;
+        }
+    }
+
+    /**
+     * @return how long a new request is expected to wait, the lower the better. A backend nothing
+     *         is known about yet scores best so it gets tried.
+     */
+    synchronized double score() {
+        return (averageLatency + 1) * (outstanding + 1);
+    }
+
+    /**
+     * @param percentile
+     *            between 1 and 100
+     * @return the latency in milliseconds of that percentile of the latest requests, or {@code -1}
+     *         if too few are known
+     */
+    synchronized long latencyPercentile(final int percentile) {
+        if (recorded < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = new long[recorded];
+        System.arraycopy(latencies, 0, sorted, 0, recorded);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.min(100, Math.max(1, percentile)) * recorded / 100.0) - 1;
+        return sorted[index];
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps track of the outcome of the latest requests to a backend and stops letting requests
+ * through once too many of them failed or were slow.
+ * <p>
+ * The breaker starts closed. It opens when at least {@link CircuitBreakerConfig#getMinimumRequests()}
+ * of the last {@link CircuitBreakerConfig#getWindowSize()} requests are recorded and the failed or
+ * slow ones reach {@link CircuitBreakerConfig#getFailureRatePercent()}. While open no request is
+ * allowed. After {@link CircuitBreakerConfig#getOpenSeconds()} it turns half open and lets up to
+ * {@link CircuitBreakerConfig#getHalfOpenProbes()} requests through at once. It closes once that
+ * many probes in a row succeed, and opens again as soon as one fails.
+ * </p>
+ */
+class CircuitBreaker {
+
+    private static final Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String backendUrl;
+
+    private final int minimumRequests;
+
+    private final int failureRatePercent;
+
+    private final int slowRequestMillis;
+
+    private final long openMillis;
+
+    private final int halfOpenProbes;
+
+    /**
+     * Whether each of the latest requests failed, as a ring buffer
+     */
+    private final boolean[] window;
+
+    private int next;
+
+    private int recorded;
+
+    private int failed;
+
+    private State state = State.CLOSED;
+
+    private long openUntil;
+
+    private int probesInFlight;
+
+    private int probeSuccesses;
+
+    CircuitBreaker(final String backendUrl, final CircuitBreakerConfig config) {
+        this.backendUrl = backendUrl;
+        this.window = new boolean[Math.max(1, config.getWindowSize())];
+        this.minimumRequests = Math.max(1, Math.min(window.length, config.getMinimumRequests()));
+        this.failureRatePercent = config.getFailureRatePercent();
+        this.slowRequestMillis = config.getSlowRequestMillis();
+        this.openMillis = 1000L * config.getOpenSeconds();
+        this.halfOpenProbes = Math.max(1, config.getHalfOpenProbes());
+    }
+
+    /**
+     * @return whether a request can be sent to the backend, in which case its outcome has to be
+     *         {@link #record recorded}, or the request {@link #cancel cancelled}
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now() < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+            log.info("Probing backend " + backendUrl);
+            // fall through
+        default:
+            if (probesInFlight + probeSuccesses >= halfOpenProbes) {
+                return false;
+            }
+            probesInFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * @param success
+     *            whether the backend returned a usable response
+     * @param latencyMillis
+     *            how long the request took
+     */
+    synchronized void record(final boolean success, final long latencyMillis) {
+        final boolean failure = !success
+                || (slowRequestMillis > 0 && latencyMillis > slowRequestMillis);
+        switch (state) {
+        case HALF_OPEN:
+            probesInFlight = Math.max(0, probesInFlight - 1);
+            if (failure) {
+                open();
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                close();
+            }
+            break;
+        case CLOSED:
+            if (recorded == window.length) {
+                if (window[next]) {
+                    failed--;
+                }
+            } else {
+                recorded++;
+            }
+            window[next] = failure;
+            next = (next + 1) % window.length;
+            if (failure) {
+                failed++;
+            }
+            if (recorded >= minimumRequests && 100 * failed >= failureRatePercent * recorded) {
+                open();
+            }
+            break;
+        default:
+            // a request sent before the breaker opened
+        }
+    }
+
+    /**
+     * Gives back the slot of a request that was allowed but then abandoned, aborted because
+     * another backend answered first, without recording an outcome for it
+     */
+    synchronized void cancel() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        log.warn("Backend " + backendUrl + " is failing, not sending it requests for "
+                + (openMillis / 1000) + "s");
+        state = State.OPEN;
+        openUntil = now() + openMillis;
+    }
+
+    private void close() {
+        log.info("Backend " + backendUrl + " is back");
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failed = 0;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+/**
+ * The {@code <circuitBreaker>} settings of a WMS layer, telling when to stop sending requests to a
+ * failing or slow backend. Settings left out take their defaults.
+ */
+public class CircuitBreakerConfig {
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+
+    public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+
+    public static final int DEFAULT_FAILURE_RATE_PERCENT = 50;
+
+    public static final int DEFAULT_OPEN_SECONDS = 30;
+
+    public static final int DEFAULT_HALF_OPEN_PROBES = 1;
+
+    private Integer windowSize;
+
+    private Integer minimumRequests;
+
+    private Integer failureRatePercent;
+
+    private Integer slowRequestMillis;
+
+    private Integer openSeconds;
+
+    private Integer halfOpenProbes;
+
+    /**
+     * @return how many of the latest requests to a backend decide whether it is failing
+     */
+    public int getWindowSize() {
+        return windowSize == null ? DEFAULT_WINDOW_SIZE : windowSize.intValue();
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Integer.valueOf(windowSize);
+    }
+
+    /**
+     * @return how many requests the window needs before the breaker can open
+     */
+    public int getMinimumRequests() {
+        return minimumRequests == null ? DEFAULT_MINIMUM_REQUESTS : minimumRequests.intValue();
+    }
+
+    public void setMinimumRequests(int minimumRequests) {
+        this.minimumRequests = Integer.valueOf(minimumRequests);
+    }
+
+    /**
+     * @return the percentage of failed or slow requests in the window that opens the breaker
+     */
+    public int getFailureRatePercent() {
+        return failureRatePercent == null ? DEFAULT_FAILURE_RATE_PERCENT : failureRatePercent
+                .intValue();
+    }
+
+    public void setFailureRatePercent(int failureRatePercent) {
+        this.failureRatePercent = Integer.valueOf(failureRatePercent);
+    }
+
+    /**
+     * @return the milliseconds after which a successful request counts as slow, or {@code 0} if
+     *         slow requests count as successful
+     */
+    public int getSlowRequestMillis() {
+        return slowRequestMillis == null ? 0 : slowRequestMillis.intValue();
+    }
+
+    public void setSlowRequestMillis(int slowRequestMillis) {
+        this.slowRequestMillis = Integer.valueOf(slowRequestMillis);
+    }
+
+    /**
+     * @return how long an open breaker fails requests before letting probes through
+     */
+    public int getOpenSeconds() {
+        return openSeconds == null ? DEFAULT_OPEN_SECONDS : openSeconds.intValue();
+    }
+
+    public void setOpenSeconds(int openSeconds) {
+        this.openSeconds = Integer.valueOf(openSeconds);
+    }
+
+    /**
+     * @return how many probe requests have to succeed in a row to close the breaker again
+     */
+    public int getHalfOpenProbes() {
+        return halfOpenProbes == null ? DEFAULT_HALF_OPEN_PROBES : halfOpenProbes.intValue();
+    }
+
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = Integer.valueOf(halfOpenProbes);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+/**
+ * The {@code <hedging>} settings of a WMS layer, telling when to send a second request to another
+ * backend while the first one is slow. Settings left out take their defaults.
+ */
+public class HedgingConfig {
+
+    public static final int DEFAULT_DELAY_PERCENTILE = 90;
+
+    public static final int DEFAULT_MAX_EXTRA_REQUESTS_PERCENT = 10;
+
+    private Integer delayMillis;
+
+    private Integer delayPercentile;
+
+    private Integer maxExtraRequestsPercent;
+
+    /**
+     * @return how many milliseconds to wait for the response headers of a backend before sending
+     *         the request to another one, {@code null} to wait for the
+     *         {@link #getDelayPercentile() percentile} of its recent latencies
+     */
+    public Integer getDelayMillis() {
+        return delayMillis;
+    }
+
+    public void setDelayMillis(Integer delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @return the percentile of the recent latencies of a backend to wait for when no fixed delay
+     *         is set
+     */
+    public int getDelayPercentile() {
+        return delayPercentile == null ? DEFAULT_DELAY_PERCENTILE : delayPercentile.intValue();
+    }
+
+    public void setDelayPercentile(int delayPercentile) {
+        this.delayPercentile = Integer.valueOf(delayPercentile);
+    }
+
+    /**
+     * @return how many second requests may be sent, as a percentage of the first ones
+     */
+    public int getMaxExtraRequestsPercent() {
+        return maxExtraRequestsPercent == null ? DEFAULT_MAX_EXTRA_REQUESTS_PERCENT
+                : maxExtraRequestsPercent.intValue();
+    }
+
+    public void setMaxExtraRequestsPercent(int maxExtraRequestsPercent) {
+        this.maxExtraRequestsPercent = Integer.valueOf(maxExtraRequestsPercent);
+    }
+}
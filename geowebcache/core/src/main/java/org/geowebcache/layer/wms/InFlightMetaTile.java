@@ -0,0 +1,100 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileCallback;
+
+/**
+ * A metatile being fetched from the backend on behalf of requests parked on it rather than on a
+ * thread. Requests for tiles of the same metatile join it until it is closed, which happens once
+ * the metatile has been cut into tiles; the fetching thread then completes them all.
+ */
+class InFlightMetaTile {
+
+    /**
+     * A request parked on the metatile
+     */
+    static class Waiter {
+        final ConveyorTile tile;
+
+        final TileCallback callback;
+
+        /**
+         * The expired content to fall back on if the backend fails, if the layer allows it
+         */
+        final byte[] staleContent;
+
+        final String staleEncoding;
+
+        /**
+         * Whether the tile got its content out of the metatile
+         */
+        boolean filled;
+
+        Waiter(ConveyorTile tile, TileCallback callback, byte[] staleContent) {
+            this.tile = tile;
+            this.callback = callback;
+            this.staleContent = staleContent;
+            this.staleEncoding = tile.getContentEncoding();
+        }
+    }
+
+    private final String key;
+
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+    private boolean closed;
+
+    InFlightMetaTile(String key) {
+        this.key = key;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return false if the metatile has been closed, the tile is then to be had elsewhere
+     */
+    synchronized boolean join(Waiter waiter) {
+        if (closed) {
+            return false;
+        }
+        waiters.add(waiter);
+        return true;
+    }
+
+    /**
+     * @return the first request, the one the metatile is fetched for
+     */
+    synchronized Waiter getFirst() {
+        return waiters.get(0);
+    }
+
+    /**
+     * Stops requests from joining
+     *
+     * @return the requests that joined
+     */
+    synchronized List<Waiter> close() {
+        closed = true;
+        return new ArrayList<Waiter>(waiters);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer.wms;
+
+import java.util.zip.Deflater;
+
+import org.geowebcache.util.PNGEncoder;
+
+/**
+ * The {@code <png8Encoder>} settings of a WMS layer, telling how its {@code image/png8} tiles are
+ * compressed. Settings left out take their defaults.
+ */
+public class PNG8EncoderConfig {
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = PNGEncoder.DEFAULT_LEVEL;
+
+    public static final String DEFAULT_STRATEGY = "default";
+
+    public static final String DEFAULT_FILTER = "none";
+
+    private Boolean enabled;
+
+    private Integer compressionLevel;
+
+    private String strategy;
+
+    private String filter;
+
+    private transient PNGEncoder encoder;
+
+    /**
+     * @return whether png8 tiles are written by the {@link PNGEncoder} out of a palette shared by
+     *         the whole metatile, rather than by ImageIO out of whatever colours each tile has
+     */
+    public boolean isEnabled() {
+        return enabled == null || enabled.booleanValue();
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the deflate level, from 0 for no compression to 9 for the smallest tiles
+     */
+    public int getCompressionLevel() {
+        return compressionLevel == null ? DEFAULT_COMPRESSION_LEVEL : compressionLevel.intValue();
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = Integer.valueOf(compressionLevel);
+        this.encoder = null;
+    }
+
+    /**
+     * @return the deflate strategy, one of {@code default}, {@code filtered} or
+     *         {@code huffmanOnly}
+     */
+    public String getStrategy() {
+        return strategy == null ? DEFAULT_STRATEGY : strategy;
+    }
+
+    public void setStrategy(String strategy) {
+        this.strategy = strategy;
+        this.encoder = null;
+    }
+
+    /**
+     * @return how rows are filtered before being compressed, {@code none} or {@code adaptive}
+     */
+    public String getFilter() {
+        return filter == null ? DEFAULT_FILTER : filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+        this.encoder = null;
+    }
+
+    /**
+     * @return the encoder for these settings
+     * @throws IllegalArgumentException
+     *             if the strategy or filter are not known
+     */
+    public PNGEncoder getEncoder() {
+        PNGEncoder encoder = this.encoder;
+        if (encoder == null) {
+            encoder = new PNGEncoder(getCompressionLevel(), parseStrategy(getStrategy()),
+                    parseAdaptiveFilter(getFilter()));
+            this.encoder = encoder;
+        }
+        return encoder;
+    }
+
+    private static int parseStrategy(String strategy) {
+        if ("default".equalsIgnoreCase(strategy)) {
+            return Deflater.DEFAULT_STRATEGY;
+        } else if ("filtered".equalsIgnoreCase(strategy)) {
+            return Deflater.FILTERED;
+        } else if ("huffmanOnly".equalsIgnoreCase(strategy)) {
+            return Deflater.HUFFMAN_ONLY;
+        }
+        throw new IllegalArgumentException("Unknown png8Encoder strategy: " + strategy);
+    }
+
+    private static boolean parseAdaptiveFilter(String filter) {
+        if ("none".equalsIgnoreCase(filter)) {
+            return false;
+        } else if ("adaptive".equalsIgnoreCase(filter)) {
+            return true;
+        }
+        throw new IllegalArgumentException("Unknown png8Encoder filter: " + filter);
+    }
+}
@@ -22,6 +22,20 @@ import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -35,6 +49,7 @@ import org.geowebcache.service.ServiceException;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.HttpClientBuilder;
 import org.geowebcache.util.ServletUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * This class is a wrapper for HTTP interaction with WMS backend
@@ -50,6 +65,29 @@ public class WMSHttpHelper extends WMSSourceHelper {
     private final String httpUsername;
     
     private final String httpPassword;
+
+    /**
+     * One per backend URL, for the layers that configure a circuit breaker
+     */
+    private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers = 
+        new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /**
+     * One per backend URL, for the layers that hedge their requests
+     */
+    private final ConcurrentHashMap<String, BackendStats> backendStats = 
+        new ConcurrentHashMap<String, BackendStats>();
+
+    /**
+     * One per layer name, for the layers that hedge their requests
+     */
+    private final ConcurrentHashMap<String, HedgingBudget> hedgingBudgets = 
+        new ConcurrentHashMap<String, HedgingBudget>();
+
+    /**
+     * Runs the requests of the layers that hedge them, shared by all helpers
+     */
+    private static ExecutorService hedgingExecutor;
     
     public WMSHttpHelper() {
         this(null, null, null);
@@ -63,7 +101,9 @@ public class WMSHttpHelper extends WMSSourceHelper {
     }
     
     /**
-     * Loops over the different backends, tries the request
+     * Loops over the different backends, tries the request. Backends whose circuit breaker is
+     * open are skipped without waiting on them. Layers that configure {@link HedgingConfig
+     * hedging} go through {@link #makeHedgedRequest} instead.
      * 
      * @param tileRespRecv
      * @param profile
@@ -74,12 +114,20 @@ public class WMSHttpHelper extends WMSSourceHelper {
     @Override
     protected byte[] makeRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
             String wmsParams, String expectedMimeType) throws GeoWebCacheException {
+        if (layer.getHedging() != null && layer.getWMSurl().length > 1) {
+            return makeHedgedRequest(tileRespRecv, layer, wmsParams, expectedMimeType);
+        }
+
         byte[] data = null;
         URL wmsBackendUrl = null;
+        final CircuitBreakerConfig breakerConfig = layer.getCircuitBreaker();
 
         int backendTries = 0; // keep track of how many backends we have tried
+        int openBreakers = 0;
         while (data == null && backendTries < layer.getWMSurl().length) {
-            String requestUrl = layer.nextWmsURL() + wmsParams;
+            String backendUrl = layer.nextWmsURL();
+            String requestUrl = backendUrl + wmsParams;
+            backendTries++;
             
             try {
                 wmsBackendUrl = new URL(requestUrl);
@@ -87,17 +135,37 @@ public class WMSHttpHelper extends WMSSourceHelper {
                 throw new GeoWebCacheException("Malformed URL: "
                         + requestUrl + " " + maue.getMessage());
             }
-            
-            data = connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams, expectedMimeType,
-                    layer.getBackendTimeout());
 
-            backendTries++;
+            CircuitBreaker breaker = null;
+            if (breakerConfig != null) {
+                breaker = getCircuitBreaker(backendUrl, breakerConfig);
+                if (!breaker.allowRequest()) {
+                    openBreakers++;
+                    continue;
+                }
+            }
+
+            final long start = System.currentTimeMillis();
+            try {
+                data = connectAndCheckHeaders(tileRespRecv, wmsBackendUrl, wmsParams,
+                        expectedMimeType, layer.getBackendTimeout(), null);
+            } finally {
+                if (breaker != null) {
+                    breaker.record(data != null, System.currentTimeMillis() - start);
+                }
+            }
         }
 
         if (data == null) {
-            String msg = "All backends (" + backendTries + ") failed, "
-                    + "last one: " + wmsBackendUrl.toString() + "\n\n"
-                    + tileRespRecv.getErrorMessage();
+            String msg;
+            if (openBreakers == backendTries) {
+                msg = "All backends (" + backendTries + ") of " + layer.getName()
+                        + " are failing, not sending requests to them";
+            } else {
+                msg = "All backends (" + backendTries + ") failed, "
+                        + "last one: " + wmsBackendUrl.toString() + "\n\n"
+                        + tileRespRecv.getErrorMessage();
+            }
 
             tileRespRecv.setError();
             tileRespRecv.setErrorMessage(msg);
@@ -106,6 +174,392 @@ public class WMSHttpHelper extends WMSSourceHelper {
         return data;
     }
 
+    CircuitBreaker getCircuitBreaker(String backendUrl, CircuitBreakerConfig config) {
+        CircuitBreaker breaker = circuitBreakers.get(backendUrl);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(backendUrl, config);
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(backendUrl, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Sends the request to the backend with the best {@link BackendStats#score() score}. If its
+     * response headers are not in after the hedging delay, and the layer's budget allows it, the
+     * request is also sent to the next best backend. The first complete response is used and the
+     * other request aborted. Backends failing are replaced by the next ones in turn, like
+     * {@link #makeRequest} does.
+     */
+    private byte[] makeHedgedRequest(TileResponseReceiver tileRespRecv, WMSLayer layer,
+            String wmsParams, String expectedMimeType) throws GeoWebCacheException {
+        final HedgingConfig hedging = layer.getHedging();
+        final HedgingBudget budget = getHedgingBudget(layer.getName());
+        final List<String> backends = rankBackends(layer);
+        final BlockingQueue<BackendRequest> finished = new LinkedBlockingQueue<BackendRequest>();
+
+        final List<BackendRequest> sent = new ArrayList<BackendRequest>(2);
+        final Iterator<String> candidates = backends.iterator();
+        BackendRequest winner = null;
+        BackendRequest lastFailed = null;
+        int inFlight = 0;
+        try {
+            while (winner == null) {
+                if (inFlight == 0) {
+                    BackendRequest request = sendNext(candidates, layer, wmsParams,
+                            expectedMimeType, tileRespRecv, finished);
+                    if (request == null) {
+                        break;
+                    }
+                    sent.add(request);
+                    inFlight++;
+                    budget.requestSent(hedging.getMaxExtraRequestsPercent());
+
+                    long delay = hedgeDelay(hedging, request.stats);
+                    if (delay >= 0 && candidates.hasNext() && !request.awaitHeaders(delay)
+                            && budget.tryHedge()) {
+                        BackendRequest hedge = sendNext(candidates, layer, wmsParams,
+                                expectedMimeType, tileRespRecv, finished);
+                        if (hedge != null) {
+                            if (log.isDebugEnabled()) {
+                                log.debug("Hedging request to " + request.backendUrl + " with "
+                                        + hedge.backendUrl + " after " + delay + "ms");
+                            }
+                            sent.add(hedge);
+                            inFlight++;
+                        }
+                    }
+                }
+
+                BackendRequest done = finished.take();
+                inFlight--;
+                if (done.data != null) {
+                    winner = done;
+                } else {
+                    lastFailed = done;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted waiting for the backends of "
+                    + layer.getName());
+        } finally {
+            for (BackendRequest request : sent) {
+                if (request != winner) {
+                    request.abort();
+                }
+            }
+        }
+
+        if (winner == null) {
+            if (lastFailed != null && lastFailed.exception != null) {
+                throw lastFailed.exception;
+            }
+            String msg;
+            if (lastFailed == null) {
+                msg = "All backends (" + backends.size() + ") of " + layer.getName()
+                        + " are failing, not sending requests to them";
+            } else {
+                msg = "All backends (" + backends.size() + ") failed, " + "last one: "
+                        + lastFailed.url.toString() + "\n\n" + lastFailed.getErrorMessage();
+            }
+            tileRespRecv.setError();
+            tileRespRecv.setErrorMessage(msg);
+            throw new GeoWebCacheException(msg);
+        }
+
+        tileRespRecv.setStatus(winner.status);
+        if (winner.expiresHeader != tileRespRecv.getExpiresHeader()) {
+            tileRespRecv.setExpiresHeader(winner.expiresHeader);
+        }
+        if (winner.error) {
+            tileRespRecv.setError();
+            tileRespRecv.setErrorMessage(winner.errorMessage);
+        }
+        return winner.data;
+    }
+
+    /**
+     * @return the backends of the layer from the best {@link BackendStats#score() score} to the
+     *         worst, those scoring the same in turn
+     */
+    private List<String> rankBackends(WMSLayer layer) {
+        final String[] urls = layer.getWMSurl();
+        final String first = layer.nextWmsURL();
+        int start = 0;
+        while (start < urls.length - 1 && !urls[start].equals(first)) {
+            start++;
+        }
+
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        final List<String> ranked = new ArrayList<String>(urls.length);
+        for (int i = 0; i < urls.length; i++) {
+            String url = urls[(start + i) % urls.length];
+            ranked.add(url);
+            scores.put(url, Double.valueOf(getBackendStats(url).score()));
+        }
+        // stable, so ties stay in turn
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return scores.get(o1).compareTo(scores.get(o2));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * @return how many milliseconds to wait for the response headers of a backend before hedging,
+     *         or {@code -1} not to hedge
+     */
+    private static long hedgeDelay(HedgingConfig hedging, BackendStats stats) {
+        if (hedging.getDelayMillis() != null) {
+            return hedging.getDelayMillis().longValue();
+        }
+        return stats.latencyPercentile(hedging.getDelayPercentile());
+    }
+
+    /**
+     * Sends the request to the next of the candidate backends whose circuit breaker allows it
+     * 
+     * @return the request sent, or {@code null} if there was no such backend left
+     */
+    private BackendRequest sendNext(Iterator<String> candidates, WMSLayer layer,
+            String wmsParams, String expectedMimeType, TileResponseReceiver tileRespRecv,
+            BlockingQueue<BackendRequest> finished) throws GeoWebCacheException {
+        final CircuitBreakerConfig breakerConfig = layer.getCircuitBreaker();
+        while (candidates.hasNext()) {
+            String backendUrl = candidates.next();
+            String requestUrl = backendUrl + wmsParams;
+            URL url;
+            try {
+                url = new URL(requestUrl);
+            } catch (MalformedURLException maue) {
+                throw new GeoWebCacheException("Malformed URL: " + requestUrl + " "
+                        + maue.getMessage());
+            }
+
+            CircuitBreaker breaker = null;
+            if (breakerConfig != null) {
+                breaker = getCircuitBreaker(backendUrl, breakerConfig);
+                if (!breaker.allowRequest()) {
+                    continue;
+                }
+            }
+
+            BackendRequest request = new BackendRequest(backendUrl, url, wmsParams,
+                    expectedMimeType, layer.getBackendTimeout(), tileRespRecv.getExpiresHeader(),
+                    breaker, getBackendStats(backendUrl), finished);
+            request.stats.requestStarted();
+            getHedgingExecutor().execute(request);
+            return request;
+        }
+        return null;
+    }
+
+    BackendStats getBackendStats(String backendUrl) {
+        BackendStats stats = backendStats.get(backendUrl);
+        if (stats == null) {
+            stats = new BackendStats();
+            BackendStats existing = backendStats.putIfAbsent(backendUrl, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    private HedgingBudget getHedgingBudget(String layerName) {
+        HedgingBudget budget = hedgingBudgets.get(layerName);
+        if (budget == null) {
+            budget = new HedgingBudget();
+            HedgingBudget existing = hedgingBudgets.putIfAbsent(layerName, budget);
+            if (existing != null) {
+                budget = existing;
+            }
+        }
+        return budget;
+    }
+
+    private static synchronized ExecutorService getHedgingExecutor() {
+        if (hedgingExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.WMSHttpHelper-");
+            tf.setDaemon(true);
+            hedgingExecutor = Executors.newCachedThreadPool(tf);
+        }
+        return hedgingExecutor;
+    }
+
+    /**
+     * Lets a layer send as many second requests as a percentage of its requests, plus a few
+     * saved up while it did not need them
+     */
+    private static class HedgingBudget {
+
+        private static final int MAX_CREDITS = 10 * 100;
+
+        private int credits;
+
+        synchronized void requestSent(int percent) {
+            credits = Math.min(MAX_CREDITS, credits + percent);
+        }
+
+        synchronized boolean tryHedge() {
+            if (credits < 100) {
+                return false;
+            }
+            credits -= 100;
+            return true;
+        }
+    }
+
+    /**
+     * One of the requests sent for a hedged request, run on its own thread. It keeps the
+     * response status, expiration and error to itself, the caller copies those of the request
+     * that wins.
+     */
+    private class BackendRequest implements Runnable, TileResponseReceiver {
+
+        final String backendUrl;
+
+        final URL url;
+
+        final BackendStats stats;
+
+        private final String wmsParams;
+
+        private final String expectedMimeType;
+
+        private final Integer backendTimeout;
+
+        private final CircuitBreaker breaker;
+
+        private final BlockingQueue<BackendRequest> finished;
+
+        private final CountDownLatch headers = new CountDownLatch(1);
+
+        private volatile GetMethod method;
+
+        private volatile boolean aborted;
+
+        byte[] data;
+
+        GeoWebCacheException exception;
+
+        int status;
+
+        long expiresHeader;
+
+        boolean error;
+
+        String errorMessage;
+
+        BackendRequest(String backendUrl, URL url, String wmsParams, String expectedMimeType,
+                Integer backendTimeout, long expiresHeader, CircuitBreaker breaker,
+                BackendStats stats, BlockingQueue<BackendRequest> finished) {
+            this.backendUrl = backendUrl;
+            this.url = url;
+            this.wmsParams = wmsParams;
+            this.expectedMimeType = expectedMimeType;
+            this.backendTimeout = backendTimeout;
+            this.expiresHeader = expiresHeader;
+            this.breaker = breaker;
+            this.stats = stats;
+            this.finished = finished;
+        }
+
+        public void run() {
+            final long start = System.currentTimeMillis();
+            try {
+                data = connectAndCheckHeaders(this, url, wmsParams, expectedMimeType,
+                        backendTimeout, this);
+            } catch (GeoWebCacheException e) {
+                exception = e;
+            } catch (RuntimeException e) {
+                exception = new GeoWebCacheException(e);
+            } finally {
+                final long latency = System.currentTimeMillis() - start;
+                if (aborted && data == null) {
+                    // lost to a faster backend, neither a failure nor a success, and cut short
+                    stats.requestAbandoned();
+                    if (breaker != null) {
+                        breaker.cancel();
+                    }
+                } else {
+                    stats.requestFinished(latency);
+                    if (breaker != null) {
+                        breaker.record(data != null, latency);
+                    }
+                }
+                headers.countDown();
+                finished.add(this);
+            }
+        }
+
+        /**
+         * @return whether the response headers are in, or the request is over, before the delay
+         */
+        boolean awaitHeaders(long delayMillis) throws InterruptedException {
+            return headers.await(delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void headersReceived() {
+            headers.countDown();
+        }
+
+        void setMethod(GetMethod method) {
+            this.method = method;
+            if (aborted) {
+                method.abort();
+            }
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+
+        void abort() {
+            aborted = true;
+            GetMethod m = method;
+            if (m != null) {
+                m.abort();
+            }
+        }
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+            this.expiresHeader = seconds;
+        }
+
+        public long getExpiresHeader() {
+            return expiresHeader;
+        }
+
+        public void setError() {
+            this.error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+
     /**
      * Executes the actual HTTP request, checks the response headers (status and
      * MIME) and
@@ -113,11 +567,13 @@ public class WMSHttpHelper extends WMSSourceHelper {
      * @param tileRespRecv
      * @param wmsBackendUrl
      * @param wmsparams
+     * @param hedged
+     *            the hedged request this is for, if any
      * @return
      * @throws GeoWebCacheException
      */
     private byte[] connectAndCheckHeaders(TileResponseReceiver tileRespRecv, URL wmsBackendUrl,
-            String wmsParams, String requestMime, Integer backendTimeout)
+            String wmsParams, String requestMime, Integer backendTimeout, BackendRequest hedged)
             throws GeoWebCacheException {
 
         byte[] ret = null;
@@ -127,9 +583,12 @@ public class WMSHttpHelper extends WMSSourceHelper {
 
         try { // finally
             try {
-                getMethod = executeRequest(wmsBackendUrl, backendTimeout);
+                getMethod = executeRequest(wmsBackendUrl, backendTimeout, hedged);
                 responseCode = getMethod.getStatusCode();
                 responseLength = (int) getMethod.getResponseContentLength();
+                if (hedged != null) {
+                    hedged.headersReceived();
+                }
 
                 // Do not set error at this stage
             } catch (ConnectException ce) {
@@ -137,8 +596,10 @@ public class WMSHttpHelper extends WMSSourceHelper {
                         + wmsBackendUrl.toString() + " " + ce.getMessage());
                 return null;
             } catch (IOException ioe) {
-                log.error("Error forwarding request "
-                        + wmsBackendUrl.toString() + " " + ioe.getMessage());
+                if (hedged == null || !hedged.isAborted()) {
+                    log.error("Error forwarding request "
+                            + wmsBackendUrl.toString() + " " + ioe.getMessage());
+                }
                 return null;
             }
 
@@ -216,8 +677,10 @@ public class WMSHttpHelper extends WMSSourceHelper {
                     }
                 } catch (IOException ioe) {
                     tileRespRecv.setError();
-                    log.error("Caught IO exception, " 
-                            + wmsBackendUrl.toString() + " " + ioe.getMessage());
+                    if (hedged == null || !hedged.isAborted()) {
+                        log.error("Caught IO exception, " 
+                                + wmsBackendUrl.toString() + " " + ioe.getMessage());
+                    }
                 }
             } else {
                 ret = new byte[0];
@@ -244,12 +707,23 @@ public class WMSHttpHelper extends WMSSourceHelper {
      */
     public GetMethod executeRequest(URL url, Integer backendTimeout) throws HttpException,
             IOException {
+        return executeRequest(url, backendTimeout, null);
+    }
+
+    private GetMethod executeRequest(URL url, Integer backendTimeout, BackendRequest hedged)
+            throws HttpException, IOException {
+        if (hedged != null && hedged.isAborted()) {
+            throw new IOException("Request to " + url + " aborted");
+        }
         HttpClientBuilder builder = new HttpClientBuilder(url, backendTimeout, httpUsername,
                 httpPassword, proxyUrl);
         HttpClient httpClient = builder.buildClient();
 
         GetMethod getMethod = new GetMethod(url.toString());
         getMethod.setDoAuthentication(builder.isDoAuthentication());
+        if (hedged != null) {
+            hedged.setMethod(getMethod);
+        }
 
         httpClient.executeMethod(getMethod);
         return getMethod;
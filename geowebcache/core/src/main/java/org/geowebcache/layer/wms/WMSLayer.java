@@ -26,7 +26,14 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -37,6 +44,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.filter.parameters.ParameterFilter;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.grid.BoundingBox;
@@ -50,7 +58,10 @@ import org.geowebcache.grid.XMLGridSubset;
 import org.geowebcache.grid.XMLOldGrid;
 import org.geowebcache.layer.ExpirationRule;
 import org.geowebcache.layer.GridLocObj;
+import org.geowebcache.layer.TileCallback;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.locks.MemoryLockProvider;
+import org.geowebcache.locks.MetatileLockProvider;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeException;
@@ -58,8 +69,10 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.UniformTile;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.ServletUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * A tile layer backed by a WMS server
@@ -123,6 +136,18 @@ public class WMSLayer extends TileLayer {
     
     protected List<ParameterFilter> parameterFilters;
     
+    protected Integer staleWhileRevalidate;
+    
+    protected Integer staleIfError;
+    
+    protected CircuitBreakerConfig circuitBreaker;
+    
+    protected HedgingConfig hedging;
+    
+    protected Boolean uniformTiles;
+    
+    protected PNG8EncoderConfig png8Encoder;
+    
     //private transient int expireCacheInt = -1;
 
     //private transient int expireClientsInt = -1;
@@ -157,8 +182,71 @@ public class WMSLayer extends TileLayer {
 
     private transient WMSSourceHelper sourceHelper = null;
     
+    /**
+     * Metatiles being refreshed in the background, see {@link #scheduleRefresh(ConveyorTile)}
+     */
+    private transient ConcurrentHashMap<String, Boolean> pendingRefreshes;
+    
+    /**
+     * Metatiles being fetched for requests parked on them, see
+     * {@link #fetchTile(ConveyorTile, TileCallback)}
+     */
+    private transient ConcurrentHashMap<String, InFlightMetaTile> inFlightMetaTiles;
+    
+    /**
+     * Keeps the GeoWebCaches sharing the cache from rendering the same metatile, see
+     * {@link #lockMetaTile(ConveyorTile, boolean)}
+     */
+    private transient MetatileLockProvider metatileLockProvider;
+    
     private static transient Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSLayer.class);
     
+    /**
+     * Threads refreshing stale tiles in the background, shared by all layers
+     */
+    private static final int REFRESH_THREADS = 4;
+    
+    /**
+     * How many refreshes may wait for a thread, further stale tiles are served without one
+     */
+    private static final int REFRESH_QUEUE_SIZE = 1000;
+    
+    /**
+     * Threads fetching metatiles for parked requests, shared by all layers, by default as many as
+     * a servlet container usually has request threads, each of which could fetch a metatile
+     * before requests were parked. How many requests may be parked is up to the caller, see
+     * {@link #fetchTile(ConveyorTile, TileCallback)}
+     */
+    public static final int DEFAULT_MISS_THREADS = 200;
+    
+    /**
+     * The first and longest delays, in milliseconds, between looks at a metatile locked by
+     * another GeoWebCache
+     */
+    private static final long LOCK_POLL_MIN_DELAY = 20;
+    
+    private static final long LOCK_POLL_MAX_DELAY = 2000;
+    
+    private static final Random LOCK_POLL_JITTER = new Random();
+    
+    /**
+     * Stands in for the lock on a metatile that could not be locked
+     */
+    private static final MetatileLockProvider.Lock NO_LOCK = new MetatileLockProvider.Lock() {
+        public void release() {
+        }
+    };
+    
+    static final String WARNING_STALE = "110 - \"Response is Stale\"";
+    
+    static final String WARNING_REVALIDATION_FAILED = "111 - \"Revalidation Failed\"";
+    
+    private static ThreadPoolExecutor refreshExecutor;
+    
+    private static ThreadPoolExecutor missExecutor;
+    
+    private static int missThreads = DEFAULT_MISS_THREADS;
+    
     
     
     /** 
@@ -244,6 +332,11 @@ public class WMSLayer extends TileLayer {
         layerLock = new ReentrantLock();
         layerLockedCond = layerLock.newCondition();
         procQueue = new HashMap<GridLocObj, Boolean>();
+        pendingRefreshes = new ConcurrentHashMap<String, Boolean>();
+        inFlightMetaTiles = new ConcurrentHashMap<String, InFlightMetaTile>();
+        if (metatileLockProvider == null) {
+            metatileLockProvider = new MemoryLockProvider();
+        }
 
         try {
             initParameters();
@@ -399,17 +492,32 @@ public class WMSLayer extends TileLayer {
      * cache 5) Unlock metatile, signal other threads 6) Set Cache-Control,
      * return tile
      * 
+     * A cached tile expired for less than {@link #getStaleWhileRevalidate()} seconds is returned
+     * right away while its metatile is refreshed in the background. One expired for less than
+     * {@link #getStaleIfError()} seconds is returned if the backend fails. Either way the
+     * response gets a {@code Warning} header.
+     * 
      * @param wmsparams
      * @return
      * @throws OutsideCoverageException 
      */
     public ConveyorTile getTile(ConveyorTile tile) 
     throws GeoWebCacheException, IOException, OutsideCoverageException {
-        MimeType mime = tile.getMimeType();
-
-        if (mime == null) {
-            mime = this.formats.get(0);
+        ConveyorTile returnTile = getCachedTile(tile);
+        if (returnTile == null) {
+            returnTile = getMissingTile(tile, null);
+            sendTileRequestedEvent(returnTile);
         }
+        return returnTile;
+    }
+
+    /**
+     * The part of {@link #getTile(ConveyorTile)} that does not wait on the backend: returns the
+     * tile if it is cached, or stale within {@link #getStaleWhileRevalidate()}, null otherwise.
+     */
+    public ConveyorTile getCachedTile(ConveyorTile tile) 
+    throws GeoWebCacheException, IOException, OutsideCoverageException {
+        MimeType mime = getMimeType(tile);
         
         if(! formats.contains(mime)) {
             throw new GeoWebCacheException(mime.getFormat() + " is not a supported format for " + name);
@@ -426,16 +534,191 @@ public class WMSLayer extends TileLayer {
 
         if (tryCacheFetch(tile)) {
             returnTile = finalizeTile(tile);
-        }else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-            returnTile = getMetatilingReponse(tile, true);
+        } else if (isStale(tile, staleWhileRevalidate)) {
+            scheduleRefresh(tile);
+            returnTile = finalizeStaleTile(tile, WARNING_STALE);
         } else {
-            returnTile = getNonMetatilingReponse(tile, true);
+            return null;
         }
         
         sendTileRequestedEvent(returnTile);
         
         return returnTile;
     }
+
+    /**
+     * Fetches a tile {@link #getCachedTile(ConveyorTile)} did not have on one of the threads
+     * shared by all layers. Requests for tiles of a metatile being fetched that way park on it
+     * instead of on a thread of their own, and are all completed once it is cut into tiles.
+     */
+    public void fetchTile(ConveyorTile tile, TileCallback callback) {
+        final InFlightMetaTile.Waiter waiter = new InFlightMetaTile.Waiter(tile, callback,
+                isStale(tile, staleIfError) ? tile.getEncodedContent() : null);
+        final String key = getMetaTileKey(tile);
+        while (true) {
+            InFlightMetaTile inFlight = inFlightMetaTiles.get(key);
+            if (inFlight != null) {
+                if (inFlight.join(waiter)) {
+                    return;
+                }
+                // Closed, its tiles are being saved. Fetching again finds them in the cache
+                inFlightMetaTiles.remove(key, inFlight);
+                continue;
+            }
+
+            inFlight = new InFlightMetaTile(key);
+            inFlight.join(waiter);
+            if (inFlightMetaTiles.putIfAbsent(key, inFlight) != null) {
+                continue;
+            }
+
+            final InFlightMetaTile fetch = inFlight;
+            try {
+                getMissExecutor().execute(new Runnable() {
+                    public void run() {
+                        completeMetaTile(fetch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlightMetaTiles.remove(key, fetch);
+                for (InFlightMetaTile.Waiter w : fetch.close()) {
+                    w.callback.tileFailed(w.tile, new GeoWebCacheException(e));
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Fetches the metatile for the first request parked on it, then completes them all: with
+     * their tile cut from the metatile, or if that could not be done for one, going through
+     * {@link #getMissingTile(ConveyorTile, InFlightMetaTile)} for it, which will usually find it
+     * in the cache. If the backend failed, the requests get their stale tile or the error right
+     * away, the first one included, rather than each trying the backend again.
+     */
+    private void completeMetaTile(InFlightMetaTile inFlight) {
+        InFlightMetaTile.Waiter first = inFlight.getFirst();
+        GeoWebCacheException failure = null;
+        try {
+            getBackendTile(first.tile, inFlight);
+            first.filled = true;
+        } catch (GeoWebCacheException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new GeoWebCacheException(e);
+        } finally {
+            inFlightMetaTiles.remove(inFlight.getKey(), inFlight);
+        }
+
+        for (InFlightMetaTile.Waiter waiter : inFlight.close()) {
+            ConveyorTile returnTile;
+            try {
+                if (waiter.filled) {
+                    returnTile = waiter.tile;
+                } else if (failure == null) {
+                    returnTile = getMissingTile(waiter.tile, null);
+                } else if (waiter.staleContent != null) {
+                    returnTile = serveStaleTile(waiter.tile, waiter.staleContent,
+                            waiter.staleEncoding, failure);
+                } else {
+                    throw failure;
+                }
+            } catch (Exception e) {
+                waiter.callback.tileFailed(waiter.tile, e);
+                continue;
+            }
+            sendTileRequestedEvent(returnTile);
+            waiter.callback.tileReady(returnTile);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getMissExecutor() {
+        if (missExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.WMSLayerMiss-");
+            tf.setDaemon(true);
+            missExecutor = new ThreadPoolExecutor(missThreads, missThreads, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), tf);
+        }
+        return missExecutor;
+    }
+
+    /**
+     * Sets how many threads, shared by all layers, fetch the metatiles requests are parked on.
+     * Fewer threads than a metatile takes to render, times the rate of misses, and the parked
+     * requests queue up behind each other.
+     * 
+     * @param threads
+     *            {@link #DEFAULT_MISS_THREADS} by default
+     */
+    public static synchronized void setMissThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There has to be a thread for misses, not "
+                    + threads);
+        }
+        missThreads = threads;
+        if (missExecutor != null) {
+            // The core size may never exceed the maximum
+            if (threads > missExecutor.getMaximumPoolSize()) {
+                missExecutor.setMaximumPoolSize(threads);
+                missExecutor.setCorePoolSize(threads);
+            } else {
+                missExecutor.setCorePoolSize(threads);
+                missExecutor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    /**
+     * Goes to the backend for a tile that is not in the cache, or serves it stale if that fails
+     * and the layer allows it
+     * 
+     * @param inFlight
+     *            the requests parked on the metatile, they get their tiles too, may be null
+     */
+    private ConveyorTile getMissingTile(ConveyorTile tile, InFlightMetaTile inFlight)
+            throws GeoWebCacheException {
+        final byte[] staleContent = isStale(tile, staleIfError) ? tile.getEncodedContent() : null;
+        final String staleEncoding = tile.getContentEncoding();
+        try {
+            return getBackendTile(tile, inFlight);
+        } catch (GeoWebCacheException e) {
+            if (staleContent == null) {
+                throw e;
+            }
+            return serveStaleTile(tile, staleContent, staleEncoding, e);
+        }
+    }
+
+    /**
+     * Goes to the backend for a tile that is not in the cache
+     * 
+     * @param inFlight
+     *            the requests parked on the metatile, they get their tiles too, may be null
+     */
+    private ConveyorTile getBackendTile(ConveyorTile tile, InFlightMetaTile inFlight)
+            throws GeoWebCacheException {
+        if (getMimeType(tile).supportsTiling()) { // Okay, so we need to go to the backend
+            return getMetatilingReponse(tile, true, inFlight);
+        } else {
+            return getNonMetatilingReponse(tile, true);
+        }
+    }
+
+    private ConveyorTile serveStaleTile(ConveyorTile tile, byte[] staleContent,
+            String staleEncoding, GeoWebCacheException e) {
+        log.warn("Serving stale tile " + Arrays.toString(tile.getTileIndex()) + " of " + name
+                + ": " + e.getMessage());
+        tile.setContent(staleContent, staleEncoding);
+        return finalizeStaleTile(tile, WARNING_REVALIDATION_FAILED);
+    }
+
+    private MimeType getMimeType(ConveyorTile tile) {
+        MimeType mime = tile.getMimeType();
+        if (mime == null) {
+            mime = this.formats.get(0);
+        }
+        return mime;
+    }
     
     
     /**
@@ -444,7 +727,7 @@ public class WMSLayer extends TileLayer {
     public void seedTile(ConveyorTile tile, boolean tryCache) throws GeoWebCacheException,
             IOException {
         if (tile.getMimeType().supportsTiling() && (metaWidthHeight[0] > 1 || metaWidthHeight[1] > 1)) {
-            getMetatilingReponse(tile, tryCache);
+            getMetatilingReponse(tile, tryCache, null);
         } else {
             getNonMetatilingReponse(tile, tryCache);
         }
@@ -455,9 +738,11 @@ public class WMSLayer extends TileLayer {
      * 
      * @param tile the Tile with all the information
      * @param tryCache whether to try the cache, or seed
+     * @param inFlight requests parked on the metatile, they get their tiles too, may be null
      * @throws GeoWebCacheException
      */
-    private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache) 
+    private ConveyorTile getMetatilingReponse(ConveyorTile tile, boolean tryCache,
+            InFlightMetaTile inFlight) 
     throws GeoWebCacheException {
         //int idx = this.getSRSIndex(tile.getSRS());
         long[] gridLoc = tile.getTileIndex();
@@ -481,6 +766,7 @@ public class WMSLayer extends TileLayer {
 
         /** ****************** Acquire lock ******************* */
         waitForQueue(metaGlo);
+        MetatileLockProvider.Lock metaTileLock = null;
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
@@ -489,6 +775,12 @@ public class WMSLayer extends TileLayer {
                 return finalizeTile(tile);
             }
 
+            metaTileLock = lockMetaTile(tile, tryCache);
+            if (metaTileLock == null) {
+                // Another GeoWebCache got it
+                return finalizeTile(tile);
+            }
+
             /** ****************** No luck, Request metatile ****** */
             // Leave a hint to save expiration, if necessary
             if (saveExpirationHeaders) {
@@ -515,11 +807,27 @@ public class WMSLayer extends TileLayer {
             }
 
             metaTile.createTiles(gridSubset.getTileHeight(), gridSubset.getTileWidth(), useJAI);
+            try {
+                metaTile.encodeTiles();
+            } catch (IOException ioe) {
+                throw new GeoWebCacheException(ioe);
+            }
 
             long[][] gridPositions = metaTile.getTilesGridPositions();
 
             tile.setContent(getTile(gridLoc, gridPositions, metaTile));
 
+            if (inFlight != null) {
+                for (InFlightMetaTile.Waiter waiter : inFlight.close()) {
+                    if (waiter.tile != tile) {
+                        waiter.tile.setContent(getTile(waiter.tile.getTileIndex(),
+                                gridPositions, metaTile));
+                        finalizeTile(waiter.tile);
+                        waiter.filled = true;
+                    }
+                }
+            }
+
             // TODO separate thread
             if (this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE) {
                 saveTiles(gridPositions, metaTile, tile);
@@ -527,6 +835,7 @@ public class WMSLayer extends TileLayer {
 
             /** ****************** Return lock and response ****** */
         } finally {
+            releaseMetaTile(metaTileLock);
             removeFromQueue(metaGlo);
         }
         return finalizeTile(tile);
@@ -547,6 +856,7 @@ public class WMSLayer extends TileLayer {
 
         /** ****************** Acquire lock ******************* */
         waitForQueue(glo);
+        MetatileLockProvider.Lock tileLock = null;
         try {
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
@@ -557,6 +867,12 @@ public class WMSLayer extends TileLayer {
                 // response);
             }
 
+            tileLock = lockMetaTile(tile, tryCache);
+            if (tileLock == null) {
+                // Another GeoWebCache got it
+                return tile;
+            }
+
             /** ****************** Tile ******************* */
             // String requestURL = null;
             // Leave a hint to save expiration, if necessary
@@ -577,11 +893,161 @@ public class WMSLayer extends TileLayer {
 
             /** ****************** Return lock and response ****** */
         } finally {
+            releaseMetaTile(tileLock);
             removeFromQueue(glo);
         }
         return finalizeTile(tile);
     }
 
+    /**
+     * @param window
+     *            how many seconds the tile may be expired for
+     * @return whether {@link #tryCacheFetch(ConveyorTile)} found the tile but it has expired for
+     *         less than {@code window} seconds
+     */
+    private boolean isStale(ConveyorTile tile, Integer window) {
+        if (window == null || window.intValue() <= 0 || tile.getEncodedContent() == null) {
+            return false;
+        }
+        final int expireCache = getExpireCache((int) tile.getTileIndex()[2]);
+        final long created = tile.getTSCreated();
+        if (expireCache <= 0 || created <= 0) {
+            return false;
+        }
+        final long expiredFor = System.currentTimeMillis() - created - expireCache * 1000L;
+        return expiredFor > 0 && expiredFor <= window.intValue() * 1000L;
+    }
+
+    /**
+     * Refreshes the metatile of a stale tile in the background, unless it's being refreshed
+     * already or there are too many refreshes waiting
+     */
+    private void scheduleRefresh(final ConveyorTile tile) {
+        final long[] gridLoc = tile.getTileIndex();
+        final MimeType mime = tile.getMimeType();
+        final String key = getMetaTileKey(tile);
+        if (pendingRefreshes.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+
+        final ConveyorTile refresh = new ConveyorTile(tile.getStorageBroker(), name,
+                tile.getGridSetId(), gridLoc, mime, tile.getFullParameters(),
+                tile.getParameters(), null, null);
+        refresh.setTileLayer(this);
+        try {
+            getRefreshExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (mime.supportsTiling()) {
+                            getMetatilingReponse(refresh, true, null);
+                        } else {
+                            getNonMetatilingReponse(refresh, true);
+                        }
+                    } catch (Exception e) {
+                        log.warn("Could not refresh stale tile " + Arrays.toString(gridLoc)
+                                + " of " + name + ": " + e.getMessage());
+                    } finally {
+                        pendingRefreshes.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingRefreshes.remove(key);
+            log.debug("Too many stale tiles being refreshed, not refreshing " + key);
+        }
+    }
+
+    /**
+     * @return identifies the metatile of the tile, the tile itself if the format is not
+     *         metatiled
+     */
+    private String getMetaTileKey(ConveyorTile tile) {
+        final long[] gridLoc = tile.getTileIndex();
+        final MimeType mime = getMimeType(tile);
+        long metaX = gridLoc[0];
+        long metaY = gridLoc[1];
+        if (mime.supportsTiling()) {
+            metaX -= metaX % metaWidthHeight[0];
+            metaY -= metaY % metaWidthHeight[1];
+        }
+        return tile.getGridSetId() + '/' + mime.getFormat() + '/' + tile.getParameters() + '/'
+                + metaX + ',' + metaY + ',' + gridLoc[2];
+    }
+
+    /**
+     * @return the key the metatile of the tile is locked under, the same for every GeoWebCache
+     *         sharing the cache
+     */
+    public String getMetaTileLockKey(ConveyorTile tile) {
+        return name + '/' + getMetaTileKey(tile);
+    }
+
+    /**
+     * Takes the lock on the metatile of the tile, polling with a growing, jittered delay while
+     * another GeoWebCache sharing the cache holds it. If locking fails the metatile is rendered
+     * regardless, as it was before there were locks.
+     * 
+     * @param tryCache
+     *            whether to stop waiting when the tile shows up in the cache
+     * @return the lock, or null if the tile showed up in the cache
+     */
+    private MetatileLockProvider.Lock lockMetaTile(ConveyorTile tile, boolean tryCache)
+            throws GeoWebCacheException {
+        final String key = getMetaTileLockKey(tile);
+        long delay = LOCK_POLL_MIN_DELAY;
+        while (true) {
+            MetatileLockProvider.Lock lock;
+            try {
+                lock = metatileLockProvider.tryLock(key);
+            } catch (GeoWebCacheException e) {
+                log.warn("Could not lock " + key + ", rendering it unlocked: " + e.getMessage());
+                return NO_LOCK;
+            }
+            if (lock != null) {
+                // The holder may have stored the tile since the last look
+                if (delay > LOCK_POLL_MIN_DELAY && tryCache && tryCacheFetch(tile)) {
+                    releaseMetaTile(lock);
+                    return null;
+                }
+                return lock;
+            }
+
+            try {
+                Thread.sleep(delay / 2 + (long) (LOCK_POLL_JITTER.nextDouble() * delay / 2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted waiting for the lock on " + key);
+            }
+            delay = Math.min(delay * 2, LOCK_POLL_MAX_DELAY);
+
+            if (tryCache && tryCacheFetch(tile)) {
+                return null;
+            }
+        }
+    }
+
+    private void releaseMetaTile(MetatileLockProvider.Lock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (GeoWebCacheException e) {
+                log.warn("Could not release a metatile lock of " + name
+                        + ", it will expire: " + e.getMessage());
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.WMSLayerRefresh-");
+            tf.setDaemon(true);
+            refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0L,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+                    tf);
+        }
+        return refreshExecutor;
+    }
+
     public boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
@@ -649,22 +1115,30 @@ public class WMSLayer extends TileLayer {
                 continue;
             }
             
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] blob;
+            final UniformTile uniform = metaTile.getUniformTile(i);
+            if (uniform != null) {
+                // a few bytes instead of an image, the storage broker hands out the image
+                blob = uniform.toMarker();
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-            try {
-                boolean completed = metaTile.writeTileToStream(i, out);
-                if (!completed) {
-                    log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                try {
+                    boolean completed = metaTile.writeTileToStream(i, out);
+                    if (!completed) {
+                        log.error("metaTile.writeTileToStream returned false, no tiles saved");
+                    }
+                } catch (IOException ioe) {
+                    log.error("Unable to write image tile to "
+                            + "ByteArrayOutputStream: " + ioe.getMessage());
+                    ioe.printStackTrace();
                 }
-            } catch (IOException ioe) {
-                log.error("Unable to write image tile to "
-                        + "ByteArrayOutputStream: " + ioe.getMessage());
-                ioe.printStackTrace();
+                blob = out.toByteArray();
             }
 
             long[] idx = {gridPos[0],gridPos[1],gridPos[2]};
             TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx, tileProto.getGridSetId(), 
-                    tileProto.getMimeType().getFormat(), tileProto.getParameters(), out.toByteArray());
+                    tileProto.getMimeType().getFormat(), tileProto.getParameters(), blob);
             
             try {
                 tileProto.getStorageBroker().put(tile);
@@ -729,6 +1203,16 @@ public class WMSLayer extends TileLayer {
         return tile;
     }
 
+    private ConveyorTile finalizeStaleTile(ConveyorTile tile, String warning) {
+        tile.setStatus(200);
+        tile.setCacheResult(CacheResult.HIT);
+        finalizeTile(tile);
+        if (tile.servletResp != null) {
+            tile.servletResp.setHeader("Warning", warning);
+        }
+        return tile;
+    }
+
     private ConveyorTile finalizeTile(ConveyorTile tile) {
         if (tile.getStatus() == 0 && !tile.getError()) {
             tile.setStatus(200);
@@ -1133,6 +1617,85 @@ public class WMSLayer extends TileLayer {
         }
     }
     
+    /**
+     * @return how many seconds past its expiration a cached tile is still served while it is
+     *         refreshed in the background, {@code null} if expired tiles are not served
+     */
+    public Integer getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public void setStaleWhileRevalidate(Integer seconds) {
+        this.staleWhileRevalidate = seconds;
+    }
+
+    /**
+     * @return how many seconds past its expiration a cached tile is still served when the
+     *         backend fails, {@code null} if expired tiles are not served
+     */
+    public Integer getStaleIfError() {
+        return staleIfError;
+    }
+
+    public void setStaleIfError(Integer seconds) {
+        this.staleIfError = seconds;
+    }
+
+    /**
+     * @return when to stop sending requests to failing backends, {@code null} to always send them
+     */
+    public CircuitBreakerConfig getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfig circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return when to send requests to a second backend, {@code null} to send each request to a
+     *         single one at a time
+     */
+    public HedgingConfig getHedging() {
+        return hedging;
+    }
+
+    public void setHedging(HedgingConfig hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * @return whether tiles of a single colour are stored as a marker rather than encoded, true
+     *         unless configured otherwise
+     */
+    public boolean isUniformTiles() {
+        return uniformTiles == null || uniformTiles.booleanValue();
+    }
+
+    public void setUniformTiles(Boolean uniformTiles) {
+        this.uniformTiles = uniformTiles;
+    }
+
+    /**
+     * @return how png8 tiles are compressed, {@code null} for the defaults
+     */
+    public PNG8EncoderConfig getPng8Encoder() {
+        return png8Encoder;
+    }
+
+    public void setPng8Encoder(PNG8EncoderConfig png8Encoder) {
+        this.png8Encoder = png8Encoder;
+    }
+
+    /**
+     * Sets how many seconds cached tiles are good for, at all zoom levels. Only taken into account
+     * by {@link #initialize(GridSetBroker)}.
+     */
+    public void setExpireCache(String expireCache) {
+        this.expireCache = expireCache;
+        this.expireCacheList = null;
+    }
+
     public Integer getBackendTimeout() {
         return backendTimeout;
     }
@@ -1197,6 +1760,14 @@ public class WMSLayer extends TileLayer {
         return sourceHelper;
     }
     
+    public void setMetatileLockProvider(MetatileLockProvider metatileLockProvider) {
+        this.metatileLockProvider = metatileLockProvider;
+    }
+    
+    public MetatileLockProvider getMetatileLockProvider() {
+        return metatileLockProvider;
+    }
+    
     public void setVersion(String version) {
         this.wmsVersion = version;
     }
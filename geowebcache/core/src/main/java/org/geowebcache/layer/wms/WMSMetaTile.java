@@ -19,18 +19,35 @@ package org.geowebcache.layer.wms;
 
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.RasterFormatException;
 import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.media.jai.JAI;
@@ -43,15 +60,51 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.MetaTile;
 import org.geowebcache.mime.FormatModifier;
+import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.UniformTile;
+import org.geowebcache.util.OctreeQuantizer;
+import org.geowebcache.util.PNGEncoder;
+import org.geowebcache.util.RasterPool;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 public class WMSMetaTile extends MetaTile {
     private static Log log = LogFactory.getLog(org.geowebcache.layer.wms.WMSMetaTile.class);
 
+    private static final PNGEncoder DEFAULT_PNG8_ENCODER = new PNG8EncoderConfig().getEncoder();
+
+    private static final ColorModel BGR = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR)
+            .getColorModel();
+
+    /**
+     * Rasters JPEG metatiles are decoded into, a few per size as an 8x8 metatile takes 12MB
+     */
+    private static final RasterPool JPEG_RASTERS = new RasterPool(4, 2);
+
+    /**
+     * An image writer per format for each thread, they are not thread safe but can be reused
+     */
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = new ThreadLocal<Map<String, ImageWriter>>() {
+        @Override
+        protected Map<String, ImageWriter> initialValue() {
+            return new HashMap<String, ImageWriter>();
+        }
+    };
+
+    private static ExecutorService encoderExecutor;
+
     private BufferedImage img = null; // buffer for storing the metatile, if it is an image
 
     private RenderedImage[] tiles = null; // array with tiles (after cropping)
 
+    private UniformTile[] uniformTiles = null; // the tiles of a single colour, not cropped
+
+    private PNGEncoder png8Encoder = null; // writes png8 tiles, if the layer does not opt out
+
+    private WritableRaster pooledRaster = null; // the raster img was decoded into, if pooled
+
+    private byte[][] encodedTiles = null; // the tiles once encoded by encodeTiles()
+
     private final RenderingHints no_cache = new RenderingHints(JAI.KEY_TILE_CACHE, null);
 
     protected WMSLayer wmsLayer = null;
@@ -173,7 +226,11 @@ public class WMSMetaTile extends MetaTile {
 
         InputStream is = new ByteArrayInputStream(image);
         try {
-            this.img = ImageIO.read(is);
+            if (getRequestFormat() == ImageMime.jpeg) {
+                this.img = readJPEG(image);
+            } else {
+                this.img = ImageIO.read(is);
+            }
         } catch (IOException ioe) {
             throw new GeoWebCacheException("WMSMetaTile.setImageBytes() "
                     + "failed on ImageIO.read(byte[" + image.length + "])");
@@ -183,6 +240,44 @@ public class WMSMetaTile extends MetaTile {
         }
     }
 
+    /**
+     * Decodes a JPEG metatile into a pooled raster, as {@link ImageIO#read(InputStream)} would
+     * allocate one for each of them
+     * 
+     * @return the image, {@code null} if it cannot be read
+     */
+    private BufferedImage readJPEG(byte[] image) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(image));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        WritableRaster raster = null;
+        try {
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            // the first type is the one ImageIO would have decoded into
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (types.hasNext()
+                    && types.next().getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                raster = JPEG_RASTERS.acquire(BGR, reader.getWidth(0), reader.getHeight(0));
+                param.setDestination(new BufferedImage(BGR, raster, false, null));
+            }
+            BufferedImage read = reader.read(0, param);
+            pooledRaster = raster;
+            raster = null;
+            return read;
+        } finally {
+            if (raster != null) {
+                JPEG_RASTERS.release(BGR, raster);
+            }
+            reader.dispose();
+            iis.close();
+        }
+    }
+
     /**
      * Cuts the metaTile into the specified number of tiles, the actual number
      * of tiles is determined by metaX and metaY, not the width and height
@@ -196,22 +291,85 @@ public class WMSMetaTile extends MetaTile {
     protected void createTiles(int tileHeight, int tileWidth, boolean useJAI) {
         int tileCount = metaX * metaY;
         tiles = new RenderedImage[tileCount];
+        uniformTiles = new UniformTile[tileCount];
+        final boolean scan = wmsLayer == null || wmsLayer.isUniformTiles();
+
+        png8Encoder = getPNG8Encoder();
+        if (png8Encoder != null) {
+            // one palette for the whole metatile, the tiles are cropped out of it as they are
+            if (!PNGEncoder.canEncode(img)) {
+                img = OctreeQuantizer.quantize(img);
+            }
+            useJAI = false;
+        }
 
         if (tileCount > 1) {
             for (int y = 0; y < metaY; y++) {
                 for (int x = 0; x < metaX; x++) {
                     int i = x * tileWidth + gutter[0];
                     int j = (metaY - 1 - y) * tileHeight + gutter[3];
+                    int tile = y * metaX + x;
 
-                    tiles[y * metaX + x] = createTile(i, j, tileWidth,
-                            tileHeight, useJAI);
+                    if (scan) {
+                        uniformTiles[tile] = scanTile(i, j, tileWidth, tileHeight);
+                    }
+                    if (uniformTiles[tile] == null) {
+                        tiles[tile] = createTile(i, j, tileWidth, tileHeight, useJAI);
+                    }
                 }
             }
         } else {
+            if (scan) {
+                uniformTiles[0] = scanTile(0, 0, img.getWidth(), img.getHeight());
+            }
             tiles[0] = img;
         }
     }
 
+    /**
+     * @return the encoder for png8 tiles, {@code null} if the tiles are not png8 or the layer
+     *         writes them with ImageIO
+     */
+    private PNGEncoder getPNG8Encoder() {
+        // not equals(), which does not tell png8 from png
+        if (responseFormat != ImageMime.png8) {
+            return null;
+        }
+        PNG8EncoderConfig config = wmsLayer == null ? null : wmsLayer.getPng8Encoder();
+        if (config == null) {
+            return DEFAULT_PNG8_ENCODER;
+        }
+        return config.isEnabled() ? config.getEncoder() : null;
+    }
+
+    /**
+     * @return the tile if all its pixels are the same, {@code null} otherwise
+     */
+    private UniformTile scanTile(int minX, int minY, int tileWidth, int tileHeight) {
+        if (minX < 0 || minY < 0 || minX + tileWidth > img.getWidth()
+                || minY + tileHeight > img.getHeight()) {
+            // let the cropping report it
+            return null;
+        }
+        float quality = -1;
+        if (formatModifier != null && formatModifier.getResponseFormat() == ImageMime.jpeg
+                && formatModifier.getCompressionQuality() != null) {
+            quality = formatModifier.getCompressionQuality().floatValue();
+        }
+        return UniformTile.scan(img, minX, minY, tileWidth, tileHeight,
+                responseFormat.getInternalName(), quality);
+    }
+
+    /**
+     * @param tileIdx
+     *            the index of the tile relative to the internal array
+     * @return the tile if all its pixels are the same, in which case it is not worth encoding,
+     *         {@code null} otherwise
+     */
+    protected UniformTile getUniformTile(int tileIdx) {
+        return uniformTiles == null ? null : uniformTiles[tileIdx];
+    }
+
     /**
      * Extracts a single tile from the metatile. Handles JPEG
      * 
@@ -280,6 +438,19 @@ public class WMSMetaTile extends MetaTile {
      */
     protected boolean writeTileToStream(int tileIdx, OutputStream os)
             throws IOException {
+        UniformTile uniform = getUniformTile(tileIdx);
+        if (uniform != null) {
+            os.write(uniform.getEncoded());
+            return true;
+        }
+        if (encodedTiles != null) {
+            os.write(encodedTiles[tileIdx]);
+            return true;
+        }
+        if (tiles != null && png8Encoder != null && tiles[tileIdx] instanceof BufferedImage) {
+            png8Encoder.encode((BufferedImage) tiles[tileIdx], os);
+            return true;
+        }
         if (tiles != null) {
             String format = super.responseFormat.getInternalName();
 
@@ -288,9 +459,7 @@ public class WMSMetaTile extends MetaTile {
             }
             
             
-            // TODO should we recycle the writers ? 
-            // GR: it'd be only a 2% perf gain according to profiler
-            ImageWriter writer = javax.imageio.ImageIO.getImageWritersByFormatName(format).next();
+            ImageWriter writer = getWriter(format);
             ImageWriteParam param  = writer.getDefaultWriteParam();
             
             if(this.formatModifier != null) {
@@ -299,10 +468,13 @@ public class WMSMetaTile extends MetaTile {
             
             ImageOutputStream imgOut = new MemoryCacheImageOutputStream(os);
             writer.setOutput(imgOut);
-            IIOImage image = new IIOImage(tiles[tileIdx], null, null);
-            writer.write(null, image, param);
+            try {
+                IIOImage image = new IIOImage(tiles[tileIdx], null, null);
+                writer.write(null, image, param);
+            } finally {
+                writer.reset();
+            }
             imgOut.close();
-            writer.dispose();
             
             return true;
         }
@@ -310,6 +482,98 @@ public class WMSMetaTile extends MetaTile {
         return false;
     }
 
+    /**
+     * @return the image writer of this thread for the format
+     */
+    private static ImageWriter getWriter(String format) {
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            writer = ImageIO.getImageWritersByFormatName(format).next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Encodes all the tiles at once, in parallel, so that {@link #writeTileToStream} only has to
+     * copy them out. The decoded metatile is released afterwards.
+     */
+    protected void encodeTiles() throws IOException {
+        if (tiles == null || encodedTiles != null) {
+            return;
+        }
+        final byte[][] encoded = new byte[tiles.length][];
+        final ExecutorService executor = getEncoderExecutor();
+        if (executor == null || tiles.length == 1) {
+            for (int i = 0; i < tiles.length; i++) {
+                encoded[i] = encodeTile(i);
+            }
+        } else {
+            List<Future<byte[]>> encodes = new ArrayList<Future<byte[]>>(tiles.length);
+            for (int i = 0; i < tiles.length; i++) {
+                final int tileIdx = i;
+                encodes.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return encodeTile(tileIdx);
+                    }
+                }));
+            }
+            try {
+                for (int i = 0; i < tiles.length; i++) {
+                    encoded[i] = encodes.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw (IOException) new IOException("Interrupted while encoding tiles")
+                        .initCause(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (IOException) new IOException("Unable to encode tiles").initCause(cause);
+            }
+        }
+        encodedTiles = encoded;
+
+        // the tiles are views of the metatile, none of them is used any more
+        tiles = null;
+        img = null;
+        if (pooledRaster != null) {
+            JPEG_RASTERS.release(BGR, pooledRaster);
+            pooledRaster = null;
+        }
+    }
+
+    /**
+     * @return the encoded tile, {@code null} for a tile of a single colour
+     */
+    private byte[] encodeTile(int tileIdx) throws IOException {
+        if (getUniformTile(tileIdx) != null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        writeTileToStream(tileIdx, out);
+        return out.toByteArray();
+    }
+
+    private static synchronized ExecutorService getEncoderExecutor() {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        if (threads <= 1) {
+            return null;
+        }
+        if (encoderExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.MetaTileEncoder-");
+            tf.setDaemon(true);
+            encoderExecutor = Executors.newFixedThreadPool(threads, tf);
+        }
+        return encoderExecutor;
+    }
+
     public String debugString() {
         return " metaX: " + metaX + " metaY: " + metaY + " metaGridCov: "
                 + Arrays.toString(metaGridCov);
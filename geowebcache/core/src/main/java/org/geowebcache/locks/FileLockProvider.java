@@ -0,0 +1,228 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.locks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Locks metatiles across the GeoWebCaches sharing a directory, which must be on a file system that
+ * supports file locks. Each metatile gets a file holding the token and expiry of its lease; the
+ * file is only ever read and written under an exclusive file lock, so taking a lease over is as
+ * safe as taking a free one. Files left behind are removed once their lease is well past expiry.
+ */
+public class FileLockProvider extends LeaseLockProvider {
+    private static Log log = LogFactory.getLog(FileLockProvider.class);
+
+    /**
+     * The lock directory under the cache directory, when none is given
+     */
+    public static final String DEFAULT_LOCK_DIR = "metatile_locks";
+
+    private static final String SUFFIX = ".lock";
+
+    private static final int ACQUIRE = 0;
+
+    private static final int RELEASE = 1;
+
+    private static final int REMOVE = 2;
+
+    private static final int DONE = 0;
+
+    private static final int BUSY = 1;
+
+    private static final int DENIED = 2;
+
+    /**
+     * How often a release is retried while another thread or node is looking at the lease
+     */
+    private static final int RELEASE_RETRIES = 100;
+
+    /**
+     * The lock files being looked at in this JVM. File locks are held per process, and closing any
+     * channel on a file drops them on some platforms, so a file is only opened by one thread at a
+     * time.
+     */
+    private static final Set<String> OPEN_FILES = Collections.synchronizedSet(new HashSet<String>());
+
+    private final File lockDir;
+
+    private volatile long lastCleanup = System.currentTimeMillis();
+
+    public FileLockProvider(DefaultStorageFinder defStoreFinder) throws StorageException {
+        this(defStoreFinder.getDefaultPath() + File.separator + DEFAULT_LOCK_DIR);
+    }
+
+    public FileLockProvider(String lockDir) throws StorageException {
+        this.lockDir = new File(lockDir);
+        if (!this.lockDir.isDirectory() && !this.lockDir.mkdirs() && !this.lockDir.isDirectory()) {
+            throw new StorageException("Unable to create " + lockDir);
+        }
+        if (!this.lockDir.canWrite()) {
+            throw new StorageException(lockDir + " is not writable directory.");
+        }
+    }
+
+    public Lock tryLock(String key) throws GeoWebCacheException {
+        if (System.currentTimeMillis() - lastCleanup > getLease()) {
+            lastCleanup = System.currentTimeMillis();
+            removeStaleLocks();
+        }
+
+        final File file = new File(lockDir, hashKey(key) + SUFFIX);
+        final String token = newToken();
+        if (update(file, ACQUIRE, token) != DONE) {
+            return null;
+        }
+        return new Lock() {
+            public void release() throws GeoWebCacheException {
+                for (int i = 0; i < RELEASE_RETRIES; i++) {
+                    if (update(file, RELEASE, token) != BUSY) {
+                        return;
+                    }
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                log.warn("Could not release the lock on " + file + ", it will expire");
+            }
+        };
+    }
+
+    /**
+     * Deletes the lock files whose lease expired more than a lease ago, those of the metatiles
+     * nobody rendered for a while or whose holder died. Runs now and then as locks are taken.
+     */
+    public void removeStaleLocks() throws GeoWebCacheException {
+        File[] files = lockDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - 2 * getLease();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX) && file.lastModified() < staleBefore) {
+                if (update(file, REMOVE, null) == DONE) {
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            log.debug("Removed " + count + " stale lock files from " + lockDir);
+        }
+    }
+
+    /**
+     * Acquires, releases or removes a lease while holding the file lock
+     *
+     * @return {@link #DONE}, {@link #BUSY} if the file was locked or {@link #DENIED} if the lease
+     *         did not allow it
+     */
+    private int update(File file, int action, String token) throws GeoWebCacheException {
+        String path = file.getAbsolutePath();
+        if (!OPEN_FILES.add(path)) {
+            return BUSY;
+        }
+        try {
+            if (action != ACQUIRE && !file.exists()) {
+                return DENIED;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileLock fileLock;
+                try {
+                    fileLock = raf.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    return BUSY;
+                }
+                if (fileLock == null) {
+                    return BUSY;
+                }
+                try {
+                    // Removed by another node between opening and locking
+                    if (!file.exists()) {
+                        return BUSY;
+                    }
+                    return update(file, raf, action, token);
+                } finally {
+                    fileLock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new GeoWebCacheException("Failed to lock " + file + ": " + e.getMessage());
+        } finally {
+            OPEN_FILES.remove(path);
+        }
+    }
+
+    private int update(File file, RandomAccessFile raf, int action, String token)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        String holder = null;
+        long expires = 0;
+        String lease = raf.length() > 0 ? raf.readLine() : null;
+        if (lease != null) {
+            int split = lease.indexOf(' ');
+            try {
+                expires = Long.parseLong(lease.substring(split + 1).trim());
+                holder = lease.substring(0, split);
+            } catch (RuntimeException e) {
+                log.warn("Ignoring the unreadable lease in " + file);
+            }
+        }
+
+        switch (action) {
+        case ACQUIRE:
+            if (holder != null && expires > now) {
+                return DENIED;
+            }
+            if (holder != null) {
+                log.warn("The lease in " + file + " expired, taking the lock over from " + holder);
+            }
+            raf.setLength(0);
+            raf.write((token + ' ' + (now + getLease()) + '\n').getBytes("US-ASCII"));
+            return DONE;
+        case RELEASE:
+            if (!token.equals(holder)) {
+                return DENIED;
+            }
+            raf.setLength(0);
+            return DONE;
+        default:
+            if (holder != null && expires > now) {
+                return DENIED;
+            }
+            return file.delete() ? DONE : DENIED;
+        }
+    }
+}
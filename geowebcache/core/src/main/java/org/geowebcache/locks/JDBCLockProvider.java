@@ -0,0 +1,261 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.locks;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * Locks metatiles across the GeoWebCaches sharing a database, with a row per locked metatile. The
+ * row is inserted to take a free lock, updated to take over one whose lease expired and deleted,
+ * provided it still holds the lease token, on release; the database's row locking makes each of
+ * these atomic. Each of them is committed right away if the connections do not auto commit.
+ * <p>
+ * The table is created on first use if it is missing:
+ * 
+ * <pre>
+ * CREATE TABLE METATILE_LOCKS (LOCK_KEY VARCHAR(32) NOT NULL PRIMARY KEY, TOKEN VARCHAR(64),
+ *     EXPIRES BIGINT)
+ * </pre>
+ * 
+ * On a database that does not take this statement, or where GeoWebCache may not create tables,
+ * create it beforehand with the closest types, e.g. {@code NUMBER(19)} for {@code EXPIRES} on
+ * Oracle.
+ * </p>
+ */
+public class JDBCLockProvider extends LeaseLockProvider {
+    private static Log log = LogFactory.getLog(JDBCLockProvider.class);
+
+    static final String TABLE = "METATILE_LOCKS";
+
+    static final String CREATE_TABLE = "CREATE TABLE " + TABLE
+            + " (LOCK_KEY VARCHAR(32) NOT NULL PRIMARY KEY, TOKEN VARCHAR(64), EXPIRES BIGINT)";
+
+    private final DataSource dataSource;
+
+    private volatile boolean tableChecked;
+
+    public JDBCLockProvider(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public Lock tryLock(String key) throws GeoWebCacheException {
+        final String hash = hashKey(key);
+        final String token = newToken();
+        final long now = System.currentTimeMillis();
+        try {
+            Connection conn = getConnection();
+            try {
+                if (!insert(conn, hash, token, now + getLease())) {
+                    boolean tookOver = takeOver(conn, hash, token, now);
+                    commit(conn);
+                    if (!tookOver) {
+                        return null;
+                    }
+                    log.warn("The lease on " + key + " expired, taking the lock over");
+                }
+            } catch (SQLException e) {
+                rollback(conn);
+                throw e;
+            } finally {
+                close(conn);
+            }
+        } catch (SQLException e) {
+            throw new GeoWebCacheException("Failed to lock " + key + ": " + e.getMessage());
+        }
+
+        return new Lock() {
+            public void release() throws GeoWebCacheException {
+                PreparedStatement st = null;
+                try {
+                    Connection conn = getConnection();
+                    try {
+                        st = conn.prepareStatement("DELETE FROM " + TABLE
+                                + " WHERE LOCK_KEY = ? AND TOKEN = ?");
+                        st.setString(1, hash);
+                        st.setString(2, token);
+                        st.executeUpdate();
+                        commit(conn);
+                    } catch (SQLException e) {
+                        rollback(conn);
+                        throw e;
+                    } finally {
+                        close(st);
+                        close(conn);
+                    }
+                } catch (SQLException e) {
+                    throw new GeoWebCacheException("Failed to release the lock on " + hash + ": "
+                            + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Inserts and commits the row
+     * 
+     * @return false if the row is there already
+     */
+    private boolean insert(Connection conn, String hash, String token, long expires)
+            throws SQLException {
+        PreparedStatement st = null;
+        try {
+            st = conn.prepareStatement("INSERT INTO " + TABLE
+                    + " (LOCK_KEY, TOKEN, EXPIRES) VALUES (?, ?, ?)");
+            st.setString(1, hash);
+            st.setString(2, token);
+            st.setLong(3, expires);
+            st.executeUpdate();
+            commit(conn);
+            return true;
+        } catch (SQLException e) {
+            // Integrity constraint violation
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                // Some databases refuse any further statement in a failed transaction
+                rollback(conn);
+                return false;
+            }
+            throw e;
+        } finally {
+            close(st);
+        }
+    }
+
+    /**
+     * @return false unless the lease had expired, and nobody else took it over first
+     */
+    private boolean takeOver(Connection conn, String hash, String token, long now)
+            throws SQLException {
+        PreparedStatement st = null;
+        try {
+            st = conn.prepareStatement("UPDATE " + TABLE
+                    + " SET TOKEN = ?, EXPIRES = ? WHERE LOCK_KEY = ? AND EXPIRES < ?");
+            st.setString(1, token);
+            st.setLong(2, now + getLease());
+            st.setString(3, hash);
+            st.setLong(4, now);
+            return st.executeUpdate() == 1;
+        } finally {
+            close(st);
+        }
+    }
+
+    private Connection getConnection() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        if (!tableChecked) {
+            try {
+                createTable(conn);
+                tableChecked = true;
+            } catch (SQLException e) {
+                close(conn);
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Creates the table unless it exists. {@code CREATE TABLE IF NOT EXISTS} is not understood
+     * everywhere, so the database is asked for the table first.
+     */
+    private void createTable(Connection conn) throws SQLException {
+        if (tableExists(conn)) {
+            return;
+        }
+        Statement st = null;
+        try {
+            st = conn.createStatement();
+            st.execute(CREATE_TABLE);
+            commit(conn);
+        } catch (SQLException e) {
+            rollback(conn);
+            // Another GeoWebCache may have created it meanwhile
+            if (!tableExists(conn)) {
+                throw new SQLException("Could not create the " + TABLE + " table, create it with "
+                        + CREATE_TABLE + ": " + e.getMessage());
+            }
+        } finally {
+            close(st);
+        }
+    }
+
+    /**
+     * @return whether the table exists, looking it up as it was given and in the case the
+     *         database stores unquoted names in
+     */
+    private static boolean tableExists(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String[] names = { TABLE, TABLE.toLowerCase(Locale.ENGLISH) };
+        for (String name : names) {
+            ResultSet tables = metaData.getTables(null, null, name, null);
+            try {
+                if (tables.next()) {
+                    return true;
+                }
+            } finally {
+                tables.close();
+            }
+        }
+        return false;
+    }
+
+    private static void commit(Connection conn) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+        } catch (SQLException e) {
+            log.error("Error rolling back: " + e.getMessage());
+        }
+    }
+
+    private static void close(Statement st) {
+        if (st != null) {
+            try {
+                st.close();
+            } catch (SQLException e) {
+                log.error("Error closing Statement: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void close(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.error("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.locks;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the lock providers have in common: how long a lease lasts, and the tokens telling the
+ * holders of a lock apart
+ */
+public abstract class LeaseLockProvider implements MetatileLockProvider {
+
+    /**
+     * Five minutes, enough for a metatile to be rendered within the default backend timeout,
+     * twice
+     */
+    public static final long DEFAULT_LEASE = 5 * 60 * 1000L;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String owner = UUID.randomUUID().toString();
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private long lease = DEFAULT_LEASE;
+
+    /**
+     * @return how many milliseconds a lock may be held before it can be taken over
+     */
+    public long getLease() {
+        return lease;
+    }
+
+    /**
+     * @param lease
+     *            how many milliseconds a lock may be held before it can be taken over. The
+     *            rendering of a metatile should not take longer.
+     */
+    public void setLease(long lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * @return a token no other lock, here or on another node, has
+     */
+    protected String newToken() {
+        return owner + '-' + tokens.incrementAndGet();
+    }
+
+    /**
+     * @return the hex MD5 of a key, short and safe to use as a file name or column value
+     */
+    protected static String hashKey(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        StringBuilder hash = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hash.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return hash.toString();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.locks;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Locks metatiles within this JVM only, which is all a single GeoWebCache needs
+ */
+public class MemoryLockProvider extends LeaseLockProvider {
+    private static Log log = LogFactory.getLog(MemoryLockProvider.class);
+
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+    /**
+     * The lease of one holder. Equal to no other, as the map compares values with equals() to
+     * replace or remove them, only the holder's own lease is.
+     */
+    private static final class Lease {
+        final long expires;
+
+        Lease(long expires) {
+            this.expires = expires;
+        }
+    }
+
+    public Lock tryLock(final String key) {
+        final long now = System.currentTimeMillis();
+        final Lease lease = new Lease(now + getLease());
+        Lease current = leases.putIfAbsent(key, lease);
+        if (current != null) {
+            if (current.expires > now || !leases.replace(key, current, lease)) {
+                return null;
+            }
+            log.warn("The lease on " + key + " expired, taking the lock over");
+        }
+        return new Lock() {
+            public void release() {
+                leases.remove(key, lease);
+            }
+        };
+    }
+}
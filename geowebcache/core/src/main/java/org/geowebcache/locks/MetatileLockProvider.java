@@ -0,0 +1,48 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.locks;
+
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * Keeps a metatile from being rendered by more than one GeoWebCache at a time, where several of
+ * them share a cache. Locks are leased: one whose holder died without releasing it can be taken
+ * over once its lease expires.
+ * <p>
+ * Locking never blocks, a caller that does not get the lock is expected to poll, checking
+ * whether the holder has stored the tiles meanwhile.
+ * </p>
+ */
+public interface MetatileLockProvider {
+
+    /**
+     * A lock held on a metatile
+     */
+    public interface Lock {
+
+        /**
+         * Gives the lock up, unless its lease expired and it was taken over meanwhile
+         */
+        public void release() throws GeoWebCacheException;
+    }
+
+    /**
+     * @param key
+     *            identifies the metatile
+     * @return the lock, or null if it is held elsewhere under a lease that has not expired
+     */
+    public Lock tryLock(String key) throws GeoWebCacheException;
+}
@@ -94,7 +94,10 @@ public class FormatModifier {
         return palette;
     }
     
-    private Float getCompressionQuality() {
+    /**
+     * @return the compression quality of JPEG tiles, or {@code null} for the default one
+     */
+    public Float getCompressionQuality() {
         if(compressionQuality != null && compressQual == null) {
             compressQual = Float.parseFloat(compressionQuality);
         }
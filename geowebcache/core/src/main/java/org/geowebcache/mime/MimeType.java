@@ -73,6 +73,14 @@ public class MimeType {
         return supportsTiling;
     }
     
+    /**
+     * @return whether this is a text format, that is worth compressing before it is stored and
+     *         sent
+     */
+    public boolean isCompressible() {
+        return false;
+    }
+    
     /**
      * Get the MIME type object for a given MIME type string
      * 
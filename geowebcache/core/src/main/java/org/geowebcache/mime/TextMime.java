@@ -19,6 +19,10 @@ public class TextMime extends MimeType {
         super(mimeType, fileExtension, internalName, format, false);
     }
     
+    public boolean isCompressible() {
+        return true;
+    }
+    
     protected static TextMime checkForFormat(String formatStr) throws MimeException {
         if(formatStr.toLowerCase().startsWith("text")) {
             if(formatStr.equalsIgnoreCase("text/plain")) {
@@ -40,6 +40,13 @@ public class XMLMime extends MimeType {
         super(mimeType, fileExtension, internalName, format, false);
     }
 
+    /**
+     * All but KMZ, which is a zip archive already
+     */
+    public boolean isCompressible() {
+        return this != kmz;
+    }
+
     protected static XMLMime checkForFormat(String formatStr) throws MimeException {
         if(formatStr.equalsIgnoreCase("application/vnd.google-earth.kml+xml")) {
             return kml;
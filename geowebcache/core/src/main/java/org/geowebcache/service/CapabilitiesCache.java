@@ -0,0 +1,325 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.TileLayerDispatcherListener;
+import org.geowebcache.stats.RuntimeStats;
+import org.geowebcache.util.GzipUtils;
+
+/**
+ * Keeps rendered capabilities documents, so that they are not rebuilt from every layer and
+ * gridset on every request.
+ * <p>
+ * Documents are keyed by service, the base URL used in them and whatever request parameters
+ * affect their content, see {@link #key(String, String, String[])}. Each is kept both as is and
+ * gzip compressed, along with a strong ETag, so that conditional requests can be answered with a
+ * 304. When several requests miss the same key at once, only one of them renders the document and
+ * the others wait for it.
+ * </p>
+ * <p>
+ * Everything is dropped whenever a layer is added, modified, removed or the layers are reloaded,
+ * the cache registers itself with the {@link TileLayerDispatcher} for this.
+ * </p>
+ */
+public class CapabilitiesCache implements TileLayerDispatcherListener {
+    private static Log log = LogFactory.getLog(org.geowebcache.service.CapabilitiesCache.class);
+
+    /**
+     * Renders a capabilities document on a cache miss
+     */
+    public static interface DocumentGenerator {
+        String generate() throws GeoWebCacheException;
+    }
+
+    /**
+     * A rendered document
+     */
+    public static class Document {
+        private final byte[] raw;
+
+        private final byte[] gzipped;
+
+        private final String etag;
+
+        Document(byte[] raw) throws IOException {
+            this.raw = raw;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 4 + 64);
+            GZIPOutputStream gzos = new GZIPOutputStream(bytes);
+            gzos.write(raw);
+            gzos.close();
+            this.gzipped = bytes.toByteArray();
+
+            this.etag = digest(raw);
+        }
+
+        public byte[] getRaw() {
+            return raw;
+        }
+
+        public byte[] getGzipped() {
+            return gzipped;
+        }
+
+        /**
+         * @return the quoted ETag of the uncompressed document
+         */
+        public String getETag() {
+            return "\"" + etag + "\"";
+        }
+
+        /**
+         * @return the quoted ETag of the compressed document, strong ETags differ per encoding
+         */
+        public String getGzipETag() {
+            return "\"" + etag + "-gzip\"";
+        }
+    }
+
+    private final Map<String, FutureTask<Document>> documents;
+
+    /**
+     * @param tld the dispatcher to listen to for layer changes
+     */
+    public CapabilitiesCache(TileLayerDispatcher tld) {
+        this(tld, 64);
+    }
+
+    /**
+     * @param tld the dispatcher to listen to for layer changes
+     * @param maxDocuments the maximum number of documents to keep, least recently used ones are
+     *        dropped first. The base URL may come from the request, so this needs a bound.
+     */
+    public CapabilitiesCache(TileLayerDispatcher tld, final int maxDocuments) {
+        documents = new LinkedHashMap<String, FutureTask<Document>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Document>> eldest) {
+                return size() > maxDocuments;
+            }
+        };
+
+        if (tld != null) {
+            tld.addListener(this);
+        }
+    }
+
+    /**
+     * Builds a cache key
+     *
+     * @param service the service, e.g. wms
+     * @param baseUrl the URL the document refers back to
+     * @param vendorParams request parameters that affect the document, may contain nulls
+     * @return
+     */
+    public static String key(String service, String baseUrl, String[] vendorParams) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(service).append('|').append(baseUrl);
+        if (vendorParams != null) {
+            for (String param : vendorParams) {
+                sb.append('|').append(param);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the document for the given key, rendering it with the generator if necessary
+     */
+    public Document get(String key, final DocumentGenerator generator)
+            throws GeoWebCacheException {
+        FutureTask<Document> task;
+        boolean render = false;
+
+        synchronized (documents) {
+            task = documents.get(key);
+            if (task == null) {
+                task = new FutureTask<Document>(new Callable<Document>() {
+                    public Document call() throws Exception {
+                        return new Document(generator.generate().getBytes("UTF-8"));
+                    }
+                });
+                documents.put(key, task);
+                render = true;
+            }
+        }
+
+        if (render) {
+            if (log.isDebugEnabled()) {
+                log.debug("Rendering capabilities document for " + key);
+            }
+            task.run();
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for " + key);
+        } catch (ExecutionException ee) {
+            // Don't keep failures around
+            synchronized (documents) {
+                if (documents.get(key) == task) {
+                    documents.remove(key);
+                }
+            }
+
+            Throwable cause = ee.getCause();
+            if (cause instanceof GeoWebCacheException) {
+                throw (GeoWebCacheException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GeoWebCacheException(cause);
+        }
+    }
+
+    /**
+     * Writes the document for the given key, compressed if the client accepts gzip, or a 304 if
+     * the client already has it.
+     */
+    public void writeResponse(String key, DocumentGenerator generator, String contentType,
+            HttpServletRequest request, HttpServletResponse response, RuntimeStats stats)
+            throws GeoWebCacheException {
+        Document doc = get(key, generator);
+
+        final boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        final String etag = gzip ? doc.getGzipETag() : doc.getETag();
+
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept-Encoding");
+
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] data = gzip ? doc.getGzipped() : doc.getRaw();
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setCharacterEncoding("UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(data.length);
+
+        if (stats != null) {
+            stats.log(data.length, CacheResult.OTHER);
+        }
+
+        try {
+            OutputStream os = response.getOutputStream();
+            os.write(data);
+            os.flush();
+        } catch (IOException ioe) {
+            log.debug("Caught IOException" + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Drops all documents
+     */
+    public void invalidate() {
+        synchronized (documents) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * @return the number of documents currently held
+     */
+    public int size() {
+        synchronized (documents) {
+            return documents.size();
+        }
+    }
+
+    public void layerAdded(TileLayer layer) {
+        invalidate();
+    }
+
+    public void layerModified(TileLayer layer) {
+        invalidate();
+    }
+
+    public void layerRemoved(String layerName) {
+        invalidate();
+    }
+
+    public void layersReloaded() {
+        invalidate();
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        return GzipUtils.acceptsGzip(acceptEncoding);
+    }
+
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // Weak comparison is what If-None-Match calls for
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] hash = md.digest(data);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every JRE is required to have MD5
+            throw new IllegalStateException(nsae);
+        }
+    }
+}
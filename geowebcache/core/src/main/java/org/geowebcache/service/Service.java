@@ -27,6 +27,7 @@ import org.geowebcache.conveyor.Conveyor;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.stats.RuntimeStats;
+import org.geowebcache.util.GzipUtils;
 import org.geowebcache.util.ServletUtils;
 
 /**
@@ -98,7 +99,6 @@ public abstract class Service {
     
     protected static void writeTileResponse(ConveyorTile conv, boolean writeExpiration, RuntimeStats stats, String mimeTypeOverride) {
         HttpServletResponse response = conv.servletResp;
-        byte[] data = conv.getContent();
 
         String mimeStr;
         if(mimeTypeOverride == null){
@@ -122,14 +122,21 @@ public abstract class Service {
 
         response.setContentType(mimeStr);
 
-        response.setContentLength(data.length);
-
         try {
-            OutputStream os = response.getOutputStream();
-            os.write(data);
+            int written;
+            if (GzipUtils.GZIP.equals(conv.getContentEncoding())) {
+                written = GzipUtils.writeResponse(conv.servletReq, response, conv
+                        .getEncodedContent());
+            } else {
+                byte[] data = conv.getContent();
+                response.setContentLength(data.length);
+                OutputStream os = response.getOutputStream();
+                os.write(data);
+                written = data.length;
+            }
             
             if(stats != null) {
-                stats.log(data.length, conv.getCacheResult());
+                stats.log(written, conv.getCacheResult());
             }
         } catch (IOException ioe) {
             // Do nothing...
@@ -46,6 +46,15 @@ public interface BlobStore {
     public byte[] get(TileObject obj) throws StorageException;
     public long get(WFSObject obj) throws StorageException;
     
+    /**
+     * Test whether a blob is in storage, without retrieving it.
+     * 
+     * @param obj
+     * @return true if the blob exists
+     * @throws StorageException
+     */
+    public boolean exists(TileObject obj) throws StorageException;
+    
     /**
      * Store blob. Calls getBlob() on passed object, does not modify the object.
      * 
@@ -29,6 +29,17 @@ public final class BlobStoreListenerList {
         }
     }
 
+    public void sendPhysicalSizeChanged(long physicalSize) {
+        if (listeners.size() > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                BlobStoreListener listener = listeners.get(i);
+                if (listener instanceof PhysicalSizeListener) {
+                    ((PhysicalSizeListener) listener).physicalSizeChanged(physicalSize);
+                }
+            }
+        }
+    }
+
     public void sendTileDeleted(String layerName, String gridSetId, String blobFormat,
             String parameters, long x, long y, int z, long length) {
 
@@ -73,4 +84,15 @@ public final class BlobStoreListenerList {
         }
     }
 
+    public void sendTileStored(String layerName, String gridSetId, String blobFormat,
+            String parameters, long x, long y, int z, long length) {
+
+        if (listeners.size() > 0) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).tileStored(layerName, gridSetId, blobFormat, parameters, x, y, z,
+                        length);
+            }
+        }
+    }
+
 }
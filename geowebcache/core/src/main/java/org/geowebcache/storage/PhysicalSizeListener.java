@@ -0,0 +1,20 @@
+package org.geowebcache.storage;
+
+/**
+ * A {@link BlobStoreListener} that also wants to know how many bytes a blob store that shares
+ * content between tiles actually takes on disk. The blob sizes passed to
+ * {@link #tileStored tileStored} and {@link #tileDeleted tileDeleted} stay the logical size of
+ * each tile.
+ */
+public interface PhysicalSizeListener extends BlobStoreListener {
+
+    /**
+     * Called whenever the physical size of the store changes, and once when the listener is
+     * added to it.
+     * 
+     * @param physicalSize
+     *            the bytes of all the distinct tile contents and of the references to them
+     */
+    void physicalSizeChanged(long physicalSize);
+
+}
@@ -24,17 +24,15 @@ import org.geowebcache.grid.GridSubset;
 
 public class RasterMask {
     /**
-     * By zoom level bitmasked images where every pixel represents a tile in the level's
+     * By zoom level bitmasks where every bit represents a tile in the level's
      * {@link GridSubset#getCoverages() grid coverage}.
      */
-    private final BufferedImage[] byLevelMasks;
+    private final TileBitmap[] byLevelMasks;
 
     private final long[][] coveredBounds;
 
     private final int maxMaskLevel;
 
-    private final int noDataValue;
-
     private long[][] fullCoverage;
 
     /**
@@ -74,11 +72,33 @@ public class RasterMask {
      */
     public RasterMask(BufferedImage[] byLevelMasks, long[][] fullCoverage,
             final long[][] coveredBounds, final int noDataValue) {
+        this(toBitmaps(byLevelMasks, noDataValue), fullCoverage, coveredBounds);
+    }
+
+    /**
+     * Creates a RasterMask based on a set of bitmasks and covered tile grid bounds, see
+     * {@link #RasterMask(BufferedImage[], long[][], long[][], int)}
+     */
+    public RasterMask(TileBitmap[] byLevelMasks, long[][] fullCoverage,
+            final long[][] coveredBounds) {
         this.byLevelMasks = byLevelMasks;
         this.fullCoverage = fullCoverage;
         this.coveredBounds = coveredBounds;
         this.maxMaskLevel = byLevelMasks.length - 1;
-        this.noDataValue = noDataValue;
+    }
+
+    /**
+     * The images are only needed to build the bitmasks, which take a fraction of their memory
+     */
+    private static TileBitmap[] toBitmaps(BufferedImage[] byLevelMasks, int noDataValue) {
+        TileBitmap[] bitmaps = new TileBitmap[byLevelMasks.length];
+        for (int level = 0; level < byLevelMasks.length; level++) {
+            Raster raster = byLevelMasks[level].getRaster();
+            // The bottom row of the raster is the first row of tiles
+            bitmaps[level] = TileBitmap.fromRaster(raster, 0, raster.getHeight() - 1,
+                    noDataValue, false);
+        }
+        return bitmaps;
     }
 
     public long[][] getGridCoverages() {
@@ -131,22 +151,8 @@ public class RasterMask {
             return false;
         }
 
-        /*
-         * Use getRaster instead of getData(), getData() returns a copy
-         */
-        final Raster raster = byLevelMasks[level].getRaster();
-
-        // Changing index to top left hand origin
-        long rasx = tileX;
-        long rasy = (raster.getHeight() - 1) - tileY;
-
-        if (rasx < 0 || rasy < 0 || rasx >= raster.getWidth() || rasy >= raster.getHeight()) {
-            // coverage might include meta tiling factors but raster doesn't!
-            return false;
-        }
-
-        int sample = raster.getSample((int) rasx, (int) rasy, 0);
-
-        return sample != noDataValue;
+        // coverage might include meta tiling factors but the mask doesn't, tiles outside it are
+        // never set
+        return byLevelMasks[level].get(tileX, tileY);
     }
 }
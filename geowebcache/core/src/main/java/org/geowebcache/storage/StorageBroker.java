@@ -17,18 +17,32 @@
  */
 package org.geowebcache.storage;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.util.GzipUtils;
 
 /**
  * Handles cacheable objects (tiles, wfs responses) both in terms of data storage and metadata
  * storage, delegating to a {@link MetaStore} and a {@link BlobStore}
+ * <p>
+ * Text formats, like KML or GML, are gzipped before they are stored and marked with the
+ * {@link GzipUtils#GZIP} blob encoding when read back, see {@link MimeType#isCompressible()}
+ * </p>
  */
 public class StorageBroker {
     private static Log log = LogFactory.getLog(org.geowebcache.storage.StorageBroker.class);
     
+    public static final int DEFAULT_TEXT_COMPRESSION_LEVEL = 6;
+    
     private BlobStore blobStore;
     
     private MetaStore metaStore; 
@@ -37,8 +51,12 @@ public class StorageBroker {
     
     private boolean verifyFileSize = false;
     
+    private int textCompressionLevel = DEFAULT_TEXT_COMPRESSION_LEVEL;
+    
     private boolean isReady = false;
     
+    private final List<TruncateListener> truncateListeners = new CopyOnWriteArrayList<TruncateListener>();
+    
     public StorageBroker(MetaStore metaStore, BlobStore blobStore) {
         this.metaStore = metaStore;
         this.blobStore = blobStore;
@@ -50,11 +68,19 @@ public class StorageBroker {
         }
     }
 
+    /**
+     * Adds a listener to the blob store. A {@link TruncateListener} is also told about
+     * {@link #delete(TileRange) truncated} ranges.
+     */
     public void addBlobStoreListener(BlobStoreListener listener){
         blobStore.addListener(listener);
+        if(listener instanceof TruncateListener) {
+            truncateListeners.add((TruncateListener) listener);
+        }
     }
     
     public boolean removeBlobStoreListener(BlobStoreListener listener){
+        truncateListeners.remove(listener);
         return blobStore.removeListener(listener);
     }
     
@@ -62,6 +88,14 @@ public class StorageBroker {
         this.verifyFileSize = verifyFileSize;
     }
     
+    /**
+     * The deflate level text formats are gzipped with when they are stored, from 1 to 9, 0 to
+     * store them uncompressed. Blobs already stored are read back either way.
+     */
+    public void setTextCompressionLevel(int textCompressionLevel) {
+        this.textCompressionLevel = textCompressionLevel;
+    }
+    
     public boolean delete(String layerName) throws StorageException {
         boolean ret = true;
         if(metaStoreEnabled) {
@@ -83,6 +117,9 @@ public class StorageBroker {
             }
             deleted = blobStore.delete(trObj);
         }
+        for(TruncateListener listener : truncateListeners) {
+            listener.rangeTruncated(trObj);
+        }
         return deleted;
     }
     
@@ -122,11 +159,33 @@ public class StorageBroker {
                         + tileObj.blob_size + " but was " + blob.length);
             }
                 
-            tileObj.blob = blob;
+            setStoredBlob(tileObj, blob);
         }
         return true;
     }
     
+    /**
+     * Checks whether a tile with content is in storage, without reading it
+     * 
+     * @param tileObj
+     * @return
+     * @throws StorageException
+     */
+    public boolean exists(TileObject tileObj) throws StorageException {
+        if(metaStoreEnabled) {
+            // The metastore knows the parameter ids the blobs are stored under
+            if(! metaStore.get(tileObj) || tileObj.blob_size <= 0) {
+                return false;
+            }
+        } else if(tileObj.getParameters() != null 
+                && tileObj.getParameters().length() > 0) {
+            log.error("Cannot check tile with parameters if metastore is disabled!");
+            return false;
+        }
+        
+        return blobStore.exists(tileObj);
+    }
+    
     private boolean getBlobOnly(TileObject tileObj) throws StorageException {
         if(tileObj.getParameters() == null 
                 || tileObj.getParameters().length() == 0) {
@@ -134,7 +193,7 @@ public class StorageBroker {
             if(blob == null) {
                 return false;
             } else {
-                tileObj.blob = blob;
+                setStoredBlob(tileObj, blob);
                 return true;
             }
         } else {
@@ -143,6 +202,33 @@ public class StorageBroker {
         }
     }
 
+    /**
+     * Sets the blob read from the blob store, and its encoding
+     */
+    private static void setStoredBlob(TileObject tileObj, byte[] blob) throws StorageException {
+        tileObj.blob = expandUniformTile(blob);
+        if(GzipUtils.isGzip(blob) && isCompressible(tileObj.blob_format)) {
+            tileObj.blob_encoding = GzipUtils.GZIP;
+        } else {
+            tileObj.blob_encoding = null;
+        }
+    }
+    
+    /**
+     * Replaces the marker of a tile of a single colour with the encoded image
+     */
+    private static byte[] expandUniformTile(byte[] blob) throws StorageException {
+        if(! UniformTile.isMarker(blob)) {
+            return blob;
+        }
+        UniformTile uniform = UniformTile.fromMarker(blob);
+        try {
+            return uniform.getEncoded();
+        } catch (IOException e) {
+            throw new StorageException("Unable to encode " + uniform + ": " + e.getMessage());
+        }
+    }
+
     public boolean get(WFSObject wfsObj) throws StorageException {
         if (!metaStore.get(wfsObj)) {
             log.error("Cannot use WFS objects if metastore is disabled!");
@@ -158,10 +244,29 @@ public class StorageBroker {
             throw new StorageException("The blob for WFS " + Long.toString(wfsObj.getId()) + " was of size 0");
         }
         
+        wfsObj.blob_encoding = null;
+        if(isCompressible(wfsObj.blob_format)) {
+            // Responses stored before compression was enabled are read as they are
+            BufferedInputStream is = new BufferedInputStream(wfsObj.getInputStream());
+            try {
+                is.mark(2);
+                if(is.read() == 0x1f && is.read() == 0x8b) {
+                    wfsObj.blob_encoding = GzipUtils.GZIP;
+                }
+                is.reset();
+            } catch (IOException ioe) {
+                throw new StorageException("Unable to read the blob for WFS " + wfsObj.getId()
+                        + ": " + ioe.getMessage());
+            }
+            wfsObj.setInputStream(is);
+        }
+        
         return true;
     }
     
     public boolean put(TileObject tileObj) throws StorageException {
+        compressText(tileObj);
+        
         if(! metaStoreEnabled) {
             boolean stored = putBlobOnly(tileObj);
             return stored;
@@ -206,6 +311,12 @@ public class StorageBroker {
             return false;
         }
         
+        if(textCompressionLevel > 0 && wfsObj.blob_encoding == null 
+                && isCompressible(wfsObj.blob_format)) {
+            wfsObj.setInputStream(GzipUtils.compress(wfsObj.getInputStream(), textCompressionLevel));
+            wfsObj.blob_encoding = GzipUtils.GZIP;
+        }
+        
         try {
             metaStore.put(wfsObj);
             blobStore.put(wfsObj);
@@ -219,6 +330,30 @@ public class StorageBroker {
         return false;
     }
     
+    /**
+     * Gzips the blob of a text format, so it takes less room on disk and can be sent as it is to
+     * the clients that accept gzip. The blob size, as seen by the blob store listeners and the
+     * disk quota, is the compressed one.
+     */
+    private void compressText(TileObject tileObj) {
+        if(textCompressionLevel <= 0 || tileObj.blob == null || tileObj.blob_encoding != null 
+                || ! isCompressible(tileObj.blob_format)) {
+            return;
+        }
+        tileObj.setBlob(GzipUtils.compress(tileObj.blob, textCompressionLevel), GzipUtils.GZIP);
+    }
+    
+    private static boolean isCompressible(String format) {
+        if(format == null) {
+            return false;
+        }
+        try {
+            return MimeType.createFromFormat(format).isCompressible();
+        } catch (MimeException me) {
+            return false;
+        }
+    }
+    
     /** 
      * Destroy method for Spring
      */
@@ -35,6 +35,8 @@ public abstract class StorageObject {
     
     int blob_size;
     
+    String blob_encoding;
+    
 
 
     /** 
@@ -55,6 +57,14 @@ public abstract class StorageObject {
         return blob_format;
     }
     
+    /**
+     * @return how the blob is encoded in storage, for instance
+     *         {@link org.geowebcache.util.GzipUtils#GZIP}, or null if it is stored as is
+     */
+    public String getBlobEncoding() {
+        return blob_encoding;
+    }
+    
     public long getCreated() {
         return created;
     }
@@ -75,6 +85,10 @@ public abstract class StorageObject {
         this.blob_size = blob_size;
     }
     
+    public void setBlobEncoding(String blobEncoding) {
+        this.blob_encoding = blobEncoding;
+    }
+    
     public void setStatus(Status status) {
         this.status = status;
     }
@@ -0,0 +1,347 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.awt.image.Raster;
+
+/**
+ * One bit per tile for a rectangle of tiles on a single zoom level, addressed by grid coordinates
+ * (origin at the bottom left, as in tile indexes).
+ * <p>
+ * The bits are packed into {@code long} words, 64 tiles to a word. On top of them an OR pyramid is
+ * kept, where the bit at {@code level} stands for the {@code 2^level x 2^level} block of tiles it
+ * covers, aligned to the grid origin like the tiles of a lower zoom level. That makes
+ * {@link #anySet(long, long, long, long)} a single bit test for the blocks a tile of a lower zoom
+ * level covers, and proportional to the perimeter rather than the area for any other rectangle.
+ * The pyramid adds a third to the memory used by the tiles.
+ * </p>
+ * <p>
+ * Bits are only ever set, and a bitmap is meant to be filled before it is handed to other threads,
+ * after which reading it needs no locking.
+ * </p>
+ */
+public class TileBitmap {
+
+    private final long minX;
+
+    private final long minY;
+
+    private final long maxX;
+
+    private final long maxY;
+
+    /**
+     * The tiles at position 0, then each level covering twice as many tiles on each side as the
+     * previous one, up to a level with a single bit
+     */
+    private final Level[] levels;
+
+    /**
+     * @param minX first tile column
+     * @param minY first tile row
+     * @param maxX last tile column, inclusive
+     * @param maxY last tile row, inclusive
+     */
+    public TileBitmap(long minX, long minY, long maxX, long maxY) {
+        if (minX > maxX || minY > maxY) {
+            throw new IllegalArgumentException("Empty tile range " + minX + "," + minY + " "
+                    + maxX + "," + maxY);
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+
+        int numLevels = 1;
+        while ((minX >> (numLevels - 1)) != (maxX >> (numLevels - 1))
+                || (minY >> (numLevels - 1)) != (maxY >> (numLevels - 1))) {
+            numLevels++;
+        }
+        levels = new Level[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            levels[i] = new Level(minX >> i, minY >> i, maxX >> i, maxY >> i);
+        }
+    }
+
+    /**
+     * Creates a bitmap from a raster where each pixel is a tile, with the top row of the raster
+     * being {@code maxY}.
+     *
+     * @param raster the mask
+     * @param minX the tile column of the leftmost pixels
+     * @param maxY the tile row of the top pixels
+     * @param sample the value of the first band that marks the tile, or, if {@code set} is
+     *        {@code false}, that marks the tile as not set
+     * @param set whether pixels with the given sample are the ones to set
+     */
+    public static TileBitmap fromRaster(Raster raster, long minX, long maxY, int sample,
+            boolean set) {
+        final int width = raster.getWidth();
+        final int height = raster.getHeight();
+        final int rasterMinX = raster.getMinX();
+        final int rasterMinY = raster.getMinY();
+
+        TileBitmap bitmap = new TileBitmap(minX, maxY - height + 1, minX + width - 1, maxY);
+        int[] row = new int[width];
+        for (int py = 0; py < height; py++) {
+            raster.getSamples(rasterMinX, rasterMinY + py, width, 1, 0, row);
+            long y = maxY - py;
+            for (int px = 0; px < width; px++) {
+                if ((row[px] == sample) == set) {
+                    bitmap.set(minX + px, y);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    public long getMinX() {
+        return minX;
+    }
+
+    public long getMinY() {
+        return minY;
+    }
+
+    public long getMaxX() {
+        return maxX;
+    }
+
+    public long getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * @return whether the tile is set, tiles outside the bitmap never are
+     */
+    public boolean get(long x, long y) {
+        return levels[0].get(x, y);
+    }
+
+    /**
+     * Marks the tile as set
+     *
+     * @throws IndexOutOfBoundsException if the tile is outside the bitmap
+     */
+    public void set(long x, long y) {
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            throw new IndexOutOfBoundsException("Tile " + x + "," + y + " is outside " + minX
+                    + "," + minY + " " + maxX + "," + maxY);
+        }
+        // Once a block is set, so are all the ones containing it
+        for (int i = 0; i < levels.length && levels[i].set(x >> i, y >> i); i++)
+            ;
+    }
+
+    /**
+     * Marks all the tiles in the given range as set, both ends inclusive
+     *
+     * @throws IndexOutOfBoundsException if the range is not inside the bitmap
+     */
+    public void setRange(long x0, long y0, long x1, long y1) {
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        if (x0 < minX || x1 > maxX || y0 < minY || y1 > maxY) {
+            throw new IndexOutOfBoundsException("Tiles " + x0 + "," + y0 + " " + x1 + "," + y1
+                    + " are not inside " + minX + "," + minY + " " + maxX + "," + maxY);
+        }
+        for (int i = 0; i < levels.length; i++) {
+            for (long y = y0 >> i; y <= y1 >> i; y++) {
+                levels[i].setRow(y, x0 >> i, x1 >> i);
+            }
+        }
+    }
+
+    /**
+     * @return whether any tile in the given range is set, the range does not need to be inside
+     *         the bitmap
+     */
+    public boolean anySet(long x0, long y0, long x1, long y1) {
+        x0 = Math.max(x0, minX);
+        y0 = Math.max(y0, minY);
+        x1 = Math.min(x1, maxX);
+        y1 = Math.min(y1, maxY);
+
+        for (int i = 0; x0 <= x1 && y0 <= y1; i++) {
+            Level level = levels[i];
+            if (i == levels.length - 1) {
+                return level.get(x0, y0);
+            }
+            // Check the columns and rows that only partially cover a block of the next level
+            if ((x0 & 1) != 0) {
+                if (level.anyInColumn(x0, y0, y1)) {
+                    return true;
+                }
+                x0++;
+            }
+            if ((x1 & 1) == 0 && x0 <= x1) {
+                if (level.anyInColumn(x1, y0, y1)) {
+                    return true;
+                }
+                x1--;
+            }
+            if ((y0 & 1) != 0 && x0 <= x1) {
+                if (level.anyInRow(y0, x0, x1)) {
+                    return true;
+                }
+                y0++;
+            }
+            if ((y1 & 1) == 0 && x0 <= x1 && y0 <= y1) {
+                if (level.anyInRow(y1, x0, x1)) {
+                    return true;
+                }
+                y1--;
+            }
+            // What is left consists of whole blocks of the next level
+            x0 >>= 1;
+            y0 >>= 1;
+            x1 >>= 1;
+            y1 >>= 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of set tiles
+     */
+    public long cardinality() {
+        long count = 0;
+        for (long word : levels[0].words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * A rectangle of bits, stored row by row with each row starting on a new word
+     */
+    private static final class Level {
+        final long originX;
+
+        final long originY;
+
+        final int width;
+
+        final int height;
+
+        final int wordsPerRow;
+
+        final long[] words;
+
+        Level(long minX, long minY, long maxX, long maxY) {
+            long w = maxX - minX + 1;
+            long h = maxY - minY + 1;
+            long rowWords = (w + 63) >>> 6;
+            if (w > Integer.MAX_VALUE || h > Integer.MAX_VALUE
+                    || rowWords * h > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Tile range " + w + "x" + h
+                        + " is too large for a bitmap");
+            }
+            originX = minX;
+            originY = minY;
+            width = (int) w;
+            height = (int) h;
+            wordsPerRow = (int) rowWords;
+            words = new long[wordsPerRow * height];
+        }
+
+        boolean get(long x, long y) {
+            long cx = x - originX;
+            long cy = y - originY;
+            if (cx < 0 || cy < 0 || cx >= width || cy >= height) {
+                return false;
+            }
+            return (words[(int) cy * wordsPerRow + (int) (cx >>> 6)] & (1L << cx)) != 0;
+        }
+
+        /**
+         * @return whether the bit was not set before
+         */
+        boolean set(long x, long y) {
+            long cx = x - originX;
+            int pos = (int) (y - originY) * wordsPerRow + (int) (cx >>> 6);
+            long bit = 1L << cx;
+            if ((words[pos] & bit) != 0) {
+                return false;
+            }
+            words[pos] |= bit;
+            return true;
+        }
+
+        /**
+         * Both ends inclusive and inside the level
+         */
+        void setRow(long y, long x0, long x1) {
+            int rowStart = (int) (y - originY) * wordsPerRow;
+            int c0 = (int) (x0 - originX);
+            int c1 = (int) (x1 - originX);
+            int w0 = c0 >>> 6;
+            int w1 = c1 >>> 6;
+            long first = -1L << c0;
+            long last = -1L >>> (63 - (c1 & 63));
+            if (w0 == w1) {
+                words[rowStart + w0] |= first & last;
+                return;
+            }
+            words[rowStart + w0] |= first;
+            for (int w = w0 + 1; w < w1; w++) {
+                words[rowStart + w] = -1L;
+            }
+            words[rowStart + w1] |= last;
+        }
+
+        /**
+         * Both ends inclusive and inside the level
+         */
+        boolean anyInColumn(long x, long y0, long y1) {
+            long cx = x - originX;
+            int pos = (int) (y0 - originY) * wordsPerRow + (int) (cx >>> 6);
+            long bit = 1L << cx;
+            for (long y = y0; y <= y1; y++, pos += wordsPerRow) {
+                if ((words[pos] & bit) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Both ends inclusive and inside the level
+         */
+        boolean anyInRow(long y, long x0, long x1) {
+            int rowStart = (int) (y - originY) * wordsPerRow;
+            int c0 = (int) (x0 - originX);
+            int c1 = (int) (x1 - originX);
+            int w0 = c0 >>> 6;
+            int w1 = c1 >>> 6;
+            long first = -1L << c0;
+            long last = -1L >>> (63 - (c1 & 63));
+            if (w0 == w1) {
+                return (words[rowStart + w0] & first & last) != 0;
+            }
+            if ((words[rowStart + w0] & first) != 0 || (words[rowStart + w1] & last) != 0) {
+                return true;
+            }
+            for (int w = w0 + 1; w < w1; w++) {
+                if (words[rowStart + w] != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
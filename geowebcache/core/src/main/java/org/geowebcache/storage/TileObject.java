@@ -91,6 +91,14 @@ public class TileObject extends StorageObject {
     }
     
     public void setBlob(byte[] blob) {
+        setBlob(blob, null);
+    }
+    
+    /**
+     * @param blob the blob as it is stored
+     * @param encoding how the blob is encoded, null if it is not
+     */
+    public void setBlob(byte[] blob, String encoding) {
         if(blob != null) {
             this.blob_size = blob.length;
         } else {
@@ -98,6 +106,7 @@ public class TileObject extends StorageObject {
         }
         
         this.blob = blob;
+        this.blob_encoding = encoding;
     }
         
     public long getId() {
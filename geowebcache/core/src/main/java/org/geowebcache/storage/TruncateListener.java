@@ -0,0 +1,18 @@
+package org.geowebcache.storage;
+
+/**
+ * A {@link BlobStoreListener} that also wants to know when a range of tiles is truncated. Tiles
+ * that are deleted get {@link #tileDeleted tileDeleted} as usual, this is for those who keep
+ * track of locations that have no tile in the store at all.
+ */
+public interface TruncateListener extends BlobStoreListener {
+
+    /**
+     * Called once the tiles of the range have been deleted
+     * 
+     * @param range
+     *            the truncated range
+     */
+    void rangeTruncated(TileRange range);
+
+}
@@ -0,0 +1,399 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * A tile of a single colour, such as the empty sea or a fully transparent tile, stored as a small
+ * marker instead of an encoded image.
+ * <p>
+ * The marker records the colour, the size and how the tile is encoded. {@link StorageBroker}
+ * replaces it with the encoded image when the tile is read, and the encoded images are cached, so
+ * each colour, size and format is encoded once rather than once per tile.
+ * </p>
+ */
+public final class UniformTile {
+
+    /**
+     * Starts every marker. Not a valid start of any image format.
+     */
+    static final byte[] MAGIC = { 0, 'G', 'W', 'C', 'U', 'N', 'I', 1 };
+
+    /**
+     * The tile was cut out of an image without alpha
+     */
+    public static final int RGB = 0;
+
+    /**
+     * The tile was cut out of an image with alpha
+     */
+    public static final int ARGB = 1;
+
+    /**
+     * The tile was cut out of an image with a palette
+     */
+    public static final int INDEXED = 2;
+
+    private static final int MAX_CACHED = 256;
+
+    private static final Map<UniformTile, byte[]> encoded = new LinkedHashMap<UniformTile, byte[]>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<UniformTile, byte[]> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private final int argb;
+
+    private final int width;
+
+    private final int height;
+
+    private final int kind;
+
+    private final String format;
+
+    private final float quality;
+
+    /**
+     * @param argb
+     *            the colour of every pixel
+     * @param kind
+     *            one of {@link #RGB}, {@link #ARGB} and {@link #INDEXED}
+     * @param format
+     *            the {@link javax.imageio.ImageIO} name of the format the tile is encoded in
+     * @param quality
+     *            the compression quality, or {@code -1} for the default one
+     */
+    public UniformTile(int argb, int width, int height, int kind, String format, float quality) {
+        this.argb = argb;
+        this.width = width;
+        this.height = height;
+        this.kind = kind;
+        this.format = format;
+        this.quality = quality;
+    }
+
+    /**
+     * Checks whether all the pixels of a region of an image are the same
+     *
+     * @param format
+     *            the {@link javax.imageio.ImageIO} name of the format the tile is encoded in
+     * @param quality
+     *            the compression quality, or {@code -1} for the default one
+     * @return the uniform tile, or {@code null} if the region is not uniform
+     */
+    public static UniformTile scan(BufferedImage img, int x, int y, int width, int height,
+            String format, float quality) {
+        if (!isUniform(img.getRaster(), x, y, width, height)) {
+            return null;
+        }
+        final ColorModel cm = img.getColorModel();
+        final int kind;
+        if (cm instanceof IndexColorModel) {
+            kind = INDEXED;
+        } else {
+            kind = cm.hasAlpha() ? ARGB : RGB;
+        }
+        return new UniformTile(img.getRGB(x, y), width, height, kind, format, quality);
+    }
+
+    /**
+     * Compares the pixels straight on the data buffer for the usual layouts, stopping at the
+     * first one that differs
+     */
+    static boolean isUniform(Raster raster, int x, int y, int width, int height) {
+        final DataBuffer db = raster.getDataBuffer();
+        final SampleModel sm = raster.getSampleModel();
+        final int tx = x - raster.getSampleModelTranslateX();
+        final int ty = y - raster.getSampleModelTranslateY();
+
+        if (db instanceof DataBufferByte && db.getNumBanks() == 1
+                && sm instanceof PixelInterleavedSampleModel && isPacked(
+                        (PixelInterleavedSampleModel) sm)) {
+            final PixelInterleavedSampleModel pism = (PixelInterleavedSampleModel) sm;
+            final byte[] data = ((DataBufferByte) db).getData();
+            final int pixelStride = pism.getPixelStride();
+            final int scanlineStride = pism.getScanlineStride();
+            final int first = db.getOffset() + ty * scanlineStride + tx * pixelStride
+                    + min(pism.getBandOffsets());
+            final int rowLength = width * pixelStride;
+            // each pixel of the first row against the one before it
+            for (int i = first + pixelStride, end = first + rowLength; i < end; i++) {
+                if (data[i] != data[i - pixelStride]) {
+                    return false;
+                }
+            }
+            // the other rows against the first one
+            for (int row = 1; row < height; row++) {
+                final int start = first + row * scanlineStride;
+                for (int i = 0; i < rowLength; i++) {
+                    if (data[start + i] != data[first + i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        if (db instanceof DataBufferInt && db.getNumBanks() == 1
+                && sm instanceof SinglePixelPackedSampleModel) {
+            final SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+            final int[] data = ((DataBufferInt) db).getData();
+            int mask = 0;
+            for (int bitMask : sppsm.getBitMasks()) {
+                mask |= bitMask;
+            }
+            final int scanlineStride = sppsm.getScanlineStride();
+            final int first = db.getOffset() + ty * scanlineStride + tx;
+            final int value = data[first] & mask;
+            for (int row = 0; row < height; row++) {
+                for (int i = first + row * scanlineStride, end = i + width; i < end; i++) {
+                    if ((data[i] & mask) != value) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        final int bands = raster.getNumBands();
+        final int[] pixel = raster.getPixel(x, y, (int[]) null);
+        final int[] samples = new int[width * bands];
+        for (int row = 0; row < height; row++) {
+            raster.getPixels(x, y + row, width, 1, samples);
+            for (int i = 0; i < samples.length; i++) {
+                if (samples[i] != pixel[i % bands]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the bands of a pixel fill its stride, so that whole pixels can be compared
+     */
+    private static boolean isPacked(PixelInterleavedSampleModel sm) {
+        final int[] offsets = sm.getBandOffsets();
+        return offsets.length == sm.getPixelStride()
+                && max(offsets) - min(offsets) == offsets.length - 1;
+    }
+
+    private static int min(int[] values) {
+        int min = values[0];
+        for (int value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static int max(int[] values) {
+        int max = values[0];
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * @return whether the stored bytes of a tile are a marker rather than an image
+     */
+    public static boolean isMarker(byte[] blob) {
+        if (blob == null || blob.length <= MAGIC.length || blob.length > 128) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (blob[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static UniformTile fromMarker(byte[] marker) throws StorageException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(marker,
+                MAGIC.length, marker.length - MAGIC.length));
+        try {
+            int argb = in.readInt();
+            int width = in.readUnsignedShort();
+            int height = in.readUnsignedShort();
+            int kind = in.readUnsignedByte();
+            float quality = in.readFloat();
+            String format = in.readUTF();
+            return new UniformTile(argb, width, height, kind, format, quality);
+        } catch (IOException e) {
+            throw new StorageException("Invalid uniform tile marker: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the bytes to store instead of the encoded tile
+     */
+    public byte[] toMarker() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(MAGIC);
+            out.writeInt(argb);
+            out.writeShort(width);
+            out.writeShort(height);
+            out.writeByte(kind);
+            out.writeFloat(quality);
+            out.writeUTF(format);
+            out.flush();
+        } catch (IOException e) {
+            // not with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the tile encoded the way it would have been had it not been uniform. The same array
+     *         is returned to all callers and must not be modified.
+     */
+    public byte[] getEncoded() throws IOException {
+        byte[] bytes;
+        synchronized (encoded) {
+            bytes = encoded.get(this);
+        }
+        if (bytes == null) {
+            bytes = encode();
+            synchronized (encoded) {
+                encoded.put(this, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private byte[] encode() throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageOutputStream imgOut = new MemoryCacheImageOutputStream(bytes);
+            writer.setOutput(imgOut);
+            writer.write(null, new IIOImage(createImage(), null, null), param);
+            imgOut.close();
+            return bytes.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    BufferedImage createImage() {
+        if (kind == INDEXED) {
+            final int alpha = argb >>> 24;
+            final byte[] r = { (byte) (argb >> 16) };
+            final byte[] g = { (byte) (argb >> 8) };
+            final byte[] b = { (byte) argb };
+            final IndexColorModel cm;
+            if (alpha == 255) {
+                cm = new IndexColorModel(8, 1, r, g, b);
+            } else if (alpha == 0) {
+                cm = new IndexColorModel(8, 1, r, g, b, 0);
+            } else {
+                cm = new IndexColorModel(8, 1, r, g, b, new byte[] { (byte) alpha });
+            }
+            // all the pixels are zero already, the only entry of the palette
+            return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, cm);
+        }
+        final BufferedImage img = new BufferedImage(width, height, kind == ARGB ? BufferedImage.TYPE_4BYTE_ABGR
+                : BufferedImage.TYPE_3BYTE_BGR);
+        final byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        final byte[] pixel = kind == ARGB ? new byte[] { (byte) (argb >>> 24),
+                (byte) argb, (byte) (argb >> 8), (byte) (argb >> 16) } : new byte[] {
+                (byte) argb, (byte) (argb >> 8), (byte) (argb >> 16) };
+        for (int i = 0; i < data.length; i += pixel.length) {
+            System.arraycopy(pixel, 0, data, i, pixel.length);
+        }
+        return img;
+    }
+
+    public int getARGB() {
+        return argb;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof UniformTile)) {
+            return false;
+        }
+        UniformTile other = (UniformTile) o;
+        return argb == other.argb && width == other.width && height == other.height
+                && kind == other.kind && format.equals(other.format)
+                && Float.floatToIntBits(quality) == Float.floatToIntBits(other.quality);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = argb;
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + kind;
+        hash = 31 * hash + format.hashCode();
+        return 31 * hash + Float.floatToIntBits(quality);
+    }
+
+    @Override
+    public String toString() {
+        return "UniformTile " + Integer.toHexString(argb) + " " + width + "x" + height + " "
+                + format;
+    }
+}
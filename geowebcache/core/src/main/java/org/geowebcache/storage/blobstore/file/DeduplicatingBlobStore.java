@@ -0,0 +1,518 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.PhysicalSizeListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.WFSObject;
+
+/**
+ * Wraps a {@link FileBlobStore} so that tiles with the same content take the disk space of one.
+ * <p>
+ * Each distinct tile content is stored once under {@code <cache root>/gwc_dedup}, named after its
+ * 64 bit xxHash. The tile files are hard links to it, so reading a tile is still a single open
+ * and read. Where hard links can't be made (before Java 7, on file systems without them, or past
+ * the maximum number of links of a file) the tile file is a small reference record naming the
+ * content instead. Contents sharing a hash but not their bytes are told apart by their SHA-1.
+ * Tile files are always replaced rather than written over, since writing over a link would
+ * change every tile sharing its content.
+ * </p>
+ * <p>
+ * How many tiles refer to each content is kept by {@link ReferenceCounts}, and a content is
+ * deleted with its last tile. Listeners get the logical size of each tile as usual, and those
+ * that are {@link PhysicalSizeListener}s also get the size on disk of the shared contents.
+ * </p>
+ * <p>
+ * Tiles stored before deduplication was enabled are served as they are, and deleting or
+ * replacing them does not release anything. They are told apart from hard links to a content with
+ * the same bytes by comparing the files themselves, so it's still best to enable deduplication on
+ * an empty cache or truncate the layers first.
+ * </p>
+ */
+public class DeduplicatingBlobStore implements BlobStore {
+
+    private static final Log log = LogFactory.getLog(DeduplicatingBlobStore.class);
+
+    static final String CONTENT_DIR = "gwc_dedup";
+
+    static final char HASH_PREFIX = 'x';
+
+    static final char COLLISION_PREFIX = 's';
+
+    /**
+     * Starts a reference record, followed by the key of the content. Not a valid start of any
+     * image format.
+     */
+    static final byte[] REFERENCE_MAGIC = { 0, 'G', 'W', 'C', 'R', 'E', 'F', 1 };
+
+    private static final int LONGEST_KEY = 1 + 16 + 40;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Method TO_PATH;
+
+    private static final Method CREATE_LINK;
+
+    private static final Method IS_SAME_FILE;
+
+    static {
+        Method toPath = null;
+        Method createLink = null;
+        Method isSameFile = null;
+        try {
+            toPath = File.class.getMethod("toPath");
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> files = Class.forName("java.nio.file.Files");
+            createLink = files.getMethod("createLink", pathClass, pathClass);
+            isSameFile = files.getMethod("isSameFile", pathClass, pathClass);
+        } catch (Exception e) {
+            log.info("Hard links are not available, duplicate tiles will be reference records");
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+        IS_SAME_FILE = isSameFile;
+    }
+
+    private final FileBlobStore delegate;
+
+    private final File contentRoot;
+
+    private final ReferenceCounts references;
+
+    /**
+     * Guard the reference counts of the contents, by hash
+     */
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Guard the tile files, so that replacing or deleting a tile releases its content once
+     */
+    private final Object[] tileLocks = new Object[LOCK_STRIPES];
+
+    private volatile boolean hardLinks = CREATE_LINK != null;
+
+    private final FileBlobStore.TileFileRemover remover = new FileBlobStore.TileFileRemover() {
+        public long remove(File tile) throws StorageException {
+            return removeTile(tile);
+        }
+    };
+
+    public DeduplicatingBlobStore(FileBlobStore delegate) throws StorageException {
+        this.delegate = delegate;
+        this.contentRoot = new File(delegate.getPath(), CONTENT_DIR);
+        this.references = new ReferenceCounts(contentRoot, REFERENCE_MAGIC.length);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+            tileLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Tells whether tiles are made hard links to their content when possible, {@code true} by
+     * default
+     */
+    public void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks && CREATE_LINK != null;
+    }
+
+    public boolean delete(String layerName) throws StorageException {
+        boolean ret = delegate.delete(layerName, remover);
+        sendPhysicalSizeChanged();
+        return ret;
+    }
+
+    public boolean delete(TileObject obj) throws StorageException {
+        final File tile = delegate.getFileHandleTile(obj, false);
+        final long length = removeTile(tile);
+        if (length == -1) {
+            return false;
+        }
+        obj.setBlobSize((int) length);
+        getListeners().sendTileDeleted(obj);
+        sendPhysicalSizeChanged();
+
+        delegate.deleteIfEmpty(tile.getParentFile());
+        return true;
+    }
+
+    public boolean delete(WFSObject obj) throws StorageException {
+        return delegate.delete(obj);
+    }
+
+    public boolean delete(TileRange obj) throws StorageException {
+        boolean ret = delegate.delete(obj, remover);
+        sendPhysicalSizeChanged();
+        return ret;
+    }
+
+    public byte[] get(TileObject obj) throws StorageException {
+        byte[] blob = delegate.get(obj);
+        String key = referencedKey(blob);
+        if (key != null) {
+            blob = delegate.readFile(contentFile(key));
+        }
+        return blob;
+    }
+
+    public long get(WFSObject obj) throws StorageException {
+        return delegate.get(obj);
+    }
+
+    public boolean exists(TileObject obj) throws StorageException {
+        return delegate.exists(obj);
+    }
+
+    public void put(TileObject obj) throws StorageException {
+        final byte[] blob = obj.getBlob();
+        final File tile = delegate.getFileHandleTile(obj, true);
+        final String hashKey = hashKey(blob);
+        final File staged = new File(tile.getParentFile(), tile.getName() + "."
+                + Thread.currentThread().getId() + ".tmp");
+
+        final byte[] previous;
+        long previousLength = -1;
+        synchronized (lockForTile(tile)) {
+            previous = delegate.readFile(tile);
+            String previousKey = null;
+            boolean previousRecord = false;
+            if (previous != null) {
+                previousKey = referencedKey(previous);
+                if (previousKey != null) {
+                    previousRecord = true;
+                    previousLength = Math.max(0, references.getSize(previousKey));
+                } else {
+                    previousLength = previous.length;
+                    previousKey = linkedKey(tile, previous);
+                }
+            }
+            synchronized (lockFor(hashKey)) {
+                final String key = keyForNew(hashKey, blob);
+                final File content = contentFile(key);
+                if (references.get(key) == 0 || !content.exists()) {
+                    writeContent(content, blob);
+                }
+                final boolean record = !stage(staged, content, key);
+                // counted before the tile refers to it, a crash in between leaks the content at
+                // worst
+                references.add(key, blob.length, record);
+                rename(staged, tile);
+            }
+            if (previousKey != null) {
+                release(previousKey, previousRecord);
+            }
+        }
+
+        final BlobStoreListenerList listeners = getListeners();
+        if (previous != null) {
+            // This is important because listeners may be tracking tile existence
+            final long[] xyz = obj.getXYZ();
+            listeners.sendTileDeleted(obj.getLayerName(), obj.getGridSetId(),
+                    obj.getBlobFormat(), obj.getParameters(), xyz[0], xyz[1], (int) xyz[2],
+                    previousLength);
+        }
+        listeners.sendTileStored(obj);
+        sendPhysicalSizeChanged();
+    }
+
+    public void put(WFSObject obj) throws StorageException {
+        delegate.put(obj);
+    }
+
+    public void clear() throws StorageException {
+        delegate.clear();
+    }
+
+    public void destroy() {
+        try {
+            references.close();
+        } catch (StorageException e) {
+            log.error("Unable to save the reference counts: " + e.getMessage());
+        }
+        delegate.destroy();
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        delegate.addListener(listener);
+        if (listener instanceof PhysicalSizeListener) {
+            ((PhysicalSizeListener) listener).physicalSizeChanged(references.getPhysicalSize());
+        }
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return delegate.removeListener(listener);
+    }
+
+    /**
+     * @return the bytes of the distinct tile contents and of the reference records
+     */
+    public long getPhysicalSize() {
+        return references.getPhysicalSize();
+    }
+
+    private BlobStoreListenerList getListeners() {
+        return delegate.getListeners();
+    }
+
+    private void sendPhysicalSizeChanged() {
+        getListeners().sendPhysicalSizeChanged(references.getPhysicalSize());
+    }
+
+    /**
+     * Deletes a tile file and releases the content it refers to
+     *
+     * @return the logical length of the tile, or {@code -1} if it did not exist
+     */
+    private long removeTile(File tile) throws StorageException {
+        if (tile.getName().endsWith(".tmp")) {
+            // left over by a crash, never counted
+            tile.delete();
+            return -1;
+        }
+        synchronized (lockForTile(tile)) {
+            final byte[] data = delegate.readFile(tile);
+            if (data == null) {
+                return -1;
+            }
+            final String referenced = referencedKey(data);
+            final String key = referenced != null ? referenced : linkedKey(tile, data);
+            final long length = referenced != null ? Math.max(0, references.getSize(key))
+                    : data.length;
+            if (!tile.delete()) {
+                throw new StorageException("Unable to delete " + tile.getAbsolutePath());
+            }
+            // released after the tile is gone, a crash in between leaks the content at worst
+            if (key != null) {
+                release(key, referenced != null);
+            }
+            return length;
+        }
+    }
+
+    private void release(String key, boolean record) throws StorageException {
+        synchronized (lockFor(key)) {
+            if (references.remove(key, record) == 0) {
+                File content = contentFile(key);
+                if (!content.delete() && content.exists()) {
+                    log.warn("Unable to delete " + content.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the key to store new content under, telling it apart from a different content with
+     *         the same hash
+     */
+    private String keyForNew(String hashKey, byte[] blob) throws StorageException {
+        if (references.get(hashKey) > 0) {
+            byte[] existing = delegate.readFile(contentFile(hashKey));
+            if (existing != null && !Arrays.equals(existing, blob)) {
+                log.info("Hash collision for " + hashKey);
+                return collisionKey(hashKey, blob);
+            }
+        }
+        return hashKey;
+    }
+
+    /**
+     * @return the key of the content a tile file is a hard link to, or {@code null} if it is a
+     *         tile stored before deduplication was enabled
+     */
+    private String linkedKey(File tile, byte[] data) throws StorageException {
+        if (IS_SAME_FILE == null) {
+            // no hard links were ever made
+            return null;
+        }
+        String key = keyOfExisting(data);
+        try {
+            Boolean same = (Boolean) IS_SAME_FILE.invoke(null, TO_PATH.invoke(tile),
+                    TO_PATH.invoke(contentFile(key)));
+            return same.booleanValue() ? key : null;
+        } catch (InvocationTargetException e) {
+            // the content does not exist, so the tile can't be a link to it
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the key of the content a linked tile was stored under
+     */
+    private String keyOfExisting(byte[] data) throws StorageException {
+        String hashKey = hashKey(data);
+        if (references.hasCollision(hashKey)) {
+            byte[] existing = delegate.readFile(contentFile(hashKey));
+            if (existing == null || !Arrays.equals(existing, data)) {
+                return collisionKey(hashKey, data);
+            }
+        }
+        return hashKey;
+    }
+
+    /**
+     * Makes a hard link to the content, or a reference record if it can't
+     *
+     * @return whether it made a hard link
+     */
+    private boolean stage(File staged, File content, String key) throws StorageException {
+        staged.delete();
+        if (hardLinks) {
+            try {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(staged), TO_PATH.invoke(content));
+                return true;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof UnsupportedOperationException) {
+                    log.info("Hard links are not supported, duplicate tiles will be "
+                            + "reference records");
+                    hardLinks = false;
+                } else if (log.isDebugEnabled()) {
+                    log.debug("Unable to link " + staged + " to " + content + ": " + e.getCause());
+                }
+            } catch (IllegalAccessException e) {
+                hardLinks = false;
+            }
+        }
+
+        byte[] record = new byte[REFERENCE_MAGIC.length + key.length()];
+        System.arraycopy(REFERENCE_MAGIC, 0, record, 0, REFERENCE_MAGIC.length);
+        for (int i = 0; i < key.length(); i++) {
+            record[REFERENCE_MAGIC.length + i] = (byte) key.charAt(i);
+        }
+        write(staged, record);
+        return false;
+    }
+
+    private void writeContent(File content, byte[] blob) throws StorageException {
+        content.getParentFile().mkdirs();
+        File tmp = new File(content.getPath() + ".tmp");
+        write(tmp, blob);
+        rename(tmp, content);
+    }
+
+    private static void write(File file, byte[] data) throws StorageException {
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(data);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + file.getAbsolutePath());
+        }
+    }
+
+    private static void rename(File from, File to) throws StorageException {
+        if (!from.renameTo(to)) {
+            // where rename does not replace
+            to.delete();
+            if (!from.renameTo(to)) {
+                from.delete();
+                throw new StorageException("Unable to rename " + from.getAbsolutePath()
+                        + " to " + to.getAbsolutePath());
+            }
+        }
+    }
+
+    File contentFile(String key) {
+        File dir = new File(new File(contentRoot, key.substring(1, 3)), key.substring(3, 5));
+        return new File(dir, key);
+    }
+
+    private Object lockFor(String key) {
+        return locks[(hashKeyOf(key).hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+
+    private Object lockForTile(File tile) {
+        return tileLocks[(tile.getPath().hashCode() & 0x7FFFFFFF) % tileLocks.length];
+    }
+
+    /**
+     * @return the key of the content a reference record refers to, or {@code null} if the data is
+     *         not a reference record
+     */
+    static String referencedKey(byte[] data) {
+        if (data == null || data.length <= REFERENCE_MAGIC.length
+                || data.length > REFERENCE_MAGIC.length + LONGEST_KEY) {
+            return null;
+        }
+        for (int i = 0; i < REFERENCE_MAGIC.length; i++) {
+            if (data[i] != REFERENCE_MAGIC[i]) {
+                return null;
+            }
+        }
+        char[] key = new char[data.length - REFERENCE_MAGIC.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (char) data[REFERENCE_MAGIC.length + i];
+        }
+        return new String(key);
+    }
+
+    static String hashKey(byte[] blob) {
+        char[] key = new char[17];
+        key[0] = HASH_PREFIX;
+        appendHex(XXHash64.hash(blob, 0, blob.length, 0), key, 1);
+        return new String(key);
+    }
+
+    /**
+     * @return the {@code x} key sharing the hash of a key
+     */
+    static String hashKeyOf(String key) {
+        return key.charAt(0) == HASH_PREFIX ? key : HASH_PREFIX + key.substring(1, 17);
+    }
+
+    private static String collisionKey(String hashKey, byte[] blob) throws StorageException {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(blob);
+        } catch (NoSuchAlgorithmException e) {
+            throw new StorageException(e.getMessage());
+        }
+        StringBuilder key = new StringBuilder(LONGEST_KEY);
+        key.append(COLLISION_PREFIX).append(hashKey, 1, 17);
+        for (byte b : digest) {
+            key.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return key.toString();
+    }
+
+    private static void appendHex(long value, char[] chars, int off) {
+        for (int i = 15; i >= 0; i--) {
+            chars[off + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
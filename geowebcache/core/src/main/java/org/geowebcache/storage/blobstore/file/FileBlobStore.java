@@ -23,6 +23,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,19 +42,76 @@ import org.geowebcache.util.ServletUtils;
 
 /**
  * See BlobStore interface description for details
- * 
+ * <p>
+ * Files are written under a temporary name and renamed into place, so that they are never read
+ * half written. How they are made to survive a crash is set with
+ * {@link #setDurability(Durability)}; temporary files left over by one are deleted in the
+ * background when the store is created.
+ * </p>
  */
 public class FileBlobStore implements BlobStore {
     private static Log log = LogFactory.getLog(org.geowebcache.storage.blobstore.file.FileBlobStore.class);
     
     public static final int BUFFER_SIZE = 32768;
+
+    /**
+     * How written files are made to survive a crash
+     */
+    public static enum Durability {
+        /**
+         * Left to the operating system to write out
+         */
+        NONE,
+        /**
+         * Forced to disk as they are written, and renamed into place in batches by a background
+         * flusher so that the tiles of a directory share its syncs
+         */
+        BATCHED,
+        /**
+         * Forced to disk one at a time as they are written
+         */
+        SYNC
+    }
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 0;
+
+    public static final int DEFAULT_FLUSH_BATCH_SIZE = 256;
+
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * How long in milliseconds a temporary file is left alone before being taken for one left over
+     * by a crash
+     */
+    static final long ORPHAN_AGE = 60 * 1000;
+
+    /**
+     * Tells apart the temporary files of processes sharing the cache
+     */
+    private static final String TEMP_ID = UUID.randomUUID().toString().substring(0, 8);
+
+    private static final int MAX_KNOWN_DIRECTORIES = 100000;
     
     private final String path;
     
     private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    /**
+     * Directories made or found to exist, so that writes don't ask for them again
+     */
+    private final ConcurrentHashMap<String, Boolean> knownDirectories = new ConcurrentHashMap<String, Boolean>();
+
+    private volatile Durability durability = Durability.NONE;
+
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private int flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+
+    private volatile GroupCommitFlusher flusher;
     
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException {
         path = defStoreFinder.getDefaultPath();
+        sweepTempFilesInBackground();
     }
     
     public FileBlobStore(String rootPath) throws StorageException {
@@ -62,9 +121,90 @@ public class FileBlobStore implements BlobStore {
         if(! fh.exists() || ! fh.isDirectory() || !  fh.canWrite()) {
             throw new StorageException(path + " is not writable directory.");
         }
+        sweepTempFilesInBackground();
+    }
+
+    /**
+     * Sets how written files are made to survive a crash, {@link Durability#NONE} by default
+     */
+    public synchronized void setDurability(Durability durability) {
+        this.durability = durability;
+        restartFlusher();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Sets how long in milliseconds a batch of {@link Durability#BATCHED} writes waits for more
+     * before being flushed, none by default: a batch then takes the writes made while the
+     * previous one was flushed
+     */
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+        restartFlusher();
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Sets how many {@link Durability#BATCHED} writes are flushed together at most
+     */
+    public synchronized void setFlushBatchSize(int flushBatchSize) {
+        if (flushBatchSize < 1) {
+            throw new IllegalArgumentException("The flush batch size must be positive");
+        }
+        this.flushBatchSize = flushBatchSize;
+        restartFlusher();
+    }
+
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+
+    private void restartFlusher() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+        if (durability == Durability.BATCHED) {
+            flusher = new GroupCommitFlusher(flushInterval, flushBatchSize);
+        }
+    }
+
+    /**
+     * @return the flusher of {@link Durability#BATCHED} writes, {@code null} in the other modes
+     */
+    GroupCommitFlusher getFlusher() {
+        return flusher;
     }
     
+    /**
+     * Takes tile files out of the store, one at a time, for the deletes of whole layers and tile
+     * ranges
+     */
+    interface TileFileRemover {
+        /**
+         * @return the length of the tile that was deleted, or {@code -1} if it could not be
+         */
+        long remove(File tile) throws StorageException;
+    }
+
+    private static final TileFileRemover DELETE_FILE = new TileFileRemover() {
+        public long remove(File tile) {
+            long length = tile.length();
+            return tile.delete() ? length : -1;
+        }
+    };
+
     public boolean delete(String layerName) throws StorageException {
+        return delete(layerName, DELETE_FILE);
+    }
+
+    boolean delete(String layerName, TileFileRemover remover) throws StorageException {
         int count = 0;
 
         File layerPath = getLayerPath(layerName);
@@ -82,7 +222,7 @@ public class FileBlobStore implements BlobStore {
                 File[] tiles = imd.listFiles();
 
                 for (File tile : tiles) {
-                    tile.delete();
+                    remover.remove(tile);
                     count++;
                 }
 
@@ -104,6 +244,7 @@ public class FileBlobStore implements BlobStore {
         if(layerPath.exists()) {
             layerPath.delete();
         }
+        knownDirectories.clear();
         
         listeners.sendLayerDeleted(layerName);
         
@@ -134,16 +275,22 @@ public class FileBlobStore implements BlobStore {
         stObj.setBlobSize((int) length);
         listeners.sendTileDeleted(stObj);
        
-        File parentDir = fh.getParentFile();
-        
-        // TODO This could potentially be very slow
-        if(parentDir.isDirectory() && parentDir.canWrite() && parentDir.list().length == 0) {
-            parentDir.delete();
-        }
+        deleteIfEmpty(fh.getParentFile());
 
         return true;
     }
 
+    /**
+     * Deletes a directory tiles have been deleted from if it is left empty
+     */
+    void deleteIfEmpty(File dir) {
+        knownDirectories.remove(dir.getPath());
+        // TODO This could potentially be very slow
+        if(dir.isDirectory() && dir.canWrite() && dir.list().length == 0) {
+            dir.delete();
+        }
+    }
+
     
     public boolean delete(WFSObject stObj) throws StorageException {
         if(stObj.getQueryBlobSize() != -1) {
@@ -168,6 +315,10 @@ public class FileBlobStore implements BlobStore {
     }
     
     public boolean delete(TileRange trObj) throws StorageException {
+        return delete(trObj, DELETE_FILE);
+    }
+
+    boolean delete(TileRange trObj, TileFileRemover remover) throws StorageException {
         int count = 0;
 
         String prefix = path + File.separator 
@@ -197,9 +348,8 @@ public class FileBlobStore implements BlobStore {
                 long length;
 
                 for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
+                    length = remover.remove(tile);
+                    if (length != -1) {
                         String[] coords = tile.getName().split("\\.")[0].split("_");
                         long x = Long.parseLong(coords[0]);
                         long y = Long.parseLong(coords[1]);
@@ -222,6 +372,7 @@ public class FileBlobStore implements BlobStore {
             }
 
         }
+        knownDirectories.clear();
 
         log.info("Truncated " + count + " tiles");
 
@@ -233,6 +384,11 @@ public class FileBlobStore implements BlobStore {
         return readFile(fh);
     }
 
+    public boolean exists(TileObject stObj) throws StorageException {
+        File fh = getFileHandleTile(stObj, false);
+        return fh.exists();
+    }
+
     public long get(WFSObject stObj) throws StorageException {
         // Should we check and compare the blobs?
         File fh = getFileHandleWFS(stObj, false, false);
@@ -270,10 +426,10 @@ public class FileBlobStore implements BlobStore {
         stObj.setInputStream(is);
     }
     
-    private File getFileHandleTile(TileObject stObj, boolean create) {
-        String[] paths = null;
+    File getFileHandleTile(TileObject stObj, boolean create) {
+        File tileFile = null;
         try {
-            paths = FilePathGenerator.tilePath(
+            tileFile = FilePathGenerator.tileFile(
                     path, stObj.getLayerName(),
                     stObj.getXYZ(), stObj.getGridSetId(), 
                     MimeType.createFromFormat(stObj.getBlobFormat()), 
@@ -283,11 +439,10 @@ public class FileBlobStore implements BlobStore {
         }
 
         if (create) {
-            File parent = new File(paths[0]);
-            parent.mkdirs();
+            makeDirectory(tileFile.getParentFile());
         }
 
-        return new File(paths[0] + File.separator + paths[1]);
+        return tileFile;
     }
     
     private File getFileHandleWFS(WFSObject stObj, boolean query, boolean create) {
@@ -300,15 +455,14 @@ public class FileBlobStore implements BlobStore {
         }
         
         if(create) {
-            File dir = new File(parentPath);
-            dir.mkdirs();
+            makeDirectory(new File(parentPath));
         }
         
         return new File(parentPath + File.separator + stObj.getId());
     }
     
     
-    private byte[] readFile(File fh) throws StorageException {
+    byte[] readFile(File fh) throws StorageException {
         byte[] blob = null;
 
         FileInputStream fis;
@@ -346,45 +500,50 @@ public class FileBlobStore implements BlobStore {
         return fis;
     }
     
-    private void writeFile(File fh, byte[] blob) throws StorageException {
-        // Open the output stream
-        FileOutputStream fos;
-        try {
-            fos = new FileOutputStream(fh);
-        } catch (FileNotFoundException ioe) {
-            throw new StorageException(ioe.getMessage() + " for "
-                    + fh.getAbsolutePath());
+    /**
+     * Makes a directory unless it is known to exist
+     */
+    private void makeDirectory(File dir) {
+        final String key = dir.getPath();
+        if (knownDirectories.containsKey(key)) {
+            return;
+        }
+        if (dir.mkdirs() || dir.isDirectory()) {
+            if (knownDirectories.size() >= MAX_KNOWN_DIRECTORIES) {
+                knownDirectories.clear();
+            }
+            knownDirectories.put(key, Boolean.TRUE);
         }
+    }
+
+    private void writeFile(File fh, byte[] blob) throws StorageException {
+        final Durability mode = durability;
+        final File temp = tempFile(fh);
+        final FileOutputStream fos = openTemp(temp);
 
         // Write the stream
+        boolean written = false;
         try {
             fos.write(blob);
+            written = true;
         } catch (IOException ioe) {
             throw new StorageException(ioe.getMessage() + " for "
                     + fh.getAbsolutePath());
         } finally {
-            try {
-                fos.close();
-            } catch (IOException ioe) {
-                throw new StorageException(ioe.getMessage() + " for "
-                        + fh.getAbsolutePath());
-            }
+            closeTemp(fos, temp, written, mode);
         }
+        commit(temp, fh, mode);
     }
     
     private int writeFile(File fh, InputStream is) throws StorageException {
-        // Open the output stream
-        FileOutputStream fos;
-        try {
-            fos = new FileOutputStream(fh);
-        } catch (FileNotFoundException ioe) {
-            throw new StorageException(ioe.getMessage() + " for "
-                    + fh.getAbsolutePath());
-        }
+        final Durability mode = durability;
+        final File temp = tempFile(fh);
+        final FileOutputStream fos = openTemp(temp);
 
         byte[] buffer = new byte[2048];
         int read = 0;
         int total = 0;
+        boolean written = false;
         try {
             while(read != -1) {
                  read = is.read(buffer);
@@ -393,20 +552,137 @@ public class FileBlobStore implements BlobStore {
                      total += read;
                  }
             }
+            written = true;
         } catch (IOException ioe) {
             throw new StorageException(ioe.getMessage() + " for "
                     + fh.getAbsolutePath());
         } finally {
             try {
-                fos.close();
-                is.close();
-            } catch (IOException ioe) {
-                throw new StorageException(ioe.getMessage() + " for "
-                        + fh.getAbsolutePath());
+                closeTemp(fos, temp, written, mode);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException ioe) {
+                    throw new StorageException(ioe.getMessage() + " for "
+                            + fh.getAbsolutePath());
+                }
             }
         }
+        commit(temp, fh, mode);
         return read;
     }
+
+    /**
+     * @return where a file is written before being renamed into place
+     */
+    private static File tempFile(File fh) {
+        return new File(fh.getParentFile(), fh.getName() + "." + TEMP_ID + "-"
+                + Thread.currentThread().getId() + TEMP_SUFFIX);
+    }
+
+    private FileOutputStream openTemp(File temp) throws StorageException {
+        try {
+            return new FileOutputStream(temp);
+        } catch (FileNotFoundException e) {
+            // The directory may have been deleted since it was made
+            File dir = temp.getParentFile();
+            knownDirectories.remove(dir.getPath());
+            makeDirectory(dir);
+        }
+        try {
+            return new FileOutputStream(temp);
+        } catch (FileNotFoundException ioe) {
+            throw new StorageException(ioe.getMessage() + " for "
+                    + temp.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Closes a temporary file, forcing it to disk first unless that's left to the operating
+     * system, and deletes it unless it has been written whole
+     */
+    private static void closeTemp(FileOutputStream fos, File temp, boolean written,
+            Durability mode) throws StorageException {
+        boolean closed = false;
+        try {
+            try {
+                if (written && mode != Durability.NONE) {
+                    fos.getFD().sync();
+                }
+            } finally {
+                fos.close();
+            }
+            closed = true;
+        } catch (IOException ioe) {
+            throw new StorageException(ioe.getMessage() + " for "
+                    + temp.getAbsolutePath());
+        } finally {
+            if (!written || !closed) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Renames a written temporary file into place, once it is on disk if it is to be
+     */
+    private void commit(File temp, File fh, Durability mode) throws StorageException {
+        if (mode == Durability.BATCHED) {
+            GroupCommitFlusher batches = flusher;
+            if (batches != null) {
+                batches.commit(temp, fh);
+                return;
+            }
+        }
+        FileSync.move(temp, fh);
+        if (mode == Durability.SYNC) {
+            FileSync.syncDirectory(fh.getParentFile());
+        }
+    }
+
+    private void sweepTempFilesInBackground() {
+        Thread sweeper = new Thread("gwc.TempFileSweeper") {
+            public void run() {
+                sweepTempFiles();
+            }
+        };
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Deletes the temporary files left over by writes a crash cut short, those older than
+     * {@link #ORPHAN_AGE} so as not to take the ones of writes going on
+     *
+     * @return how many were deleted
+     */
+    int sweepTempFiles() {
+        long start = System.currentTimeMillis();
+        int count = sweepTempFiles(new File(path), start - ORPHAN_AGE);
+        if (count > 0) {
+            log.info("Deleted " + count + " temporary files left over under " + path + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return count;
+    }
+
+    private static int sweepTempFiles(File dir, long before) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File child : children) {
+            if (child.getName().endsWith(TEMP_SUFFIX)) {
+                if (child.lastModified() < before && child.delete()) {
+                    count++;
+                }
+            } else if (child.isDirectory()) {
+                count += sweepTempFiles(child, before);
+            }
+        }
+        return count;
+    }
        
     public void clear() throws StorageException {
         throw new StorageException("Not implemented yet!");
@@ -415,8 +691,22 @@ public class FileBlobStore implements BlobStore {
     /** 
      * Destroy method for Spring
      */
-    public void destroy() {
-       // Do nothing 
+    public synchronized void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    /**
+     * @return the cache root directory
+     */
+    String getPath() {
+        return path;
+    }
+
+    BlobStoreListenerList getListeners() {
+        return listeners;
     }
 
     public void addListener(BlobStoreListener listener) {
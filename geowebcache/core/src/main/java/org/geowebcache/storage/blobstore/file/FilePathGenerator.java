@@ -18,11 +18,168 @@
 package org.geowebcache.storage.blobstore.file;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.geowebcache.mime.MimeType;
 
+/**
+ * Builds the paths tiles are stored at by the {@link FileBlobStore}, e.g.
+ * {@code <prefix>/topp_states/EPSG_4326_03_7f3a/0_1/03_12.png}
+ * <p>
+ * This runs for every tile read or written, so the path is formatted into a per thread
+ * {@code char[]} rather than concatenated, and the directory part that only depends on the layer,
+ * gridset, zoom level and parameters is kept in a small cache. Use
+ * {@link #appendTilePath(StringBuilder, String, String, long[], String, MimeType, long)} with a
+ * reused buffer to avoid allocating anything at all.
+ * </p>
+ * <p>
+ * The build targets a Java 5 runtime, which has no {@code java.nio.file}, so
+ * {@link #tileNioPath(String, String, long[], String, MimeType, long)} reaches it through
+ * reflection, as {@link DeduplicatingBlobStore} does for hard links.
+ * </p>
+ */
 public class FilePathGenerator {
 
+    private static final char[] DIGIT_TENS = new char[100];
+
+    private static final char[] DIGIT_ONES = new char[100];
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    /**
+     * The original padder took the number of digits to be {@code ceil(log10(n) - 0.001)}, which is
+     * one short for numbers from 10^k up to about 1.0023 * 10^k, and these got an extra zero. Every
+     * existing cache is laid out that way, so it is kept. Index k holds the largest number with k+1
+     * digits that is taken to have k.
+     */
+    private static final long[] UNDERCOUNTED = new long[19];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (char) ('0' + i / 10);
+            DIGIT_ONES[i] = (char) ('0' + i % 10);
+        }
+
+        long pow = 1;
+        for (int k = 0; k < POWERS_OF_TEN.length; k++) {
+            POWERS_OF_TEN[k] = pow;
+            pow *= 10;
+        }
+
+        // 10 and 11 were special cased, 12 and up are counted correctly below 100
+        UNDERCOUNTED[0] = 0;
+        UNDERCOUNTED[1] = 9;
+        for (int k = 2; k < UNDERCOUNTED.length; k++) {
+            long lo = POWERS_OF_TEN[k];
+            long hi = k + 1 < POWERS_OF_TEN.length ? POWERS_OF_TEN[k + 1] - 1 : Long.MAX_VALUE;
+            // log10 is exact for powers of ten, so lo always is undercounted
+            while (lo < hi) {
+                long mid = lo + (hi - lo + 1) / 2;
+                if (legacyOrder(mid) <= k) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            UNDERCOUNTED[k] = lo;
+        }
+    }
+
+    private static final int PREFIX_CACHE_SIZE = 256;
+
+    private static final AtomicReferenceArray<DirectoryPrefix> prefixes =
+        new AtomicReferenceArray<DirectoryPrefix>(PREFIX_CACHE_SIZE);
+
+    /**
+     * The default {@code java.nio.file.FileSystem} and its {@code getPath(String, String...)}, null
+     * before Java 7
+     */
+    private static final Object FILE_SYSTEM;
+
+    private static final Method GET_PATH;
+
+    private static final String[] NO_MORE = new String[0];
+
+    static {
+        Object fileSystem = null;
+        Method getPath = null;
+        try {
+            fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault")
+                    .invoke(null);
+            getPath = Class.forName("java.nio.file.FileSystem").getMethod("getPath",
+                    String.class, String[].class);
+        } catch (Exception e) {
+            fileSystem = null;
+            getPath = null;
+        }
+        FILE_SYSTEM = fileSystem;
+        GET_PATH = getPath;
+    }
+
+    private static final ThreadLocal<TilePath> buffers = new ThreadLocal<TilePath>() {
+        protected TilePath initialValue() {
+            return new TilePath();
+        }
+    };
+
+    /**
+     * The {@code <prefix>/<layer>/<gridset>_<zoom>[_<parameters>]/} part of tile paths
+     */
+    private static final class DirectoryPrefix {
+        final String prefix;
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final long zoomLevel;
+
+        final long parametersId;
+
+        final char[] chars;
+
+        DirectoryPrefix(String prefix, String layerName, String gridSetId, long zoomLevel,
+                long parametersId) {
+            this.prefix = prefix;
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.zoomLevel = zoomLevel;
+            this.parametersId = parametersId;
+
+            StringBuilder sb = new StringBuilder(prefix).append(File.separatorChar);
+            sb.append(filteredLayerName(layerName)).append(File.separatorChar);
+            sb.append(gridsetZoomLevelDir(gridSetId, zoomLevel));
+            if (parametersId != -1L) {
+                sb.append('_').append(Long.toHexString(parametersId));
+            }
+            sb.append(File.separatorChar);
+
+            chars = new char[sb.length()];
+            sb.getChars(0, chars.length, chars, 0);
+        }
+
+        boolean matches(String prefix, String layerName, String gridSetId, long zoomLevel,
+                long parametersId) {
+            return this.zoomLevel == zoomLevel && this.parametersId == parametersId
+                    && this.layerName.equals(layerName) && this.gridSetId.equals(gridSetId)
+                    && this.prefix.equals(prefix);
+        }
+    }
+
+    /**
+     * A formatted tile path, the directory is {@code chars[0, dirLength)} and the file name
+     * follows after a separator, up to {@code length}
+     */
+    private static final class TilePath {
+        char[] chars = new char[256];
+
+        int dirLength;
+
+        int length;
+    }
+
     /**
      * Builds the storage path for a tile and returns it as two components, the directory path and
      * the tile file name.
@@ -45,45 +202,139 @@ public class FilePathGenerator {
      */
     public static String[] tilePath(String prefix, String layerName, long[] tileIndex,
             String gridSetId, MimeType mimeType, long parameters_id) {
+        TilePath path = format(prefix, layerName, tileIndex, gridSetId, mimeType, parameters_id);
+
+        String[] ret = new String[2];
+        ret[0] = new String(path.chars, 0, path.dirLength);
+        ret[1] = new String(path.chars, path.dirLength + 1, path.length - path.dirLength - 1);
+        return ret;
+    }
+
+    /**
+     * Same as {@link #tilePath(String, String, long[], String, MimeType, long)}, but returns the
+     * tile file itself
+     */
+    public static File tileFile(String prefix, String layerName, long[] tileIndex,
+            String gridSetId, MimeType mimeType, long parameters_id) {
+        TilePath path = format(prefix, layerName, tileIndex, gridSetId, mimeType, parameters_id);
+        return new File(new String(path.chars, 0, path.length));
+    }
+
+    /**
+     * @return whether {@link #tileNioPath(String, String, long[], String, MimeType, long)} can be
+     *         used, which takes Java 7
+     */
+    public static boolean isNioPathAvailable() {
+        return GET_PATH != null;
+    }
+
+    /**
+     * Same as {@link #tilePath(String, String, long[], String, MimeType, long)}, but returns the
+     * tile file as a {@code java.nio.file.Path} of the default file system, only allocating the
+     * path itself
+     * 
+     * @return a {@code java.nio.file.Path}, typed as Object so this compiles for Java 5
+     * @throws UnsupportedOperationException
+     *             if the runtime is older than Java 7, see {@link #isNioPathAvailable()}
+     */
+    public static Object tileNioPath(String prefix, String layerName, long[] tileIndex,
+            String gridSetId, MimeType mimeType, long parameters_id) {
+        if (GET_PATH == null) {
+            throw new UnsupportedOperationException("java.nio.file takes Java 7");
+        }
+        TilePath path = format(prefix, layerName, tileIndex, gridSetId, mimeType, parameters_id);
+        try {
+            return GET_PATH.invoke(FILE_SYSTEM, new String(path.chars, 0, path.length), NO_MORE);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                // InvalidPathException
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause.getMessage());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Same as {@link #tilePath(String, String, long[], String, MimeType, long)}, but appends the
+     * full path of the tile file to the given buffer, which does not allocate anything once the
+     * buffer is large enough.
+     * 
+     * @return the position in {@code buffer} of the separator between the directory and the file
+     *         name
+     */
+    public static int appendTilePath(StringBuilder buffer, String prefix, String layerName,
+            long[] tileIndex, String gridSetId, MimeType mimeType, long parameters_id) {
+        TilePath path = format(prefix, layerName, tileIndex, gridSetId, mimeType, parameters_id);
+        int start = buffer.length();
+        buffer.append(path.chars, 0, path.length);
+        return start + path.dirLength;
+    }
+
+    private static TilePath format(String prefix, String layerName, long[] tileIndex,
+            String gridSetId, MimeType mimeType, long parameters_id) {
         long x = tileIndex[0];
         long y = tileIndex[1];
         long z = tileIndex[2];
-        
-        //System.out.println("x: " + x + " y: " + y + " z: " + z);
-        
-        String layerStr = filteredLayerName(layerName);
-        
-        String paramStr = "";
-        if(parameters_id != -1L) {
-            paramStr = "_" + Long.toHexString(parameters_id);
-        }
-        
+
+        char[] dir = directoryPrefix(prefix, layerName, gridSetId, z, parameters_id);
+
         long shift = z / 2;
         long half = 2 << shift;
         int digits = 1;
         if (half > 10) {
-            digits = (int) (Math.log10(half)) + 1;
+            digits = digitCount(half);
         }
         long halfx = x / half;
         long halfy = y / half;
 
         String fileExtension = mimeType.getFileExtension();
-        
-        String[] ret = new String[2];
 
-        String gridsetZoomLevelDirName = gridsetZoomLevelDir(gridSetId, z);
+        TilePath path = buffers.get();
+        // Generous, numbers are at most 20 characters plus their padding
+        int maxLength = dir.length + 6 * digits + 4 * 21 + 3 + fileExtension.length();
+        if (path.chars.length < maxLength) {
+            path.chars = new char[maxLength * 2];
+        }
+        char[] buf = path.chars;
 
-        ret[0] = new StringBuilder(prefix).append(File.separator).append(layerStr).append(
-                File.separator).append(gridsetZoomLevelDirName).append(paramStr).append(
-                File.separator).append(zeroPadder(halfx, digits)).append('_').append(
-                zeroPadder(halfy, digits)).toString();
-        
-        ret[1] = new StringBuilder(zeroPadder(x, 2 * digits)).append('_').append(
-                zeroPadder(y, 2 * digits)).append('.').append(fileExtension).toString();
-        
-        return ret;
+        System.arraycopy(dir, 0, buf, 0, dir.length);
+        int pos = dir.length;
+        pos = writePadded(buf, pos, halfx, digits);
+        buf[pos++] = '_';
+        pos = writePadded(buf, pos, halfy, digits);
+        path.dirLength = pos;
+
+        buf[pos++] = File.separatorChar;
+        pos = writePadded(buf, pos, x, 2 * digits);
+        buf[pos++] = '_';
+        pos = writePadded(buf, pos, y, 2 * digits);
+        buf[pos++] = '.';
+        fileExtension.getChars(0, fileExtension.length(), buf, pos);
+        path.length = pos + fileExtension.length();
+
+        return path;
     }
-    
+
+    private static char[] directoryPrefix(String prefix, String layerName, String gridSetId,
+            long zoomLevel, long parametersId) {
+        int h = layerName.hashCode() * 31 + gridSetId.hashCode();
+        h = h * 31 + (int) zoomLevel;
+        h = h * 31 + (int) (parametersId ^ (parametersId >>> 32));
+        h ^= (h >>> 16) ^ (h >>> 8);
+        int slot = h & (PREFIX_CACHE_SIZE - 1);
+
+        DirectoryPrefix cached = prefixes.get(slot);
+        if (cached == null
+                || !cached.matches(prefix, layerName, gridSetId, zoomLevel, parametersId)) {
+            cached = new DirectoryPrefix(prefix, layerName, gridSetId, zoomLevel, parametersId);
+            prefixes.set(slot, cached);
+        }
+        return cached.chars;
+    }
+
     public static String gridsetZoomLevelDir(String gridSetId, long zoomLevel) {
         String gridSetStr = filteredGridSetId(gridSetId);
         StringBuilder sb = new StringBuilder(gridSetStr);
@@ -91,40 +342,81 @@ public class FilePathGenerator {
     }
 
     /**
-     * Silly way to pad numbers with leading zeros, since I don't know a fast
-     * way of doing this in Java.
+     * Pads numbers with leading zeros
      * 
      * @param number
      * @param order
+     *            the minimum number of digits
      * @return
      */
     public static String zeroPadder(long number, int order) {
-        int numberOrder = 1;
+        char[] buf = new char[Math.max(order, 0) + 21];
+        int length = writePadded(buf, 0, number, order);
+        return new String(buf, 0, length);
+    }
 
-        if (number > 9) {
-            if(number > 11) {
-                numberOrder = (int) Math.ceil(Math.log10(number) - 0.001);
-            } else {
-                numberOrder = 2;
-            }
+    /**
+     * Writes the number padded with zeros to {@code order} digits
+     * 
+     * @return the position after the last character written
+     */
+    private static int writePadded(char[] buf, int pos, long number, int order) {
+        for (int zeros = order - numberOrder(number); zeros > 0; zeros--) {
+            buf[pos++] = '0';
         }
 
-        int diffOrder = order - numberOrder;
-        
-        if(diffOrder > 0) {
-            //System.out.println("number: " + number + " order: " + order + " diff: " + diffOrder);
-            StringBuilder padding = new StringBuilder(diffOrder);
-            
-            while (diffOrder > 0) {
-                padding.append('0');
-                diffOrder--;
+        if (number < 0) {
+            if (number == Long.MIN_VALUE) {
+                String str = Long.toString(number);
+                str.getChars(0, str.length(), buf, pos);
+                return pos + str.length();
             }
-            return padding.toString() + Long.toString(number);
-        } else {
-            return Long.toString(number);
+            buf[pos++] = '-';
+            number = -number;
         }
+
+        int end = pos + digitCount(number);
+        int p = end;
+        while (number >= 100) {
+            int r = (int) (number % 100);
+            number /= 100;
+            buf[--p] = DIGIT_ONES[r];
+            buf[--p] = DIGIT_TENS[r];
+        }
+        int r = (int) number;
+        buf[--p] = DIGIT_ONES[r];
+        if (r >= 10) {
+            buf[--p] = DIGIT_TENS[r];
+        }
+        return end;
     }
-    
+
+    /**
+     * The number of digits the number is taken to have for padding, see {@link #UNDERCOUNTED}
+     */
+    private static int numberOrder(long number) {
+        if (number <= 9) {
+            return 1;
+        }
+        int digits = digitCount(number);
+        return number <= UNDERCOUNTED[digits - 1] ? digits - 1 : digits;
+    }
+
+    /**
+     * @return the number of decimal digits of a non negative number
+     */
+    private static int digitCount(long number) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && number >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int legacyOrder(long number) {
+        return (int) Math.ceil(Math.log10(number) - 0.001);
+    }
+
     public static String filteredGridSetId(String gridSetId) {
         return gridSetId.replace(':', '_');
     }
@@ -0,0 +1,165 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Renames files into place atomically and forces directories to disk, with {@code java.nio.file}
+ * where the runtime has it
+ */
+final class FileSync {
+    private static final Log log = LogFactory.getLog(FileSync.class);
+
+    private static final Method TO_PATH;
+
+    private static final Method MOVE;
+
+    private static final Object ATOMIC_MOVE;
+
+    private static final Method OPEN_CHANNEL;
+
+    private static final Object READ;
+
+    private static final Class<?> ATOMIC_MOVE_NOT_SUPPORTED;
+
+    static {
+        Method toPath = null;
+        Method move = null;
+        Object atomicMove = null;
+        Method openChannel = null;
+        Object read = null;
+        Class<?> notSupported = null;
+        try {
+            toPath = File.class.getMethod("toPath");
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> copyOption = Class.forName("java.nio.file.CopyOption");
+            move = Class.forName("java.nio.file.Files").getMethod("move", pathClass,
+                    pathClass, Array.newInstance(copyOption, 0).getClass());
+            atomicMove = Array.newInstance(copyOption, 1);
+            Array.set(atomicMove, 0, enumConstant("java.nio.file.StandardCopyOption",
+                    "ATOMIC_MOVE"));
+            notSupported = Class.forName("java.nio.file.AtomicMoveNotSupportedException");
+
+            Class<?> openOption = Class.forName("java.nio.file.OpenOption");
+            openChannel = FileChannel.class.getMethod("open", pathClass,
+                    Array.newInstance(openOption, 0).getClass());
+            read = Array.newInstance(openOption, 1);
+            Array.set(read, 0, enumConstant("java.nio.file.StandardOpenOption", "READ"));
+        } catch (Exception e) {
+            log.info("Atomic moves are not available, tiles will be renamed into place and "
+                    + "their directories not forced to disk");
+            move = null;
+            openChannel = null;
+        }
+        TO_PATH = toPath;
+        MOVE = move;
+        ATOMIC_MOVE = atomicMove;
+        OPEN_CHANNEL = openChannel;
+        READ = read;
+        ATOMIC_MOVE_NOT_SUPPORTED = notSupported;
+    }
+
+    private static volatile boolean atomicMoves = MOVE != null;
+
+    private static volatile boolean directorySync = OPEN_CHANNEL != null;
+
+    private FileSync() {
+        // static helpers
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object enumConstant(String className, String name)
+            throws ClassNotFoundException {
+        return Enum.valueOf((Class) Class.forName(className), name);
+    }
+
+    /**
+     * Renames a file over another one, so that readers see either the whole of the old one or the
+     * whole of the new one. The source is deleted if it can't be moved.
+     */
+    static void move(File from, File to) throws StorageException {
+        if (atomicMoves) {
+            try {
+                MOVE.invoke(null, TO_PATH.invoke(from), TO_PATH.invoke(to), ATOMIC_MOVE);
+                return;
+            } catch (InvocationTargetException e) {
+                if (ATOMIC_MOVE_NOT_SUPPORTED.isInstance(e.getCause())) {
+                    log.info("Atomic moves are not supported under " + to.getParent()
+                            + ", tiles will be renamed into place");
+                    atomicMoves = false;
+                } else {
+                    from.delete();
+                    throw new StorageException("Unable to move " + from.getAbsolutePath()
+                            + " to " + to.getAbsolutePath() + ": " + e.getCause());
+                }
+            } catch (IllegalAccessException e) {
+                atomicMoves = false;
+            }
+        }
+
+        if (!from.renameTo(to)) {
+            // where rename does not replace
+            to.delete();
+            if (!from.renameTo(to)) {
+                from.delete();
+                throw new StorageException("Unable to rename " + from.getAbsolutePath()
+                        + " to " + to.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that the files renamed into it survive a
+     * crash. Does nothing where directories can't be opened, such as Windows.
+     */
+    static void syncDirectory(File dir) throws StorageException {
+        if (!directorySync) {
+            return;
+        }
+        FileChannel channel;
+        try {
+            channel = (FileChannel) OPEN_CHANNEL.invoke(null, TO_PATH.invoke(dir), READ);
+        } catch (InvocationTargetException e) {
+            if (dir.isDirectory()) {
+                log.info("Directories can't be forced to disk: " + e.getCause());
+                directorySync = false;
+            }
+            return;
+        } catch (IllegalAccessException e) {
+            directorySync = false;
+            return;
+        }
+        try {
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + dir.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Renames written files into place and forces the directories they're renamed into to disk in
+ * batches, from a thread of its own, so that the many tiles written to a directory share its
+ * syncs. The writers force their own files to disk beforehand, side by side.
+ * <p>
+ * A batch takes the files written while the previous one was flushed, and those written for the
+ * flush interval after, up to the batch size. The writers waiting on it are released once their
+ * files are in place on disk.
+ * </p>
+ */
+class GroupCommitFlusher implements Runnable {
+    private static final Log log = LogFactory.getLog(GroupCommitFlusher.class);
+
+    /**
+     * A written file waiting to be renamed into place
+     */
+    private static class Commit {
+        final File temp;
+
+        final File target;
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        volatile StorageException error;
+
+        Commit(File temp, File target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Wakes the flusher up to stop
+     */
+    private static final Commit STOP = new Commit(null, null);
+
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+
+    private final long interval;
+
+    private final int batchSize;
+
+    private final Thread thread;
+
+    private boolean stopped;
+
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param interval
+     *            how long in milliseconds a batch waits for more files before being flushed
+     * @param batchSize
+     *            how many files a batch collects at most
+     */
+    GroupCommitFlusher(long interval, int batchSize) {
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.thread = new Thread(this, "gwc.TileFlusher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a file forced to disk and waits until it is on disk under its final name
+     */
+    void commit(File temp, File target) throws StorageException {
+        Commit commit = new Commit(temp, target);
+        synchronized (this) {
+            if (stopped) {
+                temp.delete();
+                throw new StorageException("The blob store has been destroyed");
+            }
+            queue.add(commit);
+        }
+        try {
+            commit.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while " + target.getAbsolutePath()
+                    + " was being flushed");
+        }
+        if (commit.error != null) {
+            throw commit.error;
+        }
+    }
+
+    /**
+     * Flushes the files queued so far and stops the flusher
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            queue.add(STOP);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return how many batches have been flushed
+     */
+    long getBatches() {
+        return batches.get();
+    }
+
+    public void run() {
+        List<Commit> batch = new ArrayList<Commit>();
+        while (true) {
+            try {
+                Commit first = queue.take();
+                if (first == STOP) {
+                    return;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                long deadline = System.currentTimeMillis() + interval;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    Commit next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                if (batch.remove(STOP)) {
+                    // the flush below is the last one
+                    queue.add(STOP);
+                }
+            } catch (InterruptedException e) {
+                // flush what there is
+            }
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Commit> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        try {
+            Map<File, List<Commit>> dirs = new HashMap<File, List<Commit>>();
+            for (Commit commit : batch) {
+                try {
+                    FileSync.move(commit.temp, commit.target);
+                } catch (StorageException e) {
+                    commit.temp.delete();
+                    commit.error = e;
+                    continue;
+                }
+                File dir = commit.target.getParentFile();
+                List<Commit> inDir = dirs.get(dir);
+                if (inDir == null) {
+                    inDir = new ArrayList<Commit>();
+                    dirs.put(dir, inDir);
+                }
+                inDir.add(commit);
+            }
+            for (Map.Entry<File, List<Commit>> dir : dirs.entrySet()) {
+                try {
+                    FileSync.syncDirectory(dir.getKey());
+                } catch (StorageException e) {
+                    log.error("Unable to flush " + dir.getKey() + ": " + e.getMessage());
+                    for (Commit commit : dir.getValue()) {
+                        commit.error = e;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Unable to flush " + batch.size() + " tiles", e);
+            StorageException error = new StorageException("Unable to flush: " + e);
+            for (Commit commit : batch) {
+                if (commit.error == null) {
+                    commit.error = error;
+                }
+            }
+        } finally {
+            for (Commit commit : batch) {
+                commit.done.countDown();
+            }
+        }
+    }
+}
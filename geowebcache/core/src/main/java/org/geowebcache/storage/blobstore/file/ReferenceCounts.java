@@ -0,0 +1,498 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * How many tiles of a {@link DeduplicatingBlobStore} refer to each of its contents, kept in
+ * memory and made durable as a snapshot plus a journal of the changes since.
+ * <p>
+ * Each change is appended to the journal, and flushed to the operating system, before the store
+ * acts on it: a count goes up before a tile links to the content and down after the tile is gone.
+ * A crash in between leaves a count too high, so a content may be kept longer than needed but is
+ * never deleted while a tile refers to it. Once the journal gets large it is folded into a new
+ * snapshot. Journals and snapshots carry a generation, so that a crash while writing the snapshot
+ * neither loses nor replays a journal twice:
+ * <ol>
+ * <li>an empty journal of the next generation is created and the changes go there from now on,</li>
+ * <li>the snapshot is written to a temporary file and renamed over the previous one,</li>
+ * <li>the journal of the previous generation is deleted.</li>
+ * </ol>
+ * Recovery loads the snapshot and replays the journals of its generation and later, up to the
+ * first record that is truncated or fails its checksum.
+ * </p>
+ */
+class ReferenceCounts {
+
+    private static final Log log = LogFactory.getLog(ReferenceCounts.class);
+
+    static final String SNAPSHOT_NAME = "refcounts";
+
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final int SNAPSHOT_MAGIC = 0x47574353;
+
+    private static final int JOURNAL_MAGIC = 0x47574352;
+
+    private static final int VERSION = 1;
+
+    private static final int JOURNAL_HEADER_SIZE = 16;
+
+    /**
+     * Journal records before a snapshot is taken, at least
+     */
+    private static final int MIN_CHECKPOINT_RECORDS = 100000;
+
+    /**
+     * The distinct contents, and how many tiles link to them or have a reference record
+     */
+    static final class Entry {
+        long size;
+
+        int links;
+
+        int records;
+
+        int references() {
+            return links + records;
+        }
+    }
+
+    private final File dir;
+
+    private final int recordOverhead;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * The {@code x} keys that have {@code s} keys sharing their hash
+     */
+    private final Set<String> collisions = new HashSet<String>();
+
+    private long physicalSize;
+
+    private long generation;
+
+    private RandomAccessFile journal;
+
+    private int journalRecords;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(128);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param dir
+     *            where the snapshot and journals are
+     * @param recordOverhead
+     *            the bytes of a reference record besides its key
+     */
+    ReferenceCounts(final File dir, final int recordOverhead) throws StorageException {
+        this.dir = dir;
+        this.recordOverhead = recordOverhead;
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new StorageException("Unable to read the reference counts in " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @return how many tiles refer to the content
+     */
+    synchronized int get(final String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? 0 : entry.references();
+    }
+
+    /**
+     * @return the size of the content, or {@code -1} if no tile refers to it
+     */
+    synchronized long getSize(final String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * @return whether there are contents with the same hash as the {@code x} key but other bytes
+     */
+    synchronized boolean hasCollision(final String hashKey) {
+        return collisions.contains(hashKey);
+    }
+
+    /**
+     * @return the bytes of all the contents referred to and of the reference records
+     */
+    synchronized long getPhysicalSize() {
+        return physicalSize;
+    }
+
+    /**
+     * Records one more tile referring to the content
+     *
+     * @param record
+     *            whether the tile is a reference record rather than a link
+     * @return how many tiles refer to it now
+     */
+    synchronized int add(final String key, final long size, final boolean record)
+            throws StorageException {
+        append(key, size, record ? 0 : 1, record ? 1 : 0);
+        int references = apply(key, size, record ? 0 : 1, record ? 1 : 0).references();
+        checkpointIfLarge();
+        return references;
+    }
+
+    /**
+     * Records one less tile referring to the content
+     *
+     * @return how many tiles refer to it now, or {@code -1} if it was not known, in which case
+     *         nothing is recorded
+     */
+    synchronized int remove(final String key, final boolean record) throws StorageException {
+        Entry entry = entries.get(key);
+        if (entry == null || (record ? entry.records : entry.links) == 0) {
+            return -1;
+        }
+        append(key, entry.size, record ? 0 : -1, record ? -1 : 0);
+        int references = apply(key, entry.size, record ? 0 : -1, record ? -1 : 0).references();
+        checkpointIfLarge();
+        return references;
+    }
+
+    /**
+     * Folds the journal into a new snapshot
+     */
+    synchronized void checkpoint() throws StorageException {
+        try {
+            final long next = generation + 1;
+            final RandomAccessFile nextJournal = createJournal(next);
+            final RandomAccessFile previousJournal = journal;
+            journal = nextJournal;
+            journalRecords = 0;
+            generation = next;
+            previousJournal.close();
+
+            writeSnapshot(next);
+            new File(dir, journalName(next - 1)).delete();
+        } catch (IOException e) {
+            throw new StorageException("Unable to write the reference counts in " + dir + ": "
+                    + e.getMessage());
+        }
+    }
+
+    synchronized void close() throws StorageException {
+        if (journal == null) {
+            return;
+        }
+        checkpoint();
+        try {
+            journal.getFD().sync();
+            journal.close();
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage());
+        } finally {
+            journal = null;
+        }
+    }
+
+    private Entry apply(final String key, final long size, final int links, final int records) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.size = size;
+            entries.put(key, entry);
+        }
+        final int before = entry.references();
+        entry.links += links;
+        entry.records += records;
+        final int after = entry.references();
+        physicalSize += records * (long) (recordOverhead + key.length());
+        if (before <= 0 && after > 0) {
+            physicalSize += entry.size;
+            if (key.charAt(0) == DeduplicatingBlobStore.COLLISION_PREFIX) {
+                collisions.add(DeduplicatingBlobStore.hashKeyOf(key));
+            }
+        } else if (before > 0 && after <= 0) {
+            physicalSize -= entry.size;
+        }
+        if (after <= 0) {
+            entries.remove(key);
+            if (key.charAt(0) == DeduplicatingBlobStore.COLLISION_PREFIX) {
+                updateCollisions(DeduplicatingBlobStore.hashKeyOf(key));
+            }
+        }
+        return entry;
+    }
+
+    private void updateCollisions(final String hashKey) {
+        for (String key : entries.keySet()) {
+            if (key.charAt(0) == DeduplicatingBlobStore.COLLISION_PREFIX
+                    && DeduplicatingBlobStore.hashKeyOf(key).equals(hashKey)) {
+                return;
+            }
+        }
+        collisions.remove(hashKey);
+    }
+
+    private void append(final String key, final long size, final int links, final int records)
+            throws StorageException {
+        try {
+            recordBuffer.reset();
+            DataOutputStream out = new DataOutputStream(recordBuffer);
+            out.writeUTF(key);
+            out.writeLong(size);
+            out.writeInt(links);
+            out.writeInt(records);
+            crc.reset();
+            crc.update(recordBuffer.toByteArray());
+            out.writeInt((int) crc.getValue());
+            out.flush();
+
+            journal.write(recordBuffer.toByteArray());
+        } catch (IOException e) {
+            throw new StorageException("Unable to write the reference count journal in " + dir
+                    + ": " + e.getMessage());
+        }
+        journalRecords++;
+    }
+
+    private void checkpointIfLarge() throws StorageException {
+        if (journalRecords >= Math.max(MIN_CHECKPOINT_RECORDS, 2 * entries.size())) {
+            checkpoint();
+        }
+    }
+
+    private void recover() throws IOException, StorageException {
+        dir.mkdirs();
+        generation = 0;
+        final File snapshot = new File(dir, SNAPSHOT_NAME);
+        if (snapshot.exists()) {
+            generation = readSnapshot(snapshot);
+        }
+
+        long last = generation;
+        String[] names = dir.list();
+        long[] journals = new long[names == null ? 0 : names.length];
+        int numJournals = 0;
+        for (int i = 0; names != null && i < names.length; i++) {
+            long journalGeneration = journalGeneration(names[i]);
+            if (journalGeneration == -1) {
+                continue;
+            }
+            if (journalGeneration < generation) {
+                // folded into the snapshot already
+                new File(dir, names[i]).delete();
+            } else {
+                journals[numJournals++] = journalGeneration;
+            }
+        }
+        Arrays.sort(journals, 0, numJournals);
+        for (int i = 0; i < numJournals; i++) {
+            replay(new File(dir, journalName(journals[i])));
+            last = journals[i];
+        }
+
+        File current = new File(dir, journalName(last));
+        if (current.exists()) {
+            journal = new RandomAccessFile(current, "rw");
+            journal.seek(journal.length());
+        } else {
+            journal = createJournal(last);
+        }
+        generation = last;
+    }
+
+    /**
+     * @return the generation of the snapshot
+     */
+    private long readSnapshot(final File snapshot) throws IOException, StorageException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+                new FileInputStream(snapshot)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                throw new StorageException(snapshot + " is not a reference count snapshot");
+            }
+            final long snapshotGeneration = in.readLong();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long size = in.readLong();
+                int links = in.readInt();
+                int records = in.readInt();
+                apply(key, size, links, records);
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new StorageException(snapshot + " is corrupt");
+            }
+            return snapshotGeneration;
+        } catch (EOFException e) {
+            throw new StorageException(snapshot + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeSnapshot(final long snapshotGeneration) throws IOException {
+        final File tmp = new File(dir, SNAPSHOT_NAME + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos),
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeInt(e.getValue().links);
+                out.writeInt(e.getValue().records);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        final File snapshot = new File(dir, SNAPSHOT_NAME);
+        if (!tmp.renameTo(snapshot)) {
+            // not atomic, but there is no way around it where rename does not replace
+            snapshot.delete();
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+            }
+        }
+    }
+
+    /**
+     * Applies the records of the journal up to the first broken one, and truncates it there
+     */
+    private void replay(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+
+            int valid = 0;
+            int replayed = 0;
+            try {
+                if (in.readInt() != JOURNAL_MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("not a reference count journal");
+                }
+                in.readLong();
+                valid = JOURNAL_HEADER_SIZE;
+                while (true) {
+                    String key = in.readUTF();
+                    long size = in.readLong();
+                    int links = in.readInt();
+                    int records = in.readInt();
+                    int end = contents.length - in.available();
+                    crc.reset();
+                    crc.update(contents, valid, end - valid);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        log.warn("Reference count journal " + file + " is corrupt after "
+                                + replayed + " records");
+                        break;
+                    }
+                    apply(key, size, links, records);
+                    replayed++;
+                    valid = end + 4;
+                }
+            } catch (EOFException e) {
+                // truncated or complete
+            } catch (IOException e) {
+                log.warn("Reference count journal " + file + " is corrupt after " + replayed
+                        + " records: " + e.getMessage());
+            }
+            if (valid < contents.length) {
+                log.info("Discarding the last " + (contents.length - valid) + " bytes of " + file);
+                raf.setLength(valid);
+            }
+            if (valid < JOURNAL_HEADER_SIZE) {
+                writeJournalHeader(raf, journalGeneration(file.getName()));
+            }
+            journalRecords += replayed;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private RandomAccessFile createJournal(final long journalGeneration) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(new File(dir,
+                journalName(journalGeneration)), "rw");
+        raf.setLength(0);
+        writeJournalHeader(raf, journalGeneration);
+        raf.getFD().sync();
+        return raf;
+    }
+
+    private static void writeJournalHeader(final RandomAccessFile raf,
+            final long journalGeneration) throws IOException {
+        raf.seek(0);
+        raf.writeInt(JOURNAL_MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeLong(journalGeneration);
+    }
+
+    static String journalName(final long journalGeneration) {
+        return SNAPSHOT_NAME + "." + journalGeneration + JOURNAL_SUFFIX;
+    }
+
+    /**
+     * @return the generation of the journal, or {@code -1} if the name is not one of a journal
+     */
+    private static long journalGeneration(final String name) {
+        if (!name.startsWith(SNAPSHOT_NAME + ".") || !name.endsWith(JOURNAL_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SNAPSHOT_NAME.length() + 1, name.length()
+                    - JOURNAL_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,881 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.WFSObject;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Spreads the tiles of a cache over several {@link FileBlobStore}s, the shards, each with a root
+ * of its own, typically on a disk of its own.
+ * <p>
+ * Tiles are placed by weighted rendezvous hashing of their layer, gridset, zoom level and
+ * parameters, and of the block of {@link #setBlockSize(int) blockSize} by blockSize tiles they
+ * fall in. Blocks are aligned the way metatiles are, so all the tiles of a metatile whose width
+ * and height divide the block size land on the same shard; the default of 12 covers metatiles of
+ * 1 to 4 and 6 tiles a side. Each shard writes through a few threads of its own, so a slow disk
+ * only holds up the writes going to it.
+ * </p>
+ * <p>
+ * A shard added with {@link #addShard(String, int)} takes over its share of the blocks, and only
+ * those move: a background task takes them off the other shards and, until it is done, tiles not
+ * found where they belong are looked for where they were.
+ * </p>
+ * <p>
+ * Shards are told apart by the path of their root, which is not to change once tiles are stored.
+ * WFS responses all go to the first shard.
+ * </p>
+ */
+public class ShardedFileBlobStore implements BlobStore {
+    private static Log log = LogFactory.getLog(ShardedFileBlobStore.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 12;
+
+    public static final int DEFAULT_WRITE_THREADS = 4;
+
+    /**
+     * How many writes may wait for the threads of a shard, further ones are made by the caller
+     */
+    private static final int WRITE_QUEUE_SIZE = 1000;
+
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * A root tiles are stored under, and how much is stored there
+     */
+    public static class Shard {
+        private final String root;
+
+        private final int weight;
+
+        private final long seed;
+
+        final FileBlobStore store;
+
+        final ThreadPoolExecutor io;
+
+        /**
+         * Bytes stored by layer, keyed by the layer directory name
+         */
+        private final ConcurrentHashMap<String, AtomicLong> usage = new ConcurrentHashMap<String, AtomicLong>();
+
+        Shard(int index, String root, int weight, FileBlobStore store, int writeThreads) {
+            this.root = root;
+            this.weight = weight;
+            this.seed = hash(bytes(root), 0);
+            this.store = store;
+
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.ShardWriter-"
+                    + index + "-");
+            tf.setDaemon(true);
+            this.io = new ThreadPoolExecutor(writeThreads, writeThreads, 0L,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE), tf,
+                    CALLER_RUNS);
+        }
+
+        public String getRoot() {
+            return root;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the bytes of the tiles stored on the shard
+         * @see ShardedFileBlobStore#scanUsage()
+         */
+        public long getUsedBytes() {
+            long total = 0;
+            for (AtomicLong bytes : usage.values()) {
+                total += bytes.get();
+            }
+            return total;
+        }
+
+        /**
+         * @return the bytes of the tiles of a layer stored on the shard
+         */
+        public long getUsedBytes(String layerName) {
+            AtomicLong bytes = usage.get(FilePathGenerator.filteredLayerName(layerName));
+            return bytes == null ? 0 : bytes.get();
+        }
+
+        void addUsage(String layerDir, long bytes) {
+            AtomicLong current = usage.get(layerDir);
+            if (current == null) {
+                AtomicLong created = new AtomicLong();
+                current = usage.putIfAbsent(layerDir, created);
+                if (current == null) {
+                    current = created;
+                }
+            }
+            current.addAndGet(bytes);
+        }
+
+        public String toString() {
+            return root + " (weight " + weight + ")";
+        }
+    }
+
+    /**
+     * Runs rejected writes on the calling thread, unless the shard has been shut down; the caller
+     * waits for them, so they can't be dropped
+     */
+    private static final RejectedExecutionHandler CALLER_RUNS = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The blob store has been destroyed");
+            }
+            r.run();
+        }
+    };
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    /**
+     * Where tiles are placed
+     */
+    private volatile Shard[] shards;
+
+    /**
+     * Where tiles were placed before the last shard was added, while the rebalancer is moving
+     * them, {@code null} otherwise
+     */
+    private volatile Shard[] previous;
+
+    /**
+     * Held to place and write a tile, and exclusively to change the shards, so that the
+     * rebalancer only starts once the writes placed on the previous shards are done
+     */
+    private final ReentrantReadWriteLock placementLock = new ReentrantReadWriteLock();
+
+    /**
+     * Guard the tiles while the rebalancer moves them, by placement key
+     */
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+
+    /**
+     * Held by the rebalancer while moving a tile, and by layer and tile range deletes throughout,
+     * so these don't miss tiles being moved
+     */
+    private final ReentrantLock moveLock = new ReentrantLock();
+
+    private volatile boolean destroyed;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private int writeThreads = DEFAULT_WRITE_THREADS;
+
+    /**
+     * @param roots
+     *            the shard roots, each given the same share of the tiles
+     */
+    public ShardedFileBlobStore(String[] roots) throws StorageException {
+        this(roots, null);
+    }
+
+    /**
+     * @param roots
+     *            the shard roots, existing writable directories
+     * @param weights
+     *            the share of the tiles of each shard, relative to the others, e.g. its size
+     */
+    public ShardedFileBlobStore(String[] roots, int[] weights) throws StorageException {
+        if (roots == null || roots.length == 0) {
+            throw new StorageException("No shard roots given");
+        }
+        if (weights != null && weights.length != roots.length) {
+            throw new StorageException(roots.length + " shard roots but " + weights.length
+                    + " weights");
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        Shard[] created = new Shard[0];
+        for (int i = 0; i < roots.length; i++) {
+            created = append(created, createShard(created, roots[i], weights == null ? 1
+                    : weights[i]));
+        }
+        shards = created;
+    }
+
+    /**
+     * Sets the width and height in tiles of the blocks placed together, which metatiles are to
+     * fit in. Changing it moves most tiles, so it is to be set before any is stored.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets how many threads each shard writes with, {@link #DEFAULT_WRITE_THREADS} by default
+     */
+    public synchronized void setWriteThreads(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("Shards need at least one write thread");
+        }
+        this.writeThreads = writeThreads;
+        for (Shard shard : shards) {
+            setPoolSize(shard.io, writeThreads);
+        }
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    /**
+     * @return the shards, with how much each stores
+     */
+    public List<Shard> getShards() {
+        return Arrays.asList(shards);
+    }
+
+    /**
+     * @return whether tiles are being moved to the last shard added
+     */
+    public boolean isRebalancing() {
+        return previous != null;
+    }
+
+    /**
+     * Adds a shard, and moves the tiles it takes over to it in the background. Meanwhile tiles
+     * are read from where they were if they're not found where they belong.
+     *
+     * @param root
+     *            the root of the shard, an existing writable directory
+     * @param weight
+     *            the share of the tiles of the shard, relative to the others
+     * @return completes once the tiles have been moved
+     * @throws StorageException
+     *             if the root can't be used, or the tiles are still being moved to the last shard
+     *             added
+     */
+    public synchronized Future<?> addShard(String root, int weight) throws StorageException {
+        if (previous != null) {
+            throw new StorageException("Tiles are still being moved to the last shard added");
+        }
+        final Shard[] before = shards;
+        Shard shard = createShard(before, root, weight);
+
+        placementLock.writeLock().lock();
+        try {
+            previous = before;
+            shards = append(before, shard);
+        } finally {
+            placementLock.writeLock().unlock();
+        }
+        log.info("Added shard " + shard + ", moving its tiles to it");
+
+        FutureTask<Object> rebalancer = new FutureTask<Object>(new Runnable() {
+            public void run() {
+                try {
+                    rebalance(before);
+                } finally {
+                    previous = null;
+                }
+            }
+        }, null);
+        Thread thread = new Thread(rebalancer, "gwc.ShardRebalancer");
+        thread.setDaemon(true);
+        thread.start();
+        return rebalancer;
+    }
+
+    /**
+     * Recomputes how much each shard stores from what is on disk, all shards at once. The usage
+     * is otherwise kept as tiles are stored and deleted, starting from nothing.
+     */
+    public void scanUsage() throws StorageException {
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final Shard shard : shards) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    Map<String, Long> usage = new HashMap<String, Long>();
+                    for (File layerDir : listDirectories(new File(shard.root))) {
+                        long bytes = 0;
+                        for (File zoomDir : listDirectories(layerDir)) {
+                            for (File imd : listDirectories(zoomDir)) {
+                                File[] tiles = imd.listFiles();
+                                for (int i = 0; tiles != null && i < tiles.length; i++) {
+                                    if (parseTileName(tiles[i].getName()) != null) {
+                                        bytes += tiles[i].length();
+                                    }
+                                }
+                            }
+                        }
+                        usage.put(layerDir.getName(), Long.valueOf(bytes));
+                    }
+                    shard.usage.clear();
+                    for (Map.Entry<String, Long> layer : usage.entrySet()) {
+                        shard.addUsage(layer.getKey(), layer.getValue().longValue());
+                    }
+                    return Boolean.TRUE;
+                }
+            });
+        }
+        fanOut(shards, tasks);
+    }
+
+    public boolean delete(final String layerName) throws StorageException {
+        final Shard[] current = shards;
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final Shard shard : current) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws StorageException {
+                    return Boolean.valueOf(shard.store.delete(layerName));
+                }
+            });
+        }
+        boolean deleted = false;
+        moveLock.lock();
+        try {
+            for (Boolean shardDeleted : fanOut(current, tasks)) {
+                deleted |= shardDeleted.booleanValue();
+            }
+        } finally {
+            moveLock.unlock();
+        }
+        listeners.sendLayerDeleted(layerName);
+        return deleted;
+    }
+
+    public boolean delete(final TileRange trObj) throws StorageException {
+        final Shard[] current = shards;
+        final String layerDir = FilePathGenerator.filteredLayerName(trObj.layerName);
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final Shard shard : current) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws StorageException {
+                    if (!new File(shard.root, layerDir).exists()) {
+                        return Boolean.FALSE;
+                    }
+                    return Boolean.valueOf(shard.store.delete(trObj));
+                }
+            });
+        }
+        moveLock.lock();
+        try {
+            fanOut(current, tasks);
+        } finally {
+            moveLock.unlock();
+        }
+        return true;
+    }
+
+    public boolean delete(final TileObject obj) throws StorageException {
+        final byte[] key = placementKey(obj);
+        placementLock.readLock().lock();
+        try {
+            final Shard shard = place(shards, key);
+            final Shard[] before = previous;
+            if (before == null) {
+                return submit(shard, new Callable<Boolean>() {
+                    public Boolean call() throws StorageException {
+                        return Boolean.valueOf(shard.store.delete(obj));
+                    }
+                }).booleanValue();
+            }
+
+            synchronized (stripe(key)) {
+                boolean deleted = shard.store.delete(obj);
+                Shard old = place(before, key);
+                if (old != shard) {
+                    // The copy not moved yet is the same tile, only tell listeners once
+                    File tile = old.store.getFileHandleTile(obj, false);
+                    long length = tile.length();
+                    if (tile.delete()) {
+                        old.addUsage(FilePathGenerator.filteredLayerName(obj.getLayerName()),
+                                -length);
+                        if (!deleted) {
+                            obj.setBlobSize((int) length);
+                            listeners.sendTileDeleted(obj);
+                            deleted = true;
+                        }
+                    }
+                }
+                return deleted;
+            }
+        } finally {
+            placementLock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(WFSObject obj) throws StorageException {
+        return shards[0].store.delete(obj);
+    }
+
+    public byte[] get(TileObject obj) throws StorageException {
+        final byte[] key = placementKey(obj);
+        final Shard[] before = previous;
+        final Shard shard = place(shards, key);
+        byte[] blob = shard.store.get(obj);
+        if (blob == null && before != null) {
+            Shard old = place(before, key);
+            if (old != shard) {
+                blob = old.store.get(obj);
+                if (blob == null) {
+                    // Moved meanwhile
+                    blob = shard.store.get(obj);
+                }
+            }
+        }
+        return blob;
+    }
+
+    public long get(WFSObject obj) throws StorageException {
+        return shards[0].store.get(obj);
+    }
+
+    public boolean exists(TileObject obj) throws StorageException {
+        final byte[] key = placementKey(obj);
+        final Shard[] before = previous;
+        final Shard shard = place(shards, key);
+        if (shard.store.exists(obj)) {
+            return true;
+        }
+        if (before != null) {
+            Shard old = place(before, key);
+            return old != shard && (old.store.exists(obj) || shard.store.exists(obj));
+        }
+        return false;
+    }
+
+    public void put(final TileObject obj) throws StorageException {
+        final byte[] key = placementKey(obj);
+        final String layerDir = FilePathGenerator.filteredLayerName(obj.getLayerName());
+        placementLock.readLock().lock();
+        try {
+            final Shard shard = place(shards, key);
+            Callable<Boolean> write = new Callable<Boolean>() {
+                public Boolean call() throws StorageException {
+                    long replaced = shard.store.getFileHandleTile(obj, false).length();
+                    shard.store.put(obj);
+                    if (replaced > 0) {
+                        // The store reports a replaced tile with the size of the new one
+                        shard.addUsage(layerDir, obj.getBlobSize() - replaced);
+                    }
+                    return Boolean.TRUE;
+                }
+            };
+            final Shard[] before = previous;
+            if (before == null) {
+                submit(shard, write);
+                return;
+            }
+
+            synchronized (stripe(key)) {
+                submit(shard, write);
+                Shard old = place(before, key);
+                if (old != shard) {
+                    // The copy not moved yet has just been replaced
+                    File tile = old.store.getFileHandleTile(obj, false);
+                    long length = tile.length();
+                    if (tile.delete()) {
+                        old.addUsage(layerDir, -length);
+                        final long[] xyz = obj.getXYZ();
+                        listeners.sendTileDeleted(obj.getLayerName(), obj.getGridSetId(),
+                                obj.getBlobFormat(), obj.getParameters(), xyz[0], xyz[1],
+                                (int) xyz[2], length);
+                    }
+                }
+            }
+        } finally {
+            placementLock.readLock().unlock();
+        }
+    }
+
+    public void put(WFSObject obj) throws StorageException {
+        shards[0].store.put(obj);
+    }
+
+    public void clear() throws StorageException {
+        throw new StorageException("Not implemented yet!");
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    public void destroy() {
+        destroyed = true;
+        for (Shard shard : shards) {
+            shard.io.shutdown();
+            shard.store.destroy();
+        }
+    }
+
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * Creates the blob store of a shard
+     */
+    protected FileBlobStore createStore(String root) throws StorageException {
+        return new FileBlobStore(root);
+    }
+
+    private Shard createShard(Shard[] existing, String root, int weight)
+            throws StorageException {
+        if (weight < 1) {
+            throw new StorageException("The weight of shard " + root + " must be positive");
+        }
+        String path = new File(root).getAbsolutePath();
+        for (Shard shard : existing) {
+            if (shard.root.equals(path)) {
+                throw new StorageException(root + " is a shard already");
+            }
+        }
+        final Shard shard = new Shard(existing.length, path, weight, createStore(path),
+                writeThreads);
+        shard.store.addListener(new BlobStoreListener() {
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                shard.addUsage(FilePathGenerator.filteredLayerName(layerName), blobSize);
+                listeners.sendTileStored(layerName, gridSetId, blobFormat, parameters, x, y, z,
+                        blobSize);
+            }
+
+            public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                shard.addUsage(FilePathGenerator.filteredLayerName(layerName), -blobSize);
+                listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parameters, x, y, z,
+                        blobSize);
+            }
+
+            public void layerDeleted(String layerName) {
+                // Sent once all the shards are done with it
+                shard.usage.remove(FilePathGenerator.filteredLayerName(layerName));
+            }
+        });
+        return shard;
+    }
+
+    /**
+     * Moves the tiles the last shard added takes over to it from the others
+     */
+    private void rebalance(Shard[] from) {
+        long start = System.currentTimeMillis();
+        int moved = 0;
+        int failed = 0;
+        for (Shard shard : from) {
+            for (File layerDir : listDirectories(new File(shard.root))) {
+                for (File zoomDir : listDirectories(layerDir)) {
+                    for (File imd : listDirectories(zoomDir)) {
+                        File[] tiles = imd.listFiles();
+                        for (int i = 0; tiles != null && i < tiles.length; i++) {
+                            if (destroyed) {
+                                return;
+                            }
+                            long[] xy = parseTileName(tiles[i].getName());
+                            if (xy == null) {
+                                continue;
+                            }
+                            byte[] key = placementKey(layerDir.getName(), zoomDir.getName(),
+                                    xy[0], xy[1]);
+                            moveLock.lock();
+                            try {
+                                Shard target = place(shards, key);
+                                if (target != shard) {
+                                    move(tiles[i], layerDir.getName(), key, shard, target);
+                                    moved++;
+                                }
+                            } catch (IOException e) {
+                                if (failed++ == 0) {
+                                    log.error("Could not move " + tiles[i] + ": "
+                                            + e.getMessage());
+                                }
+                            } finally {
+                                moveLock.unlock();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        log.info("Moved " + moved + " tiles to the new shard in "
+                + (System.currentTimeMillis() - start) + " ms"
+                + (failed > 0 ? ", " + failed + " could not be moved" : ""));
+    }
+
+    /**
+     * Moves a tile file to the same place under the root of another shard, through a temporary
+     * file so that it is never seen half copied. If the tile has been stored there meanwhile, the
+     * one here is older and only deleted.
+     */
+    private void move(File tile, String layerDir, byte[] key, Shard from, Shard to)
+            throws IOException {
+        File target = new File(to.root, tile.getPath().substring(from.root.length()));
+        synchronized (stripe(key)) {
+            long length = tile.length();
+            if (!tile.exists()) {
+                return;
+            }
+            if (!target.exists()) {
+                File dir = target.getParentFile();
+                if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                File temp = new File(dir, target.getName() + ".moving");
+                copy(tile, temp);
+                if (!temp.renameTo(target)) {
+                    temp.delete();
+                    throw new IOException("Unable to rename " + temp + " to " + target);
+                }
+                to.addUsage(layerDir, length);
+            }
+            if (tile.delete()) {
+                from.addUsage(layerDir, -length);
+            }
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[FileBlobStore.BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] placementKey(TileObject obj) {
+        final long[] xyz = obj.getXYZ();
+        String zoomDir = FilePathGenerator.gridsetZoomLevelDir(obj.getGridSetId(), xyz[2]);
+        if (obj.getParametersId() != -1L) {
+            zoomDir += '_' + Long.toHexString(obj.getParametersId());
+        }
+        return placementKey(FilePathGenerator.filteredLayerName(obj.getLayerName()), zoomDir,
+                xyz[0], xyz[1]);
+    }
+
+    /**
+     * @return what a tile is placed by, made of the directory names of its path so that it can be
+     *         had from the tile files too
+     */
+    private byte[] placementKey(String layerDir, String zoomDir, long x, long y) {
+        StringBuilder key = new StringBuilder(layerDir.length() + zoomDir.length() + 24);
+        key.append(layerDir).append('/').append(zoomDir).append('/');
+        key.append(x / blockSize).append('_').append(y / blockSize);
+        return bytes(key.toString());
+    }
+
+    /**
+     * @return the shard with the highest weighted score for the key
+     */
+    private static Shard place(Shard[] shards, byte[] key) {
+        Shard best = null;
+        double bestScore = 0;
+        for (Shard shard : shards) {
+            long hash = hash(key, shard.seed);
+            // Uniform in (0, 1)
+            double unit = ((hash >>> 11) + 0.5) / (1L << 53);
+            double score = -shard.weight / Math.log(unit);
+            if (best == null || score > bestScore) {
+                best = shard;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private Object stripe(byte[] key) {
+        return stripes[(int) hash(key, 0) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Runs a write on the threads of a shard and waits for it
+     */
+    private static <T> T submit(Shard shard, Callable<T> write) throws StorageException {
+        Future<T> result;
+        try {
+            result = shard.io.submit(write);
+        } catch (RejectedExecutionException e) {
+            throw new StorageException(e.getMessage());
+        }
+        return await(result);
+    }
+
+    /**
+     * Runs a task per shard, all at once, each on the threads of its shard
+     *
+     * @return the results, in the order of the shards
+     */
+    private static <T> List<T> fanOut(Shard[] shards, List<Callable<T>> tasks)
+            throws StorageException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        List<T> results = new ArrayList<T>(tasks.size());
+        StorageException failure = null;
+        for (int i = 0; i < shards.length; i++) {
+            FutureTask<T> task = new FutureTask<T>(tasks.get(i));
+            futures.add(task);
+            try {
+                shards[i].io.execute(task);
+            } catch (RejectedExecutionException e) {
+                failure = new StorageException(e.getMessage());
+                task.cancel(false);
+            }
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(await(future));
+            } catch (StorageException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = new StorageException(e.toString());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    private static <T> T await(Future<T> result) throws StorageException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted waiting for a shard");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new StorageException(cause.toString());
+        }
+    }
+
+    private static void setPoolSize(ThreadPoolExecutor executor, int size) {
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    private static Shard[] append(Shard[] shards, Shard shard) {
+        Shard[] appended = new Shard[shards.length + 1];
+        System.arraycopy(shards, 0, appended, 0, shards.length);
+        appended[shards.length] = shard;
+        return appended;
+    }
+
+    private static File[] listDirectories(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> dirs = new ArrayList<File>(files.length);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                dirs.add(file);
+            }
+        }
+        return dirs.toArray(new File[dirs.size()]);
+    }
+
+    /**
+     * @return the x and y of a tile file name like {@code 0012_0345.png}, or {@code null} if it
+     *         is not one
+     */
+    static long[] parseTileName(String name) {
+        int split = name.indexOf('_');
+        int dot = name.indexOf('.', split + 1);
+        if (split < 1 || dot < split + 2 || name.indexOf('.', dot + 1) != -1) {
+            return null;
+        }
+        try {
+            return new long[] { Long.parseLong(name.substring(0, split)),
+                    Long.parseLong(name.substring(split + 1, dot)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long hash(byte[] key, long seed) {
+        return XXHash64.hash(key, 0, key.length, seed);
+    }
+
+    private static byte[] bytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
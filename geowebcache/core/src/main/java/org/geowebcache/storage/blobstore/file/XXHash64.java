@@ -0,0 +1,114 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+/**
+ * The 64 bit xxHash of a byte array, as specified at {@code https://github.com/Cyan4973/xxHash}.
+ * Fast enough to hash every tile stored, but not meant to resist collisions made on purpose.
+ */
+final class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XXHash64() {
+        // static methods only
+    }
+
+    static long hash(final byte[] buf, final int off, final int len, final long seed) {
+        final int end = off + len;
+        int p = off;
+        long h64;
+
+        if (len >= 32) {
+            final int limit = end - 32;
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, readLong(buf, p));
+                v2 = round(v2, readLong(buf, p + 8));
+                v3 = round(v3, readLong(buf, p + 16));
+                v4 = round(v4, readLong(buf, p + 24));
+                p += 32;
+            } while (p <= limit);
+
+            h64 = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                    + Long.rotateLeft(v4, 18);
+            h64 = mergeRound(h64, v1);
+            h64 = mergeRound(h64, v2);
+            h64 = mergeRound(h64, v3);
+            h64 = mergeRound(h64, v4);
+        } else {
+            h64 = seed + PRIME5;
+        }
+
+        h64 += len;
+
+        while (p + 8 <= end) {
+            h64 ^= round(0, readLong(buf, p));
+            h64 = Long.rotateLeft(h64, 27) * PRIME1 + PRIME4;
+            p += 8;
+        }
+        if (p + 4 <= end) {
+            h64 ^= (readInt(buf, p) & 0xFFFFFFFFL) * PRIME1;
+            h64 = Long.rotateLeft(h64, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        while (p < end) {
+            h64 ^= (buf[p] & 0xFF) * PRIME5;
+            h64 = Long.rotateLeft(h64, 11) * PRIME1;
+            p++;
+        }
+
+        h64 ^= h64 >>> 33;
+        h64 *= PRIME2;
+        h64 ^= h64 >>> 29;
+        h64 *= PRIME3;
+        h64 ^= h64 >>> 32;
+        return h64;
+    }
+
+    private static long round(long acc, final long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, final long val) {
+        acc ^= round(0, val);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong(final byte[] buf, final int p) {
+        return (buf[p] & 0xFFL) | (buf[p + 1] & 0xFFL) << 8 | (buf[p + 2] & 0xFFL) << 16
+                | (buf[p + 3] & 0xFFL) << 24 | (buf[p + 4] & 0xFFL) << 32
+                | (buf[p + 5] & 0xFFL) << 40 | (buf[p + 6] & 0xFFL) << 48
+                | (buf[p + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(final byte[] buf, final int p) {
+        return (buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8 | (buf[p + 2] & 0xFF) << 16
+                | (buf[p + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compresses text blobs to gzip once, when they are stored, and sends them on as they are to the
+ * clients that accept gzip, or inflated for the ones that do not.
+ * <p>
+ * The gzip members written here are a fixed ten byte header, the raw deflate stream and the
+ * CRC-32 and size of the data. Since the deflate stream is the same one a zip entry holds, a KMZ
+ * can be put together out of a stored blob without compressing it again, see
+ * {@link #getDeflatedOffset(byte[])}.
+ * </p>
+ * <p>
+ * The {@link Deflater}s are pooled, they hold a fair amount of native memory and are otherwise
+ * allocated for every blob.
+ * </p>
+ */
+public class GzipUtils {
+
+    /**
+     * The storage and content encoding of gzipped blobs
+     */
+    public static final String GZIP = "gzip";
+
+    private static final int MAX_POOLED_DEFLATERS = 8;
+
+    private static final LinkedList<Deflater> deflaters = new LinkedList<Deflater>();
+
+    private static final int HEADER_LENGTH = 10;
+
+    private static final int TRAILER_LENGTH = 8;
+
+    private static final int FHCRC = 2;
+
+    private static final int FEXTRA = 4;
+
+    private static final int FNAME = 8;
+
+    private static final int FCOMMENT = 16;
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+            (byte) 0xff };
+
+    private GzipUtils() {
+    }
+
+    /**
+     * @return a raw (no zlib header) deflater at the given level, to be handed back with
+     *         {@link #releaseDeflater(Deflater)}
+     */
+    public static Deflater acquireDeflater(int level) {
+        Deflater deflater = null;
+        synchronized (deflaters) {
+            if (deflaters.size() > 0) {
+                deflater = deflaters.removeFirst();
+            }
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    public static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        synchronized (deflaters) {
+            if (deflaters.size() < MAX_POOLED_DEFLATERS) {
+                deflaters.addFirst(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * @return whether the blob starts like a gzip member
+     */
+    public static boolean isGzip(byte[] blob) {
+        return blob != null && blob.length >= HEADER_LENGTH + TRAILER_LENGTH
+                && blob[0] == HEADER[0] && blob[1] == HEADER[1] && blob[2] == HEADER[2];
+    }
+
+    /**
+     * @param data the data to compress
+     * @param level the deflate level, see {@link Deflater}
+     * @return the data as a gzip member
+     */
+    public static byte[] compress(byte[] data, int level) {
+        byte[] out = new byte[HEADER_LENGTH + data.length / 4 + 64];
+        System.arraycopy(HEADER, 0, out, 0, HEADER_LENGTH);
+        int length = HEADER_LENGTH;
+
+        Deflater deflater = acquireDeflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = grow(out, length, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+        } finally {
+            releaseDeflater(deflater);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] gzip = grow(out, length, length + TRAILER_LENGTH);
+        writeTrailer(gzip, length, crc.getValue(), data.length);
+        return gzip;
+    }
+
+    /**
+     * Compresses a stream as it is read, the deflater goes back to the pool when the returned
+     * stream is closed
+     *
+     * @param in the data to compress, closed along with the returned stream
+     * @param level the deflate level, see {@link Deflater}
+     * @return a stream of the data as a gzip member
+     */
+    public static InputStream compress(InputStream in, int level) {
+        return new CompressingInputStream(in, acquireDeflater(level));
+    }
+
+    /**
+     * @return the data of the gzip member
+     * @throws IOException if the member is corrupt
+     */
+    public static byte[] decompress(byte[] gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(0, getUncompressedSize(gzip)));
+        decompress(gzip, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflates the gzip member to the stream, a buffer at a time
+     *
+     * @return the number of bytes written
+     * @throws IOException if the member is corrupt or the stream could not be written to
+     */
+    public static int decompress(byte[] gzip, OutputStream out) throws IOException {
+        int offset = getDeflatedOffset(gzip);
+        CRC32 crc = new CRC32();
+        Inflater inflater = new Inflater(true);
+        int written = 0;
+        try {
+            inflater.setInput(gzip, offset, gzip.length - offset - TRAILER_LENGTH);
+            byte[] buf = new byte[Math.min(8192, Math.max(256, getUncompressedSize(gzip)))];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buf);
+                if (read == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated gzip data");
+                }
+                crc.update(buf, 0, read);
+                out.write(buf, 0, read);
+                written += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt gzip data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (crc.getValue() != getCrc(gzip) || written != getUncompressedSize(gzip)) {
+            throw new IOException("Corrupt gzip data, the checksum or size do not match");
+        }
+        return written;
+    }
+
+    /**
+     * @return where the deflate stream of the gzip member starts, it ends eight bytes before the
+     *         end of the member
+     * @throws IOException if this is not a gzip member
+     */
+    public static int getDeflatedOffset(byte[] gzip) throws IOException {
+        if (!isGzip(gzip)) {
+            throw new IOException("Not gzip data");
+        }
+        int flags = gzip[3] & 0xFF;
+        int offset = HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            offset += 2 + ((gzip[offset] & 0xFF) | (gzip[offset + 1] & 0xFF) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            offset = skipString(gzip, offset);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            offset = skipString(gzip, offset);
+        }
+        if ((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        if (offset > gzip.length - TRAILER_LENGTH) {
+            throw new IOException("Truncated gzip header");
+        }
+        return offset;
+    }
+
+    /**
+     * @return the CRC-32 of the data, from the trailer of the gzip member
+     */
+    public static long getCrc(byte[] gzip) {
+        return readInt(gzip, gzip.length - TRAILER_LENGTH) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the size of the data, from the trailer of the gzip member
+     */
+    public static int getUncompressedSize(byte[] gzip) {
+        return readInt(gzip, gzip.length - 4);
+    }
+
+    /**
+     * @return whether the request has an {@code Accept-Encoding} header allowing gzip
+     */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        return request != null && acceptsGzip(request.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * @param acceptEncoding the value of an {@code Accept-Encoding} header, may be null
+     * @return whether gzip is listed, with a quality other than zero
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(GZIP)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException nfe) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a gzipped blob to the response, as it is with {@code Content-Encoding: gzip} if the
+     * client accepts it, inflated otherwise. Either way the response varies on
+     * {@code Accept-Encoding}.
+     *
+     * @return the number of bytes sent
+     */
+    public static int writeResponse(HttpServletRequest request, HttpServletResponse response,
+            byte[] gzip) throws IOException {
+        response.setHeader("Vary", "Accept-Encoding");
+        if (acceptsGzip(request)) {
+            response.setHeader("Content-Encoding", GZIP);
+            response.setContentLength(gzip.length);
+            response.getOutputStream().write(gzip);
+            return gzip.length;
+        }
+        response.setContentLength(getUncompressedSize(gzip));
+        return decompress(gzip, response.getOutputStream());
+    }
+
+    private static int skipString(byte[] gzip, int offset) throws IOException {
+        while (offset < gzip.length && gzip[offset] != 0) {
+            offset++;
+        }
+        if (offset == gzip.length) {
+            throw new IOException("Truncated gzip header");
+        }
+        return offset + 1;
+    }
+
+    private static byte[] grow(byte[] buf, int length, int capacity) {
+        byte[] grown = new byte[capacity];
+        System.arraycopy(buf, 0, grown, 0, length);
+        return grown;
+    }
+
+    private static void writeTrailer(byte[] buf, int offset, long crc, int size) {
+        writeInt(buf, offset, (int) crc);
+        writeInt(buf, offset + 4, size);
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >>> 8);
+        buf[offset + 2] = (byte) (value >>> 16);
+        buf[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | (buf[offset + 1] & 0xFF) << 8
+                | (buf[offset + 2] & 0xFF) << 16 | (buf[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Hands out the header, the deflated data as it is compressed and then the trailer
+     */
+    private static class CompressingInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] inBuf = new byte[8192];
+
+        private Deflater deflater;
+
+        private byte[] buf = new byte[8192];
+
+        private int pos;
+
+        private int limit;
+
+        private int size;
+
+        private boolean trailerWritten;
+
+        CompressingInputStream(InputStream in, Deflater deflater) {
+            this.in = in;
+            this.deflater = deflater;
+            System.arraycopy(HEADER, 0, buf, 0, HEADER_LENGTH);
+            limit = HEADER_LENGTH;
+        }
+
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int read = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, read);
+            pos += read;
+            return read;
+        }
+
+        public void close() throws IOException {
+            releaseDeflater();
+            in.close();
+        }
+
+        /**
+         * @return false once everything has been read
+         */
+        private boolean fill() throws IOException {
+            while (pos == limit) {
+                if (trailerWritten) {
+                    return false;
+                }
+                pos = 0;
+                limit = 0;
+                if (!deflater.finished()) {
+                    if (deflater.needsInput()) {
+                        int read = in.read(inBuf);
+                        if (read == -1) {
+                            deflater.finish();
+                        } else {
+                            crc.update(inBuf, 0, read);
+                            size += read;
+                            deflater.setInput(inBuf, 0, read);
+                        }
+                    }
+                    limit = deflater.deflate(buf);
+                } else {
+                    writeTrailer(buf, 0, crc.getValue(), size);
+                    limit = TRAILER_LENGTH;
+                    trailerWritten = true;
+                    releaseDeflater();
+                }
+            }
+            return true;
+        }
+
+        private void releaseDeflater() {
+            if (deflater != null) {
+                GzipUtils.releaseDeflater(deflater);
+                deflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reduces an image to a palette of at most 256 colours, alpha included, with an octree.
+ * <p>
+ * Each level of the tree splits on one more bit of red, green, blue and alpha, so a node has up
+ * to 16 children. Colours are added down to {@link #MAX_DEPTH} levels, and whenever there are more
+ * leaves than palette entries the deepest node added last is folded into a leaf averaging its
+ * children. Fully transparent pixels all share a palette entry of their own, the first one, so
+ * that the {@code tRNS} chunk of a PNG stays short.
+ * </p>
+ * <p>
+ * Mapping the pixels to the palette walks the tree down to the leaf the colour ends up in, and
+ * remembers the last few thousand colours looked up, since maps use few colours over large areas.
+ * </p>
+ * <p>
+ * Instances are not thread safe, use one per image.
+ * </p>
+ */
+public class OctreeQuantizer {
+
+    static final int MAX_DEPTH = 6;
+
+    private static final int MAX_COLORS = 256;
+
+    private static final int CACHE_BITS = 12;
+
+    private static final class Node {
+        long red, green, blue, alpha;
+
+        int pixels;
+
+        Node[] children;
+
+        boolean leaf;
+
+        int index;
+
+        /**
+         * The next node of the same level that may be folded
+         */
+        Node nextReducible;
+    }
+
+    private final Node root = new Node();
+
+    private final Node[] reducible = new Node[MAX_DEPTH];
+
+    private int leaves;
+
+    private boolean transparent;
+
+    private final int maxColors;
+
+    private final int[] cacheKeys = new int[1 << CACHE_BITS];
+
+    /**
+     * The palette index plus one, zero for an empty slot
+     */
+    private final short[] cacheValues = new short[1 << CACHE_BITS];
+
+    public OctreeQuantizer() {
+        this(MAX_COLORS);
+    }
+
+    /**
+     * @param maxColors
+     *            the maximum number of palette entries, up to 256
+     */
+    public OctreeQuantizer(int maxColors) {
+        this.maxColors = Math.min(maxColors, MAX_COLORS);
+    }
+
+    /**
+     * Reduces an image to an 8 bit paletted one
+     */
+    public static BufferedImage quantize(BufferedImage image) {
+        OctreeQuantizer quantizer = new OctreeQuantizer();
+        quantizer.add(image);
+        return quantizer.map(image, quantizer.buildColorModel());
+    }
+
+    /**
+     * Adds the colours of the image to the tree
+     */
+    public void add(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] row = new int[width];
+        int previous = 0;
+        boolean first = true;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                final int argb = row[x];
+                if (!first && argb == previous) {
+                    // the same colour again, counting it would only refine the average
+                    continue;
+                }
+                add(argb);
+                previous = argb;
+                first = false;
+            }
+        }
+    }
+
+    private void add(final int argb) {
+        if (argb >>> 24 == 0) {
+            if (!transparent) {
+                transparent = true;
+                reduceToFit();
+            }
+            return;
+        }
+        final int a = argb >>> 24;
+        final int r = (argb >> 16) & 0xFF;
+        final int g = (argb >> 8) & 0xFF;
+        final int b = argb & 0xFF;
+
+        Node node = root;
+        for (int level = 0; !node.leaf; level++) {
+            if (node.children == null) {
+                node.children = new Node[16];
+                node.nextReducible = reducible[level];
+                reducible[level] = node;
+            }
+            final int child = childIndex(r, g, b, a, level);
+            Node next = node.children[child];
+            if (next == null) {
+                next = new Node();
+                if (level + 1 == MAX_DEPTH) {
+                    next.leaf = true;
+                    leaves++;
+                }
+                node.children[child] = next;
+            }
+            node = next;
+        }
+        node.red += r;
+        node.green += g;
+        node.blue += b;
+        node.alpha += a;
+        node.pixels++;
+
+        reduceToFit();
+    }
+
+    private void reduceToFit() {
+        while (leaves > maxColors - (transparent ? 1 : 0)) {
+            reduce();
+        }
+    }
+
+    private static int childIndex(int r, int g, int b, int a, int level) {
+        final int shift = 7 - level;
+        return ((r >> shift) & 1) << 3 | ((g >> shift) & 1) << 2 | ((b >> shift) & 1) << 1
+                | ((a >> shift) & 1);
+    }
+
+    /**
+     * Folds the children of the deepest reducible node into it
+     */
+    private void reduce() {
+        int level = MAX_DEPTH - 1;
+        while (reducible[level] == null) {
+            level--;
+        }
+        final Node node = reducible[level];
+        reducible[level] = node.nextReducible;
+
+        int folded = 0;
+        for (Node child : node.children) {
+            if (child != null) {
+                node.red += child.red;
+                node.green += child.green;
+                node.blue += child.blue;
+                node.alpha += child.alpha;
+                node.pixels += child.pixels;
+                folded++;
+            }
+        }
+        node.children = null;
+        node.leaf = true;
+        leaves -= folded - 1;
+    }
+
+    /**
+     * @return the palette of the colours added so far, the fully transparent entry first if any
+     */
+    public IndexColorModel buildColorModel() {
+        final int size = leaves + (transparent ? 1 : 0);
+        final byte[] r = new byte[Math.max(size, 1)];
+        final byte[] g = new byte[r.length];
+        final byte[] b = new byte[r.length];
+        final byte[] a = new byte[r.length];
+        int next = 0;
+        if (transparent) {
+            next++;
+        }
+        next = assignIndexes(root, r, g, b, a, next);
+        if (size == 0) {
+            // nothing added at all, any palette will do
+            a[0] = (byte) 255;
+        }
+        return new IndexColorModel(8, r.length, r, g, b, a);
+    }
+
+    private int assignIndexes(Node node, byte[] r, byte[] g, byte[] b, byte[] a, int next) {
+        if (node.leaf) {
+            if (node.pixels > 0) {
+                r[next] = (byte) (node.red / node.pixels);
+                g[next] = (byte) (node.green / node.pixels);
+                b[next] = (byte) (node.blue / node.pixels);
+                a[next] = (byte) (node.alpha / node.pixels);
+                node.index = next++;
+            }
+            return next;
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    next = assignIndexes(child, r, g, b, a, next);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Maps the pixels of an image to the palette built out of its colours
+     *
+     * @return an image of the same size with the {@code palette} as its colour model
+     */
+    public BufferedImage map(BufferedImage image, IndexColorModel palette) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final WritableRaster raster = palette.createCompatibleWritableRaster(width, height);
+        final byte[] indexes = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                indexes[offset + x] = (byte) indexOf(row[x]);
+            }
+        }
+        return new BufferedImage(palette, raster, false, null);
+    }
+
+    private int indexOf(final int argb) {
+        if (argb >>> 24 == 0) {
+            return 0;
+        }
+        final int slot = (argb * 0x9E3779B1) >>> (32 - CACHE_BITS);
+        if (cacheValues[slot] != 0 && cacheKeys[slot] == argb) {
+            return cacheValues[slot] - 1;
+        }
+
+        final int a = argb >>> 24;
+        final int r = (argb >> 16) & 0xFF;
+        final int g = (argb >> 8) & 0xFF;
+        final int b = argb & 0xFF;
+        Node node = root;
+        for (int level = 0; !node.leaf; level++) {
+            final Node next = node.children[childIndex(r, g, b, a, level)];
+            if (next == null) {
+                // a colour that was not added, use any leaf below
+                node = anyLeaf(node);
+                break;
+            }
+            node = next;
+        }
+        cacheKeys[slot] = argb;
+        cacheValues[slot] = (short) (node.index + 1);
+        return node.index;
+    }
+
+    private static Node anyLeaf(Node node) {
+        while (!node.leaf) {
+            for (Node child : node.children) {
+                if (child != null) {
+                    node = child;
+                    break;
+                }
+            }
+        }
+        return node;
+    }
+}
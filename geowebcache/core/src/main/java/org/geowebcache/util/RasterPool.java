@@ -0,0 +1,127 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.util;
+
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A small pool of {@link WritableRaster}s, keyed by dimensions and the layout implied by the
+ * {@link ColorModel} they are used with.
+ * <p>
+ * Large rasters (canvases, metatiles) are expensive to allocate and clear, and are usually
+ * needed again shortly afterwards with the same dimensions. Rasters handed out by
+ * {@link #acquire} are not cleared, the caller is expected to overwrite or fill them.
+ * </p>
+ * <p>
+ * The pool is bounded both in the number of distinct layouts it remembers, least recently
+ * used ones are dropped first, and in the number of rasters kept per layout.
+ * </p>
+ */
+public class RasterPool {
+
+    private final int maxPerKey;
+
+    private final Map<String, LinkedList<WritableRaster>> pooled;
+
+    /**
+     * @param maxKeys the maximum number of distinct dimensions / layouts to keep rasters for
+     * @param maxPerKey the maximum number of idle rasters kept per dimensions / layout
+     */
+    public RasterPool(final int maxKeys, int maxPerKey) {
+        this.maxPerKey = maxPerKey;
+        this.pooled = new LinkedHashMap<String, LinkedList<WritableRaster>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, LinkedList<WritableRaster>> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Returns a raster compatible with the given color model, either from the pool or newly
+     * allocated. The contents of a pooled raster are whatever its previous user left in it.
+     */
+    public WritableRaster acquire(ColorModel cm, int width, int height) {
+        final String key = key(cm, width, height);
+
+        synchronized (pooled) {
+            LinkedList<WritableRaster> rasters = pooled.get(key);
+            while (rasters != null && rasters.size() > 0) {
+                WritableRaster raster = rasters.removeFirst();
+                if (cm.isCompatibleRaster(raster)) {
+                    return raster;
+                }
+            }
+        }
+
+        return cm.createCompatibleWritableRaster(width, height);
+    }
+
+    /**
+     * Hands a raster back to the pool. The caller must not use it afterwards.
+     *
+     * @param cm the color model the raster was acquired for
+     * @param raster the raster, null is ignored
+     */
+    public void release(ColorModel cm, WritableRaster raster) {
+        if (raster == null || raster.getParent() != null
+                || raster.getMinX() != 0 || raster.getMinY() != 0) {
+            // Children share their parent's data, never pool those
+            return;
+        }
+
+        final String key = key(cm, raster.getWidth(), raster.getHeight());
+
+        synchronized (pooled) {
+            LinkedList<WritableRaster> rasters = pooled.get(key);
+            if (rasters == null) {
+                rasters = new LinkedList<WritableRaster>();
+                pooled.put(key, rasters);
+            }
+            if (rasters.size() < maxPerKey) {
+                rasters.addFirst(raster);
+            }
+        }
+    }
+
+    /**
+     * @return the number of idle rasters currently held by the pool
+     */
+    public int size() {
+        int size = 0;
+        synchronized (pooled) {
+            for (LinkedList<WritableRaster> rasters : pooled.values()) {
+                size += rasters.size();
+            }
+        }
+        return size;
+    }
+
+    private static String key(ColorModel cm, int width, int height) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append(width).append('x').append(height);
+        sb.append(':').append(cm.getClass().getName());
+        sb.append(':').append(cm.getTransferType());
+        sb.append(':').append(cm.getNumComponents());
+        sb.append(':').append(cm.getPixelSize());
+        return sb.toString();
+    }
+}
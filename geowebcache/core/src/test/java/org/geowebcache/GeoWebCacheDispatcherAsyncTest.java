@@ -0,0 +1,479 @@
+package org.geowebcache;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.meta.ServiceInformation;
+import org.geowebcache.conveyor.Conveyor;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSHttpHelper;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.locks.MemoryLockProvider;
+import org.geowebcache.locks.MetatileLockProvider;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.service.Service;
+import org.geowebcache.stats.RuntimeStats;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.util.ApplicationContextProvider;
+import org.springframework.web.context.support.StaticWebApplicationContext;
+
+/**
+ * Runs the dispatcher in a Servlet 3.0 container with a small thread pool, in front of a slow
+ * backend, and checks that requests missing the cache give their threads back to the container
+ */
+public class GeoWebCacheDispatcherAsyncTest extends TestCase {
+
+    private static final String LAYER = "test:layer";
+
+    private static final int CONTAINER_THREADS = 50;
+
+    private static final int MISSES = 2000;
+
+    private static final int BACKEND_LATENCY = 300;
+
+    private static final int ZOOM_LEVEL = 10;
+
+    private static final int META = 4;
+
+    private final GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private final AtomicInteger backendRequests = new AtomicInteger();
+
+    private Server backend;
+
+    private Server frontEnd;
+
+    private GeoWebCacheDispatcher dispatcher;
+
+    private String baseUrl;
+
+    private WMSLayer layer;
+
+    private RuntimeStats runtimeStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        backend = new Server(0);
+        backend.setHandler(new AbstractHandler() {
+            private final Map<String, byte[]> images = new ConcurrentHashMap<String, byte[]>();
+
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException, ServletException {
+                backendRequests.incrementAndGet();
+                try {
+                    Thread.sleep(BACKEND_LATENCY);
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+                String width = request.getParameter("WIDTH");
+                String height = request.getParameter("HEIGHT");
+                byte[] image = images.get(width + "x" + height);
+                if (image == null) {
+                    image = createImage(Integer.parseInt(width), Integer.parseInt(height));
+                    images.put(width + "x" + height, image);
+                }
+                response.setContentType("image/png");
+                response.setContentLength(image.length);
+                response.getOutputStream().write(image);
+                baseRequest.setHandled(true);
+            }
+        });
+        backend.start();
+
+        layer = createLayer("http://localhost:" + backend.getConnectors()[0].getLocalPort()
+                + "/wms");
+        final StorageBroker storage = new MemoryStorageBroker();
+        Configuration config = new Configuration() {
+            public List<TileLayer> getTileLayers(boolean reload) {
+                return Collections.<TileLayer> singletonList(layer);
+            }
+
+            public String getIdentifier() {
+                return "test";
+            }
+
+            public ServiceInformation getServiceInformation() {
+                return null;
+            }
+
+            public boolean isRuntimeStatsEnabled() {
+                return true;
+            }
+        };
+        TileLayerDispatcher layers = new TileLayerDispatcher(gridSetBroker, Collections
+                .singletonList(config), -1);
+        runtimeStats = new RuntimeStats(1, Arrays.asList(60), Arrays.asList("1 minute"));
+        dispatcher = new GeoWebCacheDispatcher(layers, gridSetBroker, storage, config,
+                runtimeStats);
+        dispatcher.setDefaultStorageFinder(new DefaultStorageFinder(
+                new ApplicationContextProvider()) {
+            @Override
+            public String findEnvVar(String varStr) {
+                return null;
+            }
+        });
+        StaticWebApplicationContext context = new StaticWebApplicationContext();
+        context.getBeanFactory().registerSingleton("tileService", new TileService(storage));
+        context.refresh();
+        dispatcher.setApplicationContext(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (frontEnd != null) {
+            frontEnd.stop();
+        }
+        backend.stop();
+        runtimeStats.destroy();
+    }
+
+    public void testMissesDoNotHoldThreads() throws Exception {
+        startFrontEnd(true);
+
+        // a metatile to hit while the misses wait for the backend
+        final List<long[]> hits = new ArrayList<long[]>();
+        long[] coverage = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName())
+                .getCoverage(ZOOM_LEVEL);
+        long hitX = coverage[0] - coverage[0] % META + META;
+        long hitY = coverage[1] - coverage[1] % META + META;
+        for (int i = 0; i < META * META; i++) {
+            hits.add(new long[] { hitX + i % META, hitY + i / META, ZOOM_LEVEL });
+        }
+        for (long[] hit : hits) {
+            assertEquals(200, request(hit).status);
+        }
+        assertEquals(1, backendRequests.get());
+        final long[] hitLatencies = new long[hits.size()];
+        for (int i = 0; i < hits.size(); i++) {
+            hitLatencies[i] = request(hits.get(i)).millis;
+        }
+        Arrays.sort(hitLatencies);
+
+        // misses in the metatiles to the right of it, a few dozen tiles wide
+        final int columns = 40;
+        final List<long[]> misses = new ArrayList<long[]>();
+        for (int i = 0; i < MISSES; i++) {
+            misses.add(new long[] { hitX + META + i % columns, hitY + i / columns, ZOOM_LEVEL });
+        }
+        final int metaTiles = (columns / META) * ((MISSES / columns + META - 1) / META);
+        assertTrue(coverage[2] >= hitX + META + columns);
+        assertTrue(coverage[3] >= hitY + MISSES / columns);
+
+        final Response[] responses = new Response[MISSES];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < MISSES; i++) {
+            final int miss = i;
+            Thread client = new Thread(null, new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        responses[miss] = request(misses.get(miss));
+                    } catch (Exception e) {
+                        responses[miss] = new Response(-1, e.toString(), 0);
+                    }
+                }
+            }, "client-" + i, 64 * 1024);
+            client.start();
+            clients.add(client);
+        }
+        start.countDown();
+
+        // hits don't wait behind the misses for a thread
+        while (backendRequests.get() < 2) {
+            Thread.sleep(10);
+        }
+        long[] stormLatencies = new long[hits.size()];
+        for (int i = 0; i < hits.size(); i++) {
+            Response hit = request(hits.get(i));
+            assertEquals(200, hit.status);
+            stormLatencies[i] = hit.millis;
+        }
+        Arrays.sort(stormLatencies);
+
+        for (Thread client : clients) {
+            client.join(60000);
+        }
+        int backendAfterStorm = backendRequests.get();
+        for (int i = 0; i < MISSES; i++) {
+            assertEquals(Arrays.toString(misses.get(i)) + " " + responses[i].contentType, 200,
+                    responses[i].status);
+            assertEquals("image/png", responses[i].contentType);
+        }
+        // each metatile was fetched once, for all of the requests parked on it
+        assertEquals(1 + metaTiles, backendAfterStorm);
+
+        String latencies = "hits before " + Arrays.toString(hitLatencies) + ", during misses "
+                + Arrays.toString(stormLatencies);
+        assertTrue(latencies, stormLatencies[stormLatencies.length / 2] < BACKEND_LATENCY / 3);
+        assertTrue(latencies, stormLatencies[stormLatencies.length - 1] < BACKEND_LATENCY);
+    }
+
+    public void testOutstandingMissLimit() throws Exception {
+        dispatcher.setMaxOutstandingMisses(10);
+        startFrontEnd(true);
+
+        final int requests = 50;
+        final Response[] responses = new Response[requests];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<Thread>();
+        long[] coverage = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName())
+                .getCoverage(ZOOM_LEVEL);
+        for (int i = 0; i < requests; i++) {
+            // a metatile each
+            final long[] tile = { coverage[0] + META * (i % 10 + 1),
+                    coverage[1] + META * (i / 10 + 1), ZOOM_LEVEL };
+            final int r = i;
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        responses[r] = request(tile);
+                    } catch (Exception e) {
+                        responses[r] = new Response(-1, e.toString(), 0);
+                    }
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        start.countDown();
+        for (Thread client : clients) {
+            client.join(60000);
+        }
+
+        int served = 0;
+        int rejected = 0;
+        for (Response response : responses) {
+            if (response.status == 200) {
+                served++;
+            } else {
+                assertEquals(503, response.status);
+                rejected++;
+            }
+        }
+        assertTrue(served + " served", served >= 10);
+        assertTrue(rejected + " rejected", rejected > 0);
+    }
+
+    public void testTimedOutMissesGet503() throws Exception {
+        final AtomicBoolean lockedElsewhere = new AtomicBoolean(true);
+        final MemoryLockProvider locks = new MemoryLockProvider();
+        layer.setMetatileLockProvider(new MetatileLockProvider() {
+            public Lock tryLock(String key) throws GeoWebCacheException {
+                return lockedElsewhere.get() ? null : locks.tryLock(key);
+            }
+        });
+        layer.setBackendTimeout(1);
+        dispatcher.setLockWait(0);
+        dispatcher.setMaxOutstandingMisses(1);
+        startFrontEnd(true);
+
+        long[] coverage = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName())
+                .getCoverage(ZOOM_LEVEL);
+        try {
+            for (int i = 0; i < 3; i++) {
+                long[] tile = { coverage[0] + META * (i + 1), coverage[1] + META, ZOOM_LEVEL };
+                // timed out rather than turned away, the earlier misses no longer count
+                Response miss = request(tile);
+                assertEquals(503, miss.status);
+                assertTrue(miss.millis + "ms", miss.millis >= 1000);
+            }
+            assertEquals(0, backendRequests.get());
+        } finally {
+            lockedElsewhere.set(false);
+        }
+    }
+
+    public void testSynchronousFallback() throws Exception {
+        startFrontEnd(false);
+        long[] coverage = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName())
+                .getCoverage(ZOOM_LEVEL);
+        long[] tile = { coverage[0] + META, coverage[1] + META, ZOOM_LEVEL };
+        Response miss = request(tile);
+        assertEquals(200, miss.status);
+        assertEquals("image/png", miss.contentType);
+        assertTrue(miss.millis >= BACKEND_LATENCY);
+        assertEquals(200, request(tile).status);
+        assertEquals(1, backendRequests.get());
+    }
+
+    /**
+     * Puts the dispatcher in a container with {@link #CONTAINER_THREADS} threads
+     */
+    private void startFrontEnd(boolean asyncSupported) throws Exception {
+        QueuedThreadPool threads = new QueuedThreadPool(CONTAINER_THREADS);
+        threads.setMinThreads(CONTAINER_THREADS);
+        frontEnd = new Server();
+        frontEnd.setThreadPool(threads);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(0);
+        connector.setAcceptQueueSize(MISSES + 100);
+        frontEnd.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        ServletHolder holder = new ServletHolder(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                try {
+                    dispatcher.handleRequest(req, resp);
+                } catch (Exception e) {
+                    throw new ServletException(e);
+                }
+            }
+        });
+        holder.setAsyncSupported(asyncSupported);
+        context.addServlet(holder, "/*");
+        frontEnd.setHandler(context);
+        frontEnd.start();
+        baseUrl = "http://localhost:" + connector.getLocalPort() + "/service/tiles";
+    }
+
+    private Response request(long[] tile) throws IOException {
+        long start = System.currentTimeMillis();
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "?x=" + tile[0] + "&y="
+                + tile[1] + "&z=" + tile[2]).openConnection();
+        conn.setReadTimeout(60000);
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) != -1) {
+            }
+            in.close();
+        }
+        return new Response(status, conn.getContentType(), System.currentTimeMillis() - start);
+    }
+
+    private WMSLayer createLayer(String backendUrl) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, ZOOM_LEVEL);
+        grids.put(grid.getName(), grid);
+
+        WMSLayer layer = new WMSLayer(LAYER, new String[] { backendUrl }, null, LAYER,
+                Collections.singletonList("image/png"), grids, null, new int[] { META, META },
+                null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setExpireCache("60");
+        layer.setBackendTimeout(30);
+        return layer;
+    }
+
+    private static byte[] createImage(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out);
+        return out.toByteArray();
+    }
+
+    private static class Response {
+        final int status;
+
+        final String contentType;
+
+        final long millis;
+
+        Response(int status, String contentType, long millis) {
+            this.status = status;
+            this.contentType = contentType;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Requests tiles by index, as in {@code ?x=1&y=2&z=3}
+     */
+    private class TileService extends Service {
+
+        private final StorageBroker storage;
+
+        TileService(StorageBroker storage) {
+            super("tiles");
+            this.storage = storage;
+        }
+
+        @Override
+        public Conveyor getConveyor(HttpServletRequest request, HttpServletResponse response) {
+            long[] tileIndex = { Long.parseLong(request.getParameter("x")),
+                    Long.parseLong(request.getParameter("y")),
+                    Long.parseLong(request.getParameter("z")) };
+            return new ConveyorTile(storage, LAYER, gridSetBroker.WORLD_EPSG4326.getName(),
+                    tileIndex, ImageMime.png, null, null, request, response);
+        }
+    }
+
+    /**
+     * Keeps tiles in memory
+     */
+    private static class MemoryStorageBroker extends StorageBroker {
+
+        private final Map<String, byte[]> tiles = new ConcurrentHashMap<String, byte[]>();
+
+        MemoryStorageBroker() {
+            super(null, null);
+        }
+
+        @Override
+        public boolean get(TileObject tileObj) {
+            byte[] blob = tiles.get(key(tileObj));
+            if (blob == null) {
+                return false;
+            }
+            tileObj.setBlob(blob);
+            tileObj.setCreated(System.currentTimeMillis());
+            return true;
+        }
+
+        @Override
+        public boolean put(TileObject tileObj) {
+            tiles.put(key(tileObj), tileObj.getBlob());
+            return true;
+        }
+
+        private static String key(TileObject tile) {
+            return tile.getLayerName() + '/' + Arrays.toString(tile.getXYZ()) + '/'
+                    + tile.getGridSetId() + '/' + tile.getBlobFormat() + '/'
+                    + tile.getParameters();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.geowebcache.blobstore.file;
+
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+
+/**
+ * Checks the generated paths against the original implementation, existing caches depend on the
+ * layout staying exactly the same
+ */
+public class FilePathGeneratorTest extends TestCase {
+
+    private static final MimeType[] MIME_TYPES = { ImageMime.png, ImageMime.jpeg,
+            ImageMime.png8, XMLMime.kml };
+
+    private static final String[] LAYERS = { "topp:states", "nurc:Arc Sample", "layer" };
+
+    private static final String[] GRIDSETS = { "EPSG:4326", "EPSG:900913", "My:Grid:Set" };
+
+    private static final long[] PARAMETERS = { -1L, 0L, 0x7f3a9c21L, -2L, Long.MAX_VALUE };
+
+    public void testRandomTiles() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            int z = random.nextInt(31);
+            long x = (random.nextLong() >>> 1) % (2L << z);
+            long y = (random.nextLong() >>> 1) % (1L << z);
+            assertSamePath(random, new long[] { x, y, z });
+        }
+    }
+
+    public void testBoundaries() throws Exception {
+        Random random = new Random(7);
+        // Past 61 the int shift used for the directory size wraps to zero
+        for (int z = 0; z <= 61; z++) {
+            long half = 2 << (z / 2);
+            for (long n : boundaries(half)) {
+                assertSamePath(random, new long[] { n, n, z });
+                assertSamePath(random, new long[] { n, 0, z });
+                assertSamePath(random, new long[] { 0, n, z });
+            }
+            // Around powers of ten, where the original padding is off by one
+            for (long pow = 10; pow > 0 && pow <= 1000000000000000000L; pow *= 10) {
+                for (long n = pow - 3; n <= pow + pow / 400 + 3; n += Math.max(1, pow / 4000)) {
+                    assertSamePath(random, new long[] { n, n + 1, z });
+                }
+            }
+        }
+    }
+
+    public void testZeroPadder() throws Exception {
+        for (long n = -1000; n <= 200000; n++) {
+            for (int order = 0; order <= 12; order++) {
+                assertEquals(legacyZeroPadder(n, order), FilePathGenerator.zeroPadder(n, order));
+            }
+        }
+
+        for (long pow = 100; pow > 0 && pow <= 1000000000000000000L; pow *= 10) {
+            long last = pow + pow / 100;
+            for (long n = pow - 10; n <= last && n > 0; n += Math.max(1, pow / 100000)) {
+                for (int order = 0; order <= 22; order++) {
+                    assertEquals(n + " " + order, legacyZeroPadder(n, order), FilePathGenerator
+                            .zeroPadder(n, order));
+                }
+            }
+        }
+
+        long[] extremes = { Long.MAX_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE,
+                Long.MIN_VALUE + 1 };
+        for (long n : extremes) {
+            assertEquals(legacyZeroPadder(n, 4), FilePathGenerator.zeroPadder(n, 4));
+        }
+
+        // Padding of numbers just above powers of ten, as found in existing caches
+        assertEquals("01000", FilePathGenerator.zeroPadder(1000, 4));
+        assertEquals("1003", FilePathGenerator.zeroPadder(1003, 4));
+    }
+
+    public void testGridsetZoomLevelDir() {
+        assertEquals("EPSG_4326_00", FilePathGenerator.gridsetZoomLevelDir("EPSG:4326", 0));
+        assertEquals("EPSG_4326_12", FilePathGenerator.gridsetZoomLevelDir("EPSG:4326", 12));
+    }
+
+    public void testOverloads() throws Exception {
+        long[] index = { 15, 15, 4 };
+        String[] paths = FilePathGenerator.tilePath("/tmp/gwc", "topp:states", index,
+                "EPSG:4326", ImageMime.png, 0xabL);
+
+        String expectedDir = "/tmp/gwc" + File.separator + "topp_states" + File.separator
+                + "EPSG_4326_04_ab" + File.separator + "1_1";
+        assertEquals(expectedDir, paths[0]);
+        assertEquals("15_15.png", paths[1]);
+
+        File file = FilePathGenerator.tileFile("/tmp/gwc", "topp:states", index, "EPSG:4326",
+                ImageMime.png, 0xabL);
+        assertEquals(new File(paths[0], paths[1]), file);
+
+        StringBuilder sb = new StringBuilder("abc");
+        int sep = FilePathGenerator.appendTilePath(sb, "/tmp/gwc", "topp:states", index,
+                "EPSG:4326", ImageMime.png, 0xabL);
+        assertEquals("abc" + paths[0] + File.separator + paths[1], sb.toString());
+        assertEquals(File.separatorChar, sb.charAt(sep));
+        assertEquals(paths[0], sb.substring(3, sep));
+
+        if (FilePathGenerator.isNioPathAvailable()) {
+            Object path = FilePathGenerator.tileNioPath("/tmp/gwc", "topp:states", index,
+                    "EPSG:4326", ImageMime.png, 0xabL);
+            assertTrue(Class.forName("java.nio.file.Path").isInstance(path));
+            assertEquals(file.getPath(), path.toString());
+        }
+    }
+
+    private void assertSamePath(Random random, long[] index) {
+        String layer = LAYERS[random.nextInt(LAYERS.length)];
+        String gridSet = GRIDSETS[random.nextInt(GRIDSETS.length)];
+        MimeType mime = MIME_TYPES[random.nextInt(MIME_TYPES.length)];
+        long params = PARAMETERS[random.nextInt(PARAMETERS.length)];
+
+        String[] expected = legacyTilePath("/var/gwc", layer, index, gridSet, mime, params);
+        String[] actual = FilePathGenerator.tilePath("/var/gwc", layer, index, gridSet, mime,
+                params);
+
+        String msg = index[0] + "," + index[1] + "," + index[2];
+        assertEquals(msg, expected[0], actual[0]);
+        assertEquals(msg, expected[1], actual[1]);
+    }
+
+    private static long[] boundaries(long half) {
+        return new long[] { 0, 1, half - 1, half, half + 1, 2 * half - 1, 2 * half,
+                10 * half - 1, 10 * half, half * half - 1, half * half, 9, 10, 11, 12, 99, 100,
+                101, 999, 1000, 1001 };
+    }
+
+    /**
+     * The implementation as it was before paths were formatted into buffers
+     */
+    private static String[] legacyTilePath(String prefix, String layerName, long[] tileIndex,
+            String gridSetId, MimeType mimeType, long parameters_id) {
+        long x = tileIndex[0];
+        long y = tileIndex[1];
+        long z = tileIndex[2];
+
+        String layerStr = FilePathGenerator.filteredLayerName(layerName);
+
+        String paramStr = "";
+        if (parameters_id != -1L) {
+            paramStr = "_" + Long.toHexString(parameters_id);
+        }
+
+        long shift = z / 2;
+        long half = 2 << shift;
+        int digits = 1;
+        if (half > 10) {
+            digits = (int) (Math.log10(half)) + 1;
+        }
+        long halfx = x / half;
+        long halfy = y / half;
+
+        String fileExtension = mimeType.getFileExtension();
+
+        String[] ret = new String[2];
+
+        String gridsetZoomLevelDirName = FilePathGenerator.filteredGridSetId(gridSetId) + "_"
+                + legacyZeroPadder(z, 2);
+
+        ret[0] = new StringBuilder(prefix).append(File.separator).append(layerStr).append(
+                File.separator).append(gridsetZoomLevelDirName).append(paramStr).append(
+                File.separator).append(legacyZeroPadder(halfx, digits)).append('_').append(
+                legacyZeroPadder(halfy, digits)).toString();
+
+        ret[1] = new StringBuilder(legacyZeroPadder(x, 2 * digits)).append('_').append(
+                legacyZeroPadder(y, 2 * digits)).append('.').append(fileExtension).toString();
+
+        return ret;
+    }
+
+    private static String legacyZeroPadder(long number, int order) {
+        int numberOrder = 1;
+
+        if (number > 9) {
+            if (number > 11) {
+                numberOrder = (int) Math.ceil(Math.log10(number) - 0.001);
+            } else {
+                numberOrder = 2;
+            }
+        }
+
+        int diffOrder = order - numberOrder;
+
+        if (diffOrder > 0) {
+            StringBuilder padding = new StringBuilder(diffOrder);
+
+            while (diffOrder > 0) {
+                padding.append('0');
+                diffOrder--;
+            }
+            return padding.toString() + Long.toString(number);
+        } else {
+            return Long.toString(number);
+        }
+    }
+}
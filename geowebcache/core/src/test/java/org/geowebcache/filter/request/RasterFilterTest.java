@@ -0,0 +1,291 @@
+package org.geowebcache.filter.request;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.grid.OutsideCoverageException;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.ImageMime;
+
+/**
+ * Checks lookups against the original implementation, which sampled the matrix images directly
+ */
+public class RasterFilterTest extends TestCase {
+
+    private static final int ZOOM_START = 3;
+
+    private static final int ZOOM_STOP = 6;
+
+    private WMSLayer layer;
+
+    private TestRasterFilter filter;
+
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset world = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(world.getName(), world);
+        // Coverages that do not line up with the tiles of lower zoom levels
+        GridSubset partial = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG3857,
+                new BoundingBox(-10833000, 2641000, -6834000, 6418000), 0, 12);
+        grids.put(partial.getName(), partial);
+
+        layer = new WMSLayer("test", new String[] { "http://localhost/wms" }, null, "test",
+                Collections.singletonList("image/png"), grids, null, new int[] { 3, 3 }, null,
+                false);
+        layer.initialize(gridSetBroker);
+    }
+
+    public void testSparse() throws Exception {
+        checkAllTiles(0.002, false);
+    }
+
+    public void testDense() throws Exception {
+        checkAllTiles(0.4, false);
+    }
+
+    public void testClustered() throws Exception {
+        checkAllTiles(0.01, true);
+    }
+
+    public void testReplace() throws Exception {
+        filter = new TestRasterFilter(new Random(5), 0, false);
+        GridSubset grid = layer.getGridSubset(layer.getGridSubsets().keySet().iterator().next());
+        long[] cov = grid.getCoverage(ZOOM_STOP);
+        long[] idx = { cov[0], cov[3], ZOOM_STOP };
+
+        assertFalse(passes(grid, idx));
+
+        filter.density = 1;
+        filter.setMatrix(layer, grid.getName(), ZOOM_STOP, false);
+        assertFalse(passes(grid, idx));
+        filter.setMatrix(layer, grid.getName(), ZOOM_STOP, true);
+        assertTrue(passes(grid, idx));
+    }
+
+    private void checkAllTiles(double density, boolean clustered) throws Exception {
+        filter = new TestRasterFilter(new Random(11), density, clustered);
+        filter.zoomStart = ZOOM_START;
+        filter.zoomStop = ZOOM_STOP;
+
+        int checked = 0;
+        int passed = 0;
+        for (GridSubset grid : layer.getGridSubsets().values()) {
+            for (int z = 0; z <= ZOOM_STOP + 2; z++) {
+                long[] cov = grid.getCoverage(z);
+                for (long x = cov[0] - 1; x <= cov[2] + 1; x++) {
+                    for (long y = cov[1] - 1; y <= cov[3] + 1; y++) {
+                        long[] idx = { x, y, z };
+                        String msg = grid.getName() + " " + x + "," + y + "," + z;
+
+                        filter.resample = false;
+                        boolean actual = passes(grid, idx);
+                        assertEquals(msg, legacyPasses(grid, idx), actual);
+
+                        filter.resample = true;
+                        actual = passes(grid, idx);
+                        if (z < ZOOM_START && !clippedAtTop(grid, idx)) {
+                            assertEquals(msg, legacyPasses(grid, idx), actual);
+                        }
+                        if (z < ZOOM_START && grid.covers(idx)) {
+                            assertEquals(msg, anyInBlock(grid, idx), actual);
+                        }
+                        checked++;
+                        if (actual) {
+                            passed++;
+                        }
+                    }
+                }
+            }
+        }
+        // Both outcomes need to be well represented for this to mean anything
+        assertTrue(passed + " of " + checked, passed > checked / 200);
+        assertTrue(passed + " of " + checked, passed < checked - checked / 200);
+    }
+
+    private boolean passes(GridSubset grid, long[] idx) throws RequestFilterException {
+        ConveyorTile tile = new ConveyorTile(null, layer.getName(), grid.getName(), idx.clone(),
+                ImageMime.png, null, null, null, null);
+        tile.setTileLayer(layer);
+        try {
+            filter.apply(tile);
+            return true;
+        } catch (BlankTileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The original scan of the blocks covered by tiles below zoomStart skips the top row of the
+     * matrix where the block extends beyond it, and for the top row looks at the row below
+     */
+    private boolean clippedAtTop(GridSubset grid, long[] idx) {
+        int shift = ZOOM_START - (int) idx[2];
+        long[] cov = grid.getCoverage(ZOOM_START);
+        return cov[3] - (idx[1] << shift) - (1 << shift) < 1;
+    }
+
+    private boolean anyInBlock(GridSubset grid, long[] idx) {
+        int shift = ZOOM_START - (int) idx[2];
+        BufferedImage mat = filter.images.get(grid.getName() + ZOOM_START);
+        long[] cov = grid.getCoverage(ZOOM_START);
+        for (long x = idx[0] << shift; x < (idx[0] + 1) << shift; x++) {
+            for (long y = idx[1] << shift; y < (idx[1] + 1) << shift; y++) {
+                long px = x - cov[0];
+                long py = cov[3] - y;
+                if (px >= 0 && py >= 0 && px < mat.getWidth() && py < mat.getHeight()
+                        && mat.getRaster().getSample((int) px, (int) py, 0) == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * RasterFilter.apply() as it was before the matrices were kept as bitmaps, errors sampling
+     * outside the matrix count as no data
+     */
+    private boolean legacyPasses(GridSubset grid, long[] tileIndex) {
+        long[] idx = tileIndex.clone();
+        try {
+            grid.checkCoverage(idx);
+        } catch (OutsideCoverageException oce) {
+            return false;
+        }
+
+        int zoomDiff = 0;
+        if (idx[2] < ZOOM_START) {
+            if (!filter.resample) {
+                return true;
+            }
+            zoomDiff = (int) (idx[2] - ZOOM_START);
+            idx[0] = idx[0] << (-1 * zoomDiff);
+            idx[1] = idx[1] << (-1 * zoomDiff);
+            idx[2] = ZOOM_START;
+        } else if (idx[2] < ZOOM_STOP) {
+            idx[0] = idx[0] * 2;
+            idx[1] = idx[1] * 2;
+            idx[2] = idx[2] + 1;
+        } else {
+            zoomDiff = (int) (idx[2] - ZOOM_STOP);
+            idx[0] = idx[0] >> zoomDiff;
+            idx[1] = idx[1] >> zoomDiff;
+            idx[2] = ZOOM_STOP;
+        }
+
+        BufferedImage mat = filter.images.get(grid.getName() + idx[2]);
+        long[] gridCoverage = grid.getCoverage((int) idx[2]);
+        int baseX = (int) (idx[0] - gridCoverage[0]);
+        int baseY = (int) (gridCoverage[3] - idx[1]);
+        int width = mat.getWidth();
+        int height = mat.getHeight();
+
+        try {
+            if (zoomDiff == 0) {
+                return mat.getRaster().getSample(baseX, baseY, 0) == 0;
+            } else if (zoomDiff > 0) {
+                int[] xOffsets = { 0, 1, 0, 1 };
+                int[] yOffsets = { 0, 0, 1, 1 };
+                for (int i = 0; i < 4; i++) {
+                    int x = baseX + xOffsets[i];
+                    int y = baseY - yOffsets[i];
+                    if (x > -1 && x < width && y > -1 && y < height
+                            && mat.getRaster().getSample(x, y, 0) == 0) {
+                        return true;
+                    }
+                }
+                return false;
+            } else {
+                int sampleChange = 1 << (-1 * zoomDiff);
+                int startX = Math.max(0, baseX);
+                int stopX = Math.min(width, baseX + sampleChange);
+                int startY = Math.min(baseY, height - 1);
+                int stopY = Math.max(0, baseY - sampleChange);
+
+                int x = (stopX + startX) / 2;
+                int y = (startY + stopY) / 2;
+                if (mat.getRaster().getSample(x, y, 0) == 0
+                        || mat.getRaster().getSample(stopX - 1, stopY + 1, 0) == 0
+                        || mat.getRaster().getSample(stopX - 1, startY, 0) == 0
+                        || mat.getRaster().getSample(startX, stopY + 1, 0) == 0) {
+                    return true;
+                }
+                for (x = startX; x < stopX; x++) {
+                    for (y = startY; y > stopY; y--) {
+                        if (mat.getRaster().getSample(x, y, 0) == 0) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hands out random matrices, and keeps them for the original implementation to check
+     */
+    private static class TestRasterFilter extends WMSRasterFilter {
+        final Map<String, BufferedImage> images = new HashMap<String, BufferedImage>();
+
+        final Random random;
+
+        double density;
+
+        final boolean clustered;
+
+        TestRasterFilter(Random random, double density, boolean clustered) {
+            this.random = random;
+            this.density = density;
+            this.clustered = clustered;
+            this.zoomStop = ZOOM_STOP;
+        }
+
+        protected BufferedImage loadMatrix(TileLayer layer, String gridSetId, int z)
+                throws IOException, GeoWebCacheException {
+            int[] widthHeight = calculateWidthHeight(layer.getGridSubset(gridSetId), z);
+            int width = widthHeight[0];
+            int height = widthHeight[1];
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            WritableRaster raster = img.getRaster();
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    // 1 is no data
+                    raster.setSample(x, y, 0, 1);
+                }
+            }
+
+            int count = (int) Math.ceil(width * height * density);
+            for (int i = 0; i < count; i++) {
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                int size = clustered ? 1 + random.nextInt(4) : 1;
+                for (int dx = 0; dx < size && x + dx < width; dx++) {
+                    for (int dy = 0; dy < size && y + dy < height; dy++) {
+                        raster.setSample(x + dx, y + dy, 0, 0);
+                    }
+                }
+            }
+            images.put(gridSetId + z, img);
+            return img;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package org.geowebcache.grid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the grid math working off the precomputed per level tables and the flat coverages
+ * against the way it was computed before
+ */
+public class PrecomputedGridTest extends TestCase {
+
+    private List<GridSet> gridSets;
+
+    private Random random;
+
+    protected void setUp() throws Exception {
+        random = new Random(1);
+        gridSets = new ArrayList<GridSet>();
+
+        GridSetBroker broker = new GridSetBroker(true, true);
+        gridSets.add(broker.WORLD_EPSG4326);
+        gridSets.add(broker.WORLD_EPSG3857);
+        gridSets.add(broker.get("GlobalCRS84Pixel"));
+        gridSets.add(broker.get("GlobalCRS84Scale"));
+
+        gridSets.add(GridSetFactory.createGridSet("EPSG:4326 top left", SRS.getEPSG4326(),
+                BoundingBox.WORLD4326, true, 22, null, 0.00028, 256, 256, false));
+        gridSets.add(GridSetFactory.createGridSet("EPSG:900913 512", SRS.getEPSG900913(),
+                BoundingBox.WORLD3857, true, 20, null, 0.00028, 512, 512, false));
+
+        // Irregular steps between the resolutions
+        double[] irregular = { 4000, 2710.5, 1000, 333.3, 100, 52, 10, 3.7, 1, 0.25 };
+        gridSets.add(GridSetFactory.createGridSet("irregular", SRS.getSRS(2163), new BoundingBox(
+                -2495667.977678598, -2223677.196231552, 3291070.6104286816, 959189.3312465074),
+                false, irregular, null, 1.0, 0.00028, null, 200, 300, false));
+        gridSets.add(GridSetFactory.createGridSet("irregular top left", SRS.getSRS(2163),
+                new BoundingBox(-2495667.977678598, -2223677.196231552, 3291070.6104286816,
+                        959189.3312465074), true, irregular, null, 1.0, 0.00028, null, 256,
+                256, false));
+
+        // Scale based, with names
+        double[] scales = { 50000000, 17000000, 3000000, 1000000, 250000, 43000, 10000 };
+        gridSets.add(GridSetFactory.createGridSet("scales", SRS.getSRS(2163), new BoundingBox(
+                -2495667, -2223677, 3291070, 959189), true, null, scales, 1.0, 0.00028,
+                new String[] { "a", "b", "c", "d", "e", "f", "g" }, 256, 256, false));
+
+        // Resolutions that do not keep decreasing
+        double[] unordered = { 100, 50, 60, 10, 10, 5, 20, 1 };
+        gridSets.add(GridSetFactory.createGridSet("unordered", SRS.getSRS(2163), new BoundingBox(
+                0, 0, 100000, 50000), false, unordered, null, 1.0, 0.00028, null, 256, 256,
+                false));
+    }
+
+    public void testBoundsFromIndex() throws Exception {
+        for (GridSet gridSet : gridSets) {
+            double[] bounds = new double[4];
+            for (int i = 0; i < 20000; i++) {
+                long[] index = randomIndex(gridSet);
+
+                BoundingBox expected = legacyBoundsFromIndex(gridSet, index);
+                assertSameBounds(gridSet, expected, gridSet.boundsFromIndex(index));
+
+                gridSet.boundsFromIndex(index, bounds);
+                assertTrue(Arrays.equals(coords(expected), bounds));
+            }
+        }
+    }
+
+    public void testBoundsFromRectangle() throws Exception {
+        for (GridSet gridSet : gridSets) {
+            for (int i = 0; i < 20000; i++) {
+                long[] rect = randomRectangle(gridSet);
+                assertSameBounds(gridSet, legacyBoundsFromRectangle(gridSet, rect), gridSet
+                        .boundsFromRectangle(rect));
+            }
+            assertSameBounds(gridSet, legacyGetBounds(gridSet), gridSet.getBounds());
+        }
+    }
+
+    public void testClosestIndex() throws Exception {
+        for (GridSet gridSet : gridSets) {
+            for (int i = 0; i < 20000; i++) {
+                BoundingBox bounds = randomTileBounds(gridSet);
+                Object expected;
+                try {
+                    expected = legacyClosestIndex(gridSet, bounds);
+                } catch (Exception e) {
+                    expected = e.getClass();
+                }
+
+                Object actual;
+                try {
+                    actual = gridSet.closestIndex(bounds);
+                } catch (Exception e) {
+                    actual = e.getClass();
+                }
+                assertSameResult(gridSet.getName() + " " + bounds, expected, actual);
+            }
+        }
+    }
+
+    public void testClosestRectangle() throws Exception {
+        for (GridSet gridSet : gridSets) {
+            for (int i = 0; i < 20000; i++) {
+                BoundingBox bounds = randomTileBounds(gridSet);
+                if (random.nextBoolean()) {
+                    // A 3x3 metatile
+                    bounds.setMaxX(bounds.getMinX() + 3 * bounds.getWidth());
+                    bounds.setMaxY(bounds.getMinY() + 3 * bounds.getHeight());
+                }
+                assertTrue(Arrays.equals(legacyClosestRectangle(gridSet, bounds), gridSet
+                        .closestRectangle(bounds)));
+
+                int level = random.nextInt(gridSet.gridLevels.length);
+                assertTrue(Arrays.equals(legacyClosestRectangle(gridSet, level, bounds), gridSet
+                        .closestRectangle(level, bounds)));
+            }
+        }
+    }
+
+    public void testSubsets() throws Exception {
+        for (GridSet gridSet : gridSets) {
+            int levels = gridSet.gridLevels.length;
+            BoundingBox gridBounds = gridSet.getBounds();
+            BoundingBox quarter = new BoundingBox(gridBounds.getMinX() + gridBounds.getWidth()
+                    / 8, gridBounds.getMinY() + gridBounds.getHeight() / 4, gridBounds.getMinX()
+                    + gridBounds.getWidth() / 3, gridBounds.getMaxY() - gridBounds.getHeight()
+                    / 5);
+
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet), null, 0, levels);
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet, null, null, null),
+                    null, 0, levels);
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet, quarter, 0,
+                    levels - 1), quarter, 0, levels);
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet, quarter, 0,
+                    levels / 2), quarter, 0, levels / 2 + 1);
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet, quarter, 2,
+                    levels - 1), quarter, 2, levels - 2);
+            compareSubset(gridSet, GridSubsetFactory.createGridSubSet(gridSet, null, 1, null),
+                    null, 1, levels - 1);
+        }
+    }
+
+    private void compareSubset(GridSet gridSet, GridSubset subset, BoundingBox extent,
+            int firstLevel, int numLevels) throws Exception {
+        // As GridSubsetFactory used to set up the coverages
+        long[][] coverages = new long[numLevels][];
+        for (int i = 0; i < numLevels; i++) {
+            if (extent != null) {
+                coverages[i] = legacyClosestRectangle(gridSet, i + firstLevel, extent);
+            } else {
+                long[] gridExtent = gridSet.gridLevels[i + firstLevel].extent;
+                coverages[i] = new long[] { 0, 0, gridExtent[0] - 1, gridExtent[1] - 1,
+                        i + firstLevel };
+            }
+        }
+
+        assertEquals(firstLevel, subset.getZoomStart());
+        assertEquals(firstLevel + numLevels - 1, subset.getZoomStop());
+
+        for (int i = 0; i < numLevels; i++) {
+            if (firstLevel + i < numLevels) {
+                assertTrue(Arrays.equals(coverages[firstLevel + i], subset.getCoverage(i)));
+                assertSameBounds(gridSet, legacyBoundsFromRectangle(gridSet,
+                        coverages[firstLevel + i]), subset.getCoverageBounds(i));
+            }
+        }
+
+        long[][] all = subset.getCoverages();
+        assertEquals(numLevels, all.length);
+        for (int i = 0; i < numLevels; i++) {
+            long[] cov = coverages[i];
+            assertTrue(Arrays.equals(new long[] { cov[0], cov[1], cov[2], cov[3],
+                    firstLevel + i }, all[i]));
+        }
+
+        long[][] wmts = subset.getWMTSCoverages();
+        for (int i = 0; i < numLevels; i++) {
+            long tilesHigh = gridSet.gridLevels[i + firstLevel].extent[1];
+            long[] cov = coverages[i];
+            assertTrue(Arrays.equals(new long[] { cov[0], tilesHigh - cov[3], cov[2],
+                    tilesHigh - cov[1] }, wmts[i]));
+        }
+
+        assertTrue(Arrays.equals(legacyBestFit(coverages, firstLevel), subset
+                .getCoverageBestFit()));
+
+        for (int t = 0; t < 5000; t++) {
+            long[] index = randomIndex(gridSet);
+            index[2] = random.nextInt(numLevels + firstLevel + 2) - 1;
+
+            boolean expected = legacyCovers(coverages, firstLevel, index);
+            assertEquals(expected, subset.covers(index));
+            if (index[2] >= firstLevel && index[2] < numLevels) {
+                assertEquals(expected, subset.coversUnchecked(index[0], index[1],
+                        (int) index[2]));
+            }
+
+            try {
+                subset.checkCoverage(index);
+                assertTrue(expected);
+            } catch (OutsideCoverageException oce) {
+                assertFalse(expected);
+            }
+        }
+
+        for (int t = 0; t < 500; t++) {
+            int level = random.nextInt(numLevels);
+            BoundingBox bounds = randomTileBounds(gridSet);
+            long[] rect = legacyClosestRectangle(gridSet, level, bounds);
+            assertTrue(Arrays.equals(legacyIntersection(coverages[level], rect), subset
+                    .getCoverageIntersection(level, bounds)));
+
+            rect[4] = level - firstLevel;
+            if (level < numLevels - firstLevel && rect[4] >= 0) {
+                assertTrue(Arrays.equals(legacyIntersection(coverages[firstLevel
+                        + (int) rect[4]], rect), subset.getCoverageIntersection(rect)));
+            }
+        }
+
+        BoundingBox bounds = randomTileBounds(gridSet);
+        long[][] intersections = subset.getCoverageIntersections(bounds);
+        for (int i = 0; i < numLevels; i++) {
+            assertTrue(Arrays.equals(legacyIntersection(coverages[i], legacyClosestRectangle(
+                    gridSet, i + firstLevel, bounds)), intersections[i]));
+        }
+    }
+
+    private void assertSameResult(String msg, Object expected, Object actual) {
+        if (expected instanceof long[] && actual instanceof long[]) {
+            assertTrue(msg + ": " + Arrays.toString((long[]) expected) + " != "
+                    + Arrays.toString((long[]) actual), Arrays.equals((long[]) expected,
+                    (long[]) actual));
+        } else {
+            assertEquals(msg, expected, actual);
+        }
+    }
+
+    private void assertSameBounds(GridSet gridSet, BoundingBox expected, BoundingBox actual) {
+        assertTrue(gridSet.getName() + ": " + expected + " != " + actual, Arrays.equals(
+                coords(expected), coords(actual)));
+    }
+
+    private static double[] coords(BoundingBox bounds) {
+        return new double[] { bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(),
+                bounds.getMaxY() };
+    }
+
+    private long[] randomIndex(GridSet gridSet) {
+        int z = random.nextInt(gridSet.gridLevels.length);
+        long[] extent = gridSet.gridLevels[z].extent;
+        // Mostly inside the grid, sometimes just outside
+        long x = (long) (random.nextDouble() * (extent[0] + 2)) - 1;
+        long y = (long) (random.nextDouble() * (extent[1] + 2)) - 1;
+        return new long[] { x, y, z };
+    }
+
+    private long[] randomRectangle(GridSet gridSet) {
+        long[] index = randomIndex(gridSet);
+        return new long[] { index[0], index[1], index[0] + random.nextInt(4),
+                index[1] + random.nextInt(4), index[2] };
+    }
+
+    /**
+     * Exact tile bounds, or slightly off in size or position, or anything at all
+     */
+    private BoundingBox randomTileBounds(GridSet gridSet) {
+        BoundingBox bounds = legacyBoundsFromIndex(gridSet, randomIndex(gridSet));
+        switch (random.nextInt(5)) {
+        case 0:
+            return bounds;
+        case 1:
+            // Within the 10% resolution tolerance, or just outside of it
+            double factor = 0.85 + random.nextDouble() * 0.3;
+            bounds.setMaxX(bounds.getMinX() + bounds.getWidth() * factor);
+            bounds.setMaxY(bounds.getMinY() + bounds.getHeight() * factor);
+            return bounds;
+        case 2:
+            double shift = (random.nextDouble() - 0.5) * 0.5 * bounds.getWidth();
+            return new BoundingBox(bounds.getMinX() + shift, bounds.getMinY() + shift, bounds
+                    .getMaxX()
+                    + shift, bounds.getMaxY() + shift);
+        case 3:
+            // Halfway between the resolutions of two levels
+            return new BoundingBox(bounds.getMinX(), bounds.getMinY(), bounds.getMinX()
+                    + bounds.getWidth() * 0.75, bounds.getMinY() + bounds.getHeight() * 0.75);
+        default:
+            BoundingBox gridBounds = gridSet.getBounds();
+            double minx = gridBounds.getMinX() + random.nextDouble() * gridBounds.getWidth();
+            double miny = gridBounds.getMinY() + random.nextDouble() * gridBounds.getHeight();
+            double size = random.nextDouble() * gridBounds.getWidth() / 3;
+            return new BoundingBox(minx, miny, minx + size, miny + size);
+        }
+    }
+
+    /*
+     * The grid math as it was before the per level tables
+     */
+
+    private static BoundingBox legacyBoundsFromIndex(GridSet gs, long[] tileIndex) {
+        Grid grid = gs.gridLevels[(int) tileIndex[2]];
+
+        double width = grid.resolution * gs.tileWidth;
+        double height = grid.resolution * gs.tileHeight;
+
+        long y = tileIndex[1];
+        if (gs.yBaseToggle) {
+            y = y - grid.extent[1];
+        }
+
+        return new BoundingBox(gs.baseCoords[0] + width * tileIndex[0], gs.baseCoords[1]
+                + height * (y), gs.baseCoords[0] + width * (tileIndex[0] + 1), gs.baseCoords[1]
+                + height * (y + 1));
+    }
+
+    private static BoundingBox legacyBoundsFromRectangle(GridSet gs, long[] rectangleExtent) {
+        Grid grid = gs.gridLevels[(int) rectangleExtent[4]];
+
+        double width = grid.resolution * gs.tileWidth;
+        double height = grid.resolution * gs.tileHeight;
+
+        long bottomY = rectangleExtent[1];
+        long topY = rectangleExtent[3];
+
+        if (gs.yBaseToggle) {
+            bottomY = bottomY - grid.extent[1];
+            topY = topY - grid.extent[1];
+        }
+
+        return new BoundingBox(gs.baseCoords[0] + width * rectangleExtent[0], gs.baseCoords[1]
+                + height * (bottomY), gs.baseCoords[0] + width * (rectangleExtent[2] + 1),
+                gs.baseCoords[1] + height * (topY + 1));
+    }
+
+    private static BoundingBox legacyGetBounds(GridSet gs) {
+        int i;
+        long[] extent = null;
+
+        for (i = (gs.gridLevels.length - 1); i > 0; i--) {
+            extent = gs.gridLevels[i].extent;
+
+            if (extent[0] == 1 && extent[1] == 0) {
+                break;
+            }
+        }
+
+        extent = gs.gridLevels[i].extent;
+        return legacyBoundsFromRectangle(gs, new long[] { 0, 0, extent[0] - 1, extent[1] - 1, i });
+    }
+
+    private static long[] legacyClosestIndex(GridSet gs, BoundingBox tileBounds)
+            throws GridMismatchException {
+        double wRes = tileBounds.getWidth() / gs.tileWidth;
+
+        double bestError = Double.MAX_VALUE;
+        int bestLevel = -1;
+        double bestResolution = -1.0;
+
+        for (int i = 0; i < gs.gridLevels.length; i++) {
+            Grid grid = gs.gridLevels[i];
+
+            double error = Math.abs(wRes - grid.resolution);
+
+            if (error < bestError) {
+                bestError = error;
+                bestResolution = grid.resolution;
+                bestLevel = i;
+            } else {
+                break;
+            }
+        }
+
+        if (Math.abs(wRes - bestResolution) > (0.1 * wRes)) {
+            throw new ResolutionMismatchException(wRes, bestResolution);
+        }
+
+        return legacyClosestIndex(gs, bestLevel, tileBounds);
+    }
+
+    private static long[] legacyClosestIndex(GridSet gs, int level, BoundingBox tileBounds)
+            throws GridAlignmentMismatchException {
+        Grid grid = gs.gridLevels[level];
+
+        double width = grid.resolution * gs.tileWidth;
+        double height = grid.resolution * gs.tileHeight;
+
+        double x = (tileBounds.getMinX() - gs.baseCoords[0]) / width;
+
+        double y = (tileBounds.getMinY() - gs.baseCoords[1]) / height;
+
+        long posX = (long) Math.round(x);
+
+        long posY = (long) Math.round(y);
+
+        if (x - posX > 0.1 || y - posY > 0.1) {
+            throw new GridAlignmentMismatchException(x, posX, y, posY);
+        }
+
+        if (gs.yBaseToggle) {
+            posY = posY + grid.extent[1];
+        }
+
+        return new long[] { posX, posY, level };
+    }
+
+    private static long[] legacyClosestRectangle(GridSet gs, BoundingBox rectangleBounds) {
+        double rectWidth = rectangleBounds.getWidth();
+        double rectHeight = rectangleBounds.getHeight();
+
+        double bestError = Double.MAX_VALUE;
+        int bestLevel = -1;
+
+        for (int i = 0; i < gs.gridLevels.length; i++) {
+            Grid grid = gs.gridLevels[i];
+
+            double countX = rectWidth / (grid.resolution * gs.tileWidth);
+            double countY = rectHeight / (grid.resolution * gs.tileHeight);
+
+            double error = Math.abs(countX - Math.round(countX))
+                    + Math.abs(countY - Math.round(countY));
+
+            if (error < bestError) {
+                bestError = error;
+                bestLevel = i;
+            } else if (error >= bestError) {
+                break;
+            }
+        }
+
+        return legacyClosestRectangle(gs, bestLevel, rectangleBounds);
+    }
+
+    private static long[] legacyClosestRectangle(GridSet gs, int level,
+            BoundingBox rectangeBounds) {
+        Grid grid = gs.gridLevels[level];
+
+        double width = grid.resolution * gs.tileWidth;
+        double height = grid.resolution * gs.tileHeight;
+
+        long minX = (long) Math.floor((rectangeBounds.getMinX() - gs.baseCoords[0]) / width);
+        long minY = (long) Math.floor((rectangeBounds.getMinY() - gs.baseCoords[1]) / height);
+        long maxX = (long) Math.ceil(((rectangeBounds.getMaxX() - gs.baseCoords[0]) / width));
+        long maxY = (long) Math.ceil(((rectangeBounds.getMaxY() - gs.baseCoords[1]) / height));
+
+        if (gs.yBaseToggle) {
+            minY = minY + grid.extent[1];
+            maxY = maxY + grid.extent[1];
+        }
+
+        return new long[] { minX, minY, maxX - 1, maxY - 1, level };
+    }
+
+    private static boolean legacyCovers(long[][] coverages, int firstLevel, long[] index) {
+        if (index[2] >= firstLevel && index[2] < coverages.length) {
+            long[] coverage = coverages[(int) index[2]];
+
+            if (index[0] >= coverage[0] && index[0] <= coverage[2]) {
+                if (index[1] >= coverage[1] && index[1] <= coverage[3]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long[] legacyBestFit(long[][] coverages, int firstLevel) {
+        int i;
+        long[] cov = null;
+
+        for (i = coverages.length - 1; i > 0; i--) {
+            cov = coverages[i];
+
+            if (cov[0] == cov[2] && cov[1] == cov[3]) {
+                break;
+            }
+        }
+
+        cov = coverages[i];
+        return new long[] { cov[0], cov[1], cov[2], cov[3], i + firstLevel };
+    }
+
+    private static long[] legacyIntersection(long[] coverage, long[] rectangle) {
+        return new long[] { Math.min(Math.max(coverage[0], rectangle[0]), coverage[2]),
+                Math.min(Math.max(coverage[1], rectangle[1]), coverage[3]),
+                Math.min(Math.max(coverage[0], rectangle[2]), coverage[2]),
+                Math.min(Math.max(coverage[1], rectangle[3]), coverage[3]), rectangle[4] };
+    }
+}
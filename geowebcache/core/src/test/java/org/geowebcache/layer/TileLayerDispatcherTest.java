@@ -0,0 +1,316 @@
+package org.geowebcache.layer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.meta.ServiceInformation;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.wms.WMSLayer;
+
+public class TileLayerDispatcherTest extends TestCase {
+
+    private GridSetBroker gridSetBroker;
+
+    private TileLayerDispatcher tld;
+
+    private final AtomicInteger initializing = new AtomicInteger();
+
+    private final AtomicInteger maxInitializing = new AtomicInteger();
+
+    protected void setUp() throws Exception {
+        gridSetBroker = new GridSetBroker(false, false);
+    }
+
+    protected void tearDown() throws Exception {
+        if (tld != null) {
+            tld.destroy();
+        }
+    }
+
+    public void testSnapshotLookups() {
+        LinkedHashMap<String, TileLayer> layers = new LinkedHashMap<String, TileLayer>();
+        for (int i = 0; i < 1000; i++) {
+            layers.put("layer" + i, createLayer("layer" + i, 0));
+        }
+        LayerSnapshot snapshot = new LayerSnapshot(layers, new LinkedHashMap<String, String>());
+
+        assertEquals(1000, snapshot.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("layer" + i, snapshot.get("layer" + i).getName());
+        }
+        assertNull(snapshot.get("layer1000"));
+        assertNull(snapshot.get(""));
+
+        // Configuration order is kept for listing
+        assertEquals("layer0", snapshot.getLayers().keySet().iterator().next());
+
+        LayerSnapshot removed = snapshot.without("layer500");
+        assertNull(removed.get("layer500"));
+        assertNotNull(snapshot.get("layer500"));
+        assertEquals(999, removed.size());
+
+        TileLayer replacement = createLayer("layer1", 0);
+        LayerSnapshot replaced = snapshot.with(replacement);
+        assertSame(replacement, replaced.get("layer1"));
+        assertEquals(1000, replaced.size());
+
+        assertEquals(0, LayerSnapshot.EMPTY.size());
+        assertNull(LayerSnapshot.EMPTY.get("layer0"));
+    }
+
+    public void testMutations() throws Exception {
+        tld = new TileLayerDispatcher(gridSetBroker, configs(new SyntheticConfiguration(10, 0)),
+                -1);
+        Map<String, TileLayer> before = tld.getLayers();
+
+        tld.remove("layer0");
+        try {
+            tld.getTileLayer("layer0");
+            fail("Expected layer0 to be gone");
+        } catch (GeoWebCacheException gwce) {
+            // expected
+        }
+
+        TileLayer updated = createLayer("layer1", 0);
+        tld.update(updated);
+        assertSame(updated, tld.getTileLayer("layer1"));
+
+        tld.add(createLayer("new", 0));
+        assertNotNull(tld.getTileLayer("new"));
+
+        // What was handed out before is not affected
+        assertEquals(10, before.size());
+        assertTrue(before.containsKey("layer0"));
+        assertEquals(10, tld.getLayers().size());
+
+        try {
+            tld.getLayers().remove("layer1");
+            fail("The layers should not be modifiable");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+    }
+
+    public void testConcurrentLookupsDuringReloads() throws Exception {
+        // Every load has the common layers, and then alternately a and b
+        final AtomicInteger loads = new AtomicInteger();
+        Configuration config = new SyntheticConfiguration(50, 0) {
+            public List<TileLayer> getTileLayers(boolean reload) {
+                List<TileLayer> layers = super.getTileLayers(reload);
+                layers.add(createLayer(loads.getAndIncrement() % 2 == 0 ? "a" : "b", 0));
+                return layers;
+            }
+        };
+        tld = new TileLayerDispatcher(gridSetBroker, configs(config), -1);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        int i = 0;
+                        while (!done.get()) {
+                            String name = "layer" + (i++ % 50);
+                            TileLayer layer = tld.getTileLayer(name);
+                            assertNotNull(layer);
+                            assertEquals(name, layer.getName());
+                            assertEquals(51, tld.getLayers().size());
+                            lookups.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                tld.reInit();
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(101, loads.get());
+        assertTrue(lookups.get() > 0);
+
+        // The initial load and the last one had a in it
+        assertNotNull(tld.getTileLayer("a"));
+        try {
+            tld.getTileLayer("b");
+            fail("b should be gone");
+        } catch (GeoWebCacheException gwce) {
+            // expected
+        }
+    }
+
+    public void testFailingLayersAreUnavailable() throws Exception {
+        SyntheticConfiguration config = new SyntheticConfiguration(5, 0) {
+            public List<TileLayer> getTileLayers(boolean reload) {
+                List<TileLayer> layers = super.getTileLayers(reload);
+                layers.add(new TestLayer("failing", gridSetBroker, 0) {
+                    public boolean initialize(GridSetBroker gridSetBroker) {
+                        throw new IllegalStateException("no tiling scheme");
+                    }
+                });
+                layers.add(new TestLayer("unsure", gridSetBroker, 0) {
+                    public boolean initialize(GridSetBroker gridSetBroker) {
+                        super.initialize(gridSetBroker);
+                        return false;
+                    }
+                });
+                // Far longer than the timeout
+                layers.add(createLayer("hanging", 60000));
+                return layers;
+            }
+        };
+
+        tld = new TileLayerDispatcher(gridSetBroker, configs(config), -1, 4, 1);
+
+        assertEquals(6, tld.getLayers().size());
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(tld.getTileLayer("layer" + i));
+        }
+        // Kept, as before layers were initialized in parallel
+        assertNotNull(tld.getTileLayer("unsure"));
+
+        try {
+            tld.getTileLayer("failing");
+            fail("Expected the layer to be unavailable");
+        } catch (GeoWebCacheException gwce) {
+            assertTrue(gwce.getMessage(), gwce.getMessage().contains("no tiling scheme"));
+        }
+
+        try {
+            tld.getTileLayer("hanging");
+            fail("Expected the layer to be unavailable");
+        } catch (GeoWebCacheException gwce) {
+            assertTrue(gwce.getMessage(), gwce.getMessage().contains("longer than 1 seconds"));
+        }
+
+        // Adding it back makes it available
+        tld.add(createLayer("failing", 0));
+        assertNotNull(tld.getTileLayer("failing"));
+    }
+
+    public void testParallelInitialization() throws Exception {
+        final int numLayers = 500;
+        final int initMillis = 10;
+        final int threads = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+        tld = new TileLayerDispatcher(gridSetBroker, configs(new SyntheticConfiguration(
+                numLayers, initMillis)), -1, threads, TileLayerDispatcher.DEFAULT_INIT_TIMEOUT);
+
+        assertEquals(numLayers, tld.getLayers().size());
+        // Every thread was busy at once, and no more than that
+        assertEquals(threads, maxInitializing.get());
+        assertEquals(0, initializing.get());
+    }
+
+    private List<Configuration> configs(Configuration config) {
+        return Collections.singletonList(config);
+    }
+
+    private TileLayer createLayer(String name, int initMillis) {
+        return new TestLayer(name, gridSetBroker, initMillis);
+    }
+
+    private static Hashtable<String, GridSubset> grids(GridSetBroker gridSetBroker) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(grid.getName(), grid);
+        return grids;
+    }
+
+    /**
+     * A WMS layer that takes its time to initialize, counting how many layers are initializing
+     * at once
+     */
+    private class TestLayer extends WMSLayer {
+        private final int initMillis;
+
+        TestLayer(String name, GridSetBroker gridSetBroker, int initMillis) {
+            super(name, new String[] { "http://localhost/wms" }, null, name, Collections
+                    .singletonList("image/png"), grids(gridSetBroker), null, new int[] { 3, 3 },
+                    null, false);
+            this.initMillis = initMillis;
+        }
+
+        public boolean initialize(GridSetBroker gridSetBroker) {
+            int now = initializing.incrementAndGet();
+            int max;
+            while (now > (max = maxInitializing.get())
+                    && !maxInitializing.compareAndSet(max, now)) {
+            }
+            try {
+                if (initMillis > 0) {
+                    try {
+                        Thread.sleep(initMillis);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                return super.initialize(gridSetBroker);
+            } finally {
+                initializing.decrementAndGet();
+            }
+        }
+    }
+
+    private class SyntheticConfiguration implements Configuration {
+        private final int numLayers;
+
+        private final int initMillis;
+
+        SyntheticConfiguration(int numLayers, int initMillis) {
+            this.numLayers = numLayers;
+            this.initMillis = initMillis;
+        }
+
+        public List<TileLayer> getTileLayers(boolean reload) {
+            List<TileLayer> layers = new ArrayList<TileLayer>(numLayers);
+            for (int i = 0; i < numLayers; i++) {
+                layers.add(createLayer("layer" + i, initMillis));
+            }
+            return layers;
+        }
+
+        public String getIdentifier() {
+            return "synthetic";
+        }
+
+        public ServiceInformation getServiceInformation() {
+            return null;
+        }
+
+        public boolean isRuntimeStatsEnabled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.geowebcache.layer.wms;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.layer.wms.CircuitBreaker.State;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private long now;
+
+    private CircuitBreaker breaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        CircuitBreakerConfig config = new CircuitBreakerConfig();
+        config.setWindowSize(10);
+        config.setMinimumRequests(4);
+        config.setFailureRatePercent(50);
+        config.setSlowRequestMillis(1000);
+        config.setOpenSeconds(30);
+        config.setHalfOpenProbes(2);
+        breaker = new CircuitBreaker("http://localhost/wms?", config) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    public void testStaysClosedBelowMinimumRequests() {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.record(false, 10);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.allowRequest());
+        breaker.record(false, 10);
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    public void testRollingWindow() {
+        // half of the window failing opens it, the oldest outcomes roll out
+        for (int i = 0; i < 10; i++) {
+            breaker.record(i % 4 != 3, 10);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        for (int i = 0; i < 20; i++) {
+            breaker.record(true, 10);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        for (int i = 0; i < 4; i++) {
+            breaker.record(false, 10);
+            assertEquals(State.CLOSED, breaker.getState());
+        }
+        breaker.record(false, 10);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    public void testSlowRequestsCount() {
+        for (int i = 0; i < 4; i++) {
+            breaker.record(true, 1001);
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    public void testHalfOpenProbes() {
+        for (int i = 0; i < 4; i++) {
+            breaker.record(false, 10);
+        }
+        now += 29999;
+        assertFalse(breaker.allowRequest());
+
+        // two probes at once, no more
+        now += 1;
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        // a failed probe opens it again for the whole period
+        breaker.record(true, 10);
+        breaker.record(false, 10);
+        assertEquals(State.OPEN, breaker.getState());
+        now += 29999;
+        assertFalse(breaker.allowRequest());
+        now += 1;
+
+        assertTrue(breaker.allowRequest());
+        breaker.record(true, 10);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.record(true, 10);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        // with a fresh window
+        for (int i = 0; i < 3; i++) {
+            breaker.record(false, 10);
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    public void testCancelledProbesDoNotClose() {
+        for (int i = 0; i < 4; i++) {
+            breaker.record(false, 10);
+        }
+        now += 30000;
+
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        // aborted, their slots go to new probes but they count for nothing
+        breaker.cancel();
+        breaker.cancel();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.record(true, 10);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.record(true, 10);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        // nothing to give back once closed
+        breaker.cancel();
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,238 @@
+package org.geowebcache.layer.wms;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileResponseReceiver;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+/**
+ * Sends requests to two replicas that are now and then very slow and to a third, slower node, one
+ * at a time, with and without hedging
+ */
+public class WMSHttpHelperHedgingTest extends TestCase {
+
+    private static final int REQUESTS = 400;
+
+    private static final byte[] CONTENT = new byte[] { 1, 2, 3, 4 };
+
+    private Backend[] backends;
+
+    @Override
+    protected void setUp() throws Exception {
+        backends = new Backend[] { new Backend(2, 40, 300), new Backend(2, 40, 300),
+                new Backend(30, 0, 0) };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Backend backend : backends) {
+            backend.stop();
+        }
+    }
+
+    public void testHedgingCutsTailLatency() throws Exception {
+        long[] plain = sendRequests(createLayer(null));
+        assertEquals(REQUESTS, totalBackendRequests());
+        // round robin sends a third of them to the slower node
+        assertTrue(backends[2].requests.get() >= REQUESTS / 3);
+
+        for (Backend backend : backends) {
+            backend.requests.set(0);
+        }
+        HedgingConfig hedging = new HedgingConfig();
+        hedging.setDelayPercentile(95);
+        hedging.setMaxExtraRequestsPercent(10);
+        long[] hedged = sendRequests(createLayer(hedging));
+
+        long plainP99 = percentile(plain, 0.99);
+        long hedgedP99 = percentile(hedged, 0.99);
+        assertTrue("p99 " + plainP99 + "ms without hedging, " + hedgedP99 + "ms with it",
+                hedgedP99 < plainP99 / 2);
+        assertTrue(Arrays.toString(hedged), hedgedP99 < 100);
+
+        int extraRequests = totalBackendRequests() - REQUESTS;
+        assertTrue(extraRequests > 0);
+        assertTrue(extraRequests + " extra requests", extraRequests <= REQUESTS / 10);
+        // and the slower node gets few of them
+        assertTrue(backends[2].requests.get() + " requests to the slower node",
+                backends[2].requests.get() < REQUESTS / 10);
+    }
+
+    public void testFailingBackendsAreReplaced() throws Exception {
+        HedgingConfig hedging = new HedgingConfig();
+        hedging.setDelayMillis(Integer.valueOf(50));
+        WMSLayer layer = createLayer(hedging);
+        backends[0].failing = true;
+        backends[1].failing = true;
+
+        WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+        for (int i = 0; i < 10; i++) {
+            Receiver receiver = new Receiver();
+            byte[] data = helper.makeRequest(receiver, layer, "?REQUEST=GetMap", "image/png");
+            assertTrue(Arrays.equals(CONTENT, data));
+            assertEquals(200, receiver.getStatus());
+            assertFalse(receiver.getError());
+        }
+
+        backends[2].failing = true;
+        try {
+            helper.makeRequest(new Receiver(), layer, "?REQUEST=GetMap", "image/png");
+            fail("Expected the request to fail");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return the sorted latencies in milliseconds of {@link #REQUESTS} requests sent one after
+     *         the other
+     */
+    private long[] sendRequests(WMSLayer layer) throws Exception {
+        WMSHttpHelper helper = (WMSHttpHelper) layer.getSourceHelper();
+        long[] latencies = new long[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            long start = System.nanoTime();
+            byte[] data = helper.makeRequest(new Receiver(), layer, "?REQUEST=GetMap",
+                    "image/png");
+            latencies[i] = (System.nanoTime() - start) / 1000000;
+            assertTrue(Arrays.equals(CONTENT, data));
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.ceil(fraction * sorted.length) - 1];
+    }
+
+    private int totalBackendRequests() {
+        int total = 0;
+        for (Backend backend : backends) {
+            total += backend.requests.get();
+        }
+        return total;
+    }
+
+    private WMSLayer createLayer(HedgingConfig hedging) {
+        String[] urls = new String[backends.length];
+        for (int i = 0; i < backends.length; i++) {
+            urls[i] = backends[i].url;
+        }
+        WMSLayer layer = new WMSLayer("test:layer", urls, null, "test:layer", Collections
+                .singletonList("image/png"), new Hashtable<String, GridSubset>(), null,
+                new int[] { 1, 1 }, null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setBackendTimeout(10);
+        layer.setHedging(hedging);
+        return layer;
+    }
+
+    /**
+     * A WMS stand in taking a fixed time to answer, and much longer every so many requests
+     */
+    private static class Backend extends AbstractHandler {
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        final String url;
+
+        volatile boolean failing;
+
+        private final int latency;
+
+        private final int slowEvery;
+
+        private final int slowLatency;
+
+        private final Server server;
+
+        Backend(int latency, int slowEvery, int slowLatency) throws Exception {
+            this.latency = latency;
+            this.slowEvery = slowEvery;
+            this.slowLatency = slowLatency;
+            server = new Server(0);
+            server.setHandler(this);
+            server.start();
+            url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/wms";
+        }
+
+        public void handle(String target, HttpServletRequest request,
+                HttpServletResponse response, int dispatch) throws IOException, ServletException {
+            int count = requests.incrementAndGet();
+            try {
+                boolean slow = slowEvery > 0 && count % slowEvery == slowEvery / 2;
+                Thread.sleep(slow ? slowLatency : latency);
+            } catch (InterruptedException e) {
+                throw new ServletException(e);
+            }
+            if (failing) {
+                response.sendError(500);
+            } else {
+                response.setContentType("image/png");
+                response.setContentLength(CONTENT.length);
+                response.getOutputStream().write(CONTENT);
+            }
+            ((Request) request).setHandled(true);
+        }
+
+        void stop() throws Exception {
+            server.stop();
+        }
+    }
+
+    private static class Receiver implements TileResponseReceiver {
+
+        private int status;
+
+        private long expiresHeader;
+
+        private boolean error;
+
+        private String errorMessage;
+
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public void setExpiresHeader(long seconds) {
+            this.expiresHeader = seconds;
+        }
+
+        public long getExpiresHeader() {
+            return expiresHeader;
+        }
+
+        public void setError() {
+            this.error = true;
+        }
+
+        public boolean getError() {
+            return error;
+        }
+
+        public void setErrorMessage(String message) {
+            this.errorMessage = message;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+    }
+}
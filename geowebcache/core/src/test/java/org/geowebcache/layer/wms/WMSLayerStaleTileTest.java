@@ -0,0 +1,352 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.wms.CircuitBreaker.State;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+/**
+ * Serves expired tiles from a layer whose backend, a local Jetty server, is made slow or failing
+ */
+public class WMSLayerStaleTileTest extends TestCase {
+
+    private static final int ZOOM_LEVEL = 6;
+
+    private static final int THREADS = 8;
+
+    private static final int REQUESTS_PER_THREAD = 25;
+
+    private final GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private final AtomicInteger backendRequests = new AtomicInteger();
+
+    private volatile int backendLatency;
+
+    private volatile boolean backendFailing;
+
+    private Server server;
+
+    private String backendUrl;
+
+    private MemoryStorageBroker storage;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            private final Map<String, byte[]> images = new ConcurrentHashMap<String, byte[]>();
+
+            public void handle(String target, HttpServletRequest request,
+                    HttpServletResponse response, int dispatch) throws IOException,
+                    ServletException {
+                backendRequests.incrementAndGet();
+                try {
+                    Thread.sleep(backendLatency);
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+                if (backendFailing) {
+                    response.sendError(500);
+                } else {
+                    String size = request.getParameter("WIDTH") + "x"
+                            + request.getParameter("HEIGHT");
+                    byte[] image = images.get(size);
+                    if (image == null) {
+                        image = createImage(Integer.parseInt(request.getParameter("WIDTH")),
+                                Integer.parseInt(request.getParameter("HEIGHT")));
+                        images.put(size, image);
+                    }
+                    response.setContentType("image/png");
+                    response.setContentLength(image.length);
+                    response.getOutputStream().write(image);
+                }
+                ((Request) request).setHandled(true);
+            }
+        });
+        server.start();
+        backendUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/wms";
+        storage = new MemoryStorageBroker();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testStaleWhileRevalidate() throws Exception {
+        WMSLayer layer = createLayer();
+        layer.setStaleWhileRevalidate(3600);
+        layer.initialize(gridSetBroker);
+
+        final List<long[]> tiles = metaTileTiles(layer);
+        for (long[] tile : tiles) {
+            assertNull(request(layer, tile).getHeader("Warning"));
+        }
+        assertEquals(1, backendRequests.get());
+
+        storage.age(120 * 1000L);
+        backendLatency = 1000;
+
+        // every request gets the stale tile right away, the metatile is refreshed once
+        final long[] latencies = requestConcurrently(layer, tiles, WMSLayer.WARNING_STALE);
+        assertTrue(Arrays.toString(latencies), percentile(latencies, 0.99) < 250);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (request(layer, tiles.get(0)).getHeader("Warning") != null) {
+            assertTrue("the metatile was not refreshed", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertEquals(2, backendRequests.get());
+        for (long[] tile : tiles) {
+            assertNull(request(layer, tile).getHeader("Warning"));
+        }
+        assertEquals(2, backendRequests.get());
+    }
+
+    public void testStaleIfErrorWithOpenCircuitBreaker() throws Exception {
+        WMSLayer layer = createLayer();
+        layer.setStaleIfError(3600);
+        CircuitBreakerConfig breakerConfig = new CircuitBreakerConfig();
+        breakerConfig.setWindowSize(10);
+        breakerConfig.setMinimumRequests(4);
+        breakerConfig.setOpenSeconds(60);
+        layer.setCircuitBreaker(breakerConfig);
+        layer.initialize(gridSetBroker);
+
+        final List<long[]> tiles = metaTileTiles(layer);
+        for (long[] tile : tiles) {
+            request(layer, tile);
+        }
+        assertEquals(1, backendRequests.get());
+
+        storage.age(120 * 1000L);
+        backendLatency = 200;
+        backendFailing = true;
+
+        // the stale tiles are served as the backend fails, until the breaker opens
+        CircuitBreaker breaker = ((WMSHttpHelper) layer.getSourceHelper()).getCircuitBreaker(
+                layer.getWMSurl()[0], breakerConfig);
+        for (int i = 0; breaker.getState() != State.OPEN; i++) {
+            assertTrue("the circuit breaker did not open", i < 10);
+            MockHttpServletResponse response = request(layer, tiles.get(i % tiles.size()));
+            assertEquals(WMSLayer.WARNING_REVALIDATION_FAILED, response.getHeader("Warning"));
+        }
+        final int requestsUntilOpen = backendRequests.get();
+
+        // then without waiting on the backend at all
+        final long[] latencies = requestConcurrently(layer, tiles,
+                WMSLayer.WARNING_REVALIDATION_FAILED);
+        assertEquals(requestsUntilOpen, backendRequests.get());
+        assertTrue(Arrays.toString(latencies), percentile(latencies, 0.5) < 50);
+        assertTrue(Arrays.toString(latencies), latencies[latencies.length - 1] < backendLatency);
+
+        // tiles that were never cached still fail, right away
+        long[] missing = tiles.get(0).clone();
+        missing[0]--;
+        try {
+            request(layer, missing);
+            fail("Expected the request to fail");
+        } catch (Exception e) {
+            assertEquals(requestsUntilOpen, backendRequests.get());
+        }
+    }
+
+    /**
+     * @return the sorted latencies in milliseconds of requesting the tiles from several threads,
+     *         checking every response has the stale tile and the given warning unless the tile
+     *         has been refreshed
+     */
+    private long[] requestConcurrently(final WMSLayer layer, final List<long[]> tiles,
+            final String warning) throws Exception {
+        final byte[][] staleContents = new byte[tiles.size()][];
+        for (int t = 0; t < tiles.size(); t++) {
+            staleContents[t] = storage.getBlob(layer.getName(),
+                    gridSetBroker.WORLD_EPSG4326.getName(), tiles.get(t));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int thread = i;
+                results.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        long[] latencies = new long[REQUESTS_PER_THREAD];
+                        for (int r = 0; r < REQUESTS_PER_THREAD; r++) {
+                            int t = (thread + r) % tiles.size();
+                            long start = System.currentTimeMillis();
+                            ConveyorTile tile = createTile(layer, tiles.get(t));
+                            layer.getTile(tile);
+                            latencies[r] = System.currentTimeMillis() - start;
+
+                            String actual = ((MockHttpServletResponse) tile.servletResp)
+                                    .getHeader("Warning");
+                            if (actual != null) {
+                                assertEquals(warning, actual);
+                                assertTrue(Arrays.equals(staleContents[t], tile.getContent()));
+                            }
+                        }
+                        return latencies;
+                    }
+                }));
+            }
+            long[] latencies = new long[THREADS * REQUESTS_PER_THREAD];
+            for (int i = 0; i < THREADS; i++) {
+                System.arraycopy(results.get(i).get(), 0, latencies, i * REQUESTS_PER_THREAD,
+                        REQUESTS_PER_THREAD);
+            }
+            Arrays.sort(latencies);
+            return latencies;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.ceil(fraction * sorted.length) - 1];
+    }
+
+    private MockHttpServletResponse request(WMSLayer layer, long[] tileIndex) throws Exception {
+        ConveyorTile tile = createTile(layer, tileIndex);
+        layer.getTile(tile);
+        return (MockHttpServletResponse) tile.servletResp;
+    }
+
+    private ConveyorTile createTile(WMSLayer layer, long[] tileIndex) {
+        ConveyorTile tile = new ConveyorTile(storage, layer.getName(),
+                gridSetBroker.WORLD_EPSG4326.getName(), tileIndex, ImageMime.png, null, null,
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+        tile.setTileLayer(layer);
+        return tile;
+    }
+
+    /**
+     * @return the tiles of the first whole metatile of the layer at {@link #ZOOM_LEVEL}
+     */
+    private List<long[]> metaTileTiles(WMSLayer layer) {
+        GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] coverage = gridSubset.getCoverage(ZOOM_LEVEL);
+        int[] metaFactors = layer.getMetaTilingFactors();
+        long metaX = coverage[0] - coverage[0] % metaFactors[0] + metaFactors[0];
+        long metaY = coverage[1] - coverage[1] % metaFactors[1] + metaFactors[1];
+        assertTrue(metaX + metaFactors[0] - 1 <= coverage[2]);
+        assertTrue(metaY + metaFactors[1] - 1 <= coverage[3]);
+
+        List<long[]> tiles = new ArrayList<long[]>();
+        for (long y = metaY; y < metaY + metaFactors[1]; y++) {
+            for (long x = metaX; x < metaX + metaFactors[0]; x++) {
+                tiles.add(new long[] { x, y, ZOOM_LEVEL });
+            }
+        }
+        return tiles;
+    }
+
+    private WMSLayer createLayer() {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-30.0, 15.0, 45.0, 30), 0, 10);
+        grids.put(grid.getName(), grid);
+
+        WMSLayer layer = new WMSLayer("test:layer", new String[] { backendUrl }, null,
+                "test:layer", Collections.singletonList("image/png"), grids, null, new int[] {
+                        3, 3 }, null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setExpireCache("60");
+        layer.setBackendTimeout(10);
+        return layer;
+    }
+
+    private static byte[] createImage(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Keeps tiles in memory, stamped with the time they were put
+     */
+    private static class MemoryStorageBroker extends StorageBroker {
+
+        private final Map<String, TileObject> tiles = new ConcurrentHashMap<String, TileObject>();
+
+        MemoryStorageBroker() {
+            super(null, null);
+        }
+
+        @Override
+        public boolean get(TileObject tileObj) {
+            TileObject stored = tiles.get(key(tileObj));
+            if (stored == null) {
+                return false;
+            }
+            tileObj.setBlob(stored.getBlob());
+            tileObj.setCreated(stored.getCreated());
+            return true;
+        }
+
+        @Override
+        public boolean put(TileObject tileObj) {
+            TileObject stored = TileObject.createCompleteTileObject(tileObj.getLayerName(),
+                    tileObj.getXYZ(), tileObj.getGridSetId(), tileObj.getBlobFormat(),
+                    tileObj.getParameters(), tileObj.getBlob());
+            stored.setCreated(System.currentTimeMillis());
+            tiles.put(key(tileObj), stored);
+            return true;
+        }
+
+        byte[] getBlob(String layerName, String gridSetId, long[] tileIndex) {
+            TileObject query = TileObject.createQueryTileObject(layerName, tileIndex, gridSetId,
+                    "image/png", null);
+            return tiles.get(key(query)).getBlob();
+        }
+
+        /**
+         * Makes all the tiles older
+         */
+        void age(long millis) {
+            for (TileObject tile : tiles.values()) {
+                tile.setCreated(tile.getCreated() - millis);
+            }
+        }
+
+        private static String key(TileObject tile) {
+            return tile.getLayerName() + '/' + Arrays.toString(tile.getXYZ()) + '/'
+                    + tile.getGridSetId() + '/' + tile.getBlobFormat() + '/'
+                    + tile.getParameters();
+        }
+    }
+}
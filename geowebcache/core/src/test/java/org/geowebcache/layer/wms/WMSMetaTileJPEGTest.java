@@ -0,0 +1,136 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+
+/**
+ * Slices JPEG metatiles decoded into pooled rasters and encoded in parallel, and checks the tiles
+ * against the ones cropped out of a plain ImageIO decode
+ */
+public class WMSMetaTileJPEGTest extends TestCase {
+
+    private static final int META = 4;
+
+    private static final int TILE_SIZE = 256;
+
+    private GridSubset gridSubset;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    public void testSameTilesAsImageIO() throws Exception {
+        // the second metatile is decoded into the raster of the first one
+        for (long seed = 1; seed <= 2; seed++) {
+            byte[] response = createImagery(seed);
+            BufferedImage reference = ImageIO.read(new ByteArrayInputStream(response));
+
+            WMSMetaTile metaTile = createMetaTile(response);
+            byte[][] written = new byte[META * META][];
+            for (int i = 0; i < META * META; i++) {
+                written[i] = writeTile(metaTile, i);
+            }
+            metaTile.encodeTiles();
+
+            for (int i = 0; i < META * META; i++) {
+                byte[] encoded = writeTile(metaTile, i);
+                assertTrue("tile " + i, Arrays.equals(written[i], encoded));
+
+                int x = i % META;
+                int y = META - 1 - i / META;
+                BufferedImage expected = reference.getSubimage(x * TILE_SIZE, y * TILE_SIZE,
+                        TILE_SIZE, TILE_SIZE);
+                BufferedImage expectedTile = ImageIO.read(new ByteArrayInputStream(encode(
+                        expected, "jpeg")));
+                assertSimilar("tile " + i, expectedTile, ImageIO.read(new ByteArrayInputStream(
+                        encoded)));
+            }
+        }
+    }
+
+    public void testGreyscale() throws Exception {
+        BufferedImage grey = new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_BYTE_GRAY);
+        draw(grey, 1);
+        WMSMetaTile metaTile = createMetaTile(encode(grey, "jpeg"));
+        metaTile.encodeTiles();
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(writeTile(metaTile, 0)));
+        assertEquals(TILE_SIZE, tile.getWidth());
+        assertEquals(1, tile.getRaster().getNumBands());
+    }
+
+    private WMSMetaTile createMetaTile(byte[] response) throws Exception {
+        WMSMetaTile metaTile = new WMSMetaTile(null, gridSubset, ImageMime.jpeg, null,
+                new long[] { 4, 4, 3 }, META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+        return metaTile;
+    }
+
+    private static byte[] createImagery(long seed) throws Exception {
+        BufferedImage img = new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_3BYTE_BGR);
+        draw(img, seed);
+        return encode(img, "jpeg");
+    }
+
+    private static void draw(BufferedImage img, long seed) {
+        Graphics2D g = img.createGraphics();
+        Random random = new Random(seed);
+        for (int i = 0; i < 500; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(img.getWidth()), random.nextInt(img.getHeight()), 10 + random
+                    .nextInt(100), 10 + random.nextInt(100));
+        }
+        g.dispose();
+    }
+
+    private static byte[] writeTile(WMSMetaTile metaTile, int i) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(metaTile.writeTileToStream(i, out));
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Both were encoded at the default quality, they may only differ by rounding
+     */
+    private static void assertSimilar(String message, BufferedImage expected, BufferedImage actual) {
+        assertEquals(message, expected.getWidth(), actual.getWidth());
+        assertEquals(message, expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int error = Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF));
+                    if (error > 4) {
+                        fail(message + " differs at " + x + "," + y + ": "
+                                + Integer.toHexString(e) + " expected, " + Integer.toHexString(a));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Hashtable;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.util.OctreeQuantizer;
+import org.geowebcache.util.PNGEncoderTest;
+
+/**
+ * Slices png8 metatiles, checking the tiles share the palette of the metatile and are smaller than
+ * the ones written by ImageIO
+ */
+public class WMSMetaTilePNG8Test extends TestCase {
+
+    private static final int META = 3;
+
+    private static final int TILE_SIZE = 256;
+
+    private GridSubset gridSubset;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    /**
+     * A WMS that does not do png8 sends a full colour image, which ImageIO used to write as is
+     */
+    public void testTrueColourResponse() throws Exception {
+        BufferedImage source = createMap();
+        byte[] response = encode(source);
+
+        WMSMetaTile metaTile = createMetaTile(null, response);
+        WMSMetaTile imageIO = createMetaTile(createLayer(false), response);
+
+        long size = 0;
+        long imageIOSize = 0;
+        IndexColorModel palette = null;
+        for (int i = 0; i < META * META; i++) {
+            byte[] tile = writeTile(metaTile, i);
+            byte[] imageIOTile = writeTile(imageIO, i);
+            size += tile.length;
+            imageIOSize += imageIOTile.length;
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(tile));
+            assertTrue(decoded.getColorModel() instanceof IndexColorModel);
+            if (palette == null) {
+                palette = (IndexColorModel) decoded.getColorModel();
+            } else {
+                assertSamePalette(palette, (IndexColorModel) decoded.getColorModel());
+            }
+
+            int x = i % META;
+            int y = META - 1 - i / META;
+            BufferedImage expected = source.getSubimage(x * TILE_SIZE, y * TILE_SIZE,
+                    TILE_SIZE, TILE_SIZE);
+            assertColourError(expected, decoded);
+        }
+        assertTrue(size + " bytes, " + imageIOSize + " with ImageIO", size < imageIOSize / 2);
+    }
+
+    /**
+     * A WMS that does png8 already picked the palette, which is kept as is
+     */
+    public void testIndexedResponse() throws Exception {
+        byte[] response = encode(OctreeQuantizer.quantize(createMap()));
+        IndexColorModel palette = (IndexColorModel) ImageIO.read(
+                new ByteArrayInputStream(response)).getColorModel();
+
+        WMSMetaTile metaTile = createMetaTile(null, response);
+        WMSMetaTile imageIO = createMetaTile(createLayer(false), response);
+
+        long size = 0;
+        long imageIOSize = 0;
+        for (int i = 0; i < META * META; i++) {
+            byte[] tile = writeTile(metaTile, i);
+            byte[] imageIOTile = writeTile(imageIO, i);
+            size += tile.length;
+            imageIOSize += imageIOTile.length;
+
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(tile));
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(imageIOTile));
+            assertSamePalette(palette, (IndexColorModel) decoded.getColorModel());
+            for (int y = 0; y < TILE_SIZE; y++) {
+                for (int x = 0; x < TILE_SIZE; x++) {
+                    assertEquals(expected.getRGB(x, y), decoded.getRGB(x, y));
+                }
+            }
+        }
+        assertTrue(size + " bytes, " + imageIOSize + " with ImageIO", size < imageIOSize);
+    }
+
+    public void testConfiguredEncoder() throws Exception {
+        byte[] response = encode(createMap());
+        WMSLayer layer = createLayer(true);
+        layer.getPng8Encoder().setCompressionLevel(9);
+        layer.getPng8Encoder().setFilter("adaptive");
+        WMSMetaTile metaTile = createMetaTile(layer, response);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(writeTile(metaTile, 0)));
+        assertTrue(decoded.getColorModel() instanceof IndexColorModel);
+
+        layer.getPng8Encoder().setStrategy("fastest");
+        try {
+            createMetaTile(layer, response);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private WMSLayer createLayer(boolean enabled) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+        WMSLayer layer = new WMSLayer("test:layer", new String[] { "http://localhost/wms" },
+                null, "test:layer", Collections.singletonList(ImageMime.png8.getFormat()), grids,
+                null, new int[] { META, META }, null, false);
+        PNG8EncoderConfig config = new PNG8EncoderConfig();
+        config.setEnabled(Boolean.valueOf(enabled));
+        layer.setPng8Encoder(config);
+        return layer;
+    }
+
+    private WMSMetaTile createMetaTile(WMSLayer layer, byte[] response) throws Exception {
+        WMSMetaTile metaTile = new WMSMetaTile(layer, gridSubset, ImageMime.png8, null,
+                new long[] { 4, 4, 3 }, META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+        return metaTile;
+    }
+
+    private static BufferedImage createMap() {
+        return PNGEncoderTest.createMap(META * TILE_SIZE);
+    }
+
+    private static byte[] writeTile(WMSMetaTile metaTile, int i) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(metaTile.writeTileToStream(i, out));
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        return out.toByteArray();
+    }
+
+    private static void assertSamePalette(IndexColorModel expected, IndexColorModel actual) {
+        assertEquals(expected.getMapSize(), actual.getMapSize());
+        for (int i = 0; i < expected.getMapSize(); i++) {
+            assertEquals("entry " + i, expected.getRGB(i), actual.getRGB(i));
+        }
+    }
+
+    private static void assertColourError(BufferedImage expected, BufferedImage actual) {
+        PNGEncoderTest.assertColourError(expected, actual, 12, 128);
+    }
+}
@@ -0,0 +1,182 @@
+package org.geowebcache.layer.wms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.UniformTile;
+
+/**
+ * Slices 3x3 metatiles that are empty but for the top left tile, and checks the tiles of a single
+ * colour are served as the same pixels they would have been had they been encoded
+ */
+public class WMSMetaTileUniformTest extends TestCase {
+
+    private static final int META = 3;
+
+    private static final int TILE_SIZE = 256;
+
+    // the top left tile, metatile rows go from the bottom up
+    private static final int CONTENT_TILE = (META - 1) * META;
+
+    private GridSetBroker gridSetBroker;
+
+    private GridSubset gridSubset;
+
+    @Override
+    protected void setUp() throws Exception {
+        gridSetBroker = new GridSetBroker(false, false);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    public void testPNG() throws Exception {
+        checkUniformTiles(ImageMime.png, new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_INT_ARGB), new Color(0, 0, 0, 0));
+    }
+
+    public void testPNG8() throws Exception {
+        checkUniformTiles(ImageMime.png8, createIndexed(), new Color(0, 0, 0, 0));
+    }
+
+    public void testJPEG() throws Exception {
+        checkUniformTiles(ImageMime.jpeg, new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_3BYTE_BGR), new Color(170, 210, 240));
+    }
+
+    public void testGIF() throws Exception {
+        checkUniformTiles(ImageMime.gif, createIndexed(), new Color(0, 0, 0, 0));
+    }
+
+    public void testOptOut() throws Exception {
+        WMSLayer layer = createLayer(ImageMime.png);
+        layer.setUniformTiles(Boolean.FALSE);
+        byte[] response = encode(draw(new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_INT_ARGB), new Color(0, 0, 0, 0)), "png");
+        WMSMetaTile metaTile = createMetaTile(layer, ImageMime.png, response);
+        for (int i = 0; i < META * META; i++) {
+            assertNull(metaTile.getUniformTile(i));
+        }
+    }
+
+    private void checkUniformTiles(ImageMime format, BufferedImage image, Color background)
+            throws Exception {
+        final String name = format.getFormat();
+        final byte[] response = encode(draw(image, background), format.getInternalName());
+
+        WMSMetaTile metaTile = createMetaTile(null, format, response);
+        WMSLayer optedOut = createLayer(format);
+        optedOut.setUniformTiles(Boolean.FALSE);
+        WMSMetaTile encoded = createMetaTile(optedOut, format, response);
+
+        assertNull(name, metaTile.getUniformTile(CONTENT_TILE));
+        // far enough from the content not to get any of it through JPEG chroma subsampling
+        UniformTile uniform = metaTile.getUniformTile(META - 1);
+        assertNotNull(name, uniform);
+        assertEquals(TILE_SIZE, uniform.getWidth());
+        assertEquals(TILE_SIZE, uniform.getHeight());
+
+        int uniformTiles = 0;
+        for (int i = 0; i < META * META; i++) {
+            ByteArrayOutputStream served = new ByteArrayOutputStream();
+            assertTrue(metaTile.writeTileToStream(i, served));
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            assertTrue(encoded.writeTileToStream(i, expected));
+            assertSamePixels(name + " tile " + i, expected.toByteArray(), served.toByteArray());
+
+            if (metaTile.getUniformTile(i) != null) {
+                uniformTiles++;
+                byte[] marker = metaTile.getUniformTile(i).toMarker();
+                assertTrue(UniformTile.isMarker(marker));
+                assertSamePixels(name + " tile " + i, expected.toByteArray(), UniformTile
+                        .fromMarker(marker).getEncoded());
+            }
+        }
+        if (format != ImageMime.jpeg) {
+            assertEquals(name, META * META - 1, uniformTiles);
+        }
+    }
+
+    private WMSLayer createLayer(ImageMime format) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        grids.put(gridSubset.getName(), gridSubset);
+        return new WMSLayer("test:layer", new String[] { "http://localhost/wms" }, null,
+                "test:layer", Collections.singletonList(format.getFormat()), grids, null,
+                new int[] { META, META }, null, false);
+    }
+
+    private WMSMetaTile createMetaTile(WMSLayer layer, ImageMime format, byte[] response)
+            throws Exception {
+        WMSMetaTile metaTile = new WMSMetaTile(layer, gridSubset, format, null, new long[] { 4,
+                4, 3 }, META, META, null);
+        metaTile.setImageBytes(response);
+        metaTile.createTiles(TILE_SIZE, TILE_SIZE, false);
+        return metaTile;
+    }
+
+    /**
+     * A palette with a transparent entry, as a WMS would send for PNG8 and GIF
+     */
+    private static BufferedImage createIndexed() {
+        byte[] r = new byte[256];
+        byte[] g = new byte[256];
+        byte[] b = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte) ((i >> 5) * 36);
+            g[i] = (byte) (((i >> 2) & 7) * 36);
+            b[i] = (byte) ((i & 3) * 85);
+        }
+        IndexColorModel cm = new IndexColorModel(8, 256, r, g, b, 0);
+        return new BufferedImage(META * TILE_SIZE, META * TILE_SIZE,
+                BufferedImage.TYPE_BYTE_INDEXED, cm);
+    }
+
+    private static BufferedImage draw(BufferedImage image, Color background) {
+        Graphics2D g = image.createGraphics();
+        g.setBackground(background);
+        g.clearRect(0, 0, image.getWidth(), image.getHeight());
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillOval(random.nextInt(TILE_SIZE - 40), random.nextInt(TILE_SIZE - 40), 40, 40);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    private static void assertSamePixels(String message, byte[] expected, byte[] actual)
+            throws Exception {
+        BufferedImage expectedImage = ImageIO.read(new ByteArrayInputStream(expected));
+        BufferedImage actualImage = ImageIO.read(new ByteArrayInputStream(actual));
+        assertEquals(message, expectedImage.getWidth(), actualImage.getWidth());
+        assertEquals(message, expectedImage.getHeight(), actualImage.getHeight());
+        for (int y = 0; y < expectedImage.getHeight(); y++) {
+            for (int x = 0; x < expectedImage.getWidth(); x++) {
+                if (expectedImage.getRGB(x, y) != actualImage.getRGB(x, y)) {
+                    fail(message + " differs at " + x + "," + y + ": "
+                            + Integer.toHexString(expectedImage.getRGB(x, y)) + " expected, "
+                            + Integer.toHexString(actualImage.getRGB(x, y)) + " served");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package org.geowebcache.locks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.wms.WMSHttpHelper;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+/**
+ * Runs several GeoWebCache nodes, each a layer with its own lock provider, against a cache
+ * directory they share and a local backend that counts the requests for each metatile
+ */
+public class MetatileLockProviderTest extends TestCase {
+
+    private static final int NODES = 3;
+
+    private static final int THREADS_PER_NODE = 4;
+
+    private static final int METATILES = 4;
+
+    private static final int ZOOM_LEVEL = 6;
+
+    private final GridSetBroker gridSetBroker = new GridSetBroker(false, false);
+
+    private final Map<String, AtomicInteger> renders = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final List<JdbcConnectionPool> pools = new ArrayList<JdbcConnectionPool>();
+
+    private final Map<WMSLayer, StorageBroker> storages = new IdentityHashMap<WMSLayer, StorageBroker>();
+
+    private Server server;
+
+    private String backendUrl;
+
+    private File sharedDir;
+
+    private File cacheDir;
+
+    private File lockDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, HttpServletRequest request,
+                    HttpServletResponse response, int dispatch) throws IOException,
+                    ServletException {
+                String bbox = request.getParameter("BBOX");
+                renders.putIfAbsent(bbox, new AtomicInteger());
+                renders.get(bbox).incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+                byte[] image = createImage(Integer.parseInt(request.getParameter("WIDTH")),
+                        Integer.parseInt(request.getParameter("HEIGHT")));
+                response.setContentType("image/png");
+                response.setContentLength(image.length);
+                response.getOutputStream().write(image);
+                ((Request) request).setHandled(true);
+            }
+        });
+        server.start();
+        backendUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/wms";
+
+        sharedDir = File.createTempFile("gwc-locks", "");
+        sharedDir.delete();
+        cacheDir = new File(sharedDir, "cache");
+        lockDir = new File(sharedDir, "locks");
+        assertTrue(cacheDir.mkdirs());
+        assertTrue(lockDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        for (JdbcConnectionPool pool : pools) {
+            pool.dispose();
+        }
+        delete(sharedDir);
+    }
+
+    public void testFileLocksRenderOnce() throws Exception {
+        List<WMSLayer> nodes = new ArrayList<WMSLayer>();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(createNode(new FileLockProvider(lockDir.getPath())));
+        }
+        requestConcurrently(nodes);
+        assertRenderedOnce();
+    }
+
+    public void testJDBCLocksRenderOnce() throws Exception {
+        List<WMSLayer> nodes = new ArrayList<WMSLayer>();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(createNode(new JDBCLockProvider(createDataSource())));
+        }
+        requestConcurrently(nodes);
+        assertRenderedOnce();
+    }
+
+    public void testFileLeaseRecovery() throws Exception {
+        FileLockProvider crashed = new FileLockProvider(lockDir.getPath());
+        assertLeaseRecovered(crashed, createNode(new FileLockProvider(lockDir.getPath())));
+    }
+
+    public void testJDBCLeaseRecovery() throws Exception {
+        JDBCLockProvider crashed = new JDBCLockProvider(createDataSource());
+        assertLeaseRecovered(crashed, createNode(new JDBCLockProvider(createDataSource())));
+    }
+
+    public void testLockIsExclusive() throws Exception {
+        MetatileLockProvider[] providers = { new MemoryLockProvider(),
+                new FileLockProvider(lockDir.getPath()),
+                new JDBCLockProvider(createDataSource()) };
+        for (MetatileLockProvider provider : providers) {
+            MetatileLockProvider.Lock lock = provider.tryLock("layer/metatile");
+            assertNotNull(lock);
+            assertNull(provider.tryLock("layer/metatile"));
+            assertNotNull(provider.tryLock("layer/other"));
+            lock.release();
+            lock = provider.tryLock("layer/metatile");
+            assertNotNull(lock);
+            lock.release();
+        }
+    }
+
+    public void testReleaseAfterTakeOverKeepsNewHolder() throws Exception {
+        MemoryLockProvider memory = new MemoryLockProvider();
+        LeaseLockProvider[][] pairs = {
+                { memory, memory },
+                { new FileLockProvider(lockDir.getPath()),
+                        new FileLockProvider(lockDir.getPath()) },
+                { new JDBCLockProvider(createDataSource()),
+                        new JDBCLockProvider(createDataSource()) } };
+        for (LeaseLockProvider[] pair : pairs) {
+            LeaseLockProvider first = pair[0];
+            LeaseLockProvider second = pair[1];
+            first.setLease(100);
+            MetatileLockProvider.Lock expired = first.tryLock("layer/metatile");
+            Thread.sleep(150);
+            first.setLease(LeaseLockProvider.DEFAULT_LEASE);
+            assertNotNull(second.tryLock("layer/metatile"));
+            expired.release();
+            assertNull(second.tryLock("layer/metatile"));
+        }
+    }
+
+    public void testJDBCLocksWithoutAutoCommit() throws Exception {
+        JDBCLockProvider manual = new JDBCLockProvider(withoutAutoCommit(createDataSource()));
+        JDBCLockProvider other = new JDBCLockProvider(createDataSource());
+
+        MetatileLockProvider.Lock lock = manual.tryLock("layer/metatile");
+        assertNotNull(lock);
+        assertNull(other.tryLock("layer/metatile"));
+        // the failed insert is rolled back before the take over is tried
+        assertNull(manual.tryLock("layer/metatile"));
+
+        lock.release();
+        lock = other.tryLock("layer/metatile");
+        assertNotNull(lock);
+        lock.release();
+    }
+
+    public void testStaleLockFilesRemoved() throws Exception {
+        FileLockProvider crashed = new FileLockProvider(lockDir.getPath());
+        crashed.setLease(500);
+        assertNotNull(crashed.tryLock("layer/metatile"));
+        assertEquals(1, lockDir.list().length);
+        crashed.removeStaleLocks();
+        assertEquals(1, lockDir.list().length);
+
+        Thread.sleep(2100);
+        crashed.removeStaleLocks();
+        assertEquals(0, lockDir.list().length);
+    }
+
+    /**
+     * Leaves the metatile locked by a node that never comes back, then has another node request
+     * it
+     */
+    private void assertLeaseRecovered(LeaseLockProvider crashed, WMSLayer node)
+            throws Exception {
+        crashed.setLease(1000);
+        long[] tileIndex = metaTileTiles(node, 0).get(0);
+        assertNotNull(crashed.tryLock(node.getMetaTileLockKey(createTile(node, tileIndex))));
+
+        long start = System.currentTimeMillis();
+        ConveyorTile tile = createTile(node, tileIndex);
+        node.getTile(tile);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(tile.getContent());
+        assertTrue("rendered after " + elapsed + "ms, within the lease", elapsed >= 900);
+        assertTrue("rendered after " + elapsed + "ms", elapsed < 5000);
+        assertRenderedOnce(1);
+    }
+
+    /**
+     * Requests every tile of the metatiles from every node at once, in a different order on
+     * each thread
+     */
+    private void requestConcurrently(List<WMSLayer> nodes) throws Exception {
+        final List<long[]> tiles = new ArrayList<long[]>();
+        for (int m = 0; m < METATILES; m++) {
+            tiles.addAll(metaTileTiles(nodes.get(0), m));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(NODES * THREADS_PER_NODE);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < NODES * THREADS_PER_NODE; i++) {
+                final WMSLayer node = nodes.get(i % NODES);
+                final List<long[]> order = new ArrayList<long[]>(tiles);
+                Collections.shuffle(order, new Random(i));
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        for (long[] tileIndex : order) {
+                            ConveyorTile tile = createTile(node, tileIndex);
+                            node.getTile(tile);
+                            assertNotNull(tile.getContent());
+                        }
+                        return order.size();
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(tiles.size(), result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void assertRenderedOnce() {
+        assertRenderedOnce(METATILES);
+    }
+
+    private void assertRenderedOnce(int metaTiles) {
+        assertEquals(renders.toString(), metaTiles, renders.size());
+        for (Map.Entry<String, AtomicInteger> render : renders.entrySet()) {
+            assertEquals(render.getKey(), 1, render.getValue().get());
+        }
+    }
+
+    private JdbcConnectionPool createDataSource() {
+        JdbcConnectionPool pool = JdbcConnectionPool.create("jdbc:h2:file:"
+                + new File(sharedDir, "db").getAbsolutePath() + "/locks", "sa", "");
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Hands out the connections of the data source with auto commit off
+     */
+    private DataSource withoutAutoCommit(final DataSource dataSource) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { DataSource.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        Object result;
+                        try {
+                            result = method.invoke(dataSource, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (result instanceof Connection) {
+                            ((Connection) result).setAutoCommit(false);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    private ConveyorTile createTile(WMSLayer layer, long[] tileIndex) {
+        ConveyorTile tile = new ConveyorTile(storages.get(layer), layer.getName(),
+                gridSetBroker.WORLD_EPSG4326.getName(), tileIndex, ImageMime.png, null, null,
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+        tile.setTileLayer(layer);
+        return tile;
+    }
+
+    /**
+     * @return the tiles of the given whole metatile of the layer at {@link #ZOOM_LEVEL}
+     */
+    private List<long[]> metaTileTiles(WMSLayer layer, int metaTile) {
+        GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
+        long[] coverage = gridSubset.getCoverage(ZOOM_LEVEL);
+        int[] metaFactors = layer.getMetaTilingFactors();
+        long metaX = coverage[0] - coverage[0] % metaFactors[0] + metaFactors[0] * (metaTile + 1);
+        long metaY = coverage[1] - coverage[1] % metaFactors[1] + metaFactors[1];
+        assertTrue(metaX + metaFactors[0] - 1 <= coverage[2]);
+        assertTrue(metaY + metaFactors[1] - 1 <= coverage[3]);
+
+        List<long[]> tiles = new ArrayList<long[]>();
+        for (long y = metaY; y < metaY + metaFactors[1]; y++) {
+            for (long x = metaX; x < metaX + metaFactors[0]; x++) {
+                tiles.add(new long[] { x, y, ZOOM_LEVEL });
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return a layer standing for a GeoWebCache node, with a storage broker of its own on the
+     *         shared cache directory
+     */
+    private WMSLayer createNode(MetatileLockProvider lockProvider) throws Exception {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-90.0, -45.0, 90.0, 45.0), 0, 10);
+        grids.put(grid.getName(), grid);
+
+        WMSLayer layer = new WMSLayer("test:layer", new String[] { backendUrl }, null,
+                "test:layer", Collections.singletonList("image/png"), grids, null, new int[] {
+                        3, 3 }, null, false);
+        layer.setSourceHelper(new WMSHttpHelper());
+        layer.setBackendTimeout(10);
+        layer.setMetatileLockProvider(lockProvider);
+        layer.initialize(gridSetBroker);
+        storages.put(layer, new StorageBroker(null, new FileBlobStore(cacheDir.getPath())));
+        return layer;
+    }
+
+    private static byte[] createImage(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out);
+        return out.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,148 @@
+package org.geowebcache.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.meta.ServiceInformation;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSLayer;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+/**
+ * Compares rendering the capabilities document for every request against serving it from the
+ * {@link CapabilitiesCache}
+ */
+public class CapabilitiesCachePerfTest extends TestCase {
+
+    private static final int NUM_LAYERS = 2000;
+
+    private static final int NUM_REQUESTS = 200;
+
+    private GridSetBroker gridSetBroker;
+
+    private TileLayerDispatcher tld;
+
+    private CapabilitiesCache.DocumentGenerator generator;
+
+    @Override
+    public void setUp() throws Exception {
+        gridSetBroker = new GridSetBroker(true, true);
+
+        Configuration config = new Configuration() {
+            public List<TileLayer> getTileLayers(boolean reload) {
+                List<TileLayer> layers = new ArrayList<TileLayer>(NUM_LAYERS);
+                for (int i = 0; i < NUM_LAYERS; i++) {
+                    layers.add(createLayer("layer" + i));
+                }
+                return layers;
+            }
+
+            public String getIdentifier() {
+                return "synthetic";
+            }
+
+            public ServiceInformation getServiceInformation() {
+                return null;
+            }
+
+            public boolean isRuntimeStatsEnabled() {
+                return false;
+            }
+        };
+
+        tld = new TileLayerDispatcher(gridSetBroker, Collections.singletonList(config), -1);
+
+        generator = new CapabilitiesCache.DocumentGenerator() {
+            public String generate() {
+                StringBuilder str = new StringBuilder("<Capabilities>\n");
+                for (TileLayer layer : tld.getLayers().values()) {
+                    str.append("<Layer>\n  <ows:Identifier>").append(layer.getName())
+                            .append("</ows:Identifier>\n");
+                    for (GridSubset grid : layer.getGridSubsets().values()) {
+                        BoundingBox bounds = grid.getCoverageBestFitBounds();
+                        str.append("  <TileMatrixSetLink><TileMatrixSet>")
+                                .append(grid.getName()).append("</TileMatrixSet>");
+                        str.append("<BoundingBox>").append(bounds.toString())
+                                .append("</BoundingBox>");
+                        str.append("</TileMatrixSetLink>\n");
+                    }
+                    str.append("</Layer>\n");
+                }
+                return str.append("</Capabilities>\n").toString();
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        tld.destroy();
+    }
+
+    public void testUncached() throws Exception {
+        // warm up
+        render(NUM_REQUESTS / 10);
+
+        long t = System.currentTimeMillis();
+        render(NUM_REQUESTS);
+        report("Rendered", t);
+    }
+
+    public void testCached() throws Exception {
+        CapabilitiesCache cache = new CapabilitiesCache(tld);
+
+        // warm up
+        serve(cache, NUM_REQUESTS / 10);
+
+        long t = System.currentTimeMillis();
+        serve(cache, NUM_REQUESTS);
+        report("Served from cache", t);
+    }
+
+    private void render(int requests) throws Exception {
+        for (int i = 0; i < requests; i++) {
+            MockHttpServletResponse resp = new MockHttpServletResponse();
+            byte[] data = generator.generate().getBytes("UTF-8");
+            resp.setContentType("application/vnd.ogc.wms_xml");
+            resp.getOutputStream().write(data);
+        }
+    }
+
+    private void serve(CapabilitiesCache cache, int requests) throws Exception {
+        for (int i = 0; i < requests; i++) {
+            MockHttpServletRequest req = new MockHttpServletRequest();
+            req.addHeader("Accept-Encoding", "gzip");
+            cache.writeResponse("wmts", generator, "application/vnd.ogc.wms_xml", req,
+                    new MockHttpServletResponse(), null);
+        }
+    }
+
+    private void report(String what, long start) {
+        double secs = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.println("****" + what + " " + NUM_REQUESTS + " documents for " + NUM_LAYERS
+                + " layers in " + secs + "s. (" + (NUM_REQUESTS / secs) + " requests/s)");
+    }
+
+    private TileLayer createLayer(String name) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(grid.getName(), grid);
+        grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG3857);
+        grids.put(grid.getName(), grid);
+
+        return new WMSLayer(name, new String[] { "http://localhost/wms" }, null, name,
+                Collections.singletonList("image/png"), grids, null, new int[] { 3, 3 }, null,
+                false);
+    }
+}
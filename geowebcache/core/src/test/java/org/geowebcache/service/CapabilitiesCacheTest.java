@@ -0,0 +1,309 @@
+package org.geowebcache.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.config.Configuration;
+import org.geowebcache.config.meta.ServiceInformation;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.layer.wms.WMSLayer;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class CapabilitiesCacheTest extends TestCase {
+
+    private static final int NUM_LAYERS = 2000;
+
+    private GridSetBroker gridSetBroker;
+
+    private TileLayerDispatcher tld;
+
+    private CapabilitiesCache cache;
+
+    private CountingGenerator generator;
+
+    protected void setUp() throws Exception {
+        gridSetBroker = new GridSetBroker(false, false);
+        tld = new TileLayerDispatcher(gridSetBroker, Collections
+                .singletonList((Configuration) new SyntheticConfiguration(NUM_LAYERS)), 0);
+        cache = new CapabilitiesCache(tld);
+        generator = new CountingGenerator(tld);
+    }
+
+    protected void tearDown() throws Exception {
+        tld.destroy();
+    }
+
+    public void testSecondRequestIsNotRendered() throws Exception {
+        CapabilitiesCache.Document first = cache.get("wms|http://localhost/", generator);
+        assertEquals(1, generator.count.get());
+        assertTrue(new String(first.getRaw(), "UTF-8").contains("layer" + (NUM_LAYERS - 1)));
+
+        CapabilitiesCache.Document second = cache.get("wms|http://localhost/", generator);
+        assertEquals(1, generator.count.get());
+        assertSame(first, second);
+
+        // Different base URLs get different documents
+        cache.get("wms|http://example.com/", generator);
+        assertEquals(2, generator.count.get());
+        assertEquals(2, cache.size());
+    }
+
+    public void testKey() {
+        assertEquals("wms|http://localhost/|true", CapabilitiesCache.key("wms",
+                "http://localhost/", new String[] { "true" }));
+        assertFalse(CapabilitiesCache.key("wms", "a", new String[] { "true" }).equals(
+                CapabilitiesCache.key("wms", "a", new String[] { "false" })));
+        assertEquals("wmts|a", CapabilitiesCache.key("wmts", "a", null));
+    }
+
+    public void testConditionalRequest() throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        cache.writeResponse("wms", generator, "text/xml", req, resp, null);
+
+        assertEquals(200, resp.getStatusCode());
+        String etag = resp.getHeader("ETag");
+        assertNotNull(etag);
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertTrue(resp.getOutputStreamContent().length() > 0);
+
+        req = new MockHttpServletRequest();
+        req.addHeader("If-None-Match", etag);
+        resp = new MockHttpServletResponse();
+        cache.writeResponse("wms", generator, "text/xml", req, resp, null);
+
+        assertEquals(304, resp.getStatusCode());
+        assertEquals(0, resp.getOutputStreamContent().length());
+        assertEquals(1, generator.count.get());
+
+        // Changing the layers changes the document and thus the ETag
+        tld.remove("layer0");
+        req = new MockHttpServletRequest();
+        req.addHeader("If-None-Match", etag);
+        resp = new MockHttpServletResponse();
+        cache.writeResponse("wms", generator, "text/xml", req, resp, null);
+
+        assertEquals(200, resp.getStatusCode());
+        assertFalse(etag.equals(resp.getHeader("ETag")));
+    }
+
+    public void testGzip() throws Exception {
+        CapabilitiesCache.Document doc = cache.get("wms", generator);
+
+        GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(doc.getGzipped()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = gzis.read(buf)) != -1) {
+            bytes.write(buf, 0, read);
+        }
+        assertTrue(java.util.Arrays.equals(doc.getRaw(), bytes.toByteArray()));
+        assertTrue(doc.getGzipped().length < doc.getRaw().length);
+        assertFalse(doc.getETag().equals(doc.getGzipETag()));
+
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        req.addHeader("Accept-Encoding", "deflate, gzip");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        cache.writeResponse("wms", generator, "text/xml", req, resp, null);
+
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        assertEquals(doc.getGzipETag(), resp.getHeader("ETag"));
+        assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+    }
+
+    public void testAcceptsGzip() {
+        assertFalse(CapabilitiesCache.acceptsGzip(null));
+        assertFalse(CapabilitiesCache.acceptsGzip("deflate"));
+        assertTrue(CapabilitiesCache.acceptsGzip("gzip"));
+        assertTrue(CapabilitiesCache.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(CapabilitiesCache.acceptsGzip("gzip;q=0"));
+    }
+
+    public void testMatches() {
+        assertFalse(CapabilitiesCache.matches(null, "\"a\""));
+        assertTrue(CapabilitiesCache.matches("\"b\", \"a\"", "\"a\""));
+        assertTrue(CapabilitiesCache.matches("W/\"a\"", "\"a\""));
+        assertTrue(CapabilitiesCache.matches("*", "\"a\""));
+        assertFalse(CapabilitiesCache.matches("\"b\"", "\"a\""));
+    }
+
+    public void testInvalidation() throws Exception {
+        cache.get("wms", generator);
+        assertEquals(1, cache.size());
+
+        tld.add(createLayer("newLayer"));
+        assertEquals(0, cache.size());
+
+        cache.get("wms", generator);
+        tld.update(createLayer("newLayer"));
+        assertEquals(0, cache.size());
+
+        cache.get("wms", generator);
+        tld.remove("newLayer");
+        assertEquals(0, cache.size());
+
+        // Removing something that is not there changes nothing
+        cache.get("wms", generator);
+        tld.remove("noSuchLayer");
+        assertEquals(1, cache.size());
+
+        tld.reInit();
+        assertEquals(0, cache.size());
+        assertEquals(4, generator.count.get());
+    }
+
+    public void testFailuresAreNotKept() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        CapabilitiesCache.DocumentGenerator failing = new CapabilitiesCache.DocumentGenerator() {
+            public String generate() throws GeoWebCacheException {
+                calls.incrementAndGet();
+                throw new GeoWebCacheException("failed");
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("wms", failing);
+                fail("Expected an exception");
+            } catch (GeoWebCacheException gwce) {
+                assertEquals("failed", gwce.getMessage());
+            }
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    public void testConcurrentMissesRenderOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CapabilitiesCache.DocumentGenerator slow = new CapabilitiesCache.DocumentGenerator() {
+            public String generate() throws GeoWebCacheException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new GeoWebCacheException(e);
+                }
+                return generator.generate();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CapabilitiesCache.Document>> results = new ArrayList<Future<CapabilitiesCache.Document>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new java.util.concurrent.Callable<CapabilitiesCache.Document>() {
+                    public CapabilitiesCache.Document call() throws Exception {
+                        start.await();
+                        return cache.get("wms", slow);
+                    }
+                }));
+            }
+            start.countDown();
+
+            CapabilitiesCache.Document first = results.get(0).get();
+            for (Future<CapabilitiesCache.Document> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, generator.count.get());
+    }
+
+    public void testMaxDocuments() throws Exception {
+        CapabilitiesCache small = new CapabilitiesCache(null, 2);
+        small.get("a", generator);
+        small.get("b", generator);
+        small.get("a", generator);
+        small.get("c", generator);
+        assertEquals(2, small.size());
+
+        // b was the least recently used one
+        small.get("a", generator);
+        assertEquals(3, generator.count.get());
+        small.get("b", generator);
+        assertEquals(4, generator.count.get());
+    }
+
+    private TileLayer createLayer(String name) {
+        Hashtable<String, GridSubset> grids = new Hashtable<String, GridSubset>();
+        GridSubset grid = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+        grids.put(grid.getName(), grid);
+
+        return new WMSLayer(name, new String[] { "http://localhost/wms" }, null, name,
+                Collections.singletonList("image/png"), grids, null, new int[] { 3, 3 }, null,
+                false);
+    }
+
+    /**
+     * Stands in for a capabilities document, touches every layer
+     */
+    private static class CountingGenerator implements CapabilitiesCache.DocumentGenerator {
+        final AtomicInteger count = new AtomicInteger();
+
+        final TileLayerDispatcher tld;
+
+        CountingGenerator(TileLayerDispatcher tld) {
+            this.tld = tld;
+        }
+
+        public String generate() {
+            count.incrementAndGet();
+            StringBuilder str = new StringBuilder("<Capabilities>\n");
+            for (TileLayer layer : tld.getLayers().values()) {
+                str.append("  <Layer><Name>").append(layer.getName()).append("</Name>");
+                for (GridSubset grid : layer.getGridSubsets().values()) {
+                    str.append("<SRS>").append(grid.getSRS()).append("</SRS>");
+                }
+                str.append("</Layer>\n");
+            }
+            return str.append("</Capabilities>\n").toString();
+        }
+    }
+
+    private class SyntheticConfiguration implements Configuration {
+        private final int numLayers;
+
+        SyntheticConfiguration(int numLayers) {
+            this.numLayers = numLayers;
+        }
+
+        public List<TileLayer> getTileLayers(boolean reload) {
+            List<TileLayer> layers = new ArrayList<TileLayer>(numLayers);
+            for (int i = 0; i < numLayers; i++) {
+                layers.add(createLayer("layer" + i));
+            }
+            return layers;
+        }
+
+        public String getIdentifier() {
+            return "synthetic";
+        }
+
+        public ServiceInformation getServiceInformation() {
+            return null;
+        }
+
+        public boolean isRuntimeStatsEnabled() {
+            return false;
+        }
+    }
+}
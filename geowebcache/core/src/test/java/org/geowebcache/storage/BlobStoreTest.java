@@ -53,6 +53,24 @@ public class BlobStoreTest extends TestCase {
         assertTrue(Arrays.equals(to.getBlob(), to2.getBlob()));
     }
     
+    public void testTileExists() throws Exception {
+        FileBlobStore fbs = setup();
+        
+        long[] xyz = {5L,6L,7L};
+        TileObject to = TileObject.createCompleteTileObject("test:exists", xyz, "EPSG:4326", "image/png", null, "exists".getBytes());
+        fbs.delete(to);
+        
+        TileObject query = TileObject.createQueryTileObject("test:exists", xyz, "EPSG:4326", "image/png", null);
+        assertFalse(fbs.exists(query));
+        
+        fbs.put(to);
+        assertTrue(fbs.exists(query));
+        assertNull(query.getBlob());
+        
+        fbs.delete(to);
+        assertFalse(fbs.exists(query));
+    }
+    
     public void testWFSParam() throws Exception {
         FileBlobStore fbs = setup();
         
@@ -0,0 +1,100 @@
+package org.geowebcache.storage;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.geowebcache.util.GzipUtils;
+import org.geowebcache.util.GzipUtilsTest;
+
+/**
+ * Text tiles go through the storage broker gzipped, other tiles as they are
+ */
+public class StorageBrokerGzipTest extends TestCase {
+
+    private static final String KML = "application/vnd.google-earth.kml+xml";
+
+    private StorageBroker sb;
+
+    private long storedSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "gwcTestGzipBlobs");
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new StorageException("Unable to create " + dir.getAbsolutePath());
+        }
+        // No metastore, the broker goes straight to the blob store
+        sb = new StorageBroker(null, new FileBlobStore(dir.getAbsolutePath()));
+        sb.addBlobStoreListener(new BlobStoreListener() {
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                storedSize = blobSize;
+            }
+
+            public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+            }
+
+            public void layerDeleted(String layerName) {
+            }
+        });
+    }
+
+    public void testTextStoredGzipped() throws Exception {
+        byte[] kml = GzipUtilsTest.createKML(100);
+        long[] xyz = { 1L, 2L, 3L };
+        TileObject to = TileObject.createCompleteTileObject("test:gzip", xyz, "EPSG:4326", KML,
+                null, kml);
+        assertTrue(sb.put(to));
+
+        assertEquals(GzipUtils.GZIP, to.getBlobEncoding());
+        // What the disk quota sees is the compressed size
+        assertEquals(to.getBlob().length, storedSize);
+        assertTrue(storedSize < kml.length / 4);
+
+        TileObject read = TileObject.createQueryTileObject("test:gzip", xyz, "EPSG:4326", KML,
+                null);
+        assertTrue(sb.get(read));
+        assertEquals(GzipUtils.GZIP, read.getBlobEncoding());
+        assertTrue(Arrays.equals(kml, GzipUtils.decompress(read.getBlob())));
+    }
+
+    public void testCompressionDisabled() throws Exception {
+        sb.setTextCompressionLevel(0);
+        byte[] kml = GzipUtilsTest.createKML(100);
+        long[] xyz = { 4L, 5L, 6L };
+        TileObject to = TileObject.createCompleteTileObject("test:gzip", xyz, "EPSG:4326", KML,
+                null, kml);
+        assertTrue(sb.put(to));
+        assertNull(to.getBlobEncoding());
+        assertEquals(kml.length, storedSize);
+
+        TileObject read = TileObject.createQueryTileObject("test:gzip", xyz, "EPSG:4326", KML,
+                null);
+        assertTrue(sb.get(read));
+        assertNull(read.getBlobEncoding());
+        assertTrue(Arrays.equals(kml, read.getBlob()));
+    }
+
+    public void testImagesStoredAsIs() throws Exception {
+        // Starts like gzip, but is not text
+        byte[] data = new byte[100];
+        data[0] = 0x1f;
+        data[1] = (byte) 0x8b;
+        data[2] = 8;
+        long[] xyz = { 7L, 8L, 9L };
+        TileObject to = TileObject.createCompleteTileObject("test:gzip", xyz, "EPSG:4326",
+                "image/png", null, data);
+        assertTrue(sb.put(to));
+        assertNull(to.getBlobEncoding());
+
+        TileObject read = TileObject.createQueryTileObject("test:gzip", xyz, "EPSG:4326",
+                "image/png", null);
+        assertTrue(sb.get(read));
+        assertNull(read.getBlobEncoding());
+        assertTrue(Arrays.equals(data, read.getBlob()));
+    }
+}
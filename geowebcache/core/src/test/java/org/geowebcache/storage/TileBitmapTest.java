@@ -0,0 +1,161 @@
+package org.geowebcache.storage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TileBitmapTest extends TestCase {
+
+    public void testGetAndSet() {
+        TileBitmap bitmap = new TileBitmap(3, 5, 200, 7);
+        assertEquals(0, bitmap.cardinality());
+
+        bitmap.set(3, 5);
+        bitmap.set(67, 6);
+        bitmap.set(200, 7);
+        bitmap.set(200, 7);
+        assertEquals(3, bitmap.cardinality());
+
+        assertTrue(bitmap.get(3, 5));
+        assertTrue(bitmap.get(67, 6));
+        assertTrue(bitmap.get(200, 7));
+        assertFalse(bitmap.get(4, 5));
+        assertFalse(bitmap.get(3, 6));
+        assertFalse(bitmap.get(66, 6));
+
+        // Outside is never set
+        assertFalse(bitmap.get(2, 5));
+        assertFalse(bitmap.get(201, 7));
+        assertFalse(bitmap.get(200, 8));
+
+        try {
+            bitmap.set(201, 7);
+            fail("Expected the tile to be outside");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testAnySetAgainstBruteForce() {
+        Random random = new Random(3);
+        for (int n = 0; n < 300; n++) {
+            long minX = random.nextInt(100);
+            long minY = random.nextInt(100);
+            int width = 1 + random.nextInt(n < 150 ? 20 : 300);
+            int height = 1 + random.nextInt(n < 150 ? 20 : 150);
+            TileBitmap bitmap = new TileBitmap(minX, minY, minX + width - 1, minY + height - 1);
+            boolean[][] tiles = new boolean[width][height];
+
+            int count = random.nextInt(1 + width * height / (1 + random.nextInt(50)));
+            for (int i = 0; i < count; i++) {
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                tiles[x][y] = true;
+                bitmap.set(minX + x, minY + y);
+            }
+
+            for (int q = 0; q < 200; q++) {
+                long x0 = minX - 3 + random.nextInt(width + 6);
+                long y0 = minY - 3 + random.nextInt(height + 6);
+                long x1 = x0 + random.nextInt(1 + random.nextInt(width + 3));
+                long y1 = y0 + random.nextInt(1 + random.nextInt(height + 3));
+                assertEquals(x0 + "," + y0 + " " + x1 + "," + y1,
+                        anySet(tiles, minX, minY, x0, y0, x1, y1), bitmap.anySet(x0, y0, x1, y1));
+            }
+
+            // The blocks of tiles of lower zoom levels
+            for (int shift = 1; shift < 10; shift++) {
+                long size = 1L << shift;
+                for (long bx = minX >> shift; bx <= (minX + width - 1) >> shift; bx++) {
+                    for (long by = minY >> shift; by <= (minY + height - 1) >> shift; by++) {
+                        long x0 = bx << shift;
+                        long y0 = by << shift;
+                        assertEquals(anySet(tiles, minX, minY, x0, y0, x0 + size - 1, y0 + size
+                                - 1), bitmap.anySet(x0, y0, x0 + size - 1, y0 + size - 1));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSetRange() {
+        Random random = new Random(11);
+        for (int n = 0; n < 200; n++) {
+            long minX = random.nextInt(100);
+            long minY = random.nextInt(100);
+            int width = 1 + random.nextInt(300);
+            int height = 1 + random.nextInt(40);
+            TileBitmap bitmap = new TileBitmap(minX, minY, minX + width - 1, minY + height - 1);
+            boolean[][] tiles = new boolean[width][height];
+            int count = 0;
+
+            for (int r = random.nextInt(4); r >= 0; r--) {
+                int x0 = random.nextInt(width);
+                int y0 = random.nextInt(height);
+                int x1 = x0 + random.nextInt(width - x0);
+                int y1 = y0 + random.nextInt(height - y0);
+                bitmap.setRange(minX + x0, minY + y0, minX + x1, minY + y1);
+                for (int x = x0; x <= x1; x++) {
+                    for (int y = y0; y <= y1; y++) {
+                        count += tiles[x][y] ? 0 : 1;
+                        tiles[x][y] = true;
+                    }
+                }
+            }
+            assertEquals(count, bitmap.cardinality());
+
+            for (int q = 0; q < 200; q++) {
+                long x0 = minX - 3 + random.nextInt(width + 6);
+                long y0 = minY - 3 + random.nextInt(height + 6);
+                long x1 = x0 + random.nextInt(1 + random.nextInt(width + 3));
+                long y1 = y0 + random.nextInt(1 + random.nextInt(height + 3));
+                assertEquals(anySet(tiles, minX, minY, x0, y0, x1, y1), bitmap.anySet(x0, y0,
+                        x1, y1));
+            }
+        }
+
+        TileBitmap bitmap = new TileBitmap(0, 0, 9, 9);
+        try {
+            bitmap.setRange(5, 5, 10, 5);
+            fail("Expected the range to be outside");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testFromRaster() {
+        BufferedImage img = new BufferedImage(70, 3, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = img.getRaster();
+        raster.setSample(0, 0, 0, 1);
+        raster.setSample(69, 2, 0, 1);
+
+        TileBitmap set = TileBitmap.fromRaster(raster, 10, 20, 1, true);
+        assertEquals(10, set.getMinX());
+        assertEquals(18, set.getMinY());
+        assertEquals(79, set.getMaxX());
+        assertEquals(20, set.getMaxY());
+        assertEquals(2, set.cardinality());
+        // The top row of the raster is maxY
+        assertTrue(set.get(10, 20));
+        assertTrue(set.get(79, 18));
+
+        TileBitmap unset = TileBitmap.fromRaster(raster, 10, 20, 1, false);
+        assertEquals(208, unset.cardinality());
+        assertFalse(unset.get(10, 20));
+        assertTrue(unset.get(11, 20));
+    }
+
+    private static boolean anySet(boolean[][] tiles, long minX, long minY, long x0, long y0,
+            long x1, long y1) {
+        for (long x = Math.max(x0, minX); x <= x1 && x - minX < tiles.length; x++) {
+            for (long y = Math.max(y0, minY); y <= y1 && y - minY < tiles[0].length; y++) {
+                if (tiles[(int) (x - minX)][(int) (y - minY)]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
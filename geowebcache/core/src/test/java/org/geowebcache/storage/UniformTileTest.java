@@ -0,0 +1,92 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+public class UniformTileTest extends TestCase {
+
+    private static final int[] TYPES = { BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_INDEXED,
+            BufferedImage.TYPE_USHORT_565_RGB };
+
+    public void testScanFindsUniformRegions() throws Exception {
+        for (int type : TYPES) {
+            BufferedImage img = new BufferedImage(64, 48, type);
+            Graphics2D g = img.createGraphics();
+            g.setColor(Color.BLUE);
+            g.fillRect(0, 0, 64, 48);
+            g.setColor(Color.WHITE);
+            g.fillRect(40, 30, 1, 1);
+            g.dispose();
+
+            String name = "image type " + type;
+            UniformTile uniform = UniformTile.scan(img, 0, 0, 32, 24, "png", -1);
+            assertNotNull(name, uniform);
+            assertEquals(name, img.getRGB(0, 0), uniform.getARGB());
+            assertEquals(32, uniform.getWidth());
+            assertEquals(24, uniform.getHeight());
+            assertNotNull(name, UniformTile.scan(img, 32, 0, 32, 24, "png", -1));
+            assertNotNull(name, UniformTile.scan(img, 0, 24, 32, 24, "png", -1));
+            // the single white pixel
+            assertNull(name, UniformTile.scan(img, 32, 24, 32, 24, "png", -1));
+            assertNull(name, UniformTile.scan(img, 0, 0, 64, 48, "png", -1));
+            // on the first row, and on the last pixel
+            assertNull(name, UniformTile.scan(img, 40, 30, 8, 8, "png", -1));
+            assertNull(name, UniformTile.scan(img, 33, 23, 8, 8, "png", -1));
+        }
+    }
+
+    public void testScanSubimages() throws Exception {
+        BufferedImage img = new BufferedImage(64, 64, BufferedImage.TYPE_4BYTE_ABGR);
+        img.setRGB(10, 10, 0xFF00FF00);
+        BufferedImage sub = img.getSubimage(16, 16, 32, 32);
+        assertNotNull(UniformTile.scan(sub, 0, 0, 32, 32, "png", -1));
+        sub = img.getSubimage(8, 8, 32, 32);
+        assertNull(UniformTile.scan(sub, 0, 0, 32, 32, "png", -1));
+        assertNotNull(UniformTile.scan(sub, 8, 8, 24, 24, "png", -1));
+    }
+
+    public void testMarker() throws Exception {
+        UniformTile uniform = new UniformTile(0x80102030, 256, 512, UniformTile.ARGB, "png",
+                -1);
+        byte[] marker = uniform.toMarker();
+        assertTrue(UniformTile.isMarker(marker));
+        assertTrue(marker.length < 32);
+        UniformTile read = UniformTile.fromMarker(marker);
+        assertEquals(uniform, read);
+        assertEquals(0x80102030, read.getARGB());
+        assertEquals(512, read.getHeight());
+
+        assertFalse(UniformTile.isMarker(null));
+        assertFalse(UniformTile.isMarker(new byte[] { (byte) 0x89, 'P', 'N', 'G' }));
+        assertFalse(UniformTile.isMarker(uniform.getEncoded()));
+    }
+
+    public void testEncodedImagesAreCached() throws Exception {
+        UniformTile uniform = new UniformTile(0xFF336699, 256, 256, UniformTile.RGB, "jpeg",
+                0.5f);
+        byte[] encoded = uniform.getEncoded();
+        assertSame(encoded, new UniformTile(0xFF336699, 256, 256, UniformTile.RGB, "jpeg",
+                0.5f).getEncoded());
+        assertNotSame(encoded, new UniformTile(0xFF336699, 256, 256, UniformTile.RGB, "jpeg",
+                0.9f).getEncoded());
+    }
+}
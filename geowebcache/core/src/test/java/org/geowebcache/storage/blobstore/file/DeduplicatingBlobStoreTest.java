@@ -0,0 +1,365 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.TileObject;
+
+public class DeduplicatingBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:dedup";
+
+    private static final byte[] EMPTY = "an empty tile, the same everywhere".getBytes();
+
+    private static final byte[] LAND = "a tile with some land on it".getBytes();
+
+    private File root;
+
+    private DeduplicatingBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir(), "gwcDedupTest");
+        delete(root);
+        root.mkdirs();
+        store = new DeduplicatingBlobStore(new FileBlobStore(root.getAbsolutePath()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        delete(root);
+    }
+
+    public void testDuplicatesAreStoredOnce() throws Exception {
+        checkDuplicatesAreStoredOnce(0);
+    }
+
+    public void testDuplicatesAreStoredOnceWithReferenceRecords() throws Exception {
+        store.setHardLinks(false);
+        checkDuplicatesAreStoredOnce(DeduplicatingBlobStore.REFERENCE_MAGIC.length + 17);
+    }
+
+    private void checkDuplicatesAreStoredOnce(int recordSize) throws Exception {
+        for (int x = 0; x < 10; x++) {
+            store.put(tile(x, 0, EMPTY));
+        }
+        store.put(tile(0, 1, LAND));
+        assertEquals(EMPTY.length + LAND.length + 11 * recordSize, store.getPhysicalSize());
+        assertTrue(store.contentFile(DeduplicatingBlobStore.hashKey(EMPTY)).exists());
+
+        for (int x = 0; x < 10; x++) {
+            assertTrue(Arrays.equals(EMPTY, store.get(query(x, 0))));
+        }
+        assertTrue(Arrays.equals(LAND, store.get(query(0, 1))));
+
+        for (int x = 0; x < 9; x++) {
+            assertTrue(store.delete(query(x, 0)));
+        }
+        assertNull(store.get(query(0, 0)));
+        assertTrue(Arrays.equals(EMPTY, store.get(query(9, 0))));
+
+        assertTrue(store.delete(query(9, 0)));
+        assertFalse(store.contentFile(DeduplicatingBlobStore.hashKey(EMPTY)).exists());
+        assertEquals(LAND.length + recordSize, store.getPhysicalSize());
+    }
+
+    public void testReplacedTileReleasesItsContent() throws Exception {
+        store.put(tile(0, 0, EMPTY));
+        store.put(tile(0, 0, LAND));
+        assertTrue(Arrays.equals(LAND, store.get(query(0, 0))));
+        assertFalse(store.contentFile(DeduplicatingBlobStore.hashKey(EMPTY)).exists());
+        assertEquals(LAND.length, store.getPhysicalSize());
+    }
+
+    public void testCountsSurviveRestart() throws Exception {
+        store.setHardLinks(false);
+        store.put(tile(0, 0, EMPTY));
+        store.put(tile(1, 0, EMPTY));
+        long physicalSize = store.getPhysicalSize();
+        store.destroy();
+
+        store = new DeduplicatingBlobStore(new FileBlobStore(root.getAbsolutePath()));
+        assertEquals(physicalSize, store.getPhysicalSize());
+        assertTrue(store.delete(query(0, 0)));
+        assertTrue(store.delete(query(1, 0)));
+        assertEquals(0, store.getPhysicalSize());
+    }
+
+    public void testConcurrentPutsAndDeletes() throws Exception {
+        final byte[][] contents = new byte[4][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = ("content " + i).getBytes();
+        }
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int x = random.nextInt(8);
+                            if (random.nextInt(3) == 0) {
+                                store.delete(query(x, 0));
+                            } else {
+                                store.put(tile(x, 0, contents[random.nextInt(contents.length)]));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // every content still referred to is there once, and no other
+        boolean[] referred = new boolean[contents.length];
+        long expected = 0;
+        for (int x = 0; x < 8; x++) {
+            byte[] blob = store.get(query(x, 0));
+            for (int i = 0; blob != null && i < contents.length; i++) {
+                if (Arrays.equals(contents[i], blob) && !referred[i]) {
+                    referred[i] = true;
+                    expected += blob.length;
+                }
+            }
+        }
+        assertEquals(expected, store.getPhysicalSize());
+        for (int i = 0; i < contents.length; i++) {
+            assertEquals(referred[i], store.contentFile(
+                    DeduplicatingBlobStore.hashKey(contents[i])).exists());
+        }
+
+        assertTrue(store.delete(LAYER));
+        assertEquals(0, store.getPhysicalSize());
+        for (int i = 0; i < contents.length; i++) {
+            assertFalse(store.contentFile(DeduplicatingBlobStore.hashKey(contents[i])).exists());
+        }
+    }
+
+    public void testJournalReplay() throws Exception {
+        File dir = new File(root, "counts");
+        ReferenceCounts counts = new ReferenceCounts(dir, 0);
+        counts.add("x0000000000000001", 10, false);
+        counts.add("x0000000000000001", 10, true);
+        counts.add("x0000000000000002", 20, false);
+        counts.remove("x0000000000000001", false);
+        // no close, as after a crash
+
+        ReferenceCounts recovered = new ReferenceCounts(dir, 0);
+        assertEquals(1, recovered.get("x0000000000000001"));
+        assertEquals(1, recovered.get("x0000000000000002"));
+        // both contents, and the reference record naming the first one
+        assertEquals(30 + "x0000000000000001".length(), recovered.getPhysicalSize());
+        recovered.close();
+    }
+
+    public void testTruncatedJournal() throws Exception {
+        File dir = new File(root, "counts");
+        ReferenceCounts counts = new ReferenceCounts(dir, 0);
+        counts.add("x0000000000000001", 10, false);
+        counts.add("x0000000000000002", 20, false);
+
+        // the last record was half written
+        File journal = new File(dir, ReferenceCounts.journalName(0));
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        ReferenceCounts recovered = new ReferenceCounts(dir, 0);
+        assertEquals(1, recovered.get("x0000000000000001"));
+        assertEquals(0, recovered.get("x0000000000000002"));
+        // and it keeps going from there
+        recovered.add("x0000000000000003", 30, false);
+        recovered = new ReferenceCounts(dir, 0);
+        assertEquals(1, recovered.get("x0000000000000001"));
+        assertEquals(1, recovered.get("x0000000000000003"));
+        recovered.close();
+    }
+
+    public void testCorruptJournal() throws Exception {
+        File dir = new File(root, "counts");
+        ReferenceCounts counts = new ReferenceCounts(dir, 0);
+        counts.add("x0000000000000001", 10, false);
+        counts.add("x0000000000000002", 20, false);
+        counts.add("x0000000000000003", 30, false);
+
+        // flip a byte in the size of the second record
+        File journal = new File(dir, ReferenceCounts.journalName(0));
+        long recordLength = (journal.length() - 16) / 3;
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.seek(16 + recordLength + 20);
+        int b = raf.read();
+        raf.seek(16 + recordLength + 20);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        ReferenceCounts recovered = new ReferenceCounts(dir, 0);
+        assertEquals(1, recovered.get("x0000000000000001"));
+        assertEquals(0, recovered.get("x0000000000000002"));
+        assertEquals(0, recovered.get("x0000000000000003"));
+        assertEquals(16 + recordLength, journal.length());
+        recovered.close();
+    }
+
+    public void testCheckpoint() throws Exception {
+        File dir = new File(root, "counts");
+        ReferenceCounts counts = new ReferenceCounts(dir, 0);
+        counts.add("x0000000000000001", 10, false);
+        counts.checkpoint();
+        counts.add("x0000000000000002", 20, false);
+        counts.remove("x0000000000000001", false);
+
+        assertFalse(new File(dir, ReferenceCounts.journalName(0)).exists());
+        assertTrue(new File(dir, ReferenceCounts.journalName(1)).exists());
+
+        ReferenceCounts recovered = new ReferenceCounts(dir, 0);
+        assertEquals(0, recovered.get("x0000000000000001"));
+        assertEquals(1, recovered.get("x0000000000000002"));
+        assertEquals(20, recovered.getPhysicalSize());
+        recovered.close();
+    }
+
+    public void testSnapshotFailedBeforeRename() throws Exception {
+        File dir = new File(root, "counts");
+        ReferenceCounts counts = new ReferenceCounts(dir, 0);
+        counts.add("x0000000000000001", 10, false);
+        counts.checkpoint();
+        counts.add("x0000000000000002", 20, false);
+
+        // as if a crash happened while writing the next snapshot: the journal of the next
+        // generation exists but the snapshot is still the previous one
+        new RandomAccessFile(new File(dir, ReferenceCounts.journalName(2)), "rw").close();
+        new File(dir, ReferenceCounts.SNAPSHOT_NAME + ".tmp").createNewFile();
+
+        ReferenceCounts recovered = new ReferenceCounts(dir, 0);
+        assertEquals(1, recovered.get("x0000000000000001"));
+        assertEquals(1, recovered.get("x0000000000000002"));
+        recovered.add("x0000000000000003", 30, false);
+
+        recovered = new ReferenceCounts(dir, 0);
+        assertEquals(60, recovered.getPhysicalSize());
+        recovered.close();
+    }
+
+    public void testHashCollisionsAreToldApart() throws Exception {
+        // a content stored under the hash of another, as a collision would
+        String hashKey = DeduplicatingBlobStore.hashKey(EMPTY);
+        File content = store.contentFile(hashKey);
+        content.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(content, "rw");
+        raf.write(LAND);
+        raf.close();
+        store.destroy();
+        ReferenceCounts counts = new ReferenceCounts(new File(root,
+                DeduplicatingBlobStore.CONTENT_DIR), DeduplicatingBlobStore.REFERENCE_MAGIC.length);
+        counts.add(hashKey, LAND.length, false);
+        counts.close();
+        store = new DeduplicatingBlobStore(new FileBlobStore(root.getAbsolutePath()));
+
+        store.put(tile(0, 0, EMPTY));
+        store.put(tile(1, 0, EMPTY));
+        assertTrue(Arrays.equals(EMPTY, store.get(query(0, 0))));
+        assertTrue(Arrays.equals(LAND, read(content)));
+        assertEquals(LAND.length + EMPTY.length, store.getPhysicalSize());
+
+        assertTrue(store.delete(query(0, 0)));
+        assertTrue(store.delete(query(1, 0)));
+        assertEquals(LAND.length, store.getPhysicalSize());
+        assertTrue(content.exists());
+    }
+
+    public void testTilesStoredBeforeDeduplicationReleaseNothing() throws Exception {
+        checkTilesStoredBeforeDeduplicationReleaseNothing(true);
+    }
+
+    public void testTilesStoredBeforeDeduplicationReleaseNothingWithReferenceRecords()
+            throws Exception {
+        checkTilesStoredBeforeDeduplicationReleaseNothing(false);
+    }
+
+    private void checkTilesStoredBeforeDeduplicationReleaseNothing(boolean hardLinks)
+            throws Exception {
+        store.destroy();
+        FileBlobStore plain = new FileBlobStore(root.getAbsolutePath());
+        plain.put(tile(0, 0, EMPTY));
+        plain.put(tile(1, 0, EMPTY));
+        plain.destroy();
+        store = new DeduplicatingBlobStore(new FileBlobStore(root.getAbsolutePath()));
+        store.setHardLinks(hardLinks);
+
+        store.put(tile(2, 0, EMPTY));
+        File content = store.contentFile(DeduplicatingBlobStore.hashKey(EMPTY));
+        assertTrue(content.exists());
+
+        // the old tiles have the bytes of the content, but never counted towards it
+        assertTrue(store.delete(query(0, 0)));
+        store.put(tile(1, 0, LAND));
+        assertTrue(content.exists());
+        assertTrue(Arrays.equals(EMPTY, store.get(query(2, 0))));
+
+        assertTrue(store.delete(query(2, 0)));
+        assertFalse(content.exists());
+    }
+
+    private static TileObject tile(long x, long y, byte[] blob) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, 5 }, "EPSG:4326",
+                "image/png", null, blob);
+    }
+
+    private static TileObject query(long x, long y) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, 5 }, "EPSG:4326",
+                "image/png", null);
+    }
+
+    private static byte[] read(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
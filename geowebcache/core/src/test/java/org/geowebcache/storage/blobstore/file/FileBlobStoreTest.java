@@ -0,0 +1,259 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore.Durability;
+
+public class FileBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:durable";
+
+    private File root;
+
+    private FileBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir(), "gwcFileBlobStoreTest");
+        delete(root);
+        root.mkdirs();
+        store = new FileBlobStore(root.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        delete(root);
+    }
+
+    public void testReadersNeverSeePartialTiles() throws Exception {
+        readWhileReplacing(Durability.NONE);
+    }
+
+    public void testReadersNeverSeePartialTilesBatched() throws Exception {
+        readWhileReplacing(Durability.BATCHED);
+    }
+
+    public void testDurabilityModes() throws Exception {
+        for (Durability durability : Durability.values()) {
+            store.setDurability(durability);
+            assertEquals(durability != Durability.BATCHED, store.getFlusher() == null);
+            for (long x = 0; x < 10; x++) {
+                store.put(tile(x, 0, blob(x, durability.ordinal())));
+            }
+            for (long x = 0; x < 10; x++) {
+                assertTrue(Arrays.equals(blob(x, durability.ordinal()), store.get(query(x, 0))));
+            }
+        }
+        assertEquals(0, countTempFiles(root));
+    }
+
+    public void testBatchedWritesShareFlushes() throws Exception {
+        store.setFlushInterval(20);
+        store.setDurability(Durability.BATCHED);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final long y = t;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (long x = 0; x < 25; x++) {
+                            store.put(tile(x, y, blob(x, y)));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        long batches = store.getFlusher().getBatches();
+        assertTrue(batches + " batches", batches > 0 && batches < 8 * 25 / 2);
+        for (long y = 0; y < 8; y++) {
+            for (long x = 0; x < 25; x++) {
+                assertTrue(Arrays.equals(blob(x, y), store.get(query(x, y))));
+            }
+        }
+
+        // queued writes are flushed on destroy, later ones don't wait for a flusher
+        store.destroy();
+        assertNull(store.getFlusher());
+        store.put(tile(0, 0, blob(1, 1)));
+        assertTrue(Arrays.equals(blob(1, 1), store.get(query(0, 0))));
+        assertEquals(0, countTempFiles(root));
+    }
+
+    public void testOrphanedTempFilesAreSwept() throws Exception {
+        store.put(tile(0, 0, blob(0, 0)));
+        File tile = store.getFileHandleTile(query(0, 0), false);
+        File orphan = new File(tile.getPath() + ".0a1b2c3d-12" + FileBlobStore.TEMP_SUFFIX);
+        File writing = new File(tile.getPath() + ".0a1b2c3d-13" + FileBlobStore.TEMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(orphan);
+        fos.write(blob(0, 0), 0, 3);
+        fos.close();
+        assertTrue(orphan.setLastModified(System.currentTimeMillis()
+                - FileBlobStore.ORPHAN_AGE * 2));
+        new FileOutputStream(writing).close();
+
+        store.destroy();
+        store = new FileBlobStore(root.getAbsolutePath());
+        store.sweepTempFiles();
+        assertFalse(orphan.exists());
+        assertTrue(writing.exists());
+        assertTrue(Arrays.equals(blob(0, 0), store.get(query(0, 0))));
+    }
+
+    public void testDeletedDirectoriesAreMadeAgain() throws Exception {
+        store.put(tile(0, 0, blob(0, 0)));
+        File dir = store.getFileHandleTile(query(0, 0), false).getParentFile();
+        assertTrue(store.delete(query(0, 0)));
+        assertFalse(dir.exists());
+        store.put(tile(0, 0, blob(0, 1)));
+        assertTrue(Arrays.equals(blob(0, 1), store.get(query(0, 0))));
+
+        assertTrue(store.delete(LAYER));
+        store.put(tile(0, 0, blob(0, 2)));
+        assertTrue(Arrays.equals(blob(0, 2), store.get(query(0, 0))));
+
+        // and behind the store's back
+        delete(new File(root, FilePathGenerator.filteredLayerName(LAYER)));
+        store.put(tile(0, 0, blob(0, 3)));
+        assertTrue(Arrays.equals(blob(0, 3), store.get(query(0, 0))));
+    }
+
+    /**
+     * Replaces a few tiles again and again with one of two contents of different lengths, while
+     * other threads check they only ever read either
+     */
+    private void readWhileReplacing(Durability durability) throws Exception {
+        store.setDurability(durability);
+        final byte[][] contents = new byte[2][];
+        Random random = new Random(1);
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[64 * 1024 * (i + 1)];
+            random.nextBytes(contents[i]);
+        }
+        for (long x = 0; x < 4; x++) {
+            store.put(tile(x, 0, contents[0]));
+        }
+
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger reads = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 2; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = thread; !stop.get(); i++) {
+                            store.put(tile(i % 4, 0, contents[i / 4 % 2]));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; !stop.get(); i++) {
+                            byte[] blob = store.get(query(i % 4, 0));
+                            if (!Arrays.equals(contents[0], blob)
+                                    && !Arrays.equals(contents[1], blob)) {
+                                throw new AssertionError("read "
+                                        + (blob == null ? "nothing" : blob.length + " bytes"));
+                            }
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(1000);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(reads.get() > 0);
+        assertEquals(0, countTempFiles(root));
+    }
+
+    private static byte[] blob(long x, long y) {
+        return ("tile " + x + "," + y).getBytes();
+    }
+
+    private static TileObject tile(long x, long y, byte[] blob) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, 5 }, "EPSG:4326",
+                ImageMime.png.getFormat(), null, blob);
+    }
+
+    private static TileObject query(long x, long y) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, 5 }, "EPSG:4326",
+                ImageMime.png.getFormat(), null);
+    }
+
+    private static int countTempFiles(File file) {
+        if (file.getName().endsWith(FileBlobStore.TEMP_SUFFIX)) {
+            return 1;
+        }
+        int count = 0;
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            count += countTempFiles(children[i]);
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
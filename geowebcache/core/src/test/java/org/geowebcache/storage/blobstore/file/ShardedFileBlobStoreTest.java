@@ -0,0 +1,348 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageBrokerTest;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.blobstore.file.ShardedFileBlobStore.Shard;
+
+public class ShardedFileBlobStoreTest extends TestCase {
+
+    private static final String LAYER = "test:sharded";
+
+    private static final int ZOOM = 8;
+
+    private File root;
+
+    private File[] roots;
+
+    private ShardedFileBlobStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File(StorageBrokerTest.findTempDir(), "gwcShardedTest");
+        delete(root);
+        roots = new File[4];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = new File(root, "disk" + i);
+            roots[i].mkdirs();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (store != null) {
+            store.destroy();
+        }
+        delete(root);
+    }
+
+    public void testMetaTilesStayTogether() throws Exception {
+        store = new ShardedFileBlobStore(paths(3));
+        for (long x = 0; x < 48; x++) {
+            for (long y = 0; y < 48; y++) {
+                store.put(tile(x, y, blob(x, y)));
+            }
+        }
+
+        Map<String, Integer> blockShards = new HashMap<String, Integer>();
+        int[] perShard = new int[3];
+        for (long x = 0; x < 48; x++) {
+            for (long y = 0; y < 48; y++) {
+                int shard = shardOf(x, y, 3);
+                perShard[shard]++;
+                // the tiles of a 3x3 and of a 4x4 metatile are in the same block of 12
+                Integer blockShard = blockShards.put(x / 12 + "_" + y / 12, Integer.valueOf(shard));
+                assertTrue(blockShard == null || blockShard.intValue() == shard);
+                assertTrue(Arrays.equals(blob(x, y), store.get(query(x, y))));
+            }
+        }
+        for (int count : perShard) {
+            assertTrue(Arrays.toString(perShard), count > 0);
+        }
+    }
+
+    public void testWeights() throws Exception {
+        store = new ShardedFileBlobStore(paths(2), new int[] { 1, 3 });
+        store.setBlockSize(1);
+        byte[] blob = new byte[10];
+        for (long x = 0; x < 40; x++) {
+            for (long y = 0; y < 40; y++) {
+                store.put(tile(x, y, blob));
+            }
+        }
+        List<Shard> shards = store.getShards();
+        double share = shards.get(1).getUsedBytes() / (double) (40 * 40 * blob.length);
+        assertTrue("share " + share, share > 0.7 && share < 0.8);
+    }
+
+    public void testDeletesFanOut() throws Exception {
+        store = new ShardedFileBlobStore(paths(3));
+        final AtomicInteger deleted = new AtomicInteger();
+        final AtomicInteger layersDeleted = new AtomicInteger();
+        store.addListener(new BlobStoreListener() {
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+            }
+
+            public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+                    String parameters, long x, long y, int z, long blobSize) {
+                deleted.incrementAndGet();
+            }
+
+            public void layerDeleted(String layerName) {
+                layersDeleted.incrementAndGet();
+            }
+        });
+        for (long x = 0; x < 36; x++) {
+            for (long y = 0; y < 36; y++) {
+                store.put(tile(x, y, blob(x, y)));
+            }
+        }
+
+        // the left half
+        long[][] bounds = new long[ZOOM + 1][];
+        bounds[ZOOM] = new long[] { 0, 0, 17, 35, ZOOM };
+        store.delete(new TileRange(LAYER, "EPSG:4326", ZOOM, ZOOM, bounds, ImageMime.png, null));
+        assertEquals(18 * 36, deleted.get());
+        for (long x = 0; x < 36; x++) {
+            assertEquals(x >= 18, store.exists(query(x, 5)));
+        }
+        long used = 0;
+        for (Shard shard : store.getShards()) {
+            used += shard.getUsedBytes(LAYER);
+        }
+        long left = 0;
+        for (long x = 18; x < 36; x++) {
+            for (long y = 0; y < 36; y++) {
+                left += blob(x, y).length;
+            }
+        }
+        assertEquals(left, used);
+
+        assertTrue(store.delete(LAYER));
+        assertEquals(1, layersDeleted.get());
+        assertFalse(store.exists(query(20, 5)));
+        for (int i = 0; i < 3; i++) {
+            assertFalse(new File(roots[i], FilePathGenerator.filteredLayerName(LAYER)).exists());
+            assertEquals(0, store.getShards().get(i).getUsedBytes());
+        }
+    }
+
+    public void testUsagePerShard() throws Exception {
+        store = new ShardedFileBlobStore(paths(3));
+        for (long x = 0; x < 36; x++) {
+            for (long y = 0; y < 36; y++) {
+                store.put(tile(x, y, blob(x, y)));
+            }
+        }
+        store.put(tile(1, 1, newBlob(1, 1)));
+        store.delete(query(0, 0));
+        long[] counted = new long[3];
+        for (int i = 0; i < 3; i++) {
+            counted[i] = store.getShards().get(i).getUsedBytes();
+            assertEquals(size(roots[i]), counted[i]);
+        }
+
+        store.destroy();
+        store = new ShardedFileBlobStore(paths(3));
+        store.scanUsage();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(counted[i], store.getShards().get(i).getUsedBytes());
+        }
+    }
+
+    public void testRebalanceUnderConcurrentReads() throws Exception {
+        store = new ShardedFileBlobStore(paths(2));
+        // the rows from SIZE are rewritten while moving, the others read
+        final int size = 60;
+        final int rewritten = 12;
+        for (long x = 0; x < size; x++) {
+            for (long y = 0; y < size + rewritten; y++) {
+                store.put(tile(x, y, blob(x, y)));
+            }
+        }
+        int[][] before = new int[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                before[x][y] = shardOf(x, y, 2);
+            }
+        }
+
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger rewrites = new AtomicInteger();
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        long x = i % size;
+                        long y = size + i / size % rewritten;
+                        store.put(tile(x, y, newBlob(x, y)));
+                        rewrites.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = thread; !stop.get(); i += 4) {
+                            long x = i * 7 % size;
+                            long y = i / size % size;
+                            byte[] blob = store.get(query(x, y));
+                            if (!Arrays.equals(blob(x, y), blob)) {
+                                throw new AssertionError("tile " + x + "," + y + " was "
+                                        + (blob == null ? "missing" : "corrupt"));
+                            }
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(100);
+        Future<?> rebalance = store.addShard(roots[2].getPath(), 1);
+        assertTrue(store.isRebalancing());
+        rebalance.get();
+        assertFalse(store.isRebalancing());
+        while (rewrites.get() < 2 * size * rewritten) {
+            Thread.sleep(10);
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(reads.get() > 0);
+
+        // only the tiles the new shard took over moved, and they're all there
+        int moved = 0;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int shard = shardOf(x, y, 3);
+                if (shard != before[x][y]) {
+                    assertEquals(2, shard);
+                    moved++;
+                }
+                assertTrue(Arrays.equals(blob(x, y), store.get(query(x, y))));
+            }
+        }
+        assertTrue(moved > 0);
+        // and no rewritten tile was moved back over
+        for (int x = 0; x < size; x++) {
+            for (int y = size; y < size + rewritten; y++) {
+                shardOf(x, y, 3);
+                assertTrue(Arrays.equals(newBlob(x, y), store.get(query(x, y))));
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(size(roots[i]), store.getShards().get(i).getUsedBytes());
+        }
+    }
+
+    /**
+     * @return the shard holding the tile, checking it's on one only
+     */
+    private int shardOf(long x, long y, int shards) {
+        int found = -1;
+        for (int i = 0; i < shards; i++) {
+            TileObject tile = query(x, y);
+            File file = FilePathGenerator.tileFile(roots[i].getAbsolutePath(), LAYER,
+                    tile.getXYZ(), tile.getGridSetId(), ImageMime.png, tile.getParametersId());
+            if (file.exists()) {
+                assertEquals("tile " + x + "," + y + " is on two shards", -1, found);
+                found = i;
+            }
+        }
+        assertTrue("tile " + x + "," + y + " is on no shard", found != -1);
+        return found;
+    }
+
+    private String[] paths(int count) {
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = roots[i].getPath();
+        }
+        return paths;
+    }
+
+    private static byte[] blob(long x, long y) {
+        return ("tile " + x + "," + y).getBytes();
+    }
+
+    private static byte[] newBlob(long x, long y) {
+        return ("rewritten tile " + x + "," + y).getBytes();
+    }
+
+    private static TileObject tile(long x, long y, byte[] blob) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, ZOOM }, "EPSG:4326",
+                "image/png", null, blob);
+    }
+
+    private static TileObject query(long x, long y) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, ZOOM }, "EPSG:4326",
+                "image/png", null);
+    }
+
+    private static long size(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            size += size(children[i]);
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,149 @@
+package org.geowebcache.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mockrunner.mock.web.MockServletOutputStream;
+
+public class GzipUtilsTest extends TestCase {
+
+    public void testCompress() throws Exception {
+        byte[] kml = createKML(200);
+        byte[] gzip = GzipUtils.compress(kml, 6);
+
+        assertTrue(GzipUtils.isGzip(gzip));
+        assertFalse(GzipUtils.isGzip(kml));
+        assertTrue(gzip.length + " bytes for " + kml.length, gzip.length < kml.length / 4);
+        assertEquals(kml.length, GzipUtils.getUncompressedSize(gzip));
+        assertTrue(Arrays.equals(kml, GzipUtils.decompress(gzip)));
+        // Anything reading gzip reads it
+        assertTrue(Arrays.equals(kml, readFully(new GZIPInputStream(new ByteArrayInputStream(
+                gzip)))));
+    }
+
+    public void testCompressEmpty() throws Exception {
+        byte[] gzip = GzipUtils.compress(new byte[0], 6);
+        assertTrue(GzipUtils.isGzip(gzip));
+        assertEquals(0, GzipUtils.decompress(gzip).length);
+    }
+
+    public void testCompressStream() throws Exception {
+        byte[] kml = createKML(500);
+        InputStream is = GzipUtils.compress(new ByteArrayInputStream(kml), 6);
+        byte[] gzip = readFully(is);
+        is.close();
+
+        assertTrue(GzipUtils.isGzip(gzip));
+        assertTrue(gzip.length < kml.length / 4);
+        assertTrue(Arrays.equals(kml, GzipUtils.decompress(gzip)));
+        assertTrue(Arrays.equals(kml, readFully(new GZIPInputStream(new ByteArrayInputStream(
+                gzip)))));
+    }
+
+    public void testOptionalHeaderFields() throws Exception {
+        byte[] kml = createKML(10);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzos = new GZIPOutputStream(bytes);
+        gzos.write(kml);
+        gzos.close();
+        byte[] plain = bytes.toByteArray();
+        assertTrue(Arrays.equals(kml, GzipUtils.decompress(plain)));
+
+        // The same member, with a file name
+        byte[] name = "tile.kml\0".getBytes("ISO-8859-1");
+        byte[] named = new byte[plain.length + name.length];
+        System.arraycopy(plain, 0, named, 0, 10);
+        named[3] = 8;
+        System.arraycopy(name, 0, named, 10, name.length);
+        System.arraycopy(plain, 10, named, 10 + name.length, plain.length - 10);
+        assertEquals(10 + name.length, GzipUtils.getDeflatedOffset(named));
+        assertTrue(Arrays.equals(kml, GzipUtils.decompress(named)));
+    }
+
+    public void testCorrupt() throws Exception {
+        byte[] gzip = GzipUtils.compress(createKML(10), 6);
+        gzip[gzip.length - 6] ^= 1;
+        try {
+            GzipUtils.decompress(gzip);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+
+        try {
+            GzipUtils.getDeflatedOffset(createKML(10));
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testAcceptsGzip() {
+        assertFalse(GzipUtils.acceptsGzip((String) null));
+        assertFalse(GzipUtils.acceptsGzip("deflate"));
+        assertTrue(GzipUtils.acceptsGzip("gzip"));
+        assertTrue(GzipUtils.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(GzipUtils.acceptsGzip("gzip;q=0"));
+    }
+
+    public void testWriteResponseGzipClient() throws Exception {
+        byte[] kml = createKML(100);
+        byte[] gzip = GzipUtils.compress(kml, 6);
+
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        req.addHeader("Accept-Encoding", "gzip, deflate");
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        assertEquals(gzip.length, GzipUtils.writeResponse(req, resp, gzip));
+
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+        byte[] sent = ((MockServletOutputStream) resp.getOutputStream()).getBinaryContent();
+        assertTrue(Arrays.equals(gzip, sent));
+    }
+
+    public void testWriteResponsePlainClient() throws Exception {
+        byte[] kml = createKML(100);
+        byte[] gzip = GzipUtils.compress(kml, 6);
+
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        assertEquals(kml.length, GzipUtils.writeResponse(req, resp, gzip));
+
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", resp.getHeader("Vary"));
+        byte[] sent = ((MockServletOutputStream) resp.getOutputStream()).getBinaryContent();
+        assertTrue(Arrays.equals(kml, sent));
+    }
+
+    /**
+     * A KML document with the given number of placemarks
+     */
+    public static byte[] createKML(int placemarks) throws IOException {
+        StringBuilder kml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n");
+        for (int i = 0; i < placemarks; i++) {
+            kml.append("<Placemark id=\"p" + i + "\"><name>Placemark " + i + "</name>"
+                    + "<Point><coordinates>" + (i * 0.37 % 180) + "," + (i * 0.11 % 90)
+                    + ",0</coordinates></Point></Placemark>\n");
+        }
+        kml.append("</Document></kml>\n");
+        return kml.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int read;
+        while ((read = is.read(buf)) != -1) {
+            bytes.write(buf, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
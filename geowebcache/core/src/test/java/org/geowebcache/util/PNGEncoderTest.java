@@ -0,0 +1,181 @@
+package org.geowebcache.util;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class PNGEncoderTest extends TestCase {
+
+    public void testQuantizeFewColoursExactly() throws Exception {
+        BufferedImage img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(10, 20, 30));
+        g.fillRect(0, 0, 32, 64);
+        g.setColor(new Color(200, 100, 50, 128));
+        g.fillRect(32, 0, 16, 64);
+        g.dispose();
+
+        BufferedImage quantized = OctreeQuantizer.quantize(img);
+        IndexColorModel palette = (IndexColorModel) quantized.getColorModel();
+        assertEquals(3, palette.getMapSize());
+        // the transparent entry comes first
+        assertEquals(0, palette.getAlpha(0));
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                int expected = img.getRGB(x, y);
+                if (expected >>> 24 == 0) {
+                    assertEquals(0, quantized.getRGB(x, y) >>> 24);
+                } else {
+                    assertEquals(expected, quantized.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    public void testQuantizeManyColours() throws Exception {
+        BufferedImage img = createMap(512);
+        BufferedImage quantized = OctreeQuantizer.quantize(img);
+        IndexColorModel palette = (IndexColorModel) quantized.getColorModel();
+        assertTrue(palette.getMapSize() <= 256);
+        assertTrue(palette.getMapSize() > 64);
+        assertColourError(img, quantized, 12, 128);
+    }
+
+    public void testEncodeDecodes() throws Exception {
+        BufferedImage quantized = OctreeQuantizer.quantize(createMap(256));
+        for (boolean adaptive : new boolean[] { false, true }) {
+            for (int strategy : new int[] { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED,
+                    Deflater.HUFFMAN_ONLY }) {
+                PNGEncoder encoder = new PNGEncoder(6, strategy, adaptive);
+                // twice, to reuse the buffers of the thread
+                for (int i = 0; i < 2; i++) {
+                    BufferedImage tile = quantized.getSubimage(64 * i, 32, 160, 128);
+                    assertSamePixels(tile, encode(encoder, tile));
+                }
+            }
+        }
+    }
+
+    public void testEncodeTransparency() throws Exception {
+        byte[] r = { 0, (byte) 255, 0, 0 };
+        byte[] g = { 0, 0, (byte) 255, 0 };
+        byte[] b = { 0, 0, 0, (byte) 255 };
+        byte[] a = { (byte) 255, 0, (byte) 128, (byte) 255 };
+        BufferedImage img = new BufferedImage(20, 10, BufferedImage.TYPE_BYTE_BINARY,
+                new IndexColorModel(2, 4, r, g, b, a));
+        for (int x = 0; x < 20; x++) {
+            img.getRaster().setSample(x, x % 10, 0, x % 4);
+        }
+        byte[] encoded = encode(new PNGEncoder(), img);
+        assertSamePixels(img, encoded);
+        // the palette entries after the last translucent one are left out of tRNS
+        assertEquals(3, chunkLength(encoded, "tRNS"));
+    }
+
+    public void testEncodeRejectsTrueColour() throws Exception {
+        try {
+            new PNGEncoder().encode(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB),
+                    new ByteArrayOutputStream());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSmallerThanImageIO() throws Exception {
+        BufferedImage quantized = OctreeQuantizer.quantize(createMap(256));
+        ByteArrayOutputStream imageIO = new ByteArrayOutputStream();
+        ImageIO.write(quantized, "png", imageIO);
+        byte[] encoded = encode(new PNGEncoder(), quantized);
+        assertTrue(encoded.length + " bytes, " + imageIO.size() + " with ImageIO",
+                encoded.length < imageIO.size());
+    }
+
+    public static BufferedImage createMap(int size) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(1);
+        for (int i = 0; i < size / 4; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    128 + random.nextInt(128)));
+            g.setStroke(new BasicStroke(1 + random.nextInt(4)));
+            g.drawLine(random.nextInt(size), random.nextInt(size), random.nextInt(size), random
+                    .nextInt(size));
+            if (i % 3 == 0) {
+                g.fillOval(random.nextInt(size), random.nextInt(size), 10 + random.nextInt(60),
+                        10 + random.nextInt(60));
+            }
+        }
+        g.dispose();
+        return img;
+    }
+
+    /**
+     * Checks the mean and maximum difference of each channel, fully transparent pixels being the
+     * same whatever their colour
+     */
+    public static void assertColourError(BufferedImage expected, BufferedImage actual, double maxMean,
+            int maxError) {
+        long total = 0;
+        int max = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                if (e >>> 24 == 0 && a >>> 24 == 0) {
+                    continue;
+                }
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int error = Math.abs(((e >>> shift) & 0xFF) - ((a >>> shift) & 0xFF));
+                    total += error;
+                    max = Math.max(max, error);
+                }
+            }
+        }
+        double mean = total / (4.0 * expected.getWidth() * expected.getHeight());
+        assertTrue("mean error " + mean, mean <= maxMean);
+        assertTrue("max error " + max, max <= maxError);
+    }
+
+    private static byte[] encode(PNGEncoder encoder, BufferedImage img) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(img, out);
+        return out.toByteArray();
+    }
+
+    private static void assertSamePixels(BufferedImage expected, byte[] encoded)
+            throws Exception {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+        assertEquals(expected.getWidth(), decoded.getWidth());
+        assertEquals(expected.getHeight(), decoded.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(x + "," + y, expected.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+
+    private static int chunkLength(byte[] png, String type) {
+        int offset = 8;
+        while (offset < png.length) {
+            int length = (png[offset] & 0xFF) << 24 | (png[offset + 1] & 0xFF) << 16
+                    | (png[offset + 2] & 0xFF) << 8 | (png[offset + 3] & 0xFF);
+            if (new String(png, offset + 4, 4).equals(type)) {
+                return length;
+            }
+            offset += 12 + length;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package org.geowebcache.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+
+import junit.framework.TestCase;
+
+public class RasterPoolTest extends TestCase {
+
+    public void testReuse() throws Exception {
+        RasterPool pool = new RasterPool(2, 1);
+        ColorModel cm = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR).getColorModel();
+
+        WritableRaster raster = pool.acquire(cm, 256, 256);
+        assertTrue(cm.isCompatibleRaster(raster));
+        pool.release(cm, raster);
+        assertEquals(1, pool.size());
+
+        // Only one kept per key
+        pool.release(cm, cm.createCompatibleWritableRaster(256, 256));
+        assertEquals(1, pool.size());
+
+        assertSame(raster, pool.acquire(cm, 256, 256));
+        assertEquals(0, pool.size());
+
+        // Different dimensions or layout, different key
+        pool.release(cm, raster);
+        assertNotSame(raster, pool.acquire(cm, 256, 128));
+        ColorModel argb = ColorModel.getRGBdefault();
+        assertNotSame(raster, pool.acquire(argb, 256, 256));
+        assertSame(raster, pool.acquire(cm, 256, 256));
+    }
+
+    public void testBounded() throws Exception {
+        RasterPool pool = new RasterPool(2, 1);
+        ColorModel cm = ColorModel.getRGBdefault();
+
+        pool.release(cm, cm.createCompatibleWritableRaster(1, 1));
+        pool.release(cm, cm.createCompatibleWritableRaster(2, 2));
+        pool.release(cm, cm.createCompatibleWritableRaster(3, 3));
+        assertEquals(2, pool.size());
+
+        // Children share data with their parents, never pooled
+        WritableRaster parent = cm.createCompatibleWritableRaster(10, 10);
+        pool.release(cm, parent.createWritableChild(0, 0, 5, 5, 0, 0, null));
+        assertEquals(2, pool.size());
+    }
+}
@@ -181,9 +181,12 @@ class CacheCleanerTask implements Runnable {
                 this.globalCleanUpTask = this.cleanUpExecutorService.submit(task);
             } else {
                 if (log.isTraceEnabled()) {
+                    Quota physicalUsedQuota = quotaConfig.getGlobalPhysicalUsedQuota();
                     log.trace("Won't launch global quota enforcement task, "
                             + globalUsedQuota.toNiceString() + " used out of "
-                            + globalQuota.toNiceString() + " configured for the whole cache size.");
+                            + globalQuota.toNiceString() + " configured for the whole cache size"
+                            + (physicalUsedQuota == null ? "." : ", "
+                                    + physicalUsedQuota.toNiceString() + " on disk."));
                 }
             }
         }
@@ -354,6 +354,20 @@ public class ConfigLoader {
         return new FileInputStream(configFile);
     }
 
+    /**
+     * Returns a file relative to the cache storage folder, creating its parent folders if needed
+     *
+     * @param fileNameRelPath
+     *            the file name relative to the cache storage folder
+     * @return the file, which may not exist
+     * @throws IOException
+     */
+    public File getStorageFile(String... fileNameRelPath) throws IOException {
+        File rootCacheDir = getFileStorageDir(fileNameRelPath);
+        String fileName = fileNameRelPath[fileNameRelPath.length - 1];
+        return new File(rootCacheDir, fileName);
+    }
+
     /**
      * @param fileNameRelPath
      *            file path relative to the cache storage directory, where the last entry is the
@@ -68,6 +68,8 @@ public class DiskQuotaConfig {
 
     private transient Quota globalUsedQuota;
 
+    private transient Quota globalPhysicalUsedQuota;
+
     private transient Date lastCleanUpTime;
 
     public DiskQuotaConfig() {
@@ -270,6 +272,19 @@ public class DiskQuotaConfig {
         return globalUsedQuota;
     }
 
+    /**
+     * @return the disk space actually used by a blob store that shares content between tiles, or
+     *         {@code null} if the blob store does not, in which case it's the
+     *         {@link #getGlobalUsedQuota() global used quota}
+     */
+    public synchronized Quota getGlobalPhysicalUsedQuota() {
+        return globalPhysicalUsedQuota;
+    }
+
+    public synchronized void setGlobalPhysicalUsedQuota(Quota quota) {
+        this.globalPhysicalUsedQuota = quota;
+    }
+
     public void setLastCleanUpTime(Date date) {
         this.lastCleanUpTime = date;
     }
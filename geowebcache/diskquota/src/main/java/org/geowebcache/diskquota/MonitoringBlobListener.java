@@ -19,11 +19,21 @@ package org.geowebcache.diskquota;
 
 import static org.geowebcache.diskquota.StorageUnit.B;
 
+import java.math.BigDecimal;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.PhysicalSizeListener;
 
-class MonitoringBlobListener implements BlobStoreListener {
+/**
+ * Keeps the used quotas up to date as tiles are stored and deleted. The quotas of the layers, and
+ * the global one, are the logical size of their tiles, which is what the expiration policies
+ * free by deleting tiles. A blob store that shares content between tiles also reports what it
+ * takes on disk, kept as the {@link DiskQuotaConfig#getGlobalPhysicalUsedQuota() global physical
+ * used quota}.
+ */
+class MonitoringBlobListener implements BlobStoreListener, PhysicalSizeListener {
 
     private static final Log log = LogFactory.getLog(MonitoringBlobListener.class);
 
@@ -104,6 +114,13 @@ class MonitoringBlobListener implements BlobStoreListener {
         }
     }
 
+    /**
+     * @see org.geowebcache.storage.PhysicalSizeListener#physicalSizeChanged(long)
+     */
+    public void physicalSizeChanged(final long physicalSize) {
+        quotaConfig.setGlobalPhysicalUsedQuota(new Quota(BigDecimal.valueOf(physicalSize), B));
+    }
+
     /**
      * @see org.geowebcache.storage.BlobStoreListener#layerDeleted(java.lang.String)
      */
@@ -17,30 +17,93 @@
  */
 package org.geowebcache.diskquota.paging;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.diskquota.ConfigLoader;
 import org.geowebcache.storage.blobstore.file.FilePathGenerator;
 
+/**
+ * Stores the pages of each layer and gridset in a {@code <layer>.<gridset>.pagestore} file of
+ * fixed width slots, one per page, so that saving only writes the pages that changed since the
+ * last save.
+ * <p>
+ * The file starts with a {@link #HEADER_SIZE} bytes header holding a magic number, the format
+ * version, the slot size, the number of slots and a CRC32 checksum of the former, followed by
+ * {@link #RECORD_SIZE} bytes per slot with the page's x, y, z, last access time, hits and number
+ * of tiles. Each page remembers the slot it was loaded from or saved to. The slots of pages that
+ * are no longer saved are overwritten with a tombstone, a record without tiles at zoom level
+ * {@link #TOMBSTONE_Z} that is skipped when loading, and are reused by new pages before any are
+ * appended. Trailing unused slots are cut off, and a store that has to be rewritten is compacted.
+ * </p>
+ * <p>
+ * A save first writes the changed slots to a {@code .journal} file next to the store and syncs it,
+ * then writes them to the memory mapped store, syncs it and deletes the journal. A journal found
+ * when the store is next opened is replayed if it was completely written, or discarded otherwise,
+ * in which case the store still has the state of the previous save.
+ * </p>
+ * <p>
+ * Stores written by previous versions, a stream of variable records in a {@code .pages} file, are
+ * converted on the first load. The old file is left in place but no longer updated.
+ * </p>
+ */
 public class FilePageStore implements PageStore {
 
     private static final Log log = LogFactory.getLog(FilePageStore.class);
 
     private static final String PAGE_STORE_DIR = "diskquota_pagestore";
 
-    private final ConfigLoader configLoader;
-
+    /**
+     * Starts each record of the old {@code .pages} format
+     */
     static final byte tilePageSerialVersionId = 1;
 
+    static final int MAGIC = 0x47574350;
+
+    static final int JOURNAL_MAGIC = 0x4757434A;
+
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * x, y, z, access time as ints, hits and tiles as longs
+     */
+    static final int RECORD_SIZE = 32;
+
+    /**
+     * The zoom level of the record left in the slot of a page that is gone
+     */
+    static final int TOMBSTONE_Z = -1;
+
+    /**
+     * Magic, version, slot count once applied and number of entries
+     */
+    static final int JOURNAL_HEADER_SIZE = 16;
+
+    /**
+     * Slot number and record
+     */
+    static final int JOURNAL_ENTRY_SIZE = 4 + RECORD_SIZE;
+
+    private final ConfigLoader configLoader;
+
     public FilePageStore(final ConfigLoader configLoader) {
         this.configLoader = configLoader;
     }
@@ -48,79 +111,414 @@ public class FilePageStore implements PageStore {
     /**
      * @see org.geowebcache.diskquota.paging.PageStore#getPages(java.lang.String, java.lang.String)
      */
-    public List<TilePage> getPages(final String layerName, final String gridSetId)
+    public synchronized List<TilePage> getPages(final String layerName, final String gridSetId)
             throws IOException {
 
-        final String layerFileName = FilePathGenerator.filteredLayerName(layerName);
-        final String fileName = fileName(layerFileName, gridSetId);
-        InputStream pagesStateIn;
-
-        pagesStateIn = configLoader.getStorageInputStream(PAGE_STORE_DIR, fileName);
-
-        DataInputStream in = new DataInputStream(pagesStateIn);
+        final File file = storeFile(layerName, gridSetId);
+        if (!file.exists()) {
+            return migrate(layerName, gridSetId);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
         try {
-            List<TilePage> pages = new ArrayList<TilePage>();
-            int magic;
-            while (true) {
-                try {
-                    magic = in.readByte();
-                } catch (EOFException e) {
-                    break;
-                }
-                if (tilePageSerialVersionId != magic) {
-                    throw new IOException(
-                            "Object stream does not start with TilePage magic number: " + magic);
+            final FileChannel channel = raf.getChannel();
+            recover(file, channel);
+            final int slotCount = readHeader(file, channel);
+
+            final MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE, (long) slotCount * RECORD_SIZE);
+            List<TilePage> pages = new ArrayList<TilePage>(slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                final int offset = slot * RECORD_SIZE;
+                int x = records.getInt(offset);
+                int y = records.getInt(offset + 4);
+                int z = records.getInt(offset + 8);
+                if (z == TOMBSTONE_Z) {
+                    continue;
                 }
-                int x = in.readInt();
-                int y = in.readInt();
-                int z = in.readInt();
-                int accessTimeMinutes = in.readInt();
-                long numHits = in.readLong();
-                long numTilesInPage = in.readLong();
+                int accessTimeMinutes = records.getInt(offset + 12);
+                long numHits = records.getLong(offset + 16);
+                long numTilesInPage = records.getLong(offset + 24);
                 TilePage page = new TilePage(layerName, gridSetId, x, y, z, numHits,
                         numTilesInPage, accessTimeMinutes);
+                page.setStoreSlot(slot);
                 pages.add(page);
             }
             log.info("Paged state for layer '" + layerName + "'/" + gridSetId + " loaded.");
             return pages;
         } finally {
-            in.close();
+            raf.close();
         }
     }
 
     /**
+     * Writes the pages changed since they were last loaded or saved, and the ones not stored yet
+     * 
      * @see org.geowebcache.diskquota.paging.PageStore#savePages(java.lang.String, java.lang.String,
      *      java.util.List)
      */
-    public void savePages(String layerName, String gridSetId, List<TilePage> availablePages)
+    public synchronized void savePages(String layerName, String gridSetId,
+            List<TilePage> availablePages) throws IOException {
+
+        final File file = storeFile(layerName, gridSetId);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            recover(file, channel);
+            int slotCount = 0;
+            boolean rewrite = true;
+            if (channel.size() > 0) {
+                try {
+                    slotCount = readHeader(file, channel);
+                    rewrite = false;
+                } catch (IOException e) {
+                    log.warn("Rewriting unreadable page store " + file.getAbsolutePath(), e);
+                }
+            }
+            save(file, channel, slotCount, rewrite, availablePages);
+        } finally {
+            raf.close();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Saved paged state for " + layerName + "/" + gridSetId + " containing "
+                    + availablePages.size() + " pages.");
+        }
+    }
+
+    /**
+     * @param slotCount
+     *            the number of slots in the store
+     * @param rewrite
+     *            whether to write all the pages to new slots, as the store can't be read
+     */
+    private void save(final File file, final FileChannel channel, final int slotCount,
+            final boolean rewrite, final List<TilePage> availablePages) throws IOException {
+
+        final TilePage[] bySlot = new TilePage[slotCount + availablePages.size()];
+        final BitSet dirtySlots = new BitSet();
+        final List<TilePage> newPages = new ArrayList<TilePage>();
+
+        for (TilePage page : availablePages) {
+            // clear before reading the values, so a hit in between gets saved next time
+            boolean dirty = page.clearDirty();
+            int slot = rewrite ? -1 : page.getStoreSlot();
+            if (slot < 0 || slot >= slotCount || bySlot[slot] != null) {
+                newPages.add(page);
+                continue;
+            }
+            bySlot[slot] = page;
+            if (dirty) {
+                dirtySlots.set(slot);
+            }
+        }
+
+        // new pages take the slots no page claimed first, the rest are appended
+        int freeSlot = 0;
+        for (TilePage page : newPages) {
+            while (bySlot[freeSlot] != null) {
+                freeSlot++;
+            }
+            page.setStoreSlot(freeSlot);
+            bySlot[freeSlot] = page;
+            dirtySlots.set(freeSlot);
+        }
+
+        int newSlotCount = bySlot.length;
+        while (newSlotCount > 0 && bySlot[newSlotCount - 1] == null) {
+            newSlotCount--;
+        }
+        markTombstones(channel, bySlot, Math.min(slotCount, newSlotCount), dirtySlots);
+
+        if (dirtySlots.isEmpty() && !rewrite && newSlotCount == slotCount) {
+            return;
+        }
+
+        final int numEntries = dirtySlots.cardinality();
+        final ByteBuffer journal = ByteBuffer.allocate(JOURNAL_HEADER_SIZE + numEntries
+                * JOURNAL_ENTRY_SIZE + 8);
+        journal.putInt(JOURNAL_MAGIC).putInt(VERSION).putInt(newSlotCount).putInt(numEntries);
+        for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots
+                .nextSetBit(slot + 1)) {
+            TilePage page = bySlot[slot];
+            journal.putInt(slot);
+            if (page == null) {
+                journal.putInt(0).putInt(0).putInt(TOMBSTONE_Z).putInt(0);
+                journal.putLong(0).putLong(0);
+                continue;
+            }
+            journal.putInt(page.getX());
+            journal.putInt(page.getY());
+            journal.putInt(page.getZ());
+            journal.putInt(page.getLastAccessTimeMinutes());
+            journal.putLong(page.getNumHits());
+            journal.putLong(page.getNumTilesInPage());
+        }
+        journal.putLong(checksum(journal.array(), journal.position()));
+        journal.flip();
+
+        final File journalFile = journalFile(file);
+        try {
+            writeJournal(journalFile, journal);
+            apply(channel, journal);
+            deleteJournal(journalFile);
+        } catch (IOException e) {
+            // leave the pages to be saved again
+            for (TilePage page : newPages) {
+                page.setStoreSlot(-1);
+            }
+            for (int slot = dirtySlots.nextSetBit(0); slot >= 0; slot = dirtySlots
+                    .nextSetBit(slot + 1)) {
+                if (bySlot[slot] != null) {
+                    bySlot[slot].setDirty();
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the slots below {@code slotCount} that no page claimed as dirty, unless they already
+     * hold a tombstone, so that one is written to them
+     */
+    private static void markTombstones(final FileChannel channel, final TilePage[] bySlot,
+            final int slotCount, final BitSet dirtySlots) throws IOException {
+        MappedByteBuffer records = null;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (bySlot[slot] != null) {
+                continue;
+            }
+            if (records == null) {
+                records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                        (long) slotCount * RECORD_SIZE);
+            }
+            if (records.getInt(slot * RECORD_SIZE + 8) != TOMBSTONE_Z) {
+                dirtySlots.set(slot);
+            }
+        }
+    }
+
+    /**
+     * Replays and deletes the journal of the store if there's one
+     */
+    private static void recover(final File file, final FileChannel channel) throws IOException {
+        final File journalFile = journalFile(file);
+        if (!journalFile.exists()) {
+            return;
+        }
+        ByteBuffer journal = readJournal(journalFile);
+        if (journal == null) {
+            log.warn("Discarding incomplete page store journal " + journalFile.getAbsolutePath());
+        } else {
+            log.info("Replaying page store journal " + journalFile.getAbsolutePath());
+            apply(channel, journal);
+        }
+        deleteJournal(journalFile);
+    }
+
+    /**
+     * Writes the journal's entries and then the header to the store, syncing both
+     */
+    private static void apply(final FileChannel channel, final ByteBuffer journal)
             throws IOException {
+        final int slotCount = journal.getInt(8);
+        final int numEntries = journal.getInt(12);
+        final long length = HEADER_SIZE + (long) slotCount * RECORD_SIZE;
+
+        if (numEntries > 0) {
+            // mapping past the end of the file grows it
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE,
+                    (long) slotCount * RECORD_SIZE);
+            ByteBuffer record = journal.duplicate();
+            for (int i = 0; i < numEntries; i++) {
+                final int entry = JOURNAL_HEADER_SIZE + i * JOURNAL_ENTRY_SIZE;
+                final int slot = journal.getInt(entry);
+                record.limit(entry + JOURNAL_ENTRY_SIZE).position(entry + 4);
+                records.position(slot * RECORD_SIZE);
+                records.put(record);
+            }
+            records.force();
+        }
+        if (channel.size() > length) {
+            channel.truncate(length);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(slotCount);
+        header.putLong(checksum(header.array(), header.position()));
+        header.clear();
+        writeFully(channel, header, 0);
+        channel.force(false);
+    }
+
+    /**
+     * @return the number of slots in the store
+     */
+    private static int readHeader(final File file, final FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, header, 0)) {
+            throw new IOException("Page store is missing its header: " + file.getAbsolutePath());
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a page store: " + file.getAbsolutePath());
+        }
+        if (header.getLong(16) != checksum(header.array(), 16)) {
+            throw new IOException("Page store header checksum mismatch: "
+                    + file.getAbsolutePath());
+        }
+        final int version = header.getInt(4);
+        if (version != VERSION || header.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Unsupported page store version " + version + ": "
+                    + file.getAbsolutePath());
+        }
+        final int slotCount = header.getInt(12);
+        if (slotCount < 0 || channel.size() < HEADER_SIZE + (long) slotCount * RECORD_SIZE) {
+            throw new IOException("Page store is shorter than its " + slotCount + " pages: "
+                    + file.getAbsolutePath());
+        }
+        return slotCount;
+    }
+
+    /**
+     * @return the journal, or {@code null} if it wasn't completely written
+     */
+    static ByteBuffer readJournal(final File journalFile) throws IOException {
+        final long length = journalFile.length();
+        if (length < JOURNAL_HEADER_SIZE + 8 || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        final ByteBuffer journal = ByteBuffer.allocate((int) length);
+        FileInputStream in = new FileInputStream(journalFile);
+        try {
+            if (!readFully(in.getChannel(), journal, 0)) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        final int numEntries = journal.getInt(12);
+        if (journal.getInt(0) != JOURNAL_MAGIC || journal.getInt(4) != VERSION || numEntries < 0
+                || length != JOURNAL_HEADER_SIZE + (long) numEntries * JOURNAL_ENTRY_SIZE + 8) {
+            return null;
+        }
+        if (journal.getLong((int) length - 8) != checksum(journal.array(), (int) length - 8)) {
+            return null;
+        }
+        final int slotCount = journal.getInt(8);
+        for (int i = 0; i < numEntries; i++) {
+            int slot = journal.getInt(JOURNAL_HEADER_SIZE + i * JOURNAL_ENTRY_SIZE);
+            if (slot < 0 || slot >= slotCount) {
+                return null;
+            }
+        }
+        return journal;
+    }
 
-        final String layerFileName = FilePathGenerator.filteredLayerName(layerName);
-        final String fileName = fileName(layerFileName, gridSetId);
-        log.debug("Saving paged state for " + layerName + "/" + gridSetId + " containing "
-                + availablePages.size() + " pages.");
-        OutputStream fileOut = configLoader.getStorageOutputStream(PAGE_STORE_DIR, fileName);
-        DataOutputStream out = new DataOutputStream(fileOut);
+    /**
+     * Writes and syncs the journal of a save, before the store is written to
+     */
+    void writeJournal(final File journalFile, final ByteBuffer journal) throws IOException {
+        FileOutputStream out = new FileOutputStream(journalFile);
         try {
-            for (TilePage page : availablePages) {
-                out.writeByte(tilePageSerialVersionId);
-                out.writeInt(page.getX());
-                out.writeInt(page.getY());
-                out.writeInt(page.getZ());
-                out.writeInt(page.getLastAccessTimeMinutes());
-                out.writeLong(page.getNumHits());
-                out.writeLong(page.getNumTilesInPage());
-            }
-            out.flush();
+            FileChannel channel = out.getChannel();
+            writeFully(channel, journal.duplicate(), 0);
+            channel.force(true);
         } finally {
             out.close();
         }
     }
 
-    private String fileName(String layerName, String gridSetId) {
-        String fileName = layerName + "." + FilePathGenerator.filteredGridSetId(gridSetId)
-                + ".pages";
-        return fileName;
+    private static void deleteJournal(final File journalFile) throws IOException {
+        if (!journalFile.delete() && journalFile.exists()) {
+            throw new IOException("Can't delete page store journal "
+                    + journalFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Converts the {@code .pages} file written by previous versions
+     * 
+     * @throws java.io.FileNotFoundException
+     *             if there's none
+     */
+    private List<TilePage> migrate(final String layerName, final String gridSetId)
+            throws IOException {
+        final String fileName = fileName(layerName, gridSetId, ".pages");
+        InputStream in = configLoader.getStorageInputStream(PAGE_STORE_DIR, fileName);
+        List<TilePage> pages;
+        try {
+            pages = readLegacyPages(new BufferedInputStream(in), layerName, gridSetId);
+        } finally {
+            in.close();
+        }
+        savePages(layerName, gridSetId, pages);
+        log.info("Converted paged state for layer '" + layerName + "'/" + gridSetId + " from "
+                + fileName);
+        return pages;
+    }
+
+    static List<TilePage> readLegacyPages(final InputStream pagesStateIn,
+            final String layerName, final String gridSetId) throws IOException {
+        DataInputStream in = new DataInputStream(pagesStateIn);
+        List<TilePage> pages = new ArrayList<TilePage>();
+        int magic;
+        while (true) {
+            try {
+                magic = in.readByte();
+            } catch (EOFException e) {
+                break;
+            }
+            if (tilePageSerialVersionId != magic) {
+                throw new IOException("Object stream does not start with TilePage magic number: "
+                        + magic);
+            }
+            int x = in.readInt();
+            int y = in.readInt();
+            int z = in.readInt();
+            int accessTimeMinutes = in.readInt();
+            long numHits = in.readLong();
+            long numTilesInPage = in.readLong();
+            TilePage page = new TilePage(layerName, gridSetId, x, y, z, numHits, numTilesInPage,
+                    accessTimeMinutes);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    private static long checksum(final byte[] bytes, final int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    File storeFile(final String layerName, final String gridSetId) throws IOException {
+        return configLoader.getStorageFile(PAGE_STORE_DIR,
+                fileName(layerName, gridSetId, ".pagestore"));
+    }
+
+    static File journalFile(final File storeFile) {
+        return new File(storeFile.getPath() + ".journal");
+    }
+
+    private static String fileName(String layerName, String gridSetId, String extension) {
+        return FilePathGenerator.filteredLayerName(layerName) + "."
+                + FilePathGenerator.filteredGridSetId(gridSetId) + extension;
     }
 
-}
\ No newline at end of file
+}
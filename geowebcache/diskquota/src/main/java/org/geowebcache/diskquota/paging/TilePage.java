@@ -75,6 +75,16 @@ public class TilePage implements Serializable {
 
     private final String layerName;
 
+    /**
+     * Slot the page is stored at by {@link FilePageStore}, {@code -1} if not stored yet
+     */
+    private transient int storeSlot = -1;
+
+    /**
+     * Whether the page changed since it was last stored
+     */
+    private transient boolean dirty;
+
     public TilePage(final String layerName, final String gridsetId, final int x, final int y,
             final int z) {
         this(layerName, gridsetId, x, y, z, 0L, 0L, 0);
@@ -96,6 +106,7 @@ public class TilePage implements Serializable {
     public synchronized void markHit() {
         numHits++;
         accessTimeMinutes = currentTime.get();
+        dirty = true;
     }
 
     public String getGridsetId() {
@@ -163,6 +174,7 @@ public class TilePage implements Serializable {
      * the counter
      */
     public synchronized long addTile() {
+        dirty = true;
         return this.numTilesInPage++;
     }
 
@@ -174,10 +186,35 @@ public class TilePage implements Serializable {
         if (numTilesInPage == 0) {
             return 0L;
         }
+        dirty = true;
         return this.numTilesInPage--;
     }
 
     public String getLayerName() {
         return layerName;
     }
+
+    int getStoreSlot() {
+        return storeSlot;
+    }
+
+    void setStoreSlot(int storeSlot) {
+        this.storeSlot = storeSlot;
+    }
+
+    /**
+     * Flags the page as changed, so it's stored on the next save
+     */
+    synchronized void setDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return whether the page changed since the last call
+     */
+    synchronized boolean clearDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
 }
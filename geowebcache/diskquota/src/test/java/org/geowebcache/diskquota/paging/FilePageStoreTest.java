@@ -17,11 +17,13 @@
  */
 package org.geowebcache.diskquota.paging;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -29,6 +31,7 @@ import java.util.List;
 import junit.framework.TestCase;
 
 import org.geowebcache.diskquota.ConfigLoader;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.util.ApplicationContextProvider;
 
 /**
@@ -39,7 +42,9 @@ public class FilePageStoreTest extends TestCase {
 
     private FilePageStore store;
 
-    private ConfigLoader mockConfigLoader;
+    private ConfigLoader configLoader;
+
+    private File cacheDir;
 
     private List<TilePage> pages;
 
@@ -54,6 +59,21 @@ public class FilePageStoreTest extends TestCase {
         pages.add(new TilePage(layerName, gridSetId, 4, 5, 6, 1000L, 50L, 5));
         pages.add(new TilePage(layerName, gridSetId, 7, 8, 9, 1000L, 50L, 5));
 
+        cacheDir = File.createTempFile("gwc", "pagestore");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        configLoader = new ConfigLoader(null, new ApplicationContextProvider(), null) {
+            @Override
+            public File getRootCacheDir() throws StorageException {
+                return cacheDir;
+            }
+        };
+        store = new FilePageStore(configLoader);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(cacheDir);
     }
 
     /**
@@ -61,34 +81,241 @@ public class FilePageStoreTest extends TestCase {
      * {@link org.geowebcache.diskquota.paging.FilePageStore#savePages(java.lang.String, java.lang.String, java.util.ArrayList)}
      */
     public void testSaveAndGetPages() throws Exception {
-        final String[] expectedFileName = { "diskquota_pagestore",
-                layerName + "." + gridSetId + ".pages" };
+        store.savePages(layerName, gridSetId, pages);
 
-        final ByteArrayOutputStream mockOut = new ByteArrayOutputStream();
-        mockConfigLoader = new ConfigLoader(null, new ApplicationContextProvider(), null) {
-            @Override
-            public OutputStream getStorageOutputStream(String... fileNameRelPath)
-                    throws IOException {
-                assertTrue(Arrays.equals(expectedFileName, fileNameRelPath));
-                return mockOut;
+        File file = new File(cacheDir, "diskquota_pagestore/" + layerName + "." + gridSetId
+                + ".pagestore");
+        assertTrue(file.exists());
+        assertEquals(FilePageStore.HEADER_SIZE + 3 * FilePageStore.RECORD_SIZE, file.length());
+        assertFalse(FilePageStore.journalFile(file).exists());
+
+        List<TilePage> deserialized = new FilePageStore(configLoader).getPages(layerName,
+                gridSetId);
+        assertPages(pages, deserialized);
+    }
+
+    public void testSavesChangedAndNewPages() throws Exception {
+        store.savePages(layerName, gridSetId, pages);
+        pages = store.getPages(layerName, gridSetId);
+
+        // scribble over the first slot, only the second and the new page are written again
+        File file = store.storeFile(layerName, gridSetId);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(FilePageStore.HEADER_SIZE + 16);
+            raf.writeLong(-1L);
+        } finally {
+            raf.close();
+        }
+
+        pages.get(1).markHit();
+        pages.get(1).addTile();
+        pages.add(new TilePage(layerName, gridSetId, 10, 11, 12, 3L, 2L, 1));
+        store.savePages(layerName, gridSetId, pages);
+
+        List<TilePage> loaded = store.getPages(layerName, gridSetId);
+        assertEquals(4, loaded.size());
+        assertEquals(-1L, loaded.get(0).getNumHits());
+        assertEquals(1001L, loaded.get(1).getNumHits());
+        assertEquals(51L, loaded.get(1).getNumTilesInPage());
+        assertPages(pages.subList(1, 4), loaded.subList(1, 4));
+
+        // nothing changed, nothing written
+        long modified = file.lastModified();
+        file.setLastModified(modified - 10000);
+        store.savePages(layerName, gridSetId, loaded);
+        assertEquals(modified - 10000, file.lastModified());
+    }
+
+    public void testRemovedPagesAreNotLoaded() throws Exception {
+        store.savePages(layerName, gridSetId, pages);
+        File file = store.storeFile(layerName, gridSetId);
+        List<TilePage> loaded = store.getPages(layerName, gridSetId);
+
+        // the slot of a page that is gone gets a tombstone
+        loaded.remove(1);
+        store.savePages(layerName, gridSetId, loaded);
+        assertEquals(FilePageStore.HEADER_SIZE + 3 * FilePageStore.RECORD_SIZE, file.length());
+        assertPages(loaded, store.getPages(layerName, gridSetId));
+
+        // which is not written again
+        long modified = file.lastModified();
+        file.setLastModified(modified - 10000);
+        store.savePages(layerName, gridSetId, loaded);
+        assertEquals(modified - 10000, file.lastModified());
+
+        // a new page takes the slot
+        TilePage added = new TilePage(layerName, gridSetId, 10, 11, 12, 3L, 2L, 1);
+        loaded.add(added);
+        store.savePages(layerName, gridSetId, loaded);
+        assertEquals(1, added.getStoreSlot());
+        assertEquals(FilePageStore.HEADER_SIZE + 3 * FilePageStore.RECORD_SIZE, file.length());
+        List<TilePage> reloaded = store.getPages(layerName, gridSetId);
+        assertPages(Arrays.asList(loaded.get(0), added, loaded.get(1)), reloaded);
+
+        // unused slots at the end are cut off
+        reloaded.remove(2);
+        store.savePages(layerName, gridSetId, reloaded);
+        assertEquals(FilePageStore.HEADER_SIZE + 2 * FilePageStore.RECORD_SIZE, file.length());
+        assertPages(reloaded, store.getPages(layerName, gridSetId));
+    }
+
+    public void testMigrateOldFormat() throws Exception {
+        File dir = new File(cacheDir, "diskquota_pagestore");
+        dir.mkdirs();
+        File oldFile = new File(dir, layerName + "." + gridSetId + ".pages");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(oldFile));
+        try {
+            for (TilePage page : pages) {
+                out.writeByte(FilePageStore.tilePageSerialVersionId);
+                out.writeInt(page.getX());
+                out.writeInt(page.getY());
+                out.writeInt(page.getZ());
+                out.writeInt(page.getLastAccessTimeMinutes());
+                out.writeLong(page.getNumHits());
+                out.writeLong(page.getNumTilesInPage());
             }
-        };
-        store = new FilePageStore(mockConfigLoader);
+        } finally {
+            out.close();
+        }
+
+        assertPages(pages, store.getPages(layerName, gridSetId));
+        assertTrue(store.storeFile(layerName, gridSetId).exists());
+        assertPages(pages, new FilePageStore(configLoader).getPages(layerName, gridSetId));
+    }
+
+    public void testNoPages() throws Exception {
+        try {
+            store.getPages(layerName, gridSetId);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCorruptStoreIsRewritten() throws Exception {
+        store.savePages(layerName, gridSetId, pages);
+        File file = store.storeFile(layerName, gridSetId);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(12);
+            raf.writeInt(1000);
+        } finally {
+            raf.close();
+        }
+        try {
+            store.getPages(layerName, gridSetId);
+            fail("Expected IOException for a header checksum mismatch");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
 
         store.savePages(layerName, gridSetId, pages);
+        assertPages(pages, store.getPages(layerName, gridSetId));
+    }
+
+    /**
+     * Crashes right after writing the journal of a save, then opens the store with the journal
+     * cut at every length
+     */
+    public void testTruncatedJournalRecovery() throws Exception {
+        store.savePages(layerName, gridSetId, pages);
+        final File file = store.storeFile(layerName, gridSetId);
+        final File journalFile = FilePageStore.journalFile(file);
+        final byte[] before = readFile(file);
+
+        List<TilePage> changed = store.getPages(layerName, gridSetId);
+        changed.get(0).markHit();
+        changed.get(2).removeTile();
+        changed.add(new TilePage(layerName, gridSetId, 10, 11, 12, 3L, 2L, 1));
 
-        final InputStream mockInputStream = new ByteArrayInputStream(mockOut.toByteArray());
-        mockConfigLoader = new ConfigLoader(null, new ApplicationContextProvider(), null) {
+        FilePageStore crashing = new FilePageStore(configLoader) {
             @Override
-            public InputStream getStorageInputStream(String... fileNameRelPath) throws IOException {
-                assertTrue(Arrays.equals(expectedFileName, fileNameRelPath));
-                return mockInputStream;
+            void writeJournal(File journalFile, ByteBuffer journal) throws IOException {
+                super.writeJournal(journalFile, journal);
+                throw new IOException("simulated crash");
             }
         };
-        store = new FilePageStore(mockConfigLoader);
+        try {
+            crashing.savePages(layerName, gridSetId, changed);
+            fail("Expected simulated crash");
+        } catch (IOException e) {
+            assertEquals("simulated crash", e.getMessage());
+        }
+        final byte[] journal = readFile(journalFile);
+        assertTrue(journal.length > FilePageStore.JOURNAL_HEADER_SIZE);
+        assertTrue(Arrays.equals(before, readFile(file)));
 
-        List<TilePage> deserialized = store.getPages(layerName, gridSetId);
+        for (int length = 0; length < journal.length; length++) {
+            writeFile(file, before);
+            writeFile(journalFile, journal, length);
+            assertPages(pages, store.getPages(layerName, gridSetId));
+            assertFalse(journalFile.exists());
+        }
 
-        assertEquals(pages, deserialized);
+        // a corrupt entry is not replayed either
+        byte[] corrupt = journal.clone();
+        corrupt[FilePageStore.JOURNAL_HEADER_SIZE + 10]++;
+        writeFile(file, before);
+        writeFile(journalFile, corrupt, corrupt.length);
+        assertPages(pages, store.getPages(layerName, gridSetId));
+
+        // the complete journal is replayed, also over a half written store
+        byte[] halfWritten = new byte[before.length + 7];
+        System.arraycopy(before, 0, halfWritten, 0, before.length);
+        Arrays.fill(halfWritten, FilePageStore.HEADER_SIZE, FilePageStore.HEADER_SIZE + 20,
+                (byte) 0x7F);
+        writeFile(file, halfWritten);
+        writeFile(journalFile, journal, journal.length);
+        assertPages(changed, store.getPages(layerName, gridSetId));
+        assertFalse(journalFile.exists());
+    }
+
+    private void assertPages(List<TilePage> expected, List<TilePage> actual) {
+        assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            TilePage e = expected.get(i);
+            TilePage a = actual.get(i);
+            assertEquals(e.getNumHits(), a.getNumHits());
+            assertEquals(e.getNumTilesInPage(), a.getNumTilesInPage());
+            assertEquals(e.getLastAccessTimeMinutes(), a.getLastAccessTimeMinutes());
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        writeFile(file, bytes, bytes.length);
+    }
+
+    private static void writeFile(File file, byte[] bytes, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
     }
 }
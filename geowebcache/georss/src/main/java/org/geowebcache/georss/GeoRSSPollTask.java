@@ -17,7 +17,6 @@
  */
 package org.geowebcache.georss;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -41,6 +40,7 @@ import org.geowebcache.seed.TileBreeder;
 import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.GeometryRasterMaskBuilder;
 import org.geowebcache.storage.RasterMask;
+import org.geowebcache.storage.TileBitmap;
 
 /**
  * A task to run a GeoRSS feed poll and launch the seeding process
@@ -207,13 +207,13 @@ class GeoRSSPollTask implements Runnable {
 
         logger.warn("\n!!!!!!!!!!!\n REMEMBER NOT TO SET THE org.geowebcache.georss.debugToDisk"
                 + " SYSTEM PROPERTY ON A PRODUCTION ENVIRONMENT \n!!!!!!!!!!!");
-        BufferedImage[] byLevelMasks = matrix.getByLevelMasks();
+        final int numMaskedLevels = matrix.getByLevelMasks().length;
 
-        for (int i = 0; i < byLevelMasks.length; i++) {
+        for (int i = 0; i < numMaskedLevels; i++) {
             File output = new File(target, poll.getLayer().getName() + "_level_" + i + ".tiff");
             System.out.println("--- writing " + output.getAbsolutePath() + "---");
             try {
-                ImageIO.write(byLevelMasks[i], "TIFF", output);
+                ImageIO.write(matrix.getMaskImage(i), "TIFF", output);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -228,7 +228,7 @@ class GeoRSSPollTask implements Runnable {
         long[][] fullCoverage = gridSub.getCoverages();
         long[][] coveredBounds = tileRangeMask.getCoveredBounds();
 
-        BufferedImage[] byLevelMasks = tileRangeMask.getByLevelMasks();
+        TileBitmap[] byLevelMasks = tileRangeMask.getByLevelMasks();
 
         RasterMask rasterMask = new RasterMask(byLevelMasks, fullCoverage, coveredBounds);
 
@@ -17,20 +17,22 @@
  */
 package org.geowebcache.storage;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.Shape;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.JTS;
-import org.geotools.geometry.jts.LiteShape;
 import org.geotools.referencing.operation.builder.GridToEnvelopeMapper;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
@@ -38,12 +40,20 @@ import org.opengis.geometry.MismatchedDimensionException;
 import org.opengis.referencing.datum.PixelInCell;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * An object that builds a mask of tiles affected by geometries
+ * <p>
+ * Geometries are not rasterized as they are added, but gathered in batches of
+ * {@link #BATCH_SIZE}. Each batch is then rasterized into every masked zoom level, one task per
+ * level, on a pool shared by all the builders, so only a batch of the feed's geometries is held in
+ * memory at any time. Each level's mask is a {@link TileBitmap} filled by a
+ * {@link TileMaskRasterizer}, which only touches the window of tiles around each geometry.
+ * </p>
  * 
  * @author Gabriel Roldan (OpenGeo)
  * @see GeoRSSTileRangeBuilder
@@ -54,17 +64,25 @@ public class GeometryRasterMaskBuilder {
 
     private static final double ENVELOPE_BUFFER_RATIO = 1;
 
+    /**
+     * Number of geometries rasterized together into each level
+     */
+    static final int BATCH_SIZE = 256;
+
     private static final Log logger = LogFactory.getLog(GeometryRasterMaskBuilder.class);
 
-    private static final AffineTransform IDENTITY = new AffineTransform();
+    private static ExecutorService rasterizerExecutor;
 
     /**
-     * By zoom level bitmasked images where every pixel represents a tile in the level's
+     * By zoom level rasterizers whose bitmasks have a bit for every tile in the level's
      * {@link GridSubset#getCoverages() grid coverage}
      */
-    private final BufferedImage[] byLevelMasks;
+    private final TileMaskRasterizer[] byLevelMasks;
 
-    private Graphics2D[] graphics;
+    /**
+     * Geometries added since the last batch was rasterized
+     */
+    private List<Geometry> pending;
 
     /**
      * Aggregated bounds of all the geometries sent to {@link #setMasksForGeometry}, in grid
@@ -91,8 +109,9 @@ public class GeometryRasterMaskBuilder {
         final int numLevels = gridSubset.getCoverages().length;
         final int endLevel = numLevels - 1;
 
-        byLevelMasks = new BufferedImage[numLevels];
+        byLevelMasks = new TileMaskRasterizer[numLevels];
         transformCache = new MathTransform[numLevels];
+        pending = new ArrayList<Geometry>(BATCH_SIZE);
 
         for (int level = startLevel; level <= endLevel; level++) {
             if (level > maxMaskLevel) {
@@ -105,20 +124,19 @@ public class GeometryRasterMaskBuilder {
 
                 if (tilesX >= Integer.MAX_VALUE || tilesY >= Integer.MAX_VALUE
                         || numTiles >= Integer.MAX_VALUE) {
-                    // this is so because the image's sample model can't cope up with more than
-                    // Integer.MAX_VALUE pixels
+                    // this is so because the rasterizer addresses pixels as ints, as the image
+                    // the masks used to be drawn on did
                     throw new IllegalStateException("Masking level " + level
                             + " would produce a backing image of too many tiles!"
                             + " Consider setting a lower maxMaskLevel ");
                 }
 
-                // BufferedImage with 1-bit per pixel sample model
-                BufferedImage mask = new BufferedImage((int) tilesX, (int) tilesY,
-                        BufferedImage.TYPE_BYTE_BINARY);
-                byLevelMasks[level] = mask;
+                // 1-bit per tile
+                byLevelMasks[level] = new TileMaskRasterizer((int) tilesX, (int) tilesY);
+                // computed here so the rasterizing tasks only read the cache
+                transformCache[level] = getWorldToGridTransform(level);
             }
         }
-        createGraphics();
     }
 
     private long[] getGridCoverage(final int level) {
@@ -148,12 +166,6 @@ public class GeometryRasterMaskBuilder {
             return;
         }
 
-        final int startLevel = getStartLevel();
-        final int maxLevel = startLevel + getNumLevels() - 1;
-
-        // loop over only up to the configured max masking level
-        final int endLevel = Math.min(maxLevel, this.maxMaskLevel);
-
         if (logger.isDebugEnabled()) {
             logger.debug("Geom: " + geom);
         }
@@ -164,45 +176,112 @@ public class GeometryRasterMaskBuilder {
             aggregatedGeomBounds.expandToInclude(geom.getEnvelopeInternal());
         }
 
-        for (int level = startLevel; level <= endLevel; level++) {
-            final Geometry geometryInGridCrs = transformToGridCrs(geom, level);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Geom in grid CRS: " + geometryInGridCrs);
-            }
+        pending.add(geom);
+        if (pending.size() >= BATCH_SIZE) {
+            rasterizePending();
+        }
+    }
+
+    /**
+     * Rasterizes the pending geometries into every masked level, each level on its own task, and
+     * waits for all of them to finish
+     */
+    private void rasterizePending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final List<Geometry> batch = pending;
+        pending = new ArrayList<Geometry>(BATCH_SIZE);
 
-            final Geometry bufferedGeomInGridCrs = geometryInGridCrs.buffer(TILE_BUFFER_RATIO);
+        final int startLevel = getStartLevel();
+        final int maxLevel = startLevel + getNumLevels() - 1;
+
+        // loop over only up to the configured max masking level
+        final int endLevel = Math.min(maxLevel, this.maxMaskLevel);
 
-            if (logger.isDebugEnabled()) {
-                logger.debug("Buffered Geom in grid CRS: " + bufferedGeomInGridCrs);
+        final ExecutorService executor = getRasterizerExecutor();
+        if (executor == null || endLevel == startLevel) {
+            for (int level = startLevel; level <= endLevel; level++) {
+                rasterize(batch, level);
             }
+            return;
+        }
 
-            // do not generalize in LiteShape, it affects the expected masked pixels
-            boolean generalize = false;
-            // shape used identity transform, as the geometry is already projected
-            Shape shape = new LiteShape(bufferedGeomInGridCrs, IDENTITY, generalize);
-
-            Graphics2D graphics = getGraphics(level);
-            /*
-             * Disable antialiasing explicitly, otherwise the rendering will pick the platform's
-             * default potentially producing missing pixels
-             */
-            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                    RenderingHints.VALUE_ANTIALIAS_OFF);
-            graphics.setColor(Color.WHITE);
-            graphics.fill(shape);
+        // higher levels take longer, start with them
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(endLevel - startLevel + 1);
+        for (int level = endLevel; level >= startLevel; level--) {
+            final int zoomLevel = level;
+            tasks.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    rasterize(batch, zoomLevel);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while masking geometries", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            // do not leave tasks writing the masks on failure
+            for (Future<Void> task : tasks) {
+                task.cancel(false);
+            }
         }
     }
 
-    private Geometry transformToGridCrs(final Geometry geometryInLayerCrs, final int zoomLevel) {
-        final MathTransform worldToGrid;
-        if (transformCache[zoomLevel] == null) {
-            final long[] coverage = getGridCoverage(zoomLevel);
-            final BoundingBox coverageBounds = gridSubset.boundsFromRectangle(coverage);
-            worldToGrid = getWorldToGridTransform(coverageBounds, coverage);
-            transformCache[zoomLevel] = worldToGrid;
-        } else {
-            worldToGrid = transformCache[zoomLevel];
+    private void rasterize(final List<Geometry> batch, final int level) {
+        final TileMaskRasterizer rasterizer = byLevelMasks[level];
+        for (Geometry geom : batch) {
+            rasterizer.fill(getBufferedGeometry(geom, level));
         }
+    }
+
+    /**
+     * @return the geometry in the pixel coordinates of the level's mask, buffered so it also
+     *         covers the tiles around it
+     */
+    Geometry getBufferedGeometry(final Geometry geom, final int level) {
+        final Geometry geometryInGridCrs = transformToGridCrs(geom, level);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Geom in grid CRS: " + geometryInGridCrs);
+        }
+
+        final Geometry bufferedGeomInGridCrs = geometryInGridCrs.buffer(TILE_BUFFER_RATIO);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Buffered Geom in grid CRS: " + bufferedGeomInGridCrs);
+        }
+        return bufferedGeomInGridCrs;
+    }
+
+    private static synchronized ExecutorService getRasterizerExecutor() {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        if (threads <= 1) {
+            return null;
+        }
+        if (rasterizerExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.GeoRSSMaskBuilder-");
+            tf.setDaemon(true);
+            rasterizerExecutor = Executors.newFixedThreadPool(threads, tf);
+        }
+        return rasterizerExecutor;
+    }
+
+    private Geometry transformToGridCrs(final Geometry geometryInLayerCrs, final int zoomLevel) {
+        final MathTransform worldToGrid = transformCache[zoomLevel];
 
         Geometry geomInGridCrs;
         try {
@@ -216,6 +295,12 @@ public class GeometryRasterMaskBuilder {
         return geomInGridCrs;
     }
 
+    private MathTransform getWorldToGridTransform(final int zoomLevel) {
+        final long[] coverage = getGridCoverage(zoomLevel);
+        final BoundingBox coverageBounds = gridSubset.boundsFromRectangle(coverage);
+        return getWorldToGridTransform(coverageBounds, coverage);
+    }
+
     private MathTransform getWorldToGridTransform(final BoundingBox coverageBounds,
             final long[] coverage) {
 
@@ -267,30 +352,14 @@ public class GeometryRasterMaskBuilder {
         return worldToScreen;
     }
 
-    private Graphics2D getGraphics(int level) {
-        return graphics[level];
-    }
-
+    /**
+     * Lets go of the scratch images used to rasterize geometries, geometries still pending are
+     * rasterized when the masks are asked for
+     */
     public void disposeGraphics() {
-        if (graphics == null) {
-            return;
-        }
-        final int numLevels = getNumLevels();
-        for (int level = 0; level < numLevels; level++) {
-            if (graphics[level] != null) {
-                graphics[level].dispose();
-            }
-        }
-        graphics = null;
-    }
-
-    public void createGraphics() {
-        final int numLevels = getNumLevels();
-        graphics = new Graphics2D[numLevels];
-        for (int level = 0; level < numLevels; level++) {
-            BufferedImage bufferedImage = byLevelMasks[level];
-            if (bufferedImage != null) {
-                graphics[level] = bufferedImage.createGraphics();
+        for (TileMaskRasterizer rasterizer : byLevelMasks) {
+            if (rasterizer != null) {
+                rasterizer.dispose();
             }
         }
     }
@@ -354,17 +423,38 @@ public class GeometryRasterMaskBuilder {
     }
 
     /**
-     * Package visible method for testing purposes only!
-     * 
-     * @return
+     * @return the masks of the levels up to {@code maxMaskLevel}, with a bit for each tile of the
+     *         level's coverage
      */
-    public BufferedImage[] getByLevelMasks() {
+    public synchronized TileBitmap[] getByLevelMasks() {
+        rasterizePending();
+        disposeGraphics();
         final int numMaskedLevels = Math.min(getNumLevels(), maxMaskLevel + 1);
-        BufferedImage[] maskedLevels = new BufferedImage[numMaskedLevels];
+        TileBitmap[] maskedLevels = new TileBitmap[numMaskedLevels];
         for (int level = 0; level < numMaskedLevels; level++) {
-            maskedLevels[level] = byLevelMasks[level];
+            maskedLevels[level] = byLevelMasks[level].getMask();
         }
         return maskedLevels;
     }
 
-}
\ No newline at end of file
+    /**
+     * For debugging purposes, draws a level's mask as an image of the whole level, with the
+     * tiles set in white
+     */
+    public BufferedImage getMaskImage(final int level) {
+        final TileBitmap mask = getByLevelMasks()[level];
+        final int width = (int) (mask.getMaxX() + 1);
+        final int height = (int) (mask.getMaxY() + 1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (mask.get(x, height - 1 - y)) {
+                    raster.setSample(x, y, 0, 1);
+                }
+            }
+        }
+        return image;
+    }
+
+}
@@ -0,0 +1,387 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Fills the pixels covered by polygons, given in the pixel coordinates of a zoom level's mask
+ * image, into a {@link TileBitmap} of the level. The result is the same as filling them with Java2D
+ * (no antialiasing) into a {@code TYPE_BYTE_BINARY} image of the whole level, where the pixel
+ * {@code (px, py)} is the bit {@code (px, height - 1 - py)}, without ever allocating such an image.
+ * <p>
+ * Geometries whose envelope spans up to {@link #MAX_WINDOW_PIXELS} pixels are filled with Java2D
+ * into a scratch image of just that window, reused from one geometry to the next. Larger ones are
+ * filled row by row straight into the bitmap, following the fixed point arithmetic of Java2D's non
+ * antialiased path filler. Both match the whole level image exactly, except that where a large
+ * geometry crosses the edge of the level Java2D recomputes the clipped edges in floating point, so
+ * pixels at that edge within a thousandth of a pixel from the outline may differ.
+ * </p>
+ * <p>
+ * Not thread safe, a level is filled by one thread at a time.
+ * </p>
+ */
+final class TileMaskRasterizer {
+
+    /**
+     * Largest window filled through a scratch image, 128KB worth of pixels
+     */
+    static final int MAX_WINDOW_PIXELS = 1 << 20;
+
+    /**
+     * Pixels left around the envelope of a geometry, so Java2D never has to clip it at the edges
+     * of the window, only at the edges of the level
+     */
+    private static final int WINDOW_MARGIN = 2;
+
+    /**
+     * Java2D's sub pixel precision when filling paths
+     */
+    private static final int FIXED_SHIFT = 10;
+
+    private static final long FIXED_ONE = 1L << FIXED_SHIFT;
+
+    private static final Comparator<Edge> BY_FIRST_ROW = new Comparator<Edge>() {
+        public int compare(Edge o1, Edge o2) {
+            return o1.firstRow < o2.firstRow ? -1 : (o1.firstRow == o2.firstRow ? 0 : 1);
+        }
+    };
+
+    private final int width;
+
+    private final int height;
+
+    private final TileBitmap mask;
+
+    private BufferedImage scratch;
+
+    /**
+     * @param width the width of the level's mask image
+     * @param height the height of the level's mask image
+     */
+    TileMaskRasterizer(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.mask = new TileBitmap(0, 0, width - 1, height - 1);
+    }
+
+    TileBitmap getMask() {
+        return mask;
+    }
+
+    /**
+     * @param geom a polygon or collection of polygons in pixel coordinates, anything else is
+     *        ignored
+     */
+    void fill(final Geometry geom) {
+        if (geom == null || geom.isEmpty()) {
+            return;
+        }
+        final Envelope env = geom.getEnvelopeInternal();
+        final long x0 = Math.max(0, (long) Math.floor(env.getMinX()) - WINDOW_MARGIN);
+        final long y0 = Math.max(0, (long) Math.floor(env.getMinY()) - WINDOW_MARGIN);
+        final long x1 = Math.min(width - 1, (long) Math.ceil(env.getMaxX()) + WINDOW_MARGIN);
+        final long y1 = Math.min(height - 1, (long) Math.ceil(env.getMaxY()) + WINDOW_MARGIN);
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+        if ((x1 - x0 + 1) * (y1 - y0 + 1) <= MAX_WINDOW_PIXELS) {
+            fillWindow(geom, (int) x0, (int) y0, (int) (x1 - x0 + 1), (int) (y1 - y0 + 1));
+        } else {
+            fillScanlines(geom);
+        }
+    }
+
+    /**
+     * Lets go of the scratch image, it is created again if needed
+     */
+    void dispose() {
+        scratch = null;
+    }
+
+    /**
+     * Fills the geometry with Java2D into the scratch image, translated so it only needs to be as
+     * large as the window, and copies the pixels set back into the mask
+     */
+    void fillWindow(final Geometry geom, final int x0, final int y0, final int w, final int h) {
+        if (scratch == null || scratch.getWidth() < w || scratch.getHeight() < h) {
+            int scratchW = Math.max(w, scratch == null ? 0 : scratch.getWidth());
+            int scratchH = Math.max(h, scratch == null ? 0 : scratch.getHeight());
+            scratch = new BufferedImage(scratchW, scratchH, BufferedImage.TYPE_BYTE_BINARY);
+        }
+        final byte[] data = ((DataBufferByte) scratch.getRaster().getDataBuffer()).getData();
+        final int stride = ((MultiPixelPackedSampleModel) scratch.getSampleModel())
+                .getScanlineStride();
+        Arrays.fill(data, 0, h * stride, (byte) 0);
+
+        Graphics2D graphics = scratch.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            graphics.setColor(Color.WHITE);
+            // the level image would clip at its edges, the window's edges are either those or
+            // further than the geometry reaches
+            graphics.clipRect(0, 0, w, h);
+            graphics.translate(-x0, -y0);
+            graphics.fill(toShape(geom));
+        } finally {
+            graphics.dispose();
+        }
+
+        for (int row = 0; row < h; row++) {
+            final int rowStart = row * stride;
+            final long tileY = height - 1 - (y0 + row);
+            int runStart = -1;
+            for (int col = 0; col < w; col++) {
+                final int bits = data[rowStart + (col >> 3)];
+                if (bits == 0 && (col & 7) == 0 && runStart < 0) {
+                    col += 7;
+                    continue;
+                }
+                final boolean set = (bits & (0x80 >> (col & 7))) != 0;
+                if (set && runStart < 0) {
+                    runStart = col;
+                } else if (!set && runStart >= 0) {
+                    mask.setRange(x0 + runStart, tileY, x0 + col - 1, tileY);
+                    runStart = -1;
+                }
+            }
+            if (runStart >= 0) {
+                mask.setRange(x0 + runStart, tileY, x0 + w - 1, tileY);
+            }
+        }
+    }
+
+    /**
+     * Fills the geometry one row of pixels at a time, a pixel being set if its top left corner is
+     * inside the outline, with the outline's vertices and slopes rounded the way Java2D does
+     */
+    void fillScanlines(final Geometry geom) {
+        final List<Edge> edges = new ArrayList<Edge>();
+        final boolean evenOdd = addEdges(geom, edges);
+        if (edges.isEmpty()) {
+            return;
+        }
+        final Edge[] pending = edges.toArray(new Edge[edges.size()]);
+        Arrays.sort(pending, BY_FIRST_ROW);
+
+        final Edge[] active = new Edge[pending.length];
+        int numActive = 0;
+        int next = 0;
+        long row = Math.max(0, pending[0].firstRow);
+        while (row < height && (numActive > 0 || next < pending.length)) {
+            if (numActive == 0 && pending[next].firstRow > row) {
+                row = pending[next].firstRow;
+                if (row >= height) {
+                    break;
+                }
+            }
+            // add the edges reaching this row, dropping those ending above it
+            while (next < pending.length && pending[next].firstRow <= row) {
+                Edge edge = pending[next++];
+                if (edge.lastRow >= row) {
+                    edge.x += (row - edge.firstRow) * edge.dx;
+                    active[numActive++] = edge;
+                }
+            }
+            // keep them sorted by where they cross the row, which changes little between rows
+            for (int i = 1; i < numActive; i++) {
+                Edge edge = active[i];
+                int j = i - 1;
+                for (; j >= 0 && active[j].x > edge.x; j--) {
+                    active[j + 1] = active[j];
+                }
+                active[j + 1] = edge;
+            }
+
+            final long tileY = height - 1 - row;
+            int winding = 0;
+            for (int i = 0; i < numActive - 1; i++) {
+                winding += evenOdd ? 1 : active[i].dir;
+                boolean inside = evenOdd ? (winding & 1) != 0 : winding != 0;
+                if (inside) {
+                    long left = Math.max(0, (active[i].x + FIXED_ONE - 1) >> FIXED_SHIFT);
+                    long right = Math.min(width - 1, (active[i + 1].x - 1) >> FIXED_SHIFT);
+                    if (left <= right) {
+                        mask.setRange(left, tileY, right, tileY);
+                    }
+                }
+            }
+
+            // advance to the next row
+            int kept = 0;
+            for (int i = 0; i < numActive; i++) {
+                Edge edge = active[i];
+                if (edge.lastRow > row) {
+                    edge.x += edge.dx;
+                    active[kept++] = edge;
+                }
+            }
+            numActive = kept;
+            row++;
+        }
+    }
+
+    /**
+     * @return whether the geometry is filled with the even-odd rule, as opposed to the non-zero
+     *         one, as LiteShape does for polygons and collections respectively
+     */
+    private static boolean addEdges(final Geometry geom, final List<Edge> edges) {
+        if (geom instanceof Polygon) {
+            Polygon polygon = (Polygon) geom;
+            addEdges(polygon.getExteriorRing(), edges);
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                addEdges(polygon.getInteriorRingN(i), edges);
+            }
+            return true;
+        }
+        if (geom instanceof GeometryCollection) {
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                addEdges(geom.getGeometryN(i), edges);
+            }
+        }
+        return false;
+    }
+
+    private static void addEdges(final LineString ring, final List<Edge> edges) {
+        final Coordinate[] coords = ring.getCoordinates();
+        final int n = coords.length;
+        for (int i = 0; i < n; i++) {
+            Coordinate from = coords[i];
+            Coordinate to = coords[(i + 1) % n];
+            Edge edge = Edge.create(fixed(from.x), fixed(from.y), fixed(to.x), fixed(to.y));
+            if (edge != null) {
+                edges.add(edge);
+            }
+        }
+    }
+
+    /**
+     * Coordinates reach Java2D as floats, and are then truncated to fixed point
+     */
+    private static long fixed(final double ordinate) {
+        return (long) ((float) ordinate * FIXED_ONE);
+    }
+
+    /**
+     * Builds the same path LiteShape does for the geometry
+     */
+    private static GeneralPath toShape(final Geometry geom) {
+        final boolean evenOdd = geom instanceof Polygon;
+        GeneralPath path = new GeneralPath(evenOdd ? GeneralPath.WIND_EVEN_ODD
+                : GeneralPath.WIND_NON_ZERO);
+        appendRings(geom, path);
+        return path;
+    }
+
+    private static void appendRings(final Geometry geom, final GeneralPath path) {
+        if (geom instanceof Polygon) {
+            Polygon polygon = (Polygon) geom;
+            appendRing(polygon.getExteriorRing(), path);
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                appendRing(polygon.getInteriorRingN(i), path);
+            }
+        } else if (geom instanceof GeometryCollection) {
+            for (int i = 0; i < geom.getNumGeometries(); i++) {
+                appendRings(geom.getGeometryN(i), path);
+            }
+        }
+    }
+
+    private static void appendRing(final LineString ring, final GeneralPath path) {
+        final Coordinate[] coords = ring.getCoordinates();
+        if (coords.length == 0) {
+            return;
+        }
+        path.moveTo((float) coords[0].x, (float) coords[0].y);
+        for (int i = 1; i < coords.length; i++) {
+            path.lineTo((float) coords[i].x, (float) coords[i].y);
+        }
+        path.closePath();
+    }
+
+    /**
+     * A non horizontal edge, in fixed point, crossing the rows of pixels from {@code firstRow} to
+     * {@code lastRow}
+     */
+    private static final class Edge {
+        long firstRow;
+
+        long lastRow;
+
+        /**
+         * Where the edge crosses the top of the current row
+         */
+        long x;
+
+        /**
+         * How much x changes from one row to the next
+         */
+        long dx;
+
+        /**
+         * Whether the edge goes down (1) or up (-1)
+         */
+        int dir;
+
+        /**
+         * @return the edge, or {@code null} if it does not cross the top of any row
+         */
+        static Edge create(long x1, long y1, long x2, long y2) {
+            int dir = 1;
+            if (y1 > y2) {
+                long t = x1;
+                x1 = x2;
+                x2 = t;
+                t = y1;
+                y1 = y2;
+                y2 = t;
+                dir = -1;
+            }
+            final long first = (y1 + FIXED_ONE - 1) & -FIXED_ONE;
+            if (first >= y2) {
+                return null;
+            }
+            // float precision for the slope, as in Java2D
+            final float slope = (float) (x2 - x1) / (y2 - y1);
+
+            Edge edge = new Edge();
+            edge.firstRow = first >> FIXED_SHIFT;
+            edge.lastRow = (y2 - 1) >> FIXED_SHIFT;
+            edge.x = x1 + (long) ((first - y1) * slope);
+            edge.dx = (long) (slope * FIXED_ONE);
+            edge.dir = dir;
+            return edge;
+        }
+    }
+}
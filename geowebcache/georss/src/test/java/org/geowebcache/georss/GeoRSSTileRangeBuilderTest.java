@@ -25,6 +25,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLStreamException;
@@ -38,6 +44,10 @@ import org.geowebcache.storage.GeometryRasterMaskBuilder;
 import org.geowebcache.storage.RasterMaskTestUtils;
 import org.geowebcache.util.TestUtils;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
 public class GeoRSSTileRangeBuilderTest extends TestCase {
 
     /**
@@ -115,6 +125,63 @@ public class GeoRSSTileRangeBuilderTest extends TestCase {
         assertLatestUpdate("2010-08-17T07:02:32Z", "mixedgeometries_feed.xml");
     }
 
+    /**
+     * The feed's geometries shall not be retained while the mask is built, a feed of 50k polygons
+     * would take over 30MB of heap
+     */
+    public void testLargeFeedHeapUse() throws Exception {
+        final int numEntries = 50000;
+        final List<WeakReference<Geometry>> produced = new ArrayList<WeakReference<Geometry>>();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final long[] peakHeapGrowth = new long[1];
+        final int[] peakLiveGeometries = new int[1];
+
+        System.gc();
+        final long baseline = memory.getHeapMemoryUsage().getUsed();
+
+        GeoRSSReader reader = new GeoRSSReader() {
+            private final Random random = new Random(13);
+
+            private final GeometryFactory factory = new GeometryFactory();
+
+            public Entry nextEntry() {
+                if (produced.size() % 5000 == 0) {
+                    System.gc();
+                    peakHeapGrowth[0] = Math.max(peakHeapGrowth[0], memory.getHeapMemoryUsage()
+                            .getUsed() - baseline);
+                    int live = 0;
+                    for (WeakReference<Geometry> ref : produced) {
+                        live += ref.get() == null ? 0 : 1;
+                    }
+                    peakLiveGeometries[0] = Math.max(peakLiveGeometries[0], live);
+                }
+                if (produced.size() == numEntries) {
+                    return null;
+                }
+                Coordinate center = new Coordinate(-179 + 358 * random.nextDouble(), -89 + 178
+                        * random.nextDouble());
+                Geometry polygon = factory.createPoint(center).buffer(0.2, 2);
+                produced.add(new WeakReference<Geometry>(polygon));
+
+                Entry entry = new Entry();
+                entry.setId("entry-" + produced.size());
+                entry.setUpdated("2010-08-17T07:02:32Z");
+                entry.setWhere(polygon);
+                return entry;
+            }
+        };
+
+        GeoRSSTileRangeBuilder b = new GeoRSSTileRangeBuilder(layer, gridsetId, 6);
+        GeometryRasterMaskBuilder mask = b.buildTileRangeMask(reader, null);
+        assertEquals(7, mask.getByLevelMasks().length);
+        assertTrue(mask.hasTilesSet());
+
+        assertEquals(numEntries, produced.size());
+        // a couple of batches at most
+        assertTrue("live geometries: " + peakLiveGeometries[0], peakLiveGeometries[0] < 1000);
+        assertTrue("heap growth: " + peakHeapGrowth[0], peakHeapGrowth[0] < 16 * 1024 * 1024);
+    }
+
     private void assertLatestUpdate(String expected, String fileName) throws IOException,
             XMLStreamException, FactoryConfigurationError {
 
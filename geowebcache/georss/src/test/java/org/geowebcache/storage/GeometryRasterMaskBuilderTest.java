@@ -0,0 +1,118 @@
+package org.geowebcache.storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geotools.geometry.jts.LiteShape;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.util.TestUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Checks the masks against filling the buffered geometries into an image of each whole level, the
+ * way the builder used to
+ */
+public class GeometryRasterMaskBuilderTest extends TestCase {
+
+    private static final int MAX_MASK_LEVEL = 8;
+
+    private TileLayer layer;
+
+    private GridSubset gridSubset;
+
+    public void setUp() {
+        layer = TestUtils.createWMSLayer("image/png", new GridSetBroker(false, false), 3, 3,
+                new BoundingBox(-180, -90, 180, 90));
+        gridSubset = layer.getGridSubset(layer.getGridSubsets().keySet().iterator().next());
+    }
+
+    public void testSampleEntries() throws Exception {
+        WKTReader reader = new WKTReader();
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        geoms.add(reader.read("POLYGON ((0 0, 0 -90, 180 -90, 180 0, 0 0))"));
+        geoms.add(reader.read("POINT(0 45)"));
+        geoms.add(reader.read("LINESTRING(-90 -45, 90 45)"));
+        assertSameMasks(geoms);
+    }
+
+    public void testManyBatches() throws Exception {
+        Random random = new Random(7);
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        for (int i = 0; i < 3 * GeometryRasterMaskBuilder.BATCH_SIZE + 17; i++) {
+            Coordinate center = new Coordinate(-180 + 360 * random.nextDouble(), -90 + 180
+                    * random.nextDouble());
+            switch (i % 3) {
+            case 0:
+                geoms.add(factory.createPoint(center));
+                break;
+            case 1:
+                geoms.add(factory.createLineString(new Coordinate[] { center,
+                        new Coordinate(center.x + 10 * random.nextDouble(), center.y - 5) }));
+                break;
+            default:
+                // polygons spanning from a few to thousands of tiles
+                geoms.add(factory.createPoint(center).buffer(0.5 + 40 * random.nextDouble(), 3));
+            }
+        }
+        assertSameMasks(geoms);
+    }
+
+    private void assertSameMasks(List<Geometry> geoms) {
+        GeometryRasterMaskBuilder builder = new GeometryRasterMaskBuilder(gridSubset,
+                layer.getMetaTilingFactors(), MAX_MASK_LEVEL);
+        try {
+            for (Geometry geom : geoms) {
+                builder.setMasksForGeometry(geom);
+            }
+        } finally {
+            builder.disposeGraphics();
+        }
+
+        TileBitmap[] masks = builder.getByLevelMasks();
+        assertEquals(MAX_MASK_LEVEL + 1, masks.length);
+        for (int level = 0; level < masks.length; level++) {
+            final int width = (int) (masks[level].getMaxX() + 1);
+            final int height = (int) (masks[level].getMaxY() + 1);
+            BufferedImage image = new BufferedImage(width, height,
+                    BufferedImage.TYPE_BYTE_BINARY);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            graphics.setColor(Color.WHITE);
+            for (Geometry geom : geoms) {
+                graphics.fill(new LiteShape(builder.getBufferedGeometry(geom, level),
+                        new AffineTransform(), false));
+            }
+            graphics.dispose();
+
+            Raster expected = image.getRaster();
+            long count = 0;
+            for (int py = 0; py < height; py++) {
+                for (int px = 0; px < width; px++) {
+                    boolean set = expected.getSample(px, py, 0) != 0;
+                    count += set ? 1 : 0;
+                    assertEquals("level " + level + " at " + px + "," + py, set,
+                            masks[level].get(px, height - 1 - py));
+                }
+            }
+            assertEquals(count, masks[level].cardinality());
+        }
+    }
+}
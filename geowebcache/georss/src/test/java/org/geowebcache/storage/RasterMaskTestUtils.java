@@ -17,7 +17,6 @@
  */
 package org.geowebcache.storage;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
@@ -66,12 +65,12 @@ public class RasterMaskTestUtils {
     public static void logImages(final File target, final GeometryRasterMaskBuilder matrix)
             throws IOException {
         if (debugToDisk) {
-            BufferedImage[] byLevelMasks = matrix.getByLevelMasks();
+            final int numMaskedLevels = matrix.getByLevelMasks().length;
 
-            for (int i = 0; i < byLevelMasks.length; i++) {
+            for (int i = 0; i < numMaskedLevels; i++) {
                 File output = new File(target, "level_" + i + ".tiff");
                 System.out.println("--- writing " + output.getAbsolutePath() + "---");
-                ImageIO.write(byLevelMasks[i], "TIFF", output);
+                ImageIO.write(matrix.getMaskImage(i), "TIFF", output);
             }
         }
     }
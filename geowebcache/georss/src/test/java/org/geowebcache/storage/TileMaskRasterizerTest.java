@@ -0,0 +1,199 @@
+package org.geowebcache.storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Checks the masks against filling the geometries into an image of the whole level, which is how
+ * they used to be built
+ */
+public class TileMaskRasterizerTest extends TestCase {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    public void testWindowsInsideLevel() {
+        Random random = new Random(1);
+        for (int n = 0; n < 500; n++) {
+            int w = 40 + random.nextInt(60);
+            int h = 40 + random.nextInt(60);
+            Geometry geom = randomPolygon(random, w, h, 1, n % 3 == 0);
+
+            TileMaskRasterizer rasterizer = new TileMaskRasterizer(w, h);
+            rasterizer.fill(geom);
+            assertSameMask(geom, w, h, rasterizer.getMask());
+        }
+    }
+
+    public void testWindowsAcrossLevelEdges() {
+        Random random = new Random(2);
+        for (int n = 0; n < 500; n++) {
+            int w = 40 + random.nextInt(60);
+            int h = 40 + random.nextInt(60);
+            Geometry geom = randomPolygon(random, w, h, -5, n % 3 == 0);
+
+            TileMaskRasterizer rasterizer = new TileMaskRasterizer(w, h);
+            rasterizer.fill(geom);
+            assertSameMask(geom, w, h, rasterizer.getMask());
+        }
+    }
+
+    public void testScanlinesInsideLevel() {
+        Random random = new Random(3);
+        for (int n = 0; n < 500; n++) {
+            int w = 40 + random.nextInt(60);
+            int h = 40 + random.nextInt(60);
+            Geometry geom = randomPolygon(random, w, h, 1, n % 3 == 0);
+
+            TileMaskRasterizer rasterizer = new TileMaskRasterizer(w, h);
+            rasterizer.fillScanlines(geom);
+            assertSameMask(geom, w, h, rasterizer.getMask());
+        }
+    }
+
+    public void testBufferedGeometries() {
+        Random random = new Random(4);
+        for (int n = 0; n < 200; n++) {
+            int w = 60 + random.nextInt(200);
+            int h = 60 + random.nextInt(100);
+            // points and lines buffered the way the mask builder does, sometimes as collections
+            Coordinate[] coords = new Coordinate[1 + random.nextInt(6)];
+            for (int i = 0; i < coords.length; i++) {
+                coords[i] = new Coordinate(3 + random.nextDouble() * (w - 6), 3
+                        + random.nextDouble() * (h - 6));
+            }
+            Geometry geom = coords.length == 1 ? factory.createPoint(coords[0])
+                    : (n % 2 == 0 ? factory.createLineString(coords) : factory
+                            .createMultiPoint(coords));
+            geom = geom.buffer(1.5);
+
+            TileMaskRasterizer window = new TileMaskRasterizer(w, h);
+            window.fill(geom);
+            assertSameMask(geom, w, h, window.getMask());
+
+            TileMaskRasterizer scanlines = new TileMaskRasterizer(w, h);
+            scanlines.fillScanlines(geom);
+            assertSameMask(geom, w, h, scanlines.getMask());
+        }
+    }
+
+    public void testLargeGeometries() {
+        Random random = new Random(5);
+        final int w = 2048;
+        final int h = 1024;
+        for (int n = 0; n < 5; n++) {
+            Geometry geom = randomPolygon(random, w, h, 1, false).convexHull().union(
+                    randomPolygon(random, w, h, 1, false).buffer(1.5));
+            assertTrue(geom.getEnvelopeInternal().getArea() > TileMaskRasterizer.MAX_WINDOW_PIXELS);
+
+            TileMaskRasterizer rasterizer = new TileMaskRasterizer(w, h);
+            rasterizer.fill(geom);
+            assertSameMask(geom, w, h, rasterizer.getMask());
+        }
+    }
+
+    public void testReusedScratchImage() {
+        TileMaskRasterizer rasterizer = new TileMaskRasterizer(100, 50);
+        Geometry big = factory.createPoint(new Coordinate(50, 25)).buffer(20);
+        Geometry small = factory.createPoint(new Coordinate(10, 40)).buffer(3);
+        rasterizer.fill(big);
+        rasterizer.fill(small);
+        assertSameMask(big.union(small), 100, 50, rasterizer.getMask());
+
+        // Outside the level entirely
+        rasterizer.fill(factory.createPoint(new Coordinate(-10, -10)).buffer(3));
+        rasterizer.dispose();
+        rasterizer.fill(factory.createPoint(new Coordinate(90, 5)).buffer(2));
+        assertSameMask(big.union(small).union(
+                factory.createPoint(new Coordinate(90, 5)).buffer(2)), 100, 50, rasterizer
+                .getMask());
+    }
+
+    /**
+     * @param min how far from the level's origin vertices can be, negative to cross its edges
+     */
+    private Geometry randomPolygon(Random random, int w, int h, int min, boolean quarterPixels) {
+        int numRings = 1 + random.nextInt(2);
+        LinearRing[] rings = new LinearRing[numRings];
+        for (int r = 0; r < numRings; r++) {
+            Coordinate[] coords = new Coordinate[4 + random.nextInt(8)];
+            for (int i = 0; i < coords.length - 1; i++) {
+                double x;
+                double y;
+                if (quarterPixels) {
+                    // vertices on exact pixel and sub pixel positions
+                    x = min + random.nextInt(4 * (w - 2 * min)) / 4.0;
+                    y = min + random.nextInt(4 * (h - 2 * min)) / 4.0;
+                } else {
+                    x = min + random.nextDouble() * (w - 2 * min);
+                    y = min + random.nextDouble() * (h - 2 * min);
+                }
+                coords[i] = new Coordinate(x, y);
+            }
+            coords[coords.length - 1] = coords[0];
+            rings[r] = factory.createLinearRing(coords);
+        }
+        LinearRing[] holes = new LinearRing[numRings - 1];
+        System.arraycopy(rings, 1, holes, 0, holes.length);
+        return factory.createPolygon(rings[0], holes);
+    }
+
+    private void assertSameMask(Geometry geom, int w, int h, TileBitmap mask) {
+        Raster expected = fillLevelImage(geom, w, h).getRaster();
+        long count = 0;
+        for (int py = 0; py < h; py++) {
+            for (int px = 0; px < w; px++) {
+                boolean set = expected.getSample(px, py, 0) != 0;
+                count += set ? 1 : 0;
+                assertEquals(geom + " at " + px + "," + py, set, mask.get(px, h - 1 - py));
+            }
+        }
+        assertEquals(count, mask.cardinality());
+    }
+
+    /**
+     * What the mask builder used to do, the path being the one LiteShape creates
+     */
+    private BufferedImage fillLevelImage(Geometry geom, int w, int h) {
+        GeneralPath path = new GeneralPath(geom instanceof Polygon ? GeneralPath.WIND_EVEN_ODD
+                : GeneralPath.WIND_NON_ZERO);
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+            Polygon polygon = (Polygon) geom.getGeometryN(i);
+            appendRing(path, polygon.getExteriorRing());
+            for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+                appendRing(path, polygon.getInteriorRingN(j));
+            }
+        }
+
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_BINARY);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_OFF);
+        graphics.setColor(Color.WHITE);
+        graphics.fill(path);
+        graphics.dispose();
+        return image;
+    }
+
+    private void appendRing(GeneralPath path, LineString ring) {
+        Coordinate[] coords = ring.getCoordinates();
+        path.moveTo((float) coords[0].x, (float) coords[0].y);
+        for (int i = 1; i < coords.length; i++) {
+            path.lineTo((float) coords[i].x, (float) coords[i].y);
+        }
+        path.closePath();
+    }
+}
@@ -37,6 +37,9 @@ public class ConveyorKMLTile extends ConveyorTile {
     
     protected MimeType wrapperMimeType = null;
     
+    // Which part of a layer's sitemap, -1 for the sitemap itself
+    int siteMapPage = -1;
+    
     public void setUrlPrefix(String urlPrefix) {
         this.urlPrefix = urlPrefix;
     }
@@ -58,6 +61,14 @@ public class ConveyorKMLTile extends ConveyorTile {
         this.errorMsg = message;
     }
     
+    public int getSiteMapPage() {
+        return siteMapPage;
+    }
+    
+    public void setSiteMapPage(int siteMapPage) {
+        this.siteMapPage = siteMapPage;
+    }
+    
     public String getHint() {
         return hint;
     }
@@ -0,0 +1,174 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.service.kml;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TruncateListener;
+import org.geowebcache.util.GWCVars;
+
+/**
+ * Remembers which tiles came back from the backend without content (204), so that the links
+ * to them do not have to be probed again every time a client walks the KML hierarchy.
+ * <p>
+ * Entries are kept per layer and gridset, the number of entries per layer is bounded with the
+ * least recently used ones dropped first. An entry expires like a cached tile would, the backend
+ * may have data there by then. Registered as a {@link BlobStoreListener}, an entry is forgotten as
+ * soon as a tile is stored or deleted at that location, and all entries for a layer are forgotten
+ * when the layer is deleted or any of it truncated, since empty tiles leave nothing in the store
+ * to delete.
+ * </p>
+ */
+public class EmptyTileCache implements TruncateListener {
+
+    private final int maxPerLayer;
+
+    /**
+     * When each empty tile is to be forgotten, by layer
+     */
+    private final Map<String, Map<String, Long>> layers = new HashMap<String, Map<String, Long>>();
+
+    /**
+     * @param maxPerLayer the maximum number of empty tiles to remember per layer
+     */
+    public EmptyTileCache(int maxPerLayer) {
+        this.maxPerLayer = maxPerLayer;
+    }
+
+    /**
+     * @return true if the tile is known to be empty
+     */
+    public boolean isEmpty(String layerName, String gridSetId, String format, long[] gridLoc) {
+        synchronized (layers) {
+            Map<String, Long> tiles = layers.get(layerName);
+            if (tiles == null) {
+                return false;
+            }
+            String key = key(gridSetId, format, gridLoc[0], gridLoc[1], gridLoc[2]);
+            Long expires = tiles.get(key);
+            if (expires == null) {
+                return false;
+            }
+            if (expires.longValue() <= now()) {
+                tiles.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remembers that the tile is empty, until a tile is stored there
+     */
+    public void setEmpty(String layerName, String gridSetId, String format, long[] gridLoc) {
+        setEmpty(layerName, gridSetId, format, gridLoc, GWCVars.CACHE_NEVER_EXPIRE);
+    }
+
+    /**
+     * Remembers that the tile is empty
+     * 
+     * @param expireCache
+     *            how many seconds a cached tile at that location is good for, as configured on
+     *            the layer. Nothing is remembered if the layer is not cached.
+     */
+    public void setEmpty(String layerName, String gridSetId, String format, long[] gridLoc,
+            int expireCache) {
+        if (expireCache == GWCVars.CACHE_DISABLE_CACHE) {
+            return;
+        }
+        long expires = Long.MAX_VALUE;
+        if (expireCache > 0) {
+            expires = now() + expireCache * 1000L;
+        }
+        synchronized (layers) {
+            Map<String, Long> tiles = layers.get(layerName);
+            if (tiles == null) {
+                tiles = new LinkedHashMap<String, Long>(64, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                        return size() > maxPerLayer;
+                    }
+                };
+                layers.put(layerName, tiles);
+            }
+            tiles.put(key(gridSetId, format, gridLoc[0], gridLoc[1], gridLoc[2]),
+                    Long.valueOf(expires));
+        }
+    }
+
+    /**
+     * Forgets everything known about the given layer
+     */
+    public void clear(String layerName) {
+        synchronized (layers) {
+            layers.remove(layerName);
+        }
+    }
+
+    /**
+     * @return the number of empty tiles remembered for the given layer
+     */
+    public int size(String layerName) {
+        synchronized (layers) {
+            Map<String, Long> tiles = layers.get(layerName);
+            return tiles == null ? 0 : tiles.size();
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parameters, long x, long y, int z, long blobSize) {
+        forget(layerName, gridSetId, blobFormat, x, y, z);
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parameters, long x, long y, int z, long blobSize) {
+        forget(layerName, gridSetId, blobFormat, x, y, z);
+    }
+
+    public void layerDeleted(String layerName) {
+        clear(layerName);
+    }
+
+    public void rangeTruncated(TileRange range) {
+        clear(range.layerName);
+    }
+
+    private void forget(String layerName, String gridSetId, String format, long x, long y,
+            long z) {
+        synchronized (layers) {
+            Map<String, Long> tiles = layers.get(layerName);
+            if (tiles != null) {
+                tiles.remove(key(gridSetId, format, x, y, z));
+            }
+        }
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static String key(String gridSetId, String format, long x, long y, long z) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(gridSetId).append(':').append(format);
+        sb.append(':').append(x).append(':').append(y).append(':').append(z);
+        return sb.toString();
+    }
+}
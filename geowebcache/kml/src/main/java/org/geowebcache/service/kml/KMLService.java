@@ -16,9 +16,15 @@
  */
 package org.geowebcache.service.kml;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -43,6 +49,9 @@ import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.AccountingOutputStream;
+import org.geowebcache.util.GzipUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 
 /**
@@ -77,6 +86,21 @@ public class KMLService extends Service {
     
     private RuntimeStats stats;
     
+    // Threads used to probe the subtiles of regionated KML overlays
+    private int linkProbeThreads = 4;
+    
+    private ExecutorService linkProbeExecutor;
+    
+    // Regionated KML tiles known to have no content
+    private final EmptyTileCache emptyTiles = new EmptyTileCache(10000);
+    
+    private final SiteMapCache siteMapCache = new SiteMapCache();
+    
+    private int kmzCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    
+    // Store PNG, JPEG etc in KMZ files as they are, rather than deflate them again
+    private boolean kmzStoreImages = true;
+    
     public KMLService(StorageBroker sb, TileLayerDispatcher tld, GridSetBroker gsb, RuntimeStats stats) {
         super(SERVICE_KML);
         
@@ -84,6 +108,63 @@ public class KMLService extends Service {
         this.tld = tld;
         this.gsb = gsb;
         this.stats = stats;
+        
+        if(sb != null) {
+            sb.addBlobStoreListener(emptyTiles);
+            sb.addBlobStoreListener(siteMapCache);
+        }
+    }
+    
+    /**
+     * The number of threads used to check whether the subtiles of a regionated
+     * KML overlay have any content, 1 or less to check them one after another.
+     * 
+     * @param threads
+     */
+    public void setLinkProbeThreads(String threads) {
+        this.linkProbeThreads = Integer.parseInt(threads);
+        log.info("Will use up to " + linkProbeThreads + " threads to probe KML subtiles.");
+    }
+    
+    /**
+     * The compression level, 0 to 9, for the KML inside KMZ files
+     * 
+     * @param level
+     */
+    public void setKmzCompressionLevel(String level) {
+        this.kmzCompressionLevel = Integer.parseInt(level);
+    }
+    
+    /**
+     * Whether image data that is already compressed is stored in KMZ files
+     * as it is, or deflated along with the KML
+     * 
+     * @param trueFalse
+     */
+    public void setKmzStoreImages(String trueFalse) {
+        this.kmzStoreImages = Boolean.parseBoolean(trueFalse);
+    }
+    
+    private synchronized ExecutorService getLinkProbeExecutor() {
+        if(linkProbeThreads <= 1) {
+            return null;
+        }
+        
+        if(linkProbeExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.KMLLinkProbe-");
+            tf.setDaemon(true);
+            linkProbeExecutor = Executors.newFixedThreadPool(linkProbeThreads, tf);
+        }
+        return linkProbeExecutor;
+    }
+    
+    /**
+     * Stops the threads probing KML tiles, called when the application context is closed
+     */
+    public synchronized void destroy() {
+        if(linkProbeExecutor != null) {
+            linkProbeExecutor.shutdown();
+        }
     }
 
     /**
@@ -171,9 +252,18 @@ public class KMLService extends Service {
             return tile;
         }
         
-        // Sitemap ?  kml/prefix:layername/sitemap.xml
-        if(parsed[1].equalsIgnoreCase(HINT_SITEMAP_LAYER)) {
+        // Sitemap ?  kml/prefix:layername/sitemap.xml or kml/prefix:layername/sitemap-<n>.xml
+        if(parsed[1].equalsIgnoreCase(HINT_SITEMAP_LAYER)
+                || parsed[1].startsWith(HINT_SITEMAP_LAYER + "-")) {
             tile.setHint(HINT_SITEMAP_LAYER);
+            if(parsed[1].length() > HINT_SITEMAP_LAYER.length()) {
+                try {
+                    tile.setSiteMapPage(Integer.parseInt(
+                            parsed[1].substring(HINT_SITEMAP_LAYER.length() + 1)));
+                } catch (NumberFormatException nfe) {
+                    throw new ServiceException("Unable to parse " + parsed[1]);
+                }
+            }
             tile.setUrlPrefix(urlPrefix(request.getRequestURL().toString(),parsed));
             tile.setRequestHandler(ConveyorTile.RequestHandler.SERVICE);
             return tile;
@@ -234,15 +324,15 @@ public class KMLService extends Service {
         }
         tile.setTileLayer(layer);
         
-        //if(tile.getHint() == HINT_SITEMAP_LAYER || tile.getHint() == HINT_SITEMAP_GLOBAL) {
-        //    KMLSiteMap sm = new KMLSiteMap(tile,tld);
-        //    try {
-        //        sm.write();
-        //    } catch (IOException ioe) {
-        //        throw new GeoWebCacheException("Unable to write sitemap: " + ioe.getMessage());
-        //    }
-        //    return;
-        //}
+        if(tile.getHint() == HINT_SITEMAP_LAYER || tile.getHint() == HINT_SITEMAP_GLOBAL) {
+            KMLSiteMap sm = new KMLSiteMap(tile, tld, gsb, siteMapCache);
+            try {
+                sm.write();
+            } catch (IOException ioe) {
+                throw new GeoWebCacheException("Unable to write sitemap: " + ioe.getMessage());
+            }
+            return;
+        }
         
         if(tile.getTileIndex()[2] == -1) {
             // No tile index -> super overlay
@@ -422,16 +512,10 @@ public class KMLService extends Service {
         //    return;
         //}
         
-        // Sigh.... 
-        if(! packageData) {
-                String overlayXml = createOverlay(tile, false);
-                tile.setContent(overlayXml.getBytes());
-                tile.setStatus(200);
-                //tileLayer.putTile(tile);
-        } else {
-            // Get the overlay
-            String overlayXml = createOverlay(tile, true);
-            
+        // Anything that can fail happens before the response is started
+        long[][] linkGridLocs = filterOverlayLinks(tile);
+        
+        if(packageData) {
             // Get the data (cheat)
             try {
                 tile.setWrapperMimeType(null);
@@ -448,20 +532,54 @@ public class KMLService extends Service {
                 ioe.printStackTrace();
                 throw new ServiceException(ioe.getMessage());
             }
+        }
+        
+        tile.setStatus(200);
+        
+        HttpServletResponse response = tile.servletResp;
+        response.setCharacterEncoding("utf-8");
+        response.setStatus(200);
+        tileLayer.setExpirationHeader(response, (int) tile.getTileIndex()[2]);
+        response.setContentType(getMimeTypeOverride(tile));
+        
+        // Stream the overlay, and the data if packaged, straight to the client
+        try {
+            AccountingOutputStream aos = new AccountingOutputStream(response.getOutputStream());
             
-            byte[] zip = KMZHelper.createZippedKML(
-                    gridLocString(tile.getTileIndex()), tile.getMimeType().getFileExtension(), 
-                    overlayXml.getBytes(), tile.getContent());
+            if(! packageData) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(aos, "UTF-8"), 4096);
+                writeOverlay(tile, linkGridLocs, false, writer);
+                writer.flush();
+            } else {
+                String namePfx = gridLocString(tile.getTileIndex());
+                
+                KMZWriter kmz = new KMZWriter(aos, kmzCompressionLevel);
+                try {
+                    writeOverlay(tile, linkGridLocs, true, kmz.startOverlay(namePfx));
+                    
+                    String ext = tile.getMimeType().getFileExtension();
+                    if(GzipUtils.GZIP.equals(tile.getContentEncoding())) {
+                        // Stored gzipped, the deflate stream goes in as it is
+                        kmz.writeGzippedData(namePfx, ext, tile.getEncodedContent());
+                    } else {
+                        byte[] data = tile.getContent();
+                        if(data != null) {
+                            kmz.writeData(namePfx, ext, data, isStoredInKMZ(tile.getMimeType()));
+                        }
+                    }
+                    kmz.finish();
+                } finally {
+                    // The deflater goes back to the pool even if the client went away
+                    kmz.release();
+                }
+            }
             
-            tile.setContent(zip);
-            tile.setStatus(200);
-            //tileLayer.putTile(tile);
-
+            if(stats != null) {
+                stats.log(aos.getCount(), tile.getCacheResult());
+            }
+        } catch (IOException ioe) {
+            log.debug("IOException writing overlay to client: " + ioe.getMessage());
         }
-
-        String mimeStr = getMimeTypeOverride(tile);
-
-        writeTileResponse(tile, true, stats, mimeStr);
     }
 
     private String getMimeTypeOverride(ConveyorKMLTile tile) {
@@ -473,24 +591,49 @@ public class KMLService extends Service {
     }
     
     /**
-     * Creates an overlay element:
+     * Images that are already compressed are stored rather than deflated
+     */
+    private boolean isStoredInKMZ(MimeType mime) {
+        return kmzStoreImages && mime instanceof ImageMime && mime != ImageMime.tiff;
+    }
+    
+    /**
+     * Determines which of the four subtiles the overlay should link to,
+     * the ones that are not have their zoom level set to -1
+     */
+    private long[][] filterOverlayLinks(ConveyorKMLTile tile) 
+    throws GeoWebCacheException {
+        GridSubset gridSubset = tile.getGridSubset();
+        
+        // Network links, only to tiles within bounds
+        long[][] linkGridLocs = gridSubset.getSubGrid(tile.getTileIndex());
+        
+        // Apply secondary filter against linking to empty tiles
+        return KMZHelper.filterGridLocs(
+                tile.getStorageBroker(), 
+                tile.getLayer(), 
+                gridSubset.getName(), 
+                tile.getMimeType(), 
+                linkGridLocs,
+                getLinkProbeExecutor(),
+                emptyTiles );
+    }
+    
+    /**
+     * Writes an overlay element:
      * 1) Header 
      * 2) Network links to regions where we have more data 
      * 3) Overlay (link to data) 
      * 4) Footer
      * 
-     * @param tileLayer
-     * @param urlStr
-     * @param key
-     * @param extension
-     * @param formatExtension
-     * @param isRaster
-     * @param response
-     * @return
-     * @throws ServiceException
+     * @param tile
+     * @param linkGridLocs the subtiles, as returned by filterOverlayLinks
+     * @param isPackaged whether the data goes into the same KMZ
+     * @param out
+     * @throws IOException
      */
-    private static String createOverlay(ConveyorKMLTile tile, boolean isPackaged)
-    throws ServiceException,GeoWebCacheException {
+    private static void writeOverlay(ConveyorKMLTile tile, long[][] linkGridLocs, 
+            boolean isPackaged, Writer out) throws IOException {
         boolean isRaster = (tile.getMimeType() instanceof ImageMime);
         
         TileLayer tileLayer = tile.getLayer();
@@ -511,30 +654,17 @@ public class KMLService extends Service {
             }
             
         }
-                
-        StringBuffer buf = new StringBuffer();
         
         // 1) Header
         boolean setMaxLod = false;
         if(isRaster && gridLoc[2] < gridSubset.getZoomStop()) {
             setMaxLod = true;
         }
-        buf.append(createOverlayHeader(bbox, setMaxLod));
+        writeOverlayHeader(out, bbox, setMaxLod);
 
-        buf.append("\n<!-- Network links to subtiles -->\n");
-        // 2) Network links, only to tiles getCoverages();within bounds
-        
-        long[][] linkGridLocs = gridSubset.getSubGrid(gridLoc);
+        out.write("\n<!-- Network links to subtiles -->\n");
         
-        // 3) Apply secondary filter against linking to empty tiles
-        linkGridLocs = KMZHelper.filterGridLocs(
-                tile.getStorageBroker(), 
-                tileLayer, 
-                gridSubset.getName(), 
-                tile.getMimeType(), 
-                linkGridLocs );
-
-        //int moreData = 0;
+        // 2) Network links, only to the subtiles that passed the filters
         for (int i = 0; i < 4; i++) {
             // Only add this link if it is within the bounds
             if (linkGridLocs[i][2] > 0) {
@@ -547,22 +677,17 @@ public class KMLService extends Service {
                     + gridLocStr +"." +tile.getMimeType().getFileExtension()
                     + "." + tile.getWrapperMimeType().getFileExtension();
 
-                buf.append(createNetworkLinkElement(tileLayer, linkBbox, gridLocUrl, gridLocStr,-1, refreshTags));
-                //moreData++;
+                writeNetworkLinkElement(out, tileLayer, linkBbox, gridLocUrl, -1, refreshTags);
             }
         }
         
-        buf.append("\n<!-- Network link to actual content -->\n");
-        
-
+        out.write("\n<!-- Network link to actual content -->\n");
 
-        // 5) Overlay, should be relative
+        // 3) Overlay, should be relative
         if (isRaster) {
-            buf.append(
-                    createGroundOverLayElement(
-                    gridLoc, tile.getUrlPrefix(), 
-                    bbox, tile.getMimeType().getFileExtension(),
-                    refreshTags));
+            writeGroundOverLayElement(out, 
+                    gridLoc, bbox, tile.getMimeType().getFileExtension(),
+                    refreshTags);
         } else {
             // KML
             String gridLocStr = gridLocString(gridLoc);
@@ -577,99 +702,101 @@ public class KMLService extends Service {
                 maxLodPixels = 385;
             }
             
-            buf.append(createNetworkLinkElement(tileLayer, bbox, gridLocUrl, gridLocStr, maxLodPixels, refreshTags));
+            writeNetworkLinkElement(out, tileLayer, bbox, gridLocUrl, maxLodPixels, refreshTags);
         }
 
-        //if(moreData > 0) {
-        //    xml += "</Document>\n<Document>"+moreDataIcon(bbox)+"</Document>\n";
-        //} else {
-            buf.append("</Document>\n</kml>");
-        //}
-        
-        return buf.toString();
+        // 4) Footer
+        out.write("</Document>\n</kml>");
     }
 
     /**
-     * This creates the header for the overlay
+     * This writes the header for the overlay
      * 
+     * @param out
      * @param bbox
-     * @return
+     * @param setMaxLod
      */
-    private static String createOverlayHeader(BoundingBox bbox, boolean setMaxLod) {
+    private static void writeOverlayHeader(Writer out, BoundingBox bbox, boolean setMaxLod) 
+    throws IOException {
         int maxLodPixels = -1;
         if(setMaxLod) {
             maxLodPixels = 385;
         }
         
-        return  KMLHeader()
-                + "<Document>\n"
-                + "<Region>\n"
-                + bbox.toKMLLatLonAltBox()
-                + "<Lod><minLodPixels>128</minLodPixels>"
-                + "<maxLodPixels>"+Integer.toString(maxLodPixels)+"</maxLodPixels></Lod>\n"
-                + "</Region>\n";
+        out.write(KMLHeader());
+        out.write("<Document>\n");
+        out.write("<Region>\n");
+        out.write(bbox.toKMLLatLonAltBox());
+        out.write("<Lod><minLodPixels>128</minLodPixels>");
+        out.write("<maxLodPixels>");
+        out.write(Integer.toString(maxLodPixels));
+        out.write("</maxLodPixels></Lod>\n");
+        out.write("</Region>\n");
     }
 
     /**
      * For KML features  / vector data OR for the next level
      * 
+     * @param out
      * @param layer
-     * @param urlStr
-     * @param gridLoc
      * @param bbox
-     * @param extension
-     * @return
+     * @param gridLocUrl
+     * @param maxLodPixels
+     * @param refreshTags
      */
-    private static String createNetworkLinkElement(
-            TileLayer layer, BoundingBox bbox, String gridLocUrl, String tileIdx,
-            int maxLodPixels, String refreshTags) {
+    private static void writeNetworkLinkElement(Writer out,
+            TileLayer layer, BoundingBox bbox, String gridLocUrl,
+            int maxLodPixels, String refreshTags) throws IOException {
       
-        String xml = "\n<NetworkLink>"
-                + "\n<name>"
-                + layer.getName()
-                + "</name>"
-                + "\n<Region>"
-                + bbox.toKMLLatLonAltBox()
-                + "\n<Lod><minLodPixels>128</minLodPixels>"
-                + "<maxLodPixels>"+Integer.toString(maxLodPixels)+"</maxLodPixels></Lod>\n"
-                + "</Region>" + "\n<Link>" 
-                + "\n<href>"
-                +  gridLocUrl
-                +"</href>"
-                + refreshTags
-                + "\n<viewRefreshMode>onRegion</viewRefreshMode>" 
-                + "\n</Link>"
-                + "\n</NetworkLink>\n";
-
-        return xml;
+        out.write("\n<NetworkLink>");
+        out.write("\n<name>");
+        out.write(layer.getName());
+        out.write("</name>");
+        out.write("\n<Region>");
+        out.write(bbox.toKMLLatLonAltBox());
+        out.write("\n<Lod><minLodPixels>128</minLodPixels>");
+        out.write("<maxLodPixels>");
+        out.write(Integer.toString(maxLodPixels));
+        out.write("</maxLodPixels></Lod>\n");
+        out.write("</Region>");
+        out.write("\n<Link>");
+        out.write("\n<href>");
+        out.write(gridLocUrl);
+        out.write("</href>");
+        out.write(refreshTags);
+        out.write("\n<viewRefreshMode>onRegion</viewRefreshMode>");
+        out.write("\n</Link>");
+        out.write("\n</NetworkLink>\n");
     }
 
     /**
      * Used for linking to a raster image 
      * 
+     * @param out
      * @param gridLoc
-     * @param urlStr
      * @param bbox
      * @param formatExtension
-     * @return
+     * @param refreshTags
      */
-    private static String createGroundOverLayElement(long[] gridLoc, String urlStr,
-            BoundingBox bbox, String formatExtension, String refreshTags) {
-        
-        String xml = "\n<GroundOverlay>"
-                + "\n<drawOrder>"+gridLoc[2]+"</drawOrder>"
-                
-                + "\n<Icon>" 
-                + "\n<href>" 
-                +  gridLocString(gridLoc) + "." + formatExtension 
-                + "</href>"
-                + refreshTags
-                + "\n</Icon>\n" 
-                + "\n<altitudeMode>clampToGround</altitudeMode>"
-                + bbox.toKMLLatLonBox()
-                + "\n</GroundOverlay>\n";
-
-        return xml;
+    private static void writeGroundOverLayElement(Writer out, long[] gridLoc,
+            BoundingBox bbox, String formatExtension, String refreshTags) 
+    throws IOException {
+        
+        out.write("\n<GroundOverlay>");
+        out.write("\n<drawOrder>");
+        out.write(Long.toString(gridLoc[2]));
+        out.write("</drawOrder>");
+        out.write("\n<Icon>");
+        out.write("\n<href>");
+        out.write(gridLocString(gridLoc));
+        out.write(".");
+        out.write(formatExtension);
+        out.write("</href>");
+        out.write(refreshTags);
+        out.write("\n</Icon>\n");
+        out.write("\n<altitudeMode>clampToGround</altitudeMode>");
+        out.write(bbox.toKMLLatLonBox());
+        out.write("\n</GroundOverlay>\n");
     }
     
     private static String getLookAt(BoundingBox bbox) {
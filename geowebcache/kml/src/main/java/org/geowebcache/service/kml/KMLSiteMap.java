@@ -11,17 +11,21 @@
  *
  *  You should have received a copy of the GNU Lesser General Public License
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
- * 
+ *
  * @author Arne Kepp, The Open Planning Project, Copyright 2008
  */
 package org.geowebcache.service.kml;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorKMLTile;
@@ -32,140 +36,365 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 
+/**
+ * Writes the sitemaps for the regionated KML hierarchies.
+ *
+ * The tiles are visited depth first, only following the ones that exist in
+ * storage, and written out as they are found. Layers with more than
+ * {@link #MAX_URLS} tiles are split into several sitemaps, which are listed
+ * in the sitemap index. Where those splits happen is remembered in a
+ * {@link SiteMapCache} until tiles of the layer are deleted.
+ */
 public class KMLSiteMap {
+    /**
+     * The maximum number of URLs in a single sitemap, see sitemaps.org
+     */
+    public static final int MAX_URLS = 50000;
+
     private ConveyorKMLTile tile = null;
     private TileLayerDispatcher tLD = null;
     private StorageBroker storageBroker;
     private GridSetBroker gridSetBroker;
-    
-    public KMLSiteMap(ConveyorKMLTile tile, TileLayerDispatcher tLD, GridSetBroker gridSetBroker) {
+    private SiteMapCache siteMapCache;
+    private int maxUrls = MAX_URLS;
+
+    public KMLSiteMap(ConveyorKMLTile tile, TileLayerDispatcher tLD, GridSetBroker gridSetBroker,
+            SiteMapCache siteMapCache) {
         this.tile = tile;
         this.tLD = tLD;
         this.storageBroker = tile.getStorageBroker();
         this.gridSetBroker = gridSetBroker;
+        this.siteMapCache = siteMapCache;
+    }
+
+    /**
+     * For testing, the number of URLs per sitemap
+     */
+    void setMaxUrls(int maxUrls) {
+        this.maxUrls = maxUrls;
     }
-    
+
     public void write() throws GeoWebCacheException, IOException {
+        // Figure out what to write before the response is committed
+        SiteMapPages pages = null;
+        if(tile.getHint() == KMLService.HINT_SITEMAP_LAYER) {
+            pages = getPages(tile.getLayer());
+
+            if(tile.getSiteMapPage() >= pages.size()) {
+                throw new GeoWebCacheException("There are only " + pages.size()
+                        + " sitemaps for " + tile.getLayer().getName());
+            }
+        }
+
         tile.servletResp.setCharacterEncoding("utf-8");
         tile.servletResp.setContentType("application/xml");
         tile.servletResp.setStatus(200);
-        
-        if(tile.getHint() == KMLService.HINT_SITEMAP_LAYER) {
-            writeSiteMap();
+
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(tile.servletResp.getOutputStream(), "UTF-8"), 8192);
+
+        if(pages == null) {
+            writeSiteMapIndex(out);
+        } else if(pages.size() > 1 && tile.getSiteMapPage() < 0) {
+            writeLayerSiteMapIndex(out, pages);
         } else {
-            writeSiteMapIndex();
-        }
-    }
-    
-    private void writeSiteMapIndex() throws IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
-        
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-        "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n";
-        os.write(header.getBytes());
-        
-        writeSiteMapIndexLoop();
-        
-        String footer = "</sitemapindex>";
-        os.write(footer.getBytes());
-    }
-    
-    private void writeSiteMapIndexLoop() throws IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
+            writeSiteMap(out, pages, Math.max(0, tile.getSiteMapPage()));
+        }
+
+        out.flush();
+    }
+
+    private void writeSiteMapIndex(Writer out) throws GeoWebCacheException, IOException {
+        writeSiteMapIndexHeader(out);
+
+        writeSiteMapIndexLoop(out);
+
+        writeSiteMapIndexFooter(out);
+    }
+
+    private void writeSiteMapIndexLoop(Writer out) throws GeoWebCacheException, IOException {
         String urlPrefix = tile.getUrlPrefix();
-        
+
         Iterator<TileLayer> iter = tLD.getLayers().values().iterator();
-        
+
         while(iter.hasNext()) {
             TileLayer tl = iter.next();
 
             Hashtable<String,GridSubset> grids = tl.getGridSubsets();
             List<MimeType> mimeTypes = tl.getMimeTypes();
-            
+
             if( grids != null && grids.containsKey(gridSetBroker.WORLD_EPSG4326.getName())
                     && mimeTypes != null && mimeTypes.contains(XMLMime.kml) ) {
-                String smStr = "<sitemap><loc>"+urlPrefix+tl.getName()+"/sitemap.xml</loc></sitemap>";
-                os.write(smStr.getBytes());
+                // Sitemap indexes can not be nested, list the parts of big layers directly
+                SiteMapPages pages = getPages(tl);
+                if(pages.size() == 1) {
+                    writeSiteMapLoc(out, urlPrefix + tl.getName() + "/sitemap.xml");
+                } else {
+                    for(int i=0; i<pages.size(); i++) {
+                        writeSiteMapLoc(out, urlPrefix + tl.getName() + "/" + pageName(i));
+                    }
+                }
             }
         }
     }
 
-    private void writeSiteMap() throws GeoWebCacheException, IOException {
-        TileLayer layer = tile.getLayer();
-        
+    private void writeLayerSiteMapIndex(Writer out, SiteMapPages pages) throws IOException {
+        writeSiteMapIndexHeader(out);
+
+        String urlPrefix = tile.getUrlPrefix();
+        for(int i=0; i<pages.size(); i++) {
+            writeSiteMapLoc(out, urlPrefix + pageName(i));
+        }
+
+        writeSiteMapIndexFooter(out);
+    }
+
+    private static String pageName(int page) {
+        return KMLService.HINT_SITEMAP_LAYER + "-" + page + ".xml";
+    }
+
+    private void writeSiteMapIndexHeader(Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+    }
+
+    private void writeSiteMapLoc(Writer out, String loc) throws IOException {
+        out.write("<sitemap><loc>");
+        out.write(loc);
+        out.write("</loc></sitemap>\n");
+    }
+
+    private void writeSiteMapIndexFooter(Writer out) throws IOException {
+        out.write("</sitemapindex>");
+    }
+
+    /**
+     * Writes one sitemap of the layer, starting where the given page starts
+     */
+    private void writeSiteMap(Writer out, SiteMapPages pages, int page)
+    throws GeoWebCacheException, IOException {
+        String urlPrefix = tile.getUrlPrefix();
+
+        writeSiteMapHeader(out);
+
+        int count = 0;
+        if(page == 0) {
+            // Add a link to the super overlay first
+            out.write("<url><loc>");
+            out.write(urlPrefix, 0, urlPrefix.length() - 1);
+            out.write(".kml.kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n");
+            count++;
+        }
+
+        Iterator<long[]> iter = pages.iterator(page);
+        while(count < maxUrls && iter.hasNext()) {
+            long[] gridLoc = iter.next();
+
+            // We need to link to the data tiles only, for now
+            out.write("<url><loc>");
+            out.write(urlPrefix);
+            out.write(KMLService.gridLocString(gridLoc));
+            out.write(".kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n");
+            count++;
+
+            // Could add priority as 1 / (zoomlevel + 1)
+        }
+
+        writeSiteMapFooter(out);
+    }
+
+    private void writeSiteMapHeader(Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" "
+                + "xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">\n");
+    }
+
+    private void writeSiteMapFooter(Writer out) throws IOException {
+        out.write("</urlset>");
+    }
+
+    /**
+     * Finds where the sitemaps of the layer start, or looks them up in the cache
+     */
+    private SiteMapPages getPages(TileLayer layer) throws GeoWebCacheException {
+        SiteMapPages pages = null;
+        if(siteMapCache != null) {
+            pages = siteMapCache.get(layer.getName());
+        }
+
+        if(pages == null) {
+            pages = createPages(layer);
+            if(siteMapCache != null) {
+                siteMapCache.put(layer.getName(), pages);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Walks the entire hierarchy once, remembering the state of the walk
+     * every time a sitemap is full
+     */
+    SiteMapPages createPages(TileLayer layer) throws GeoWebCacheException {
         GridSubset gridSubset = layer.getGridSubset(gridSetBroker.WORLD_EPSG4326.getName());
-        
-        writeSiteMapHeader();
-        
+
         long[] gridRect = gridSubset.getCoverageBestFit();
-        
+
+        List<long[]> roots = new ArrayList<long[]>(2);
+
         // Check whether we need two tiles for world bounds or not
         if(gridRect[4] > 0 && (gridRect[2] != gridRect[0] || gridRect[3] != gridRect[1])) {
             throw new GeoWebCacheException(
-                    layer.getName() + " is too big for the sub grid set for " 
+                    layer.getName() + " is too big for the sub grid set for "
                     + gridSubset.getName() + ", allow for smaller zoom levels.");
         } else if(gridRect[0] != gridRect[2]) {
             long[] gridLocWest = {0,0,0};
             long[] gridLocEast = {1,0,0};
-
-            
-            writeSiteMapLoop(gridLocWest);
-            writeSiteMapLoop(gridLocEast);
-            
+            roots.add(gridLocWest);
+            roots.add(gridLocEast);
         } else {
             long[] gridLoc = {gridRect[0], gridRect[1], gridRect[4]};
-            writeSiteMapLoop(gridLoc);
+            roots.add(gridLoc);
         }
-        
-        writeSiteMapFooter();
-    }
-    
-    private void writeSiteMapHeader() throws IOException {
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-        		"<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\">\n";
-        tile.servletResp.getOutputStream().write(header.getBytes());
+
+        SiteMapPages pages = new SiteMapPages(storageBroker, layer, gridSubset);
+
+        TileIterator iter;
+        try {
+            iter = new TileIterator(storageBroker, layer, gridSubset, roots);
+        } catch (StorageException se) {
+            throw new GeoWebCacheException(se);
+        }
+        pages.addPage(iter.getState());
+
+        // The first sitemap also links to the super overlay
+        int count = 1;
+        while(iter.hasNext()) {
+            if(count == maxUrls) {
+                pages.addPage(iter.getState());
+                count = 0;
+            }
+            iter.next();
+            count++;
+        }
+
+        return pages;
     }
 
-    private void writeSiteMapFooter() throws IOException {
-        String footer = "</urlset>";
-        tile.servletResp.getOutputStream().write(footer.getBytes());       
+    /**
+     * Where each of the sitemaps for a layer starts, the pending tiles of
+     * the depth first walk at that point
+     */
+    static class SiteMapPages {
+        private final StorageBroker storageBroker;
+
+        private final TileLayer layer;
+
+        private final GridSubset gridSubset;
+
+        private final List<List<long[]>> starts = new ArrayList<List<long[]>>();
+
+        SiteMapPages(StorageBroker storageBroker, TileLayer layer, GridSubset gridSubset) {
+            this.storageBroker = storageBroker;
+            this.layer = layer;
+            this.gridSubset = gridSubset;
+        }
+
+        void addPage(List<long[]> start) {
+            starts.add(start);
+        }
+
+        int size() {
+            return starts.size();
+        }
+
+        Iterator<long[]> iterator(int page) throws IOException {
+            return new TileIterator(storageBroker, layer, gridSubset, starts.get(page));
+        }
     }
 
-    public void writeSiteMapLoop(long[] gridLoc) throws GeoWebCacheException, IOException {
-        OutputStream os = tile.servletResp.getOutputStream();
-        TileLayer tileLayer = tile.getLayer();
-        String urlPrefix = tile.getUrlPrefix();
-        
-        // Add a link to the super overlay first
-        String  superOverlayLoc = 
-            "<url><loc>" + urlPrefix.substring(0, urlPrefix.length() - 1) 
-            + ".kml.kml</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n";
-        os.write(superOverlayLoc.getBytes());
-        
-        
-        LinkedList<long[]> subTileList = new LinkedList<long[]>();
-            
-        subTileList.addFirst(gridLoc);
-        
-        while(subTileList.peek() != null) {
-            String gridSetId = gridSetBroker.WORLD_EPSG4326.getName();
-            long[] curLoc = subTileList.removeFirst();
-            long[][] linkGridLocs = tileLayer.getGridSubset(gridSetId).getSubGrid(curLoc);
-            linkGridLocs = KMZHelper.filterGridLocs(storageBroker, tileLayer, gridSetId, XMLMime.kml, linkGridLocs);
-         
-            // Save the links we still need to follow for later
-            for(long[] subTile : linkGridLocs) {
-                if(subTile[2] > 0) {
-                    subTileList.addLast(subTile);
+    /**
+     * Depth first walk over the KML tiles that exist in storage
+     */
+    static class TileIterator implements Iterator<long[]> {
+        private final StorageBroker storageBroker;
+
+        private final TileLayer layer;
+
+        private final GridSubset gridSubset;
+
+        // The top of the stack is the first element
+        private final LinkedList<long[]> pending = new LinkedList<long[]>();
+
+        TileIterator(StorageBroker storageBroker, TileLayer layer, GridSubset gridSubset,
+                List<long[]> start) throws StorageException {
+            this.storageBroker = storageBroker;
+            this.layer = layer;
+            this.gridSubset = gridSubset;
+
+            for(long[] gridLoc : start) {
+                // The stored states only contain tiles that were found
+                if(start instanceof PendingTiles || exists(gridLoc)) {
+                    pending.addLast(gridLoc);
                 }
             }
-            
-            // We need to link to the data tiles only, for now
-            String tmp = "<url><loc>" + urlPrefix + KMLService.gridLocString(curLoc) +".kml" + "</loc><geo:geo><geo:format>kml</geo:format></geo:geo></url>\n";
-            os.write(tmp.getBytes());
-            
-            // Could add priority as 1 / (zoomlevel + 1)
         }
-     }
+
+        /**
+         * @return the tiles still to be visited, for resuming the walk later
+         */
+        List<long[]> getState() {
+            return new PendingTiles(pending);
+        }
+
+        public boolean hasNext() {
+            return ! pending.isEmpty();
+        }
+
+        public long[] next() {
+            if(pending.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+
+            long[] gridLoc = pending.removeFirst();
+            try {
+                long[][] subGridLocs = gridSubset.getSubGrid(gridLoc);
+                // Backwards, so that the first subtile ends up on top
+                for(int i=subGridLocs.length - 1; i >= 0; i--) {
+                    if(subGridLocs[i][2] > 0 && exists(subGridLocs[i])) {
+                        pending.addFirst(subGridLocs[i]);
+                    }
+                }
+            } catch (GeoWebCacheException gwce) {
+                throw new IllegalStateException(gwce.getMessage());
+            } catch (StorageException se) {
+                throw new IllegalStateException(se.getMessage());
+            }
+            return gridLoc;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private boolean exists(long[] gridLoc) throws StorageException {
+            TileObject tileObj = TileObject.createQueryTileObject(layer.getName(), gridLoc,
+                    gridSubset.getName(), XMLMime.kml.getFormat(), null);
+            return storageBroker.exists(tileObj);
+        }
+    }
+
+    /**
+     * Tiles already known to exist
+     */
+    private static class PendingTiles extends ArrayList<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        PendingTiles(List<long[]> tiles) {
+            super(tiles);
+        }
+    }
 }
@@ -16,11 +16,13 @@
  */
 package org.geowebcache.service.kml;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,10 +31,11 @@ import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.request.GreenTileException;
 import org.geowebcache.filter.request.RequestFilterException;
 import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.mime.XMLMime;
-import org.geowebcache.service.ServiceException;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.GWCVars;
 
 /**
  * Just a helper class for KMZ experimentation stuff
@@ -60,6 +63,23 @@ public class KMZHelper {
     public static long[][] filterGridLocs(StorageBroker sb, TileLayer tileLayer,
             String gridSetId, MimeType mime, long[][] linkGridLocs) 
     throws GeoWebCacheException {
+        return filterGridLocs(sb, tileLayer, gridSetId, mime, linkGridLocs, null, null);
+    }
+    
+    /**
+     * Filters the given gridlocations, probing regionated KML tiles concurrently
+     * 
+     * @param executor used to probe the KML tiles, null to probe them one after another
+     * @param emptyTiles tiles known to be empty are not probed again, may be null
+     */
+    public static long[][] filterGridLocs(StorageBroker sb, TileLayer tileLayer,
+            String gridSetId, MimeType mime, long[][] linkGridLocs, 
+            ExecutorService executor, EmptyTileCache emptyTiles) 
+    throws GeoWebCacheException {
+        
+        List<ConveyorTile> probes = new ArrayList<ConveyorTile>(linkGridLocs.length);
+        // the tiles copy the grid locations, the probes mark these
+        List<long[]> probed = new ArrayList<long[]>(linkGridLocs.length);
         
         for(int i=0;i<linkGridLocs.length; i++) {
             if(linkGridLocs[i][2] > 0) {
@@ -82,87 +102,98 @@ public class KMZHelper {
                 
                 // Special treatment for regionated KML
                 if (mime.equals(XMLMime.kml)) {
-                    try {
-                        tileLayer.getTile(tile);
-                    } catch (IOException ioe) {
-                        log.error(ioe.getMessage());
-                        linkGridLocs[i][2] = -1;
-                    } catch (GeoWebCacheException gwce) {
+                    if (emptyTiles != null
+                            && emptyTiles.isEmpty(tileLayer.getName(), gridSetId, 
+                                    mime.getFormat(), linkGridLocs[i])) {
                         linkGridLocs[i][2] = -1;
-                    }
-
-                    // If it's a 204 it means no content -> don't link to it
-                    if (tile.getStatus() == 204) {
-                        linkGridLocs[i][2] = -1;
-                    } else if (tile.getStatus() != 200) {
-                        throw new GeoWebCacheException(
-                                "Unexpected response code from server "
-                                + tile.getStatus());
+                    } else {
+                        probes.add(tile);
+                        probed.add(linkGridLocs[i]);
                     }
                 }
             }
         }
         
+        if(executor == null || probes.size() < 2) {
+            for(int i=0; i<probes.size(); i++) {
+                probeTile(probes.get(i), probed.get(i), emptyTiles);
+            }
+        } else {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(probes.size());
+            try {
+                for(int i=0; i<probes.size(); i++) {
+                    final ConveyorTile tile = probes.get(i);
+                    final long[] linkGridLoc = probed.get(i);
+                    final EmptyTileCache cache = emptyTiles;
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            probeTile(tile, linkGridLoc, cache);
+                            return null;
+                        }
+                    }));
+                }
+                for(Future<Object> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new GeoWebCacheException("Interrupted while probing KML tiles");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if(cause instanceof GeoWebCacheException) {
+                    throw (GeoWebCacheException) cause;
+                } else if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new GeoWebCacheException(cause);
+            } finally {
+                // Only those not started yet, interrupting a probe could abort a tile
+                // request that other requests are waiting on
+                for(Future<Object> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        
         return linkGridLocs;
     }
     
     /**
-     * 
-     * 
-     * @param namePfx
-     * @param overlayXml
-     * @param dataXml
-     * @param response
-     * @return
-     * @throws ServiceException
+     * Requests a regionated KML tile, marking the grid location it was made
+     * from with -1 if there is nothing to link to
      */
-    protected static byte[] createZippedKML(
-            String namePfx , String formatExtension,
-            byte[] overlayXml, byte[] dataXml) 
-    throws ServiceException {
-        
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private static void probeTile(ConveyorTile tile, long[] linkGridLoc, 
+            EmptyTileCache emptyTiles) throws GeoWebCacheException {
+        long[] gridLoc = tile.getTileIndex();
+        TileLayer tileLayer = tile.getLayer();
         
         try {
-            writeZippedKML(namePfx, formatExtension, overlayXml, dataXml, out);
+            tileLayer.getTile(tile);
         } catch (IOException ioe) {
-            throw new ServiceException(
-                    "Encountered problem writing zip: " + ioe.getMessage());
+            log.error(ioe.getMessage());
+            linkGridLoc[2] = -1;
+        } catch (GeoWebCacheException gwce) {
+            linkGridLoc[2] = -1;
         }
-        
-        return out.toByteArray();
-    }
 
-    /**
-     * Writes two byte[] into a zip
-     * -> like a zipfile with two files
-     * 
-     * @param namePfx prefix for files inside file
-     * @param overlay
-     * @param data
-     * @param out
-     * @throws IOException
-     */
-    private static void writeZippedKML(
-            String namePfx, String formatExtension,
-            byte[] overlay, byte[] data, OutputStream out) 
-    throws IOException {
-
-        ZipOutputStream zipos = new ZipOutputStream(out);
-        // High compression
-        //zipos.setLevel(9);
-
-        // Add the overlay, links to the next content
-        ZipEntry zeOl = new ZipEntry("netlinks_"+namePfx + ".kml");
-        zipos.putNextEntry(zeOl);
-        zipos.write(overlay);
-
-        // Add the actual data, if applicable
-        if(data != null) {
-            ZipEntry zeData = new ZipEntry("data_" + namePfx+"."+formatExtension);
-            zipos.putNextEntry(zeData);
-            zipos.write(data);
+        // If it's a 204 it means no content -> don't link to it
+        if (tile.getStatus() == 204) {
+            if (emptyTiles != null) {
+                int expireCache = GWCVars.CACHE_NEVER_EXPIRE;
+                if (tileLayer instanceof WMSLayer) {
+                    expireCache = ((WMSLayer) tileLayer).getExpireCache((int) gridLoc[2]);
+                }
+                emptyTiles.setEmpty(tileLayer.getName(), tile.getGridSetId(), 
+                        tile.getMimeType().getFormat(), gridLoc, expireCache);
+            }
+            linkGridLoc[2] = -1;
+        } else if (tile.getStatus() != 200) {
+            throw new GeoWebCacheException(
+                    "Unexpected response code from server "
+                    + tile.getStatus());
         }
-        zipos.finish();
+        
+        // Only the status was of interest
+        tile.setContent(null);
     }
-}
+}
\ No newline at end of file
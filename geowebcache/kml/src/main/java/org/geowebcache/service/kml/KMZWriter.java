@@ -0,0 +1,374 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.service.kml;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.geowebcache.util.GzipUtils;
+
+/**
+ * Writes a KMZ, the overlay followed by the optional data, straight to an output stream.
+ * <p>
+ * Nothing is buffered beyond what the zip format requires, the overlay is written through a
+ * {@link Writer} as it is generated. The {@link Deflater}s come from the pool of
+ * {@link GzipUtils}, they hold a fair amount of native memory and are otherwise allocated for
+ * every archive. Data that is already compressed, like PNG or JPEG tiles, can be stored rather
+ * than deflated a second time, and data stored gzipped is copied as it is, a gzip member and a
+ * deflated zip entry holding the same deflate stream.
+ * </p>
+ * <p>
+ * The archive is laid out here rather than by a {@link java.util.zip.ZipOutputStream}, which has
+ * no way of taking data that is deflated already. Deflated entries are followed by a data
+ * descriptor, as their size is only known once they have been written.
+ * </p>
+ * <p>
+ * The underlying stream is never closed, {@link #finish()} must be called once everything has
+ * been written, or {@link #release()} if writing failed.
+ * </p>
+ */
+public class KMZWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+    private static final int END_SIG = 0x06054b50;
+
+    private static final int VERSION = 20;
+
+    // Sizes and CRC follow the data
+    private static final int FLAG_DATA_DESCRIPTOR = 8;
+
+    private final CountingOutputStream out;
+
+    private final Deflater deflater;
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] buf = new byte[4096];
+
+    private final int dosTime;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    // The deflated entry being written, if any
+    private Entry current;
+
+    private Writer overlayWriter;
+
+    private boolean released;
+
+    /**
+     * @param out where the archive goes
+     * @param level the compression level for deflated entries, see {@link Deflater}
+     */
+    public KMZWriter(OutputStream out, int level) {
+        this.out = new CountingOutputStream(out);
+        this.deflater = GzipUtils.acquireDeflater(level);
+        this.dosTime = toDosTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts the overlay entry, the returned writer must not be used after the next call to this
+     * KMZWriter
+     *
+     * @param namePfx the prefix for the name of the entry
+     * @return a writer for the KML document
+     */
+    public Writer startOverlay(String namePfx) throws IOException {
+        closeEntry();
+        startDeflatedEntry("netlinks_" + namePfx + ".kml");
+        overlayWriter = new BufferedWriter(new OutputStreamWriter(new EntryOutputStream(),
+                "UTF-8"), 4096);
+        return overlayWriter;
+    }
+
+    /**
+     * Adds the data entry
+     *
+     * @param namePfx the prefix for the name of the entry
+     * @param formatExtension the extension for the name of the entry
+     * @param data the data
+     * @param store true to store the data as is, for formats that are already compressed
+     */
+    public void writeData(String namePfx, String formatExtension, byte[] data, boolean store)
+            throws IOException {
+        closeEntry();
+
+        String name = "data_" + namePfx + "." + formatExtension;
+        if (store) {
+            crc.reset();
+            crc.update(data);
+            writeEntry(new Entry(name, ZipEntry.STORED, 0, crc.getValue(), data.length,
+                    data.length), data, 0, data.length);
+        } else {
+            startDeflatedEntry(name);
+            deflate(data, 0, data.length);
+            closeEntry();
+        }
+    }
+
+    /**
+     * Adds the data entry out of a gzip member, copying its deflate stream rather than inflating
+     * and compressing it again
+     *
+     * @param namePfx the prefix for the name of the entry
+     * @param formatExtension the extension for the name of the entry
+     * @param gzip the data as a gzip member
+     * @throws IOException if the data is not gzipped
+     */
+    public void writeGzippedData(String namePfx, String formatExtension, byte[] gzip)
+            throws IOException {
+        closeEntry();
+
+        int offset = GzipUtils.getDeflatedOffset(gzip);
+        // The CRC-32 and size trail the deflate stream
+        int length = gzip.length - offset - 8;
+        writeEntry(new Entry("data_" + namePfx + "." + formatExtension, ZipEntry.DEFLATED, 0,
+                GzipUtils.getCrc(gzip), length, GzipUtils.getUncompressedSize(gzip) & 0xFFFFFFFFL),
+                gzip, offset, length);
+    }
+
+    /**
+     * Writes the central directory and hands the deflater back to the pool. The underlying stream
+     * is flushed, but left open.
+     */
+    public void finish() throws IOException {
+        try {
+            closeEntry();
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Hands the deflater back to the pool without finishing the archive, for when writing it
+     * failed. Does nothing once the KMZWriter has been finished or released.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        GzipUtils.releaseDeflater(deflater);
+    }
+
+    private void startDeflatedEntry(String name) throws IOException {
+        current = new Entry(name, ZipEntry.DEFLATED, FLAG_DATA_DESCRIPTOR, 0, 0, 0);
+        writeLocalHeader(current);
+        crc.reset();
+    }
+
+    private void writeEntry(Entry entry, byte[] data, int offset, int length) throws IOException {
+        writeLocalHeader(entry);
+        out.write(data, offset, length);
+    }
+
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        current.size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        int deflated = deflater.deflate(buf);
+        out.write(buf, 0, deflated);
+        current.compressedSize += deflated;
+    }
+
+    /**
+     * Finishes the deflated entry being written, if any
+     */
+    private void closeEntry() throws IOException {
+        if (overlayWriter != null) {
+            // Flushes the encoder, the entry is closed below
+            overlayWriter.flush();
+            overlayWriter = null;
+        }
+        if (current == null) {
+            return;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain();
+        }
+        deflater.reset();
+        current.crc = crc.getValue();
+
+        byte[] descriptor = new byte[16];
+        putInt(descriptor, 0, DATA_DESCRIPTOR_SIG);
+        putInt(descriptor, 4, current.crc);
+        putInt(descriptor, 8, current.compressedSize);
+        putInt(descriptor, 12, current.size);
+        out.write(descriptor);
+        current = null;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        entry.offset = out.count;
+        entries.add(entry);
+
+        byte[] header = new byte[30 + entry.name.length];
+        putInt(header, 0, LOCAL_HEADER_SIG);
+        putShort(header, 4, VERSION);
+        putShort(header, 6, entry.flags);
+        putShort(header, 8, entry.method);
+        putInt(header, 10, dosTime);
+        putInt(header, 14, entry.crc);
+        putInt(header, 18, entry.compressedSize);
+        putInt(header, 22, entry.size);
+        putShort(header, 26, entry.name.length);
+        putShort(header, 28, 0);
+        System.arraycopy(entry.name, 0, header, 30, entry.name.length);
+        out.write(header);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = out.count;
+        for (Entry entry : entries) {
+            byte[] header = new byte[46 + entry.name.length];
+            putInt(header, 0, CENTRAL_HEADER_SIG);
+            putShort(header, 4, VERSION);
+            putShort(header, 6, VERSION);
+            putShort(header, 8, entry.flags);
+            putShort(header, 10, entry.method);
+            putInt(header, 12, dosTime);
+            putInt(header, 16, entry.crc);
+            putInt(header, 20, entry.compressedSize);
+            putInt(header, 24, entry.size);
+            putShort(header, 28, entry.name.length);
+            // No extra field, comment, disk number or attributes
+            putInt(header, 42, entry.offset);
+            System.arraycopy(entry.name, 0, header, 46, entry.name.length);
+            out.write(header);
+        }
+
+        byte[] end = new byte[22];
+        putInt(end, 0, END_SIG);
+        putShort(end, 8, entries.size());
+        putShort(end, 10, entries.size());
+        putInt(end, 12, out.count - start);
+        putInt(end, 16, start);
+        out.write(end);
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int off, long value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    private static int toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        return (cal.get(Calendar.YEAR) - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21
+                | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11
+                | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final byte[] name;
+
+        final int method;
+
+        final int flags;
+
+        long crc;
+
+        long compressedSize;
+
+        long size;
+
+        long offset;
+
+        Entry(String name, int method, int flags, long crc, long compressedSize, long size)
+                throws IOException {
+            this.name = name.getBytes("UTF-8");
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Deflates what the overlay writer encodes into the current entry, closing it does not close
+     * the archive
+     */
+    private class EntryOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            deflate(b, off, len);
+        }
+
+        public void close() throws IOException {
+            // The entry is closed by the KMZWriter
+        }
+    }
+
+    /**
+     * Keeps track of the entry offsets, and keeps the servlet output from being closed
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
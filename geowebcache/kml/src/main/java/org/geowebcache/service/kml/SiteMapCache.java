@@ -0,0 +1,72 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.service.kml;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.BlobStoreListener;
+
+/**
+ * Keeps the result of walking a layer's KML hierarchy for its sitemaps, so that the hierarchy
+ * only has to be walked again once the layer has been truncated.
+ * <p>
+ * Registered as a {@link BlobStoreListener}, a layer is forgotten as soon as one of its KML
+ * tiles is deleted, or the entire layer is. New tiles do not show up in the sitemap until then.
+ * </p>
+ */
+public class SiteMapCache implements BlobStoreListener {
+
+    private final Map<String, KMLSiteMap.SiteMapPages> layers = new HashMap<String, KMLSiteMap.SiteMapPages>();
+
+    KMLSiteMap.SiteMapPages get(String layerName) {
+        synchronized (layers) {
+            return layers.get(layerName);
+        }
+    }
+
+    void put(String layerName, KMLSiteMap.SiteMapPages pages) {
+        synchronized (layers) {
+            layers.put(layerName, pages);
+        }
+    }
+
+    /**
+     * Forgets the sitemaps of the given layer
+     */
+    public void clear(String layerName) {
+        synchronized (layers) {
+            layers.remove(layerName);
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parameters, long x, long y, int z, long blobSize) {
+        // Picked up after the next truncate
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parameters, long x, long y, int z, long blobSize) {
+        if (XMLMime.kml.getFormat().equals(blobFormat)) {
+            clear(layerName);
+        }
+    }
+
+    public void layerDeleted(String layerName) {
+        clear(layerName);
+    }
+}
@@ -0,0 +1,95 @@
+package org.geowebcache.service.kml;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.util.GWCVars;
+
+public class EmptyTileCacheTest extends TestCase {
+
+    private static final String KML = "application/vnd.google-earth.kml+xml";
+
+    public void testRemembersPerLayerAndGridSet() throws Exception {
+        EmptyTileCache cache = new EmptyTileCache(100);
+        long[] gridLoc = { 2, 1, 3 };
+
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, gridLoc));
+        cache.setEmpty("topp:states", "EPSG:4326", KML, gridLoc);
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, gridLoc));
+
+        assertFalse(cache.isEmpty("topp:states", "EPSG:900913", KML, gridLoc));
+        assertFalse(cache.isEmpty("topp:roads", "EPSG:4326", KML, gridLoc));
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", "image/png", gridLoc));
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 2, 1, 4 }));
+    }
+
+    public void testBounded() throws Exception {
+        EmptyTileCache cache = new EmptyTileCache(2);
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 });
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 });
+        // Touch the first one, the second is now the eldest
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }));
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 1, 1 });
+
+        assertEquals(2, cache.size("topp:states"));
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }));
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 }));
+    }
+
+    public void testStorageEventsInvalidate() throws Exception {
+        EmptyTileCache cache = new EmptyTileCache(100);
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 });
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 });
+        cache.setEmpty("topp:roads", "EPSG:4326", KML, new long[] { 1, 0, 1 });
+
+        cache.tileStored("topp:states", "EPSG:4326", KML, null, 0, 0, 1, 100);
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }));
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 }));
+
+        cache.tileDeleted("topp:states", "EPSG:4326", KML, null, 1, 0, 1, 100);
+        assertEquals(0, cache.size("topp:states"));
+
+        cache.layerDeleted("topp:roads");
+        assertEquals(0, cache.size("topp:roads"));
+    }
+
+    public void testExpiresWithTheCache() throws Exception {
+        final long[] now = { 1000000 };
+        EmptyTileCache cache = new EmptyTileCache(100) {
+            long now() {
+                return now[0];
+            }
+        };
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }, 60);
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 },
+                GWCVars.CACHE_NEVER_EXPIRE);
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 1, 1 },
+                GWCVars.CACHE_DISABLE_CACHE);
+        assertEquals(2, cache.size("topp:states"));
+
+        now[0] += 59999;
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }));
+        now[0] += 1;
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 }));
+        assertEquals(1, cache.size("topp:states"));
+
+        now[0] += 1000L * 3600 * 24 * 365;
+        assertTrue(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 1 }));
+        assertFalse(cache.isEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 1, 1 }));
+    }
+
+    public void testTruncateForgetsTheLayer() throws Exception {
+        EmptyTileCache cache = new EmptyTileCache(100);
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 0, 0, 1 });
+        cache.setEmpty("topp:states", "EPSG:4326", KML, new long[] { 1, 0, 5 });
+        cache.setEmpty("topp:roads", "EPSG:4326", KML, new long[] { 1, 0, 1 });
+
+        long[][] bounds = new long[6][];
+        bounds[5] = new long[] { 0, 0, 1, 1, 5 };
+        cache.rangeTruncated(new TileRange("topp:states", "EPSG:4326", 5, 5, bounds,
+                XMLMime.kml, null));
+        assertEquals(0, cache.size("topp:states"));
+        assertEquals(1, cache.size("topp:roads"));
+    }
+}
@@ -0,0 +1,142 @@
+package org.geowebcache.service.kml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.ConveyorKMLTile;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.XMLMime;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+
+public class KMLSiteMapTest extends TestCase {
+
+    private File blobDir;
+
+    private StorageBroker sb;
+
+    private GridSetBroker gsb;
+
+    private TileLayer layer;
+
+    protected void setUp() throws Exception {
+        blobDir = new File(System.getProperty("java.io.tmpdir"), "gwcTestSiteMap"
+                + System.currentTimeMillis());
+        blobDir.mkdirs();
+        sb = new StorageBroker(null, new FileBlobStore(blobDir.getAbsolutePath()));
+        gsb = new GridSetBroker(false, false);
+        layer = KMLDebugGridLayer.getInstance();
+    }
+
+    protected void tearDown() throws Exception {
+        sb.delete(layer.getName());
+        delete(blobDir);
+    }
+
+    public void testOnlyStoredTilesDepthFirst() throws Exception {
+        // West root with two levels below it, the east root is missing
+        // and so is everything below it
+        store(0, 0, 0);
+        store(0, 0, 1);
+        store(1, 1, 1);
+        store(1, 1, 2);
+        store(0, 1, 2);
+        store(2, 2, 2);
+        store(3, 0, 1);
+        store(6, 0, 2);
+
+        KMLSiteMap siteMap = createSiteMap();
+        KMLSiteMap.SiteMapPages pages = siteMap.createPages(layer);
+        assertEquals(1, pages.size());
+
+        List<String> visited = toStrings(pages.iterator(0));
+        assertEquals(Arrays.asList(new String[] { "x0y0z0", "x0y0z1", "x0y1z2", "x1y1z2",
+                "x1y1z1", "x2y2z2" }), visited);
+    }
+
+    public void testSplitIntoPages() throws Exception {
+        store(0, 0, 0);
+        store(1, 0, 0);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 2; y++) {
+                store(x, y, 1);
+            }
+        }
+
+        KMLSiteMap siteMap = createSiteMap();
+        siteMap.setMaxUrls(3);
+        KMLSiteMap.SiteMapPages pages = siteMap.createPages(layer);
+
+        // 10 tiles plus the super overlay, three per page
+        assertEquals(4, pages.size());
+
+        // The first page also holds the super overlay
+        List<String> all = new ArrayList<String>();
+        for (int i = 0; i < pages.size(); i++) {
+            List<String> page = toStrings(pages.iterator(i));
+            all.addAll(page.subList(0, Math.min(page.size(), i == 0 ? 2 : 3)));
+        }
+
+        assertEquals(Arrays.asList(new String[] { "x0y0z0", "x0y0z1", "x1y0z1", "x0y1z1",
+                "x1y1z1", "x1y0z0", "x2y0z1", "x3y0z1", "x2y1z1", "x3y1z1" }), all);
+    }
+
+    public void testCacheForgetsTruncatedLayers() throws Exception {
+        store(0, 0, 0);
+
+        SiteMapCache cache = new SiteMapCache();
+        sb.addBlobStoreListener(cache);
+
+        KMLSiteMap siteMap = createSiteMap();
+        KMLSiteMap.SiteMapPages pages = siteMap.createPages(layer);
+        cache.put(layer.getName(), pages);
+
+        // New tiles do not invalidate
+        store(0, 0, 1);
+        assertSame(pages, cache.get(layer.getName()));
+
+        sb.delete(layer.getName());
+        assertNull(cache.get(layer.getName()));
+    }
+
+    private KMLSiteMap createSiteMap() {
+        ConveyorKMLTile tile = new ConveyorKMLTile(sb, layer.getName(),
+                gsb.WORLD_EPSG4326.getName(), new long[] { -1, -1, -1 }, XMLMime.kml, null,
+                null, null, null);
+        tile.setTileLayer(layer);
+        tile.setHint(KMLService.HINT_SITEMAP_LAYER);
+        return new KMLSiteMap(tile, null, gsb, null);
+    }
+
+    private void store(long x, long y, long z) throws Exception {
+        TileObject to = TileObject.createCompleteTileObject(layer.getName(),
+                new long[] { x, y, z }, gsb.WORLD_EPSG4326.getName(), XMLMime.kml.getFormat(),
+                null, "<kml/>".getBytes());
+        sb.put(to);
+    }
+
+    private List<String> toStrings(Iterator<long[]> iter) {
+        List<String> ret = new ArrayList<String>();
+        while (iter.hasNext()) {
+            ret.add(KMLService.gridLocString(iter.next()));
+        }
+        return ret;
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,86 @@
+package org.geowebcache.service.kml;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.XMLMime;
+
+public class KMZHelperTest extends TestCase {
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    /**
+     * Answers 204 for the tile at 1,0 and 200 for the others
+     */
+    private static class ProbedLayer extends WMSLayer {
+        final AtomicInteger probes = new AtomicInteger();
+
+        ProbedLayer() {
+            super("test:kml", new String[] { "http://localhost/wms" }, null, "test:kml",
+                    Collections.singletonList(XMLMime.kml.getFormat()), null, null,
+                    new int[] { 1, 1 }, null, false);
+        }
+
+        @Override
+        public ConveyorTile getTile(ConveyorTile tile) {
+            probes.incrementAndGet();
+            long[] gridLoc = tile.getTileIndex();
+            tile.setStatus(gridLoc[0] == 1 && gridLoc[1] == 0 ? 204 : 200);
+            return tile;
+        }
+
+        @Override
+        public int getExpireCache(int zoomLevel) {
+            return 3600;
+        }
+    }
+
+    public void testEmptyChildIsNotLinked() throws Exception {
+        checkEmptyChildIsNotLinked(null);
+    }
+
+    public void testEmptyChildIsNotLinkedProbingConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            checkEmptyChildIsNotLinked(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void checkEmptyChildIsNotLinked(ExecutorService executor) throws Exception {
+        ProbedLayer layer = new ProbedLayer();
+        EmptyTileCache emptyTiles = new EmptyTileCache(100);
+
+        long[][] linked = KMZHelper.filterGridLocs(null, layer, GRIDSET, XMLMime.kml,
+                children(), executor, emptyTiles);
+        assertEquals(4, layer.probes.get());
+        assertLinked(linked);
+        assertTrue(emptyTiles.isEmpty(layer.getName(), GRIDSET, XMLMime.kml.getFormat(),
+                new long[] { 1, 0, 3 }));
+
+        // the empty one is known now and not probed again
+        linked = KMZHelper.filterGridLocs(null, layer, GRIDSET, XMLMime.kml, children(),
+                executor, emptyTiles);
+        assertEquals(7, layer.probes.get());
+        assertLinked(linked);
+    }
+
+    private static long[][] children() {
+        return new long[][] { { 0, 0, 3 }, { 1, 0, 3 }, { 0, 1, 3 }, { 1, 1, 3 } };
+    }
+
+    private static void assertLinked(long[][] linked) {
+        assertTrue(Arrays.equals(new long[] { 0, 0, 3 }, linked[0]));
+        assertEquals(-1, linked[1][2]);
+        assertTrue(Arrays.equals(new long[] { 0, 1, 3 }, linked[2]));
+        assertTrue(Arrays.equals(new long[] { 1, 1, 3 }, linked[3]));
+    }
+}
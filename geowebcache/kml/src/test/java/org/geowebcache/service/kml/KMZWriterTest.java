@@ -0,0 +1,162 @@
+package org.geowebcache.service.kml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.util.GzipUtils;
+
+public class KMZWriterTest extends TestCase {
+
+    public void testOverlayAndStoredData() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        ClosingCheckStream out = new ClosingCheckStream();
+        KMZWriter kmz = new KMZWriter(out, Deflater.BEST_SPEED);
+        Writer writer = kmz.startOverlay("x1y2z3");
+        writer.write("<kml>\u00e6\u00f8\u00e5</kml>");
+        kmz.writeData("x1y2z3", "png", data, true);
+        kmz.finish();
+        assertFalse(out.closed);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+
+        ZipEntry ze = zis.getNextEntry();
+        assertEquals("netlinks_x1y2z3.kml", ze.getName());
+        assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+        assertEquals("<kml>\u00e6\u00f8\u00e5</kml>", new String(readEntry(zis), "UTF-8"));
+
+        ze = zis.getNextEntry();
+        assertEquals("data_x1y2z3.png", ze.getName());
+        assertEquals(ZipEntry.STORED, ze.getMethod());
+        assertTrue(Arrays.equals(data, readEntry(zis)));
+
+        assertNull(zis.getNextEntry());
+    }
+
+    public void testDeflatersAreReused() throws Exception {
+        // Run a few archives through, alternating levels, they must all come out intact
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            KMZWriter kmz = new KMZWriter(out, i % 2 == 0 ? Deflater.BEST_COMPRESSION
+                    : Deflater.NO_COMPRESSION);
+            kmz.startOverlay("x0y0z" + i).write("<kml>overlay " + i + "</kml>");
+            kmz.writeData("x0y0z" + i, "kml", ("<kml>data " + i + "</kml>").getBytes(), false);
+            kmz.finish();
+
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals("netlinks_x0y0z" + i + ".kml", zis.getNextEntry().getName());
+            assertEquals("<kml>overlay " + i + "</kml>", new String(readEntry(zis), "UTF-8"));
+            ZipEntry ze = zis.getNextEntry();
+            assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+            assertEquals("<kml>data " + i + "</kml>", new String(readEntry(zis), "UTF-8"));
+        }
+    }
+
+    public void testGzippedData() throws Exception {
+        StringBuilder kml = new StringBuilder("<kml>");
+        for (int i = 0; i < 200; i++) {
+            kml.append("<Placemark><name>" + i + "</name></Placemark>");
+        }
+        kml.append("</kml>");
+        byte[] data = kml.toString().getBytes("UTF-8");
+        byte[] gzip = GzipUtils.compress(data, Deflater.BEST_COMPRESSION);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KMZWriter kmz = new KMZWriter(out, Deflater.DEFAULT_COMPRESSION);
+        kmz.startOverlay("x1y1z1").write("<kml>overlay</kml>");
+        kmz.writeGzippedData("x1y1z1", "kml", gzip);
+        kmz.finish();
+        byte[] archive = out.toByteArray();
+        // The deflate stream is copied, not compressed again
+        assertTrue(archive.length < gzip.length + 300);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(archive));
+        assertEquals("netlinks_x1y1z1.kml", zis.getNextEntry().getName());
+        assertEquals("<kml>overlay</kml>", new String(readEntry(zis), "UTF-8"));
+        ZipEntry ze = zis.getNextEntry();
+        assertEquals("data_x1y1z1.kml", ze.getName());
+        assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+        assertTrue(Arrays.equals(data, readEntry(zis)));
+        assertNull(zis.getNextEntry());
+
+        // The central directory has to agree with the entries
+        File file = File.createTempFile("gwc", ".kmz");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(archive);
+            fos.close();
+            ZipFile zip = new ZipFile(file);
+            try {
+                assertEquals(2, zip.size());
+                ze = zip.getEntry("data_x1y1z1.kml");
+                assertEquals(data.length, ze.getSize());
+                assertEquals(gzip.length - 18, ze.getCompressedSize());
+                assertTrue(Arrays.equals(data, readEntry(zip.getInputStream(ze))));
+                assertEquals("<kml>overlay</kml>", new String(readEntry(zip.getInputStream(zip
+                        .getEntry("netlinks_x1y1z1.kml"))), "UTF-8"));
+            } finally {
+                zip.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReleaseAfterFailedWrite() throws Exception {
+        OutputStream broken = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("client went away");
+            }
+        };
+        KMZWriter kmz = new KMZWriter(broken, Deflater.BEST_SPEED);
+        try {
+            kmz.startOverlay("x0y0z0");
+            fail("the local header should not have been written");
+        } catch (IOException ioe) {
+            // expected
+        }
+        kmz.release();
+        kmz.release();
+
+        // Released once, two writers must not share a deflater
+        Deflater a = GzipUtils.acquireDeflater(Deflater.BEST_SPEED);
+        Deflater b = GzipUtils.acquireDeflater(Deflater.BEST_SPEED);
+        assertTrue(a != b);
+        GzipUtils.releaseDeflater(a);
+        GzipUtils.releaseDeflater(b);
+    }
+
+    private byte[] readEntry(InputStream zis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int read;
+        while ((read = zis.read(buf)) != -1) {
+            bytes.write(buf, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class ClosingCheckStream extends ByteArrayOutputStream {
+        boolean closed = false;
+
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+}
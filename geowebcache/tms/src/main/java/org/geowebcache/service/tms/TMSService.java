@@ -31,6 +31,7 @@ import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
@@ -51,6 +52,8 @@ public class TMSService extends Service {
     
     private RuntimeStats stats;
     
+    private CapabilitiesCache capabilitiesCache;
+    
     public TMSService(StorageBroker sb, TileLayerDispatcher tld, GridSetBroker gsb, RuntimeStats stats) {
         super(SERVICE_TMS);
         this.sb = sb;
@@ -62,6 +65,15 @@ public class TMSService extends Service {
     public void setBaseURL(String baseUrl) {
         this.baseUrl = baseUrl;
     }
+    
+    /**
+     * Keeps rendered TileMapService and TileMap documents until the layers change
+     * 
+     * @param capabilitiesCache
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
 
     public ConveyorTile getConveyor(HttpServletRequest request,
             HttpServletResponse response) throws GeoWebCacheException {
@@ -139,31 +151,47 @@ public class TMSService extends Service {
             base = reqUrl.substring(0, idx);
         }
         
-        TMSDocumentFactory tdf = new TMSDocumentFactory(tld,gsb, base);
-        
-        String ret = null;
+        final TMSDocumentFactory tdf = new TMSDocumentFactory(tld,gsb, base);
         
         if(paramsLength < 2) {
             throw new GeoWebCacheException("Path is too short to be a valid TMS path");
-        } else if(paramsLength == 2) {
+        }
+        
+        CapabilitiesCache.DocumentGenerator generator;
+        
+        if(paramsLength == 2) {
             String version = params[1];
             if(! version.equals("1.0.0")) {
                 throw new GeoWebCacheException("Unknown version " + version + ", only 1.0.0 is supported.");
             } else {
-                ret = tdf.getTileMapServiceDoc();
+                generator = new CapabilitiesCache.DocumentGenerator() {
+                    public String generate() {
+                        return tdf.getTileMapServiceDoc();
+                    }
+                };
             }
         } else {
             String layerNameAndSRS = params[2];
             String layerAtSRS = ServletUtils.URLDecode(layerNameAndSRS, conv.servletReq.getCharacterEncoding());
             String[] layerSRSFormatExtension = layerAtSRS.split("@");
             
-            TileLayer tl = tld.getTileLayer(layerSRSFormatExtension[0]);
-            GridSubset gridSub = tl.getGridSubset(layerSRSFormatExtension[1]);
-            MimeType mimeType =  MimeType.createFromExtension(layerSRSFormatExtension[2]);
-            ret = tdf.getTileMapDoc(tl, gridSub, gsb, mimeType);
+            final TileLayer tl = tld.getTileLayer(layerSRSFormatExtension[0]);
+            final GridSubset gridSub = tl.getGridSubset(layerSRSFormatExtension[1]);
+            final MimeType mimeType =  MimeType.createFromExtension(layerSRSFormatExtension[2]);
+            generator = new CapabilitiesCache.DocumentGenerator() {
+                public String generate() {
+                    return tdf.getTileMapDoc(tl, gridSub, gsb, mimeType);
+                }
+            };
+        }
+        
+        if(capabilitiesCache != null) {
+            String key = CapabilitiesCache.key(SERVICE_TMS, base, params);
+            capabilitiesCache.writeResponse(key, generator, "text/xml", conv.servletReq, conv.servletResp, stats);
+            return;
         }
         
-        byte[] data = ret.getBytes();
+        byte[] data = generator.generate().getBytes();
         stats.log(data.length, CacheResult.OTHER);
         
         conv.servletResp.setStatus(200);
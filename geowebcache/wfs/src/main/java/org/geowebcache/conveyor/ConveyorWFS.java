@@ -59,6 +59,13 @@ public class ConveyorWFS extends Conveyor {
         stObj.setBlobFormat(mimeType);
     }
     
+    /**
+     * @return how the response is encoded in storage, and so in {@link #getInputStream()}
+     */
+    public String getContentEncoding() {
+        return stObj.getBlobEncoding();
+    }
+    
     public boolean retrieve(int maxAge) throws GeoWebCacheException {
         try {
             return storageBroker.get(stObj);
@@ -23,6 +23,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -35,6 +36,7 @@ import org.geowebcache.conveyor.ConveyorWFS;
 import org.geowebcache.service.Service;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.util.ApplicationContextProvider;
+import org.geowebcache.util.GzipUtils;
 import org.geowebcache.util.ServletUtils;
 
 public class WFSService extends Service {
@@ -195,6 +197,14 @@ public class WFSService extends Service {
         OutputStream os = null;
         try {
             is = conv.getInputStream();
+            if (GzipUtils.GZIP.equals(conv.getContentEncoding())) {
+                response.setHeader("Vary", "Accept-Encoding");
+                if (GzipUtils.acceptsGzip(conv.servletReq)) {
+                    response.setHeader("Content-Encoding", GzipUtils.GZIP);
+                } else {
+                    is = new GZIPInputStream(is);
+                }
+            }
             os = response.getOutputStream();
 
             byte[] buffer = new byte[2048];
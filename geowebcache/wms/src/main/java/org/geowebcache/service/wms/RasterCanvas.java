@@ -0,0 +1,461 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.service.wms;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.ImagingOpException;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.util.RasterPool;
+
+/**
+ * The canvas the {@link WMSTileFuser} composites source tiles onto.
+ * <p>
+ * Tiles do not overlap, so rather than drawing them through Java2D the canvas copies their
+ * rasters straight into its own. The canvas raster is allocated when the first tile arrives
+ * and, whenever possible, uses the tile's own color model, so a layer with paletted tiles gets
+ * an 8-bit canvas rather than a 32-bit one. If a later tile does not share that color model,
+ * or the native model cannot represent the background, the canvas falls back to packed RGB(A)
+ * integers and converts pixels row by row.
+ * </p>
+ * <p>
+ * Rasters come from, and go back to, a {@link RasterPool} so that consecutive requests of the
+ * same size do not allocate new canvases.
+ * </p>
+ */
+class RasterCanvas {
+    private static Log log = LogFactory.getLog(RasterCanvas.class);
+
+    final int width;
+
+    final int height;
+
+    // Opaque background, null means the canvas is transparent
+    final Color bgColor;
+
+    // Whether source tiles cover every pixel of the canvas
+    final boolean covered;
+
+    // Whether the output format can cope with paletted / custom rasters
+    final boolean nativeOutput;
+
+    final RasterPool pool;
+
+    ColorModel cm;
+
+    WritableRaster raster;
+
+    // The scaled version, if any
+    private ColorModel scaledCm;
+
+    private WritableRaster scaledRaster;
+
+    // Reused for pixel conversions
+    private int[] rowBuf;
+
+    private int[] dstRowBuf;
+
+    /**
+     * @param width the canvas width
+     * @param height the canvas height
+     * @param bgColor the opaque background color, or null for a transparent canvas
+     * @param covered true if the source tiles cover every pixel of the canvas
+     * @param nativeOutput true if the output format can encode paletted and other non RGB rasters
+     * @param pool where rasters are taken from and returned to, may be null
+     */
+    RasterCanvas(int width, int height, Color bgColor, boolean covered, boolean nativeOutput,
+            RasterPool pool) {
+        this.width = width;
+        this.height = height;
+        this.bgColor = bgColor;
+        this.covered = covered;
+        this.nativeOutput = nativeOutput;
+        this.pool = pool;
+    }
+
+    /**
+     * Copies the given part of a tile onto the canvas
+     *
+     * @param tile the decoded tile
+     * @param sx left edge of the part of the tile that is used
+     * @param sy top edge of the part of the tile that is used
+     * @param w width of the used part
+     * @param h height of the used part
+     * @param dx where on the canvas the used part goes
+     * @param dy where on the canvas the used part goes
+     */
+    void draw(BufferedImage tile, int sx, int sy, int w, int h, int dx, int dy) {
+        if (raster == null) {
+            allocate(tile.getColorModel());
+        }
+
+        if (!sameModel(cm, tile.getColorModel())) {
+            if (!(cm instanceof DirectColorModel)) {
+                promote();
+            }
+            drawPixels(tile, sx, sy, w, h, dx, dy);
+            return;
+        }
+
+        Raster src = tile.getRaster().createChild(sx, sy, w, h, 0, 0, null);
+        if (bgColor == null || tile.getTransparency() == Transparency.OPAQUE) {
+            // Nothing to blend with, straight copy of the data elements
+            raster.setDataElements(dx, dy, src);
+        } else {
+            drawPixels(tile, sx, sy, w, h, dx, dy);
+        }
+    }
+
+    /**
+     * @return the canvas as an image, backed by the canvas raster
+     */
+    BufferedImage getImage() {
+        if (raster == null) {
+            // Nothing was drawn
+            allocate(null);
+        }
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Resamples the canvas to the given size in a single pass. Paletted canvases always use
+     * nearest neighbour, interpolating palette indexes makes no sense.
+     *
+     * @param reqWidth the requested width
+     * @param reqHeight the requested height
+     * @param highQuality use bilinear rather than nearest neighbour interpolation
+     * @return the resampled image, or the canvas itself if no resampling is needed
+     */
+    BufferedImage scale(int reqWidth, int reqHeight, boolean highQuality) {
+        BufferedImage src = getImage();
+        if (reqWidth == width && reqHeight == height) {
+            return src;
+        }
+
+        double scaleX = ((double) reqWidth) / width;
+        double scaleY = ((double) reqHeight) / height;
+
+        log.debug("AffineTransform: " + scaleX + "," + scaleY);
+
+        AffineTransform affineTrans = AffineTransform.getScaleInstance(scaleX, scaleY);
+
+        boolean bilinear = highQuality && !(cm instanceof IndexColorModel);
+
+        scaledCm = cm;
+        scaledRaster = acquire(cm, reqWidth, reqHeight);
+        // Bilinear filtering may leave the edges alone, and a pooled raster holds the last
+        // request's pixels
+        if (pool != null) {
+            clear(scaledCm, scaledRaster);
+        }
+        BufferedImage dst = new BufferedImage(cm, scaledRaster, cm.isAlphaPremultiplied(), null);
+
+        try {
+            AffineTransformOp op = new AffineTransformOp(affineTrans,
+                    bilinear ? AffineTransformOp.TYPE_BILINEAR
+                            : AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+            filter(op, src, dst);
+        } catch (ImagingOpException ioe) {
+            // Not all layouts are supported by the native code, let Java2D deal with it
+            log.debug("AffineTransformOp failed, falling back to Java2D: " + ioe.getMessage());
+            Graphics2D gfx = dst.createGraphics();
+            gfx.setComposite(AlphaComposite.Src);
+            if (bilinear) {
+                gfx.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            gfx.drawRenderedImage(src, affineTrans);
+            gfx.dispose();
+        }
+
+        return dst;
+    }
+
+    /**
+     * Resamples with the native code, which does not handle every raster layout
+     */
+    void filter(AffineTransformOp op, BufferedImage src, BufferedImage dst) {
+        op.filter(src, dst);
+    }
+
+    /**
+     * Returns the rasters to the pool, the canvas must not be used afterwards
+     */
+    void dispose() {
+        if (pool != null) {
+            pool.release(cm, raster);
+            pool.release(scaledCm, scaledRaster);
+        }
+        raster = null;
+        scaledRaster = null;
+    }
+
+    /**
+     * Picks the color model of the canvas, based on that of the first tile
+     */
+    private void allocate(ColorModel tileCm) {
+        if (tileCm != null && canUseNative(tileCm)) {
+            cm = tileCm;
+            raster = acquire(cm, width, height);
+            // A pooled raster holds whatever the last canvas drew, and a tile that fails to
+            // decode leaves even a covered canvas with a hole
+            if (!covered || pool != null) {
+                clearNative(cm, raster);
+            }
+            return;
+        }
+
+        if (bgColor == null) {
+            cm = ColorModel.getRGBdefault();
+        } else {
+            cm = new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+        }
+        raster = acquire(cm, width, height);
+        clearPacked(raster);
+    }
+
+    /**
+     * Whether the canvas can use the tiles' own color model. Areas that are not covered by any
+     * tile must be representable, as transparent pixels or a transparent palette entry, and
+     * anything but opaque tiles on an opaque background would require blending.
+     */
+    private boolean canUseNative(ColorModel tileCm) {
+        boolean indexed = tileCm instanceof IndexColorModel;
+        if (!indexed && !(tileCm instanceof ComponentColorModel)) {
+            return false;
+        }
+
+        if (tileCm.getTransferType() != DataBuffer.TYPE_BYTE) {
+            return false;
+        }
+
+        if (!nativeOutput && (indexed || tileCm.hasAlpha())) {
+            return false;
+        }
+
+        if (bgColor != null) {
+            return covered && tileCm.getTransparency() == Transparency.OPAQUE;
+        }
+
+        if (covered) {
+            return true;
+        }
+
+        if (indexed) {
+            return transparentIndex((IndexColorModel) tileCm) >= 0;
+        }
+
+        return tileCm.hasAlpha();
+    }
+
+    /**
+     * Fills a raster of the canvas with the background, or transparent pixels
+     */
+    private void clear(ColorModel rcm, WritableRaster r) {
+        if (rcm instanceof DirectColorModel) {
+            clearPacked(r);
+        } else {
+            clearNative(rcm, r);
+        }
+    }
+
+    /**
+     * Fills a native raster with transparent pixels
+     */
+    private void clearNative(ColorModel rcm, WritableRaster r) {
+        int fill = 0;
+        if (rcm instanceof IndexColorModel) {
+            fill = Math.max(0, transparentIndex((IndexColorModel) rcm));
+        }
+
+        int w = r.getWidth();
+        int h = r.getHeight();
+        int bands = r.getNumBands();
+        int[] row = new int[w];
+        Arrays.fill(row, fill);
+        for (int b = 0; b < bands; b++) {
+            for (int y = 0; y < h; y++) {
+                r.setSamples(0, y, w, 1, b, row);
+            }
+        }
+    }
+
+    /**
+     * Fills a packed raster with the background, or transparent pixels
+     */
+    private void clearPacked(WritableRaster r) {
+        int fill = 0;
+        if (bgColor != null) {
+            fill = bgColor.getRGB();
+        }
+        int[] data = ((DataBufferInt) r.getDataBuffer()).getData();
+        Arrays.fill(data, fill);
+    }
+
+    /**
+     * Converts the native canvas to packed integers, because a tile with a different color
+     * model showed up
+     */
+    private void promote() {
+        log.debug("Tiles do not share the same color model, promoting canvas to packed RGB(A)");
+
+        ColorModel oldCm = cm;
+        WritableRaster oldRaster = raster;
+        BufferedImage old = new BufferedImage(oldCm, oldRaster, oldCm.isAlphaPremultiplied(), null);
+
+        allocate(null);
+
+        int[] row = rowBuffer();
+        for (int y = 0; y < height; y++) {
+            old.getRGB(0, y, width, 1, row, 0, width);
+            raster.setDataElements(0, y, width, 1, row);
+        }
+
+        if (pool != null) {
+            pool.release(oldCm, oldRaster);
+        }
+    }
+
+    /**
+     * Converts the tile pixels to packed integers, blending them with the background where
+     * needed
+     */
+    private void drawPixels(BufferedImage tile, int sx, int sy, int w, int h, int dx, int dy) {
+        int[] row = rowBuffer();
+        boolean blend = bgColor != null && tile.getTransparency() != Transparency.OPAQUE;
+
+        for (int y = 0; y < h; y++) {
+            tile.getRGB(sx, sy + y, w, 1, row, 0, w);
+            if (blend) {
+                if (dstRowBuf == null) {
+                    dstRowBuf = new int[width];
+                }
+                raster.getDataElements(dx, dy + y, w, 1, dstRowBuf);
+                for (int x = 0; x < w; x++) {
+                    row[x] = blend(row[x], dstRowBuf[x]);
+                }
+            }
+            raster.setDataElements(dx, dy + y, w, 1, row);
+        }
+    }
+
+    /**
+     * Source over an opaque destination
+     */
+    private static int blend(int src, int dst) {
+        int a = src >>> 24;
+        if (a == 255) {
+            return src;
+        } else if (a == 0) {
+            return dst;
+        }
+        int na = 255 - a;
+        int r = (((src >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * na + 127) / 255;
+        int g = (((src >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * na + 127) / 255;
+        int b = ((src & 0xff) * a + (dst & 0xff) * na + 127) / 255;
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private int[] rowBuffer() {
+        if (rowBuf == null) {
+            rowBuf = new int[width];
+        }
+        return rowBuf;
+    }
+
+    private WritableRaster acquire(ColorModel acm, int w, int h) {
+        if (pool == null) {
+            return acm.createCompatibleWritableRaster(w, h);
+        }
+        return pool.acquire(acm, w, h);
+    }
+
+    /**
+     * @return the first fully transparent palette entry, or -1
+     */
+    static int transparentIndex(IndexColorModel icm) {
+        if (icm.getTransparentPixel() >= 0) {
+            return icm.getTransparentPixel();
+        }
+        if (icm.hasAlpha()) {
+            int size = icm.getMapSize();
+            for (int i = 0; i < size; i++) {
+                if (icm.getAlpha(i) == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether rasters of the two color models can be copied into each other without conversion
+     */
+    static boolean sameModel(ColorModel a, ColorModel b) {
+        if (a == b) {
+            return true;
+        }
+
+        if (a.getClass() != b.getClass() || a.getTransferType() != b.getTransferType()
+                || a.getNumComponents() != b.getNumComponents()
+                || a.getPixelSize() != b.getPixelSize() || a.hasAlpha() != b.hasAlpha()
+                || a.isAlphaPremultiplied() != b.isAlphaPremultiplied()
+                || !a.getColorSpace().equals(b.getColorSpace())) {
+            return false;
+        }
+
+        if (a instanceof IndexColorModel) {
+            IndexColorModel ia = (IndexColorModel) a;
+            IndexColorModel ib = (IndexColorModel) b;
+            if (ia.getMapSize() != ib.getMapSize()
+                    || ia.getTransparentPixel() != ib.getTransparentPixel()) {
+                return false;
+            }
+            int[] rgbA = new int[ia.getMapSize()];
+            int[] rgbB = new int[ib.getMapSize()];
+            ia.getRGBs(rgbA);
+            ib.getRGBs(rgbB);
+            return Arrays.equals(rgbA, rgbB);
+        }
+
+        if (a instanceof DirectColorModel) {
+            DirectColorModel da = (DirectColorModel) a;
+            DirectColorModel db = (DirectColorModel) b;
+            return da.getRedMask() == db.getRedMask() && da.getGreenMask() == db.getGreenMask()
+                    && da.getBlueMask() == db.getBlueMask()
+                    && da.getAlphaMask() == db.getAlphaMask();
+        }
+
+        return true;
+    }
+}
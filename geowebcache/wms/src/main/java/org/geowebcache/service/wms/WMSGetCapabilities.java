@@ -43,6 +43,7 @@ import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.util.ServletUtils;
 
 public class WMSGetCapabilities {
@@ -67,6 +68,21 @@ public class WMSGetCapabilities {
         }
     }
     
+    /**
+     * Writes the document from the cache, rendering it only if necessary
+     */
+    protected void writeResponse(CapabilitiesCache cache, HttpServletRequest request, 
+            HttpServletResponse response) throws GeoWebCacheException {
+        String key = CapabilitiesCache.key(WMSService.SERVICE_WMS, urlStr, 
+                new String[] { Boolean.toString(includeVendorSpecific) });
+        
+        cache.writeResponse(key, new CapabilitiesCache.DocumentGenerator() {
+            public String generate() {
+                return generateGetCapabilities();
+            }
+        }, "application/vnd.ogc.wms_xml", request, response, null);
+    }
+    
     protected void writeResponse(HttpServletResponse response) {
         
         byte[] data = generateGetCapabilities().getBytes();
@@ -18,6 +18,8 @@
 package org.geowebcache.service.wms;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -37,11 +39,14 @@ import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.layer.wms.WMSSourceHelper;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.Service;
 import org.geowebcache.service.ServiceException;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.util.RasterPool;
 import org.geowebcache.util.ServletUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 public class WMSService extends Service {
     public static final String SERVICE_WMS = "wms";
@@ -63,6 +68,19 @@ public class WMSService extends Service {
     
     private RuntimeStats stats;
     
+    // Number of threads fetching source tiles when recombining
+    private int tileFuserThreads = 2 * Runtime.getRuntime().availableProcessors();
+    
+    private ExecutorService tileFuserExecutor;
+    
+    // Use bilinear interpolation when scaling recombined tiles?
+    private boolean tileFuserHighQuality = false;
+    
+    // Canvases for recombined tiles, reused across requests of the same size
+    private final RasterPool tileFuserRasterPool = new RasterPool(16, 2);
+    
+    private CapabilitiesCache capabilitiesCache;
+    
     public WMSService(StorageBroker sb, TileLayerDispatcher tld, RuntimeStats stats) {
         super(SERVICE_WMS);
         
@@ -197,9 +215,16 @@ public class WMSService extends Service {
         if (tile.getHint() != null) {
             if(tile.getHint().equalsIgnoreCase("getcapabilities")) {
                 WMSGetCapabilities wmsCap = new WMSGetCapabilities(tld, tile.servletReq);
-                wmsCap.writeResponse(tile.servletResp);
+                if(capabilitiesCache != null) {
+                    wmsCap.writeResponse(capabilitiesCache, tile.servletReq, tile.servletResp);
+                } else {
+                    wmsCap.writeResponse(tile.servletResp);
+                }
             } else if(tile.getHint().equalsIgnoreCase("getmap")) {
                 WMSTileFuser wmsFuser = new WMSTileFuser(tld, sb, tile.servletReq);
+                wmsFuser.setExecutor(getTileFuserExecutor());
+                wmsFuser.setRasterPool(tileFuserRasterPool);
+                wmsFuser.setHighQualityScaling(tileFuserHighQuality);
                 try {
                     wmsFuser.writeResponse(tile.servletResp, stats);
                 } catch (IOException e) {
@@ -311,6 +336,55 @@ public class WMSService extends Service {
         }
     }
     
+    /**
+     * Sets the maximum number of threads used to fetch and decode source tiles
+     * when recombining tiles for non-tiling clients. Use 1 or less to fetch them
+     * sequentially on the request thread.
+     */
+    public void setTileFuserThreads(String threads) {
+        this.tileFuserThreads = Integer.parseInt(threads);
+        log.info("Will use up to " + tileFuserThreads + " threads to recombine tiles.");
+    }
+    
+    /**
+     * Whether recombined tiles are resampled with bilinear interpolation, rather
+     * than nearest neighbour, when the result has to be scaled to the requested size.
+     */
+    public void setTileFuserHighQuality(String trueFalse) {
+        this.tileFuserHighQuality = Boolean.parseBoolean(trueFalse);
+    }
+    
+    private synchronized ExecutorService getTileFuserExecutor() {
+        if(tileFuserThreads <= 1) {
+            return null;
+        }
+        
+        if(tileFuserExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("gwc.WMSTileFuser-");
+            tf.setDaemon(true);
+            tileFuserExecutor = Executors.newFixedThreadPool(tileFuserThreads, tf);
+        }
+        return tileFuserExecutor;
+    }
+    
+    /**
+     * Stops the threads recombining tiles, called when the application context is closed
+     */
+    public synchronized void destroy() {
+        if(tileFuserExecutor != null) {
+            tileFuserExecutor.shutdown();
+        }
+    }
+    
+    /**
+     * Keeps rendered capabilities documents until the layers change
+     * 
+     * @param capabilitiesCache
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+    
     public void setProxyRequests(String trueFalse) {
         this.proxyRequests = Boolean.parseBoolean(trueFalse);
         if(this.proxyRequests) {
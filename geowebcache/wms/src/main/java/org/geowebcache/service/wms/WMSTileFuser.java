@@ -17,16 +17,26 @@
 package org.geowebcache.service.wms;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,6 +51,7 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
+import org.geowebcache.layer.GridLocObj;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.wms.WMSLayer;
@@ -49,6 +60,7 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.util.AccountingOutputStream;
+import org.geowebcache.util.RasterPool;
 import org.geowebcache.util.ServletUtils;
 
 /*
@@ -106,9 +118,25 @@ public class WMSTileFuser {
     
     double[] boundOfs = new double[4];
     
+    // The source tiles, grouped by metatile
+    Collection<List<TilePlacement>> metaTiles;
+    
+    // Whether the source tiles cover the entire canvas
+    boolean canvasCovered;
+    
+    RasterCanvas rasterCanvas;
+    
+    // The final image
     BufferedImage canvas;
     
-    Graphics2D gfx;
+    // Used to fetch and decode source tiles concurrently, null means sequentially
+    ExecutorService executor;
+    
+    // Where canvas rasters come from, may be null
+    RasterPool rasterPool;
+    
+    // Whether to use bilinear rather than nearest neighbour interpolation
+    boolean highQualityScaling = false;
         
     protected WMSTileFuser(TileLayerDispatcher tld, StorageBroker sb, HttpServletRequest servReq) 
     throws GeoWebCacheException {
@@ -169,6 +197,29 @@ public class WMSTileFuser {
         this.reqModStrs = new String[2];
     }
     
+    /**
+     * Sets the executor used to fetch and decode the source tiles. Without one, all tiles are
+     * fetched sequentially on the request thread.
+     */
+    protected void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Sets the pool that canvas rasters are taken from and returned to
+     */
+    protected void setRasterPool(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+    
+    /**
+     * Whether the canvas is resampled with bilinear interpolation, when it has to be scaled.
+     * Paletted canvases always use nearest neighbour.
+     */
+    protected void setHighQualityScaling(boolean highQualityScaling) {
+        this.highQualityScaling = highQualityScaling;
+    }
+    
     protected void determineSourceResolution() {
         xResolution = reqBounds.getWidth() / reqWidth;
         yResolution = reqBounds.getHeight() / reqHeight;
@@ -255,30 +306,39 @@ public class WMSTileFuser {
             transparent = wmsLayer.getTransparent();
         }
         
-        int canvasType;
-        if(bgColor == null && transparent && 
-                (outputFormat.supportsAlphaBit() || outputFormat.supportsAlphaChannel())) {
-            canvasType = BufferedImage.TYPE_INT_ARGB;
-        } else {
-            canvasType = BufferedImage.TYPE_INT_RGB;
+        if(! (bgColor == null && transparent && 
+                (outputFormat.supportsAlphaBit() || outputFormat.supportsAlphaChannel()))) {
             if(bgColor == null) {
                 bgColor = Color.WHITE;
             }       
         }
         
-        // Create the actual canvas and graphics object
-        canvas = new BufferedImage(canvasSize[0], canvasSize[1], canvasType);
-        gfx = (Graphics2D) canvas.getGraphics();
-    
-        if(bgColor != null) {
-            gfx.setColor(bgColor);
-            gfx.fillRect(0,0,canvasSize[0], canvasSize[1]);
-        }
+        // The raster itself is allocated once the first tile shows us its color model
+        boolean nativeOutput = outputFormat.getInternalName().equals("png");
+        rasterCanvas = new RasterCanvas(canvasSize[0], canvasSize[1], bgColor, 
+                canvasCovered, nativeOutput, rasterPool);
     }
     
-    protected void renderCanvas() 
-    throws OutsideCoverageException, GeoWebCacheException, IOException {
-        //Now we loop over all the relevant tiles and write them to the canvas,
+    /**
+     * Works out which source tiles are needed, where each of them goes on the canvas and which
+     * part of it is used. Tiles are grouped by the metatile they belong to, so that a single
+     * worker handles all the tiles of one metatile and only one backend request is made for it.
+     */
+    protected Collection<List<TilePlacement>> planCanvas() {
+        Map<GridLocObj, List<TilePlacement>> metaTileMap = new LinkedHashMap<GridLocObj, List<TilePlacement>>();
+        
+        // Any padding means part of the canvas is left blank
+        canvasCovered = canvOfs[0] <= 0 && canvOfs[1] <= 0 && canvOfs[2] <= 0 && canvOfs[3] <= 0;
+
+        int[] metaFactors = layer.getMetaTilingFactors();
+        int metaX = 1;
+        int metaY = 1;
+        if (metaFactors != null && metaFactors.length == 2) {
+            metaX = Math.max(1, metaFactors[0]);
+            metaY = Math.max(1, metaFactors[1]);
+        }
+
+        //Now we loop over all the relevant tiles and work out their placement,
         //Starting at the bottom, moving to the right and up
         long starty = srcRectangle[1];
         for (long gridy = starty; gridy <= srcRectangle[3]; gridy++) {
@@ -314,21 +374,6 @@ public class WMSTileFuser {
 
                 long[] gridLoc = { gridx, gridy, srcIdx };
                 
-                ConveyorTile tile = new ConveyorTile(sb, layer.getName(), gridSubset.getName(), 
-                        gridLoc, ImageMime.png, reqModStrs[0], reqModStrs[1], null, null);
-                
-                // Check whether this tile is to be rendered at all
-                try {
-                    layer.applyRequestFilters(tile);
-                } catch (RequestFilterException e) {
-                    log.debug(e.getMessage());
-                    continue;
-                }
-                
-                layer.getTile(tile);
-                
-                BufferedImage tileImg = ImageIO.read(new ByteArrayInputStream(tile.getContent()));
-                
                 int tilex = 0;
                 int canvasx = (int) (gridx - startx)*gridSubset.getTileWidth();
                 int tileWidth = gridSubset.getTileWidth();
@@ -356,64 +401,179 @@ public class WMSTileFuser {
                 }
                 
                 // TODO We should really ensure we can never get here
-                if(tileWidth == 0|| tileHeight == 0) {
+                if(tileWidth <= 0 || tileHeight <= 0) {
                     log.debug("tileWidth: " + tileWidth + " tileHeight: " + tileHeight);
+                    canvasCovered = false;
                     continue;
                 }
                 
-                // Cut down the tile to the part we want
-                if(tileWidth != gridSubset.getTileWidth() || tileHeight != gridSubset.getTileHeight()) {
-                    log.debug("tileImg.getSubimage("+tilex+","+tiley+","+tileWidth+","+tileHeight+")");
-                    tileImg = tileImg.getSubimage(
-                            tilex,
-                            tiley,
-                            tileWidth,
-                            tileHeight
-                            );
+                ConveyorTile tile = new ConveyorTile(sb, layer.getName(), gridSubset.getName(), 
+                        gridLoc, ImageMime.png, reqModStrs[0], reqModStrs[1], null, null);
+                
+                // Check whether this tile is to be rendered at all
+                try {
+                    layer.applyRequestFilters(tile);
+                } catch (RequestFilterException e) {
+                    log.debug(e.getMessage());
+                    canvasCovered = false;
+                    continue;
                 }
                 
-                // Render the tile on the big canvas
-                log.debug("drawImage(subtile,"+canvasx+","+canvasy+",null) " + Arrays.toString(gridLoc));                
-                gfx.drawImage(
-                        tileImg, 
-                        canvasx, 
-                        canvasy,
-                        null); // imageObserver
+                long[] metaLoc = { gridx - (gridx % metaX), gridy - (gridy % metaY), srcIdx };
+                GridLocObj metaGlo = new GridLocObj(metaLoc, Integer.MAX_VALUE);
+                
+                List<TilePlacement> placements = metaTileMap.get(metaGlo);
+                if(placements == null) {
+                    placements = new ArrayList<TilePlacement>(metaX * metaY);
+                    metaTileMap.put(metaGlo, placements);
+                }
+                
+                placements.add(new TilePlacement(tile, gridLoc, canvasx, canvasy, 
+                        tilex, tiley, tileWidth, tileHeight));
             }
         }
         
-        gfx.dispose();
+        metaTiles = metaTileMap.values();
+        return metaTiles;
     }
     
-    protected void scaleRaster() {
-        if(canvasSize[0] != reqWidth || canvasSize[1] != reqHeight) {
-            BufferedImage preTransform = canvas;
+    protected void renderCanvas() 
+    throws OutsideCoverageException, GeoWebCacheException, IOException {
+        if(executor == null || metaTiles.size() < 2) {
+            Iterator<List<TilePlacement>> iter = metaTiles.iterator();
+            while(iter.hasNext()) {
+                drawTiles(fetchTiles(iter.next()));
+            }
+        } else {
+            ExecutorCompletionService<List<TilePlacement>> completion = 
+                new ExecutorCompletionService<List<TilePlacement>>(executor);
+            
+            List<Future<List<TilePlacement>>> futures = 
+                new ArrayList<Future<List<TilePlacement>>>(metaTiles.size());
+            
+            Iterator<List<TilePlacement>> iter = metaTiles.iterator();
+            while(iter.hasNext()) {
+                final List<TilePlacement> placements = iter.next();
+                futures.add(completion.submit(new Callable<List<TilePlacement>>() {
+                    public List<TilePlacement> call() throws Exception {
+                        return fetchTiles(placements);
+                    }
+                }));
+            }
             
-            canvas = new BufferedImage(reqWidth, reqHeight, preTransform.getType());
+            // Composite on this thread, in whatever order the workers finish
+            try {
+                for(int i = 0; i < futures.size(); i++) {
+                    drawTiles(completion.take().get());
+                }
+            } catch (InterruptedException ie) {
+                throw new GeoWebCacheException("Interrupted while waiting for source tiles");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if(cause instanceof GeoWebCacheException) {
+                    throw (GeoWebCacheException) cause;
+                } else if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new GeoWebCacheException(cause);
+            } finally {
+                // Only those not started yet, interrupting a fetch could abort a metatile
+                // request that other requests are waiting on
+                Iterator<Future<List<TilePlacement>>> fIter = futures.iterator();
+                while(fIter.hasNext()) {
+                    fIter.next().cancel(false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Fetches and decodes the tiles of one metatile. The first tile may have to go to the
+     * backend, the remaining ones are then normally served from the cache.
+     * 
+     * @param placements the tiles of a single metatile
+     * @return the same list, with the images set
+     */
+    protected List<TilePlacement> fetchTiles(List<TilePlacement> placements) 
+    throws OutsideCoverageException, GeoWebCacheException, IOException {
+        Iterator<TilePlacement> iter = placements.iterator();
+        while(iter.hasNext()) {
+            TilePlacement placement = iter.next();
+            
+            ConveyorTile tile = placement.tile;
+            
+            layer.getTile(tile);
+            
+            placement.img = ImageIO.read(new ByteArrayInputStream(tile.getContent()));
+            
+            // The decoded image is all we need from here on
+            tile.setContent(null);
+        }
+        
+        return placements;
+    }
+    
+    /**
+     * Renders the used part of each tile on the big canvas, only called from the request thread
+     */
+    private void drawTiles(List<TilePlacement> placements) {
+        Iterator<TilePlacement> iter = placements.iterator();
+        while(iter.hasNext()) {
+            TilePlacement placement = iter.next();
+            if(placement.img == null) {
+                continue;
+            }
             
-            Graphics2D gfx = canvas.createGraphics();
-            AffineTransform affineTrans =
-                AffineTransform.getScaleInstance(
-                        ((double) reqWidth)/preTransform.getWidth(),
-                        ((double) reqHeight)/preTransform.getHeight() );
+            log.debug("draw(subtile,"+placement.canvasx+","+placement.canvasy+") " 
+                    + Arrays.toString(placement.gridLoc));
             
-            log.debug("AffineTransform: " 
-                    + (((double) reqWidth)/preTransform.getWidth()) + "," + 
-                    + (((double) reqHeight)/preTransform.getHeight()) 
-            );
+            // Copy straight from the source rectangle, no need to cut out a subimage first
+            rasterCanvas.draw(
+                    placement.img,
+                    placement.tilex,
+                    placement.tiley,
+                    placement.width,
+                    placement.height,
+                    placement.canvasx,
+                    placement.canvasy);
             
-            gfx.drawRenderedImage(preTransform,affineTrans);
-            gfx.dispose();
+            // Let the decoded tile go as soon as possible
+            placement.img = null;
         }
     }
     
+    protected void scaleRaster() {
+        canvas = rasterCanvas.scale(reqWidth, reqHeight, highQualityScaling);
+    }
+    
     protected void writeResponse(HttpServletResponse response, RuntimeStats stats) 
     throws IOException, OutsideCoverageException, GeoWebCacheException {
         determineSourceResolution();
         determineCanvasLayout();
+        planCanvas();
         createCanvas();
-        renderCanvas();
-        scaleRaster();
+        try {
+            renderCanvas();
+            scaleRaster();
+            writeCanvas(response, stats);
+        } finally {
+            rasterCanvas.dispose();
+        }
+    }
+    
+    private void writeCanvas(HttpServletResponse response, RuntimeStats stats) 
+    throws IOException, GeoWebCacheException {
+        // Encode straight to the client, rather than going through
+        // ImageIO.write() and its file backed cache
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(
+                outputFormat.getInternalName());
+        if(! writers.hasNext()) {
+            throw new GeoWebCacheException("No ImageIO writer available for " 
+                    + outputFormat.getInternalName());
+        }
+        ImageWriter writer = writers.next();
         
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType(this.outputFormat.getMimeType());
@@ -423,14 +583,54 @@ public class WMSTileFuser {
         AccountingOutputStream aos = new AccountingOutputStream(os);
         
         try {
-            ImageIO.write(canvas, outputFormat.getInternalName(), aos);
+            ImageOutputStream imgOut = new MemoryCacheImageOutputStream(aos);
+            writer.setOutput(imgOut);
+            writer.write(canvas);
+            imgOut.close();
             aos.close();
         } catch (IOException ioe) {
             log.debug("IOException writing untiled response to client: " + ioe.getMessage());
+        } finally {
+            writer.dispose();
         }
         
         log.debug("WMS response size: " + aos.getCount() + "bytes.");
         
         stats.log(aos.getCount(), CacheResult.WMS);
     }
-}
\ No newline at end of file
+    
+    /**
+     * A source tile, where it goes on the canvas and which part of it is used
+     */
+    static class TilePlacement {
+        final ConveyorTile tile;
+        
+        final long[] gridLoc;
+        
+        final int canvasx;
+        
+        final int canvasy;
+        
+        final int tilex;
+        
+        final int tiley;
+        
+        final int width;
+        
+        final int height;
+        
+        BufferedImage img;
+        
+        TilePlacement(ConveyorTile tile, long[] gridLoc, int canvasx, int canvasy, 
+                int tilex, int tiley, int width, int height) {
+            this.tile = tile;
+            this.gridLoc = gridLoc;
+            this.canvasx = canvasx;
+            this.canvasy = canvasy;
+            this.tilex = tilex;
+            this.tiley = tiley;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.geowebcache.service.wms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImagingOpException;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.util.RasterPool;
+
+public class RasterCanvasTest extends TestCase {
+
+    private static final int TILE = 64;
+
+    public void testPalettedTilesStayPaletted() throws Exception {
+        IndexColorModel icm = createPalette(true);
+        BufferedImage[] tiles = { createPalettedTile(icm, 1), createPalettedTile(icm, 2),
+                createPalettedTile(icm, 3), createPalettedTile(icm, 4) };
+
+        // Canvas is 100x90, fully covered by parts of four tiles
+        RasterCanvas canvas = new RasterCanvas(100, 90, null, true, true, null);
+        drawQuad(canvas, tiles, 20, 30);
+
+        BufferedImage result = canvas.getImage();
+        assertSame(icm, result.getColorModel());
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, result.getType());
+
+        assertSamePixels(renderJava2D(100, 90, null, tiles, 20, 30), result);
+    }
+
+    public void testTransparentPaddingUsesTransparentIndex() throws Exception {
+        IndexColorModel icm = createPalette(true);
+        BufferedImage[] tiles = { createPalettedTile(icm, 1), createPalettedTile(icm, 2),
+                createPalettedTile(icm, 3), createPalettedTile(icm, 4) };
+
+        // 10 pixels of padding on the left and top
+        RasterCanvas canvas = new RasterCanvas(110, 100, null, false, true, null);
+        drawQuad(canvas, tiles, 20, 30, 10, 10);
+
+        BufferedImage result = canvas.getImage();
+        assertTrue(result.getColorModel() instanceof IndexColorModel);
+        assertEquals(0, result.getRGB(0, 0) >>> 24);
+        assertEquals(0, result.getRGB(5, 50) >>> 24);
+
+        assertSamePixels(renderJava2D(110, 100, null, tiles, 20, 30, 10, 10), result);
+    }
+
+    public void testMixedColorModelsArePromoted() throws Exception {
+        BufferedImage[] tiles = { createPalettedTile(createPalette(true), 1),
+                createPalettedTile(createPalette(false), 2), createARGBTile(3),
+                createPalettedTile(createPalette(true), 4) };
+
+        RasterCanvas canvas = new RasterCanvas(100, 90, null, true, true, null);
+        drawQuad(canvas, tiles, 20, 30);
+
+        BufferedImage result = canvas.getImage();
+        assertEquals(BufferedImage.TYPE_INT_ARGB, result.getType());
+        assertSamePixels(renderJava2D(100, 90, null, tiles, 20, 30), result);
+    }
+
+    public void testOpaqueBackgroundBlending() throws Exception {
+        BufferedImage[] tiles = { createARGBTile(1), createARGBTile(2), createARGBTile(3),
+                createARGBTile(4) };
+
+        Color bg = new Color(10, 200, 30);
+        RasterCanvas canvas = new RasterCanvas(110, 100, bg, false, true, null);
+        drawQuad(canvas, tiles, 20, 30, 10, 10);
+
+        BufferedImage result = canvas.getImage();
+        assertEquals(BufferedImage.TYPE_INT_RGB, result.getType());
+        assertEquals(bg.getRGB(), result.getRGB(0, 0));
+
+        assertSamePixels(renderJava2D(110, 100, bg, tiles, 20, 30, 10, 10), result);
+    }
+
+    public void testScaleReusesPooledRasters() throws Exception {
+        IndexColorModel icm = createPalette(true);
+        BufferedImage[] tiles = { createPalettedTile(icm, 1), createPalettedTile(icm, 2),
+                createPalettedTile(icm, 3), createPalettedTile(icm, 4) };
+
+        RasterPool pool = new RasterPool(4, 2);
+
+        RasterCanvas canvas = new RasterCanvas(100, 90, null, true, true, pool);
+        drawQuad(canvas, tiles, 20, 30);
+        BufferedImage scaled = canvas.scale(50, 45, true);
+        assertEquals(50, scaled.getWidth());
+        assertEquals(45, scaled.getHeight());
+        // Palettes are never interpolated
+        assertSame(icm, scaled.getColorModel());
+        // Nearest neighbour, one of the four source pixels
+        BufferedImage unscaled = canvas.getImage();
+        int rgb = scaled.getRGB(10, 20);
+        assertTrue(rgb == unscaled.getRGB(20, 40) || rgb == unscaled.getRGB(21, 40)
+                || rgb == unscaled.getRGB(20, 41) || rgb == unscaled.getRGB(21, 41));
+
+        canvas.dispose();
+        assertEquals(2, pool.size());
+
+        canvas = new RasterCanvas(100, 90, null, true, true, pool);
+        drawQuad(canvas, tiles, 20, 30);
+        assertEquals(1, pool.size());
+        canvas.scale(50, 45, false);
+        assertEquals(0, pool.size());
+        canvas.dispose();
+    }
+
+    public void testMissingTileOnPooledRasterIsTransparent() throws Exception {
+        IndexColorModel icm = createPalette(true);
+        BufferedImage[] tiles = { createPalettedTile(icm, 1), createPalettedTile(icm, 2),
+                createPalettedTile(icm, 3), createPalettedTile(icm, 4) };
+
+        RasterPool pool = new RasterPool(4, 2);
+
+        RasterCanvas canvas = new RasterCanvas(100, 90, null, true, true, pool);
+        drawQuad(canvas, tiles, 20, 30);
+        canvas.dispose();
+        assertEquals(1, pool.size());
+
+        // Same layout, but the bottom right tile could not be decoded
+        canvas = new RasterCanvas(100, 90, null, true, true, pool);
+        tiles[3] = null;
+        drawQuad(canvas, tiles, 20, 30);
+        assertEquals(0, pool.size());
+
+        BufferedImage result = canvas.getImage();
+        assertSame(icm, result.getColorModel());
+        for (int y = 34; y < 90; y++) {
+            for (int x = 44; x < 100; x++) {
+                assertEquals(0, result.getRGB(x, y) >>> 24);
+            }
+        }
+        canvas.dispose();
+    }
+
+    public void testJava2DScalingOnPooledRasterIsClean() throws Exception {
+        BufferedImage[] tiles = { createARGBTile(1), createARGBTile(2), createARGBTile(3),
+                createARGBTile(4) };
+
+        RasterPool pool = new RasterPool(4, 2);
+
+        RasterCanvas canvas = new RasterCanvas(100, 90, null, true, true, pool);
+        drawQuad(canvas, tiles, 20, 30);
+        canvas.scale(50, 45, true);
+        canvas.dispose();
+        assertEquals(2, pool.size());
+
+        // Fully transparent tiles, scaled the way layouts the native code rejects are
+        BufferedImage clear = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage[] clearTiles = { clear, clear, clear, clear };
+        canvas = new RasterCanvas(100, 90, null, true, true, pool) {
+            void filter(AffineTransformOp op, BufferedImage src, BufferedImage dst) {
+                throw new ImagingOpException("Unable to transform src image");
+            }
+        };
+        drawQuad(canvas, clearTiles, 20, 30);
+        BufferedImage scaled = canvas.scale(50, 45, true);
+        assertEquals(0, pool.size());
+
+        for (int y = 0; y < 45; y++) {
+            for (int x = 0; x < 50; x++) {
+                assertEquals(0, scaled.getRGB(x, y) >>> 24);
+            }
+        }
+        canvas.dispose();
+    }
+
+    private void drawQuad(RasterCanvas canvas, BufferedImage[] tiles, int tilex, int tiley) {
+        drawQuad(canvas, tiles, tilex, tiley, 0, 0);
+    }
+
+    /**
+     * Draws four tiles in a 2x2 arrangement, the top left one cut off at tilex, tiley
+     */
+    private void drawQuad(RasterCanvas canvas, BufferedImage[] tiles, int tilex, int tiley,
+            int padx, int pady) {
+        int w0 = TILE - tilex;
+        int h0 = TILE - tiley;
+        int w1 = canvas.width - padx - w0;
+        int h1 = canvas.height - pady - h0;
+        canvas.draw(tiles[0], tilex, tiley, w0, h0, padx, pady);
+        canvas.draw(tiles[1], 0, tiley, w1, h0, padx + w0, pady);
+        canvas.draw(tiles[2], tilex, 0, w0, h1, padx, pady + h0);
+        if (tiles[3] != null) {
+            canvas.draw(tiles[3], 0, 0, w1, h1, padx + w0, pady + h0);
+        }
+    }
+
+    private BufferedImage renderJava2D(int width, int height, Color bg, BufferedImage[] tiles,
+            int tilex, int tiley) {
+        return renderJava2D(width, height, bg, tiles, tilex, tiley, 0, 0);
+    }
+
+    /**
+     * The way the tile fuser used to do it
+     */
+    private BufferedImage renderJava2D(int width, int height, Color bg, BufferedImage[] tiles,
+            int tilex, int tiley, int padx, int pady) {
+        BufferedImage img = new BufferedImage(width, height,
+                bg == null ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D gfx = img.createGraphics();
+        if (bg != null) {
+            gfx.setColor(bg);
+            gfx.fillRect(0, 0, width, height);
+        }
+        int w0 = TILE - tilex;
+        int h0 = TILE - tiley;
+        int w1 = width - padx - w0;
+        int h1 = height - pady - h0;
+        gfx.drawImage(tiles[0].getSubimage(tilex, tiley, w0, h0), padx, pady, null);
+        gfx.drawImage(tiles[1].getSubimage(0, tiley, w1, h0), padx + w0, pady, null);
+        gfx.drawImage(tiles[2].getSubimage(tilex, 0, w0, h1), padx, pady + h0, null);
+        gfx.drawImage(tiles[3].getSubimage(0, 0, w1, h1), padx + w0, pady + h0, null);
+        gfx.dispose();
+        return img;
+    }
+
+    private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                if ((e >>> 24) == 0 && (a >>> 24) == 0) {
+                    // Fully transparent, color does not matter
+                    continue;
+                }
+                // Java2D goes through premultiplied values, which loses
+                // precision on the colors of translucent pixels
+                int tolerance = 1 + 255 / Math.max(1, e >>> 24);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int diff = Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                    assertTrue("Pixel " + x + "," + y + " expected " + Integer.toHexString(e)
+                            + " but was " + Integer.toHexString(a), 
+                            diff <= (shift == 24 ? 1 : tolerance));
+                }
+            }
+        }
+    }
+
+    private IndexColorModel createPalette(boolean transparent) {
+        byte[] r = new byte[16];
+        byte[] g = new byte[16];
+        byte[] b = new byte[16];
+        byte[] a = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            r[i] = (byte) (i * 16);
+            g[i] = (byte) (255 - i * 16);
+            b[i] = (byte) (transparent ? 100 : 200);
+            a[i] = (byte) 255;
+        }
+        if (transparent) {
+            a[0] = 0;
+        }
+        return new IndexColorModel(8, 16, r, g, b, a);
+    }
+
+    private BufferedImage createPalettedTile(IndexColorModel icm, long seed) {
+        BufferedImage img = new BufferedImage(TILE, TILE, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        Random random = new Random(seed);
+        for (int y = 0; y < TILE; y++) {
+            for (int x = 0; x < TILE; x++) {
+                img.getRaster().setSample(x, y, 0, random.nextInt(16));
+            }
+        }
+        return img;
+    }
+
+    private BufferedImage createARGBTile(long seed) {
+        BufferedImage img = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < TILE; y++) {
+            for (int x = 0; x < TILE; x++) {
+                int alpha = random.nextBoolean() ? 255 : random.nextInt(256);
+                img.setRGB(x, y, (alpha << 24) | random.nextInt(0xffffff));
+            }
+        }
+        return img;
+    }
+}
@@ -18,7 +18,9 @@
 package org.geowebcache.service.wms;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -94,6 +96,44 @@ public class WMSTileFuserTest extends TestCase {
         tileFuser.determineCanvasLayout();
     }
 
+    public void testTileFuserPlanGroupsByMetaTile() throws Exception {
+        TileLayer layer = createWMSLayer();
+        
+        // request fits inside -30.0,15.0,45.0,30
+        BoundingBox bounds = new BoundingBox(-25.0,17.0,40.0,22);
+        
+        int width = (int) bounds.getWidth() * 10;
+        int height= (int) bounds.getHeight() * 10;
+        WMSTileFuser tileFuser = new WMSTileFuser(layer, layer.getGridSubsets().values().iterator().next(), bounds, width, height);
+        tileFuser.determineSourceResolution();
+        tileFuser.determineCanvasLayout();
+        
+        long[] rect = tileFuser.srcRectangle;
+        long expectedTiles = (rect[2] - rect[0] + 1) * (rect[3] - rect[1] + 1);
+        
+        Collection<List<WMSTileFuser.TilePlacement>> metaTiles = tileFuser.planCanvas();
+        
+        int tileCount = 0;
+        Iterator<List<WMSTileFuser.TilePlacement>> iter = metaTiles.iterator();
+        while(iter.hasNext()) {
+            List<WMSTileFuser.TilePlacement> placements = iter.next();
+            assertTrue(placements.size() <= 9);
+            
+            // All tiles in a group belong to the same 3x3 metatile
+            long[] first = placements.get(0).gridLoc;
+            for(WMSTileFuser.TilePlacement placement : placements) {
+                assertEquals(first[0] / 3, placement.gridLoc[0] / 3);
+                assertEquals(first[1] / 3, placement.gridLoc[1] / 3);
+                assertTrue(placement.width > 0 && placement.height > 0);
+                assertTrue(placement.canvasx + placement.width <= tileFuser.canvasSize[0]);
+                assertTrue(placement.canvasy + placement.height <= tileFuser.canvasSize[1]);
+            }
+            tileCount += placements.size();
+        }
+        
+        assertEquals(expectedTiles, tileCount);
+    }
+
     private WMSLayer createWMSLayer() {
         String[] urls = {"http://localhost:38080/wms"};
         List<String> formatList = new LinkedList<String>();
@@ -27,6 +27,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.meta.ServiceContact;
 import org.geowebcache.config.meta.ServiceInformation;
 import org.geowebcache.config.meta.ServiceProvider;
@@ -42,6 +43,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.stats.RuntimeStats;
 import org.geowebcache.util.ServletUtils;
 
@@ -71,6 +73,20 @@ public class WMTSGetCapabilities {
         }
     }
     
+    /**
+     * Writes the document from the cache, rendering it only if necessary
+     */
+    protected void writeResponse(CapabilitiesCache cache, HttpServletRequest request, 
+            HttpServletResponse response, RuntimeStats stats) throws GeoWebCacheException {
+        String key = CapabilitiesCache.key(WMTSService.SERVICE_WMTS, baseUrl, null);
+        
+        cache.writeResponse(key, new CapabilitiesCache.DocumentGenerator() {
+            public String generate() {
+                return generateGetCapabilities();
+            }
+        }, "application/vnd.ogc.wms_xml", request, response, stats);
+    }
+    
     protected void writeResponse(HttpServletResponse response, RuntimeStats stats) {
         byte[] data = generateGetCapabilities().getBytes();
 
@@ -31,6 +31,7 @@ import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.service.CapabilitiesCache;
 import org.geowebcache.service.OWSException;
 import org.geowebcache.service.Service;
 import org.geowebcache.stats.RuntimeStats;
@@ -52,6 +53,8 @@ public class WMTSService extends Service {
     
     private RuntimeStats stats;
     
+    private CapabilitiesCache capabilitiesCache;
+    
     public WMTSService(StorageBroker sb, TileLayerDispatcher tld, GridSetBroker gsb, RuntimeStats stats) {
         super(SERVICE_WMTS);
         
@@ -61,6 +64,15 @@ public class WMTSService extends Service {
         this.stats = stats;
     }
 
+    /**
+     * Keeps rendered capabilities documents until the layers change
+     * 
+     * @param capabilitiesCache
+     */
+    public void setCapabilitiesCache(CapabilitiesCache capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
     public Conveyor getConveyor(HttpServletRequest request, HttpServletResponse response) 
     throws OWSException {
         String encoding = request.getCharacterEncoding();
@@ -226,7 +238,15 @@ public class WMTSService extends Service {
         if (tile.getHint() != null) {
             if(tile.getHint().equals("getcapabilities")) {
                 WMTSGetCapabilities wmsGC = new WMTSGetCapabilities(tld, gsb, tile.servletReq);      
-                wmsGC.writeResponse(tile.servletResp, stats);
+                if(capabilitiesCache != null) {
+                    try {
+                        wmsGC.writeResponse(capabilitiesCache, tile.servletReq, tile.servletResp, stats);
+                    } catch (GeoWebCacheException e) {
+                        throw new OWSException(500, "NoApplicableCode", "", e.getMessage());
+                    }
+                } else {
+                    wmsGC.writeResponse(tile.servletResp, stats);
+                }
                 
             } else if(tile.getHint().equals("getfeatureinfo")) {
                 ConveyorTile convTile = (ConveyorTile) conv;